@@ -0,0 +1,75 @@
+package Bench;
+
+import Client.Command;
+import Client.TCPClient.Request;
+import Server.Common.MessageChannel;
+import Server.TCP.LocalCluster;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of a client through the middleware to the RMs of a LocalCluster,
+ * one shard of each resource type and a backup, over loopback.
+ *
+ * Each benchmark thread is a client with its own connection. The query may be
+ * answered from the middleware's cache; the write goes to the primary and is
+ * replicated to its backup before it is acknowledged.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClusterBench {
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+        LocalCluster cluster;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Quiet.silenceTrace();
+            cluster = LocalCluster.start(1, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            cluster.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        MessageChannel channel;
+        Request query;
+        Request write;
+
+        @Setup(Level.Trial)
+        public void setup(Cluster cluster) throws IOException, ClassNotFoundException {
+            channel = new MessageChannel(new Socket(cluster.cluster.getHost(), cluster.cluster.getMiddlewarePort()), "bench-client");
+            query = new Request(Command.QueryFlightPrice, new Vector<>(Arrays.asList("QueryFlightPrice", "1")));
+            write = new Request(Command.AddFlight, new Vector<>(Arrays.asList("AddFlight", "1", "1", "100")));
+            channel.send(write);
+            channel.receive();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public Object query(Connection client) throws IOException, ClassNotFoundException {
+        client.channel.send(client.query);
+        return client.channel.receive();
+    }
+
+    @Benchmark
+    public Object write(Connection client) throws IOException, ClassNotFoundException {
+        client.channel.send(client.write);
+        return client.channel.receive();
+    }
+}
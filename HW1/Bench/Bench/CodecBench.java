@@ -0,0 +1,86 @@
+package Bench;
+
+import Client.Command;
+import Client.TCPClient.Request;
+import Server.Common.MessageChannel;
+import Server.Common.ResponsePacket;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the TCP messages.
+ *
+ * The "fresh" benchmarks use a new object stream per message, which sends the
+ * class descriptors every time. The "channel" ones go through a pair of
+ * MessageChannels over a loopback connection, the way the client, the
+ * middleware and the RMs exchange them, descriptors sent once per reset.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CodecBench {
+
+    Request request;
+    ResponsePacket response;
+    MessageChannel sender;
+    MessageChannel receiver;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        request = new Request(Command.Bundle, new Vector<>(Arrays.asList("Bundle", "7", "12", "34", "montreal", "true", "false")));
+        response = ResponsePacket.ok();
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            // each constructor waits for the stream header of the other end: build them concurrently
+            FutureTask<MessageChannel> accepted = new FutureTask<>(() -> new MessageChannel(server.accept(), "bench-receiver"));
+            new Thread(accepted).start();
+            sender = new MessageChannel(new Socket("127.0.0.1", server.getLocalPort()), "bench-sender");
+            receiver = accepted.get();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    private static Object freshRoundTrip(Object message) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(message);
+        }
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return input.readObject();
+        }
+    }
+
+    @Benchmark
+    public Object requestFresh() throws IOException, ClassNotFoundException {
+        return freshRoundTrip(request);
+    }
+
+    @Benchmark
+    public Object responseFresh() throws IOException, ClassNotFoundException {
+        return freshRoundTrip(response);
+    }
+
+    @Benchmark
+    public Object requestChannel() throws IOException, ClassNotFoundException {
+        sender.send(request);
+        return receiver.receive();
+    }
+
+    @Benchmark
+    public Object responseChannel() throws IOException, ClassNotFoundException {
+        sender.send(response);
+        return receiver.receive();
+    }
+}
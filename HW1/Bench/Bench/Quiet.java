@@ -0,0 +1,22 @@
+package Bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The resource manager traces every operation with System.out.println, which
+ * would be most of what a benchmark measures.
+ */
+final class Quiet {
+
+    private Quiet() {
+    }
+
+    /**
+     * Drop what the code under test prints. JMH reports the results of a
+     * forked run over its own link, not stdout.
+     */
+    static void silenceTrace() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
@@ -0,0 +1,107 @@
+package Bench;
+
+import Client.Load.Workload;
+import Server.Common.ResourceManager;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The operations of a resource manager, in process: no network, no middleware.
+ *
+ * reserveFlight, queryFlight and queryFlightPrice go straight to reserveItem,
+ * queryNum and queryPrice. The flights are picked with a Zipf popularity of
+ * exponent skew, so that with skew 0.99 the threads fight over the locks of
+ * the first few flights. Run with -t to vary the thread count.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ResourceManagerBench {
+
+    @Param({"1000"})
+    public int flights;
+
+    @Param({"0", "0.99"})
+    public double skew;
+
+    // customers each thread reserves for
+    private static final int customersPerThread = 1000;
+
+    ResourceManager manager;
+    Workload workload;
+    private final AtomicInteger threads = new AtomicInteger();
+    // ids of the customers created by deleteCustomer, above the ones of the threads
+    private final AtomicInteger nextCustomer = new AtomicInteger(1 << 24);
+
+    @Setup(Level.Trial)
+    public void setup() throws RemoteException {
+        Quiet.silenceTrace();
+        manager = new ResourceManager("Flights");
+        // seats never run out during a run
+        for (int flight = 1; flight <= flights; flight++) {
+            manager.addFlight(flight, Integer.MAX_VALUE / 2, 100 + flight);
+        }
+        workload = new Workload("QueryFlight=1", flights, 1, customersPerThread, skew);
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        Random random;
+        int firstCustomer;
+
+        @Setup(Level.Trial)
+        public void setup(ResourceManagerBench bench) throws RemoteException {
+            int thread = bench.threads.getAndIncrement();
+            random = new Random(thread);
+            firstCustomer = thread * customersPerThread;
+            for (int i = 1; i <= customersPerThread; i++) {
+                bench.manager.newCustomer(firstCustomer + i);
+            }
+        }
+
+        int customer(ResourceManagerBench bench) {
+            return firstCustomer + bench.workload.customer(random);
+        }
+    }
+
+    @Benchmark
+    public boolean reserveFlight(Caller caller) throws RemoteException {
+        return manager.reserveFlight(caller.customer(this), workload.flight(caller.random));
+    }
+
+    @Benchmark
+    public int queryFlight(Caller caller) throws RemoteException {
+        return manager.queryFlight(workload.flight(caller.random));
+    }
+
+    @Benchmark
+    public int queryFlightPrice(Caller caller) throws RemoteException {
+        return manager.queryFlightPrice(workload.flight(caller.random));
+    }
+
+    /**
+     * Adds seats to an existing flight, the usual case
+     */
+    @Benchmark
+    public boolean addFlight(Caller caller) throws RemoteException {
+        return manager.addFlight(workload.flight(caller.random), 1, 100);
+    }
+
+    /**
+     * A customer is created with two reservations and deleted, which gives the
+     * seats back: the creation is part of the measurement
+     */
+    @Benchmark
+    public boolean deleteCustomer(Caller caller) throws RemoteException {
+        int customer = nextCustomer.getAndIncrement();
+        manager.newCustomer(customer);
+        manager.reserveFlight(customer, workload.flight(caller.random));
+        manager.reserveFlight(customer, workload.flight(caller.random));
+        return manager.deleteCustomer(customer);
+    }
+}
@@ -0,0 +1,65 @@
+package Bench;
+
+import Server.Common.SeatMap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seat assignment on the seat map of a flight: the first free seat, and a
+ * block of seats side by side for a group, on a mostly booked flight whose
+ * free seats are scattered. Each assignment is released again, so the map
+ * stays the same from one call to the next.
+ *
+ * Run with -prof gc to check that assigning allocates nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SeatMapBench {
+
+    // a single aisle, a wide-body, and an unrealistically large flight
+    @Param({"180", "550", "4096"})
+    public int seats;
+
+    @Param({"4"})
+    public int group;
+
+    SeatMap seatMap;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        seatMap = new SeatMap(seats);
+        for (int i = 0; i < seats; i++) {
+            seatMap.assign();
+        }
+        // one seat in ten free, and a block for the group at the very end
+        Random random = new Random(42);
+        for (int i = 0; i < seats - group; i++) {
+            if (random.nextInt(10) == 0) {
+                seatMap.release(i);
+            }
+        }
+        for (int i = seats - group; i < seats; i++) {
+            seatMap.release(i);
+        }
+    }
+
+    @Benchmark
+    public int assign() {
+        int seat = seatMap.assign();
+        seatMap.release(seat);
+        return seat;
+    }
+
+    @Benchmark
+    public int assignBlock() {
+        int first = seatMap.assignBlock(group);
+        for (int i = 0; i < group; i++) {
+            seatMap.release(first + i);
+        }
+        return first;
+    }
+}
@@ -0,0 +1,61 @@
+package Bench;
+
+import Server.Common.Customer;
+import Server.Common.Flight;
+import Server.Common.RMHashMap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The item storage: a customer's bill, which is rebuilt on every
+ * QueryCustomer, and the deep copy of an RMHashMap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StorageBench {
+
+    @State(Scope.Benchmark)
+    public static class Bill {
+        @Param({"1", "10", "100", "1000"})
+        public int reservations;
+
+        Customer customer;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            customer = new Customer(1);
+            for (int i = 1; i <= reservations; i++) {
+                customer.reserve(Flight.getKey(i), String.valueOf(i), 100 + i);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Map {
+        @Param({"100", "10000"})
+        public int items;
+
+        RMHashMap map;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            map = new RMHashMap();
+            for (int i = 1; i <= items; i++) {
+                Flight flight = new Flight(i, 100, 100 + i);
+                map.put(flight.getKey(), flight);
+            }
+        }
+    }
+
+    @Benchmark
+    public String getBill(Bill bill) {
+        return bill.customer.getBill();
+    }
+
+    @Benchmark
+    public Object cloneMap(Map map) {
+        return map.map.clone();
+    }
+}
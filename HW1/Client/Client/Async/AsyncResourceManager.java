@@ -0,0 +1,78 @@
+package Client.Async;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The operations of the middleware, for programs that issue many of them at once.
+ *
+ * Every operation returns right away with a future of its typed result, the
+ * requests beyond the client's window of requests in flight wait in a queue.
+ * The boolean operations complete with false when the middleware refused them
+ * (e.g. not enough seats), the queries with the value asked for. A future
+ * completes exceptionally with a RequestFailedException when the request could
+ * not be processed at all, e.g. because the middleware was busy or timed out, and with an
+ * IOException or a RemoteException when the connection failed.
+ *
+ * Callbacks attached with thenApply() etc. may run on the client's I/O thread:
+ * use the ...Async() variants for anything slow.
+ */
+public interface AsyncResourceManager extends Closeable {
+
+    CompletableFuture<Boolean> addFlight(int flightNum, int flightSeats, int flightPrice);
+
+    CompletableFuture<Boolean> addCars(String location, int numCars, int price);
+
+    CompletableFuture<Boolean> addRooms(String location, int numRooms, int price);
+
+    /**
+     * @return the id of the new customer
+     */
+    CompletableFuture<Integer> newCustomer();
+
+    CompletableFuture<Boolean> newCustomer(int customerID);
+
+    CompletableFuture<Boolean> deleteFlight(int flightNum);
+
+    CompletableFuture<Boolean> deleteCars(String location);
+
+    CompletableFuture<Boolean> deleteRooms(String location);
+
+    CompletableFuture<Boolean> deleteCustomer(int customerID);
+
+    CompletableFuture<Integer> queryFlight(int flightNum);
+
+    CompletableFuture<Integer> queryCars(String location);
+
+    CompletableFuture<Integer> queryRooms(String location);
+
+    /**
+     * @return the bill of the customer
+     */
+    CompletableFuture<String> queryCustomerInfo(int customerID);
+
+    CompletableFuture<Integer> queryFlightPrice(int flightNum);
+
+    CompletableFuture<Integer> queryCarsPrice(String location);
+
+    CompletableFuture<Integer> queryRoomsPrice(String location);
+
+    CompletableFuture<Boolean> reserveFlight(int customerID, int flightNum);
+
+    CompletableFuture<Boolean> reserveCar(int customerID, String location);
+
+    CompletableFuture<Boolean> reserveRoom(int customerID, String location);
+
+    /**
+     * All the flights or none
+     */
+    CompletableFuture<Boolean> reserveFlights(int customerID, List<String> flightNumbers);
+
+    CompletableFuture<Boolean> cancelReserveFlights(int customerID, List<String> flightNumbers);
+
+    /**
+     * The flights, and a car and/or a room at the location, all or none
+     */
+    CompletableFuture<Boolean> bundle(int customerID, List<String> flightNumbers, String location, boolean car, boolean room);
+}
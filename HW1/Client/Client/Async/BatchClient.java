@@ -0,0 +1,256 @@
+package Client.Async;
+
+import Client.Command;
+import Server.Common.LatencyHistogram;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static Client.Client.*;
+
+/**
+ * Replay a file of commands against the middleware, as fast as it takes them.
+ *
+ * The commands use the syntax of the interactive client, one per line; empty
+ * lines and lines starting with '#' are skipped. They are pipelined through an
+ * AsyncResourceManager, up to a window of commands in flight. Over TCP the
+ * middleware runs the commands of a connection in order, so the outcome is the
+ * one of a sequential replay. Over RMI the commands in flight run concurrently.
+ *
+ * One line per command is written to stdout, in input order:
+ *   <line number> <command> <result>
+ * where the result is true/false, a value, or ERR and the reason. A summary of
+ * the throughput and the latencies goes to stderr at the end.
+ *
+ * Usage:
+ *   java Client.Async.BatchClient tcp <host> <port> [<file>]
+ *   java Client.Async.BatchClient rmi <host> <server_rmiobject> [<file>]
+ * Without a file the commands are read from stdin.
+ *
+ * Tuning (system properties):
+ *   batch.window    commands in flight at most (default 64)
+ *   batch.rmiPort   port of the RMI registry (default 3031)
+ */
+public class BatchClient {
+
+    private static final int window = Integer.getInteger("batch.window", 64);
+    private static final int rmiPort = Integer.getInteger("batch.rmiPort", 3031);
+
+    // a command sent and not written out yet
+    private static class Entry {
+        final int line;
+        final Command command;
+        long start;
+        long latency;
+        CompletableFuture<?> future;
+
+        Entry(int line, Command command) {
+            this.line = line;
+            this.command = command;
+        }
+    }
+
+    private final AsyncResourceManager manager;
+    private final PrintWriter out;
+    private final Deque<Entry> pending = new ArrayDeque<>();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long succeeded = 0;
+    private long refused = 0;
+    private long failed = 0;
+    private long invalid = 0;
+
+    public BatchClient(AsyncResourceManager manager, PrintWriter out) {
+        this.manager = manager;
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4 || !(args[0].equals("tcp") || args[0].equals("rmi"))) {
+            System.err.println("Usage: java Client.Async.BatchClient {tcp <host> <port>|rmi <host> <server_rmiobject>} [<file>]");
+            System.exit(1);
+        }
+
+        try (AsyncResourceManager manager = args[0].equals("tcp")
+                ? new TCPAsyncClient(args[1], Integer.parseInt(args[2]), window)
+                : RMIAsyncClient.connect(args[1], rmiPort, args[2], window);
+             BufferedReader in = new BufferedReader(args.length == 4
+                     ? new FileReader(args[3])
+                     : new InputStreamReader(System.in))) {
+
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+            BatchClient batch = new BatchClient(manager, out);
+            long start = System.nanoTime();
+            batch.run(in);
+            out.flush();
+            System.err.println(batch.summary(System.nanoTime() - start));
+        } catch (Exception e) {
+            System.err.println("Batch failed: " + e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Send every command of the input, and write the results
+     * @param in
+     * @throws IOException
+     */
+    public void run(BufferedReader in) throws IOException {
+        String text;
+        int line = 0;
+        while ((text = in.readLine()) != null) {
+            line++;
+            text = text.trim();
+            if (text.isEmpty() || text.startsWith("#")) {
+                continue;
+            }
+
+            Vector<String> arguments = parse(text);
+            Entry entry;
+            try {
+                entry = new Entry(line, Command.fromString(arguments.elementAt(0)));
+                CompletableFuture<?> future = submit(entry.command, arguments);
+                // after submit(), which blocks while the window is full: only the time in flight counts
+                entry.start = System.nanoTime();
+                entry.future = future.whenComplete((result, error) -> entry.latency = System.nanoTime() - entry.start);
+            } catch (IllegalArgumentException e) {
+                // also a NumberFormatException
+                invalid++;
+                out.println(line + " " + arguments.elementAt(0) + " ERR " + e.getMessage());
+                continue;
+            }
+            pending.addLast(entry);
+            writeCompleted(false);
+        }
+        writeCompleted(true);
+    }
+
+    /**
+     * Write out the results at the head of the pending commands,
+     * so that they come out in input order
+     * @param all wait for all the commands to complete
+     */
+    private void writeCompleted(boolean all) {
+        while (!pending.isEmpty() && (all || pending.peekFirst().future.isDone())) {
+            Entry entry = pending.removeFirst();
+            String result;
+            try {
+                Object value = entry.future.join();
+                if (Boolean.FALSE.equals(value)) {
+                    refused++;
+                } else {
+                    succeeded++;
+                }
+                result = String.valueOf(value).replace('\n', '|');
+            } catch (CompletionException | CancellationException e) {
+                failed++;
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                result = "ERR " + cause.getMessage();
+            }
+            latencies.record(entry.latency);
+            out.println(entry.line + " " + entry.command.name() + " " + result);
+        }
+    }
+
+    private CompletableFuture<?> submit(Command command, Vector<String> arguments) {
+        switch (command) {
+            case AddFlight:
+                checkArgumentsCount(4, arguments.size());
+                return manager.addFlight(toInt(arguments.get(1)), toInt(arguments.get(2)), toInt(arguments.get(3)));
+            case AddCars:
+                checkArgumentsCount(4, arguments.size());
+                return manager.addCars(arguments.get(1), toInt(arguments.get(2)), toInt(arguments.get(3)));
+            case AddRooms:
+                checkArgumentsCount(4, arguments.size());
+                return manager.addRooms(arguments.get(1), toInt(arguments.get(2)), toInt(arguments.get(3)));
+            case AddCustomer:
+                checkArgumentsCount(1, arguments.size());
+                return manager.newCustomer();
+            case AddCustomerID:
+                checkArgumentsCount(2, arguments.size());
+                return manager.newCustomer(toInt(arguments.get(1)));
+            case DeleteFlight:
+                checkArgumentsCount(2, arguments.size());
+                return manager.deleteFlight(toInt(arguments.get(1)));
+            case DeleteCars:
+                checkArgumentsCount(2, arguments.size());
+                return manager.deleteCars(arguments.get(1));
+            case DeleteRooms:
+                checkArgumentsCount(2, arguments.size());
+                return manager.deleteRooms(arguments.get(1));
+            case DeleteCustomer:
+                checkArgumentsCount(2, arguments.size());
+                return manager.deleteCustomer(toInt(arguments.get(1)));
+            case QueryFlight:
+                checkArgumentsCount(2, arguments.size());
+                return manager.queryFlight(toInt(arguments.get(1)));
+            case QueryCars:
+                checkArgumentsCount(2, arguments.size());
+                return manager.queryCars(arguments.get(1));
+            case QueryRooms:
+                checkArgumentsCount(2, arguments.size());
+                return manager.queryRooms(arguments.get(1));
+            case QueryCustomer:
+                checkArgumentsCount(2, arguments.size());
+                return manager.queryCustomerInfo(toInt(arguments.get(1)));
+            case QueryFlightPrice:
+                checkArgumentsCount(2, arguments.size());
+                return manager.queryFlightPrice(toInt(arguments.get(1)));
+            case QueryCarsPrice:
+                checkArgumentsCount(2, arguments.size());
+                return manager.queryCarsPrice(arguments.get(1));
+            case QueryRoomsPrice:
+                checkArgumentsCount(2, arguments.size());
+                return manager.queryRoomsPrice(arguments.get(1));
+            case ReserveFlight:
+                checkArgumentsCount(3, arguments.size());
+                return manager.reserveFlight(toInt(arguments.get(1)), toInt(arguments.get(2)));
+            case ReserveCar:
+                checkArgumentsCount(3, arguments.size());
+                return manager.reserveCar(toInt(arguments.get(1)), arguments.get(2));
+            case ReserveRoom:
+                checkArgumentsCount(3, arguments.size());
+                return manager.reserveRoom(toInt(arguments.get(1)), arguments.get(2));
+            case ReserveFlights:
+            case CancelReserveFlights: {
+                if (arguments.size() < 3) {
+                    throw new IllegalArgumentException(command.name() + " expects a customer and at least one flight");
+                }
+                int customerID = toInt(arguments.get(1));
+                List<String> flightNumbers = new ArrayList<>(arguments.subList(2, arguments.size()));
+                return command == Command.ReserveFlights
+                        ? manager.reserveFlights(customerID, flightNumbers)
+                        : manager.cancelReserveFlights(customerID, flightNumbers);
+            }
+            case Bundle: {
+                if (arguments.size() < 6) {
+                    throw new IllegalArgumentException("Bundle command expects at least 6 arguments");
+                }
+                int customerID = toInt(arguments.get(1));
+                List<String> flightNumbers = new ArrayList<>(arguments.subList(2, arguments.size() - 3));
+                String location = arguments.get(arguments.size() - 3);
+                boolean car = toBoolean(arguments.get(arguments.size() - 2));
+                boolean room = toBoolean(arguments.get(arguments.size() - 1));
+                return manager.bundle(customerID, flightNumbers, location, car, room);
+            }
+            default:
+                throw new IllegalArgumentException(command.name() + " is not supported in batch mode");
+        }
+    }
+
+    /**
+     * @param elapsed nanoseconds since the first command was read
+     * @return the throughput, the outcomes and the latency percentiles
+     */
+    public String summary(long elapsed) {
+        long count = latencies.getCount();
+        double seconds = elapsed / 1e9;
+        return String.format("%d commands in %.2fs (%.0f/s): ok=%d false=%d failed=%d invalid=%d%n"
+                        + "latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f (window %d)",
+                count, seconds, count / seconds, succeeded, refused, failed, invalid,
+                latencies.percentile(0.5) / 1e6, latencies.percentile(0.9) / 1e6, latencies.percentile(0.99) / 1e6,
+                latencies.percentile(0.999) / 1e6, latencies.getMax() / 1e6, window);
+    }
+}
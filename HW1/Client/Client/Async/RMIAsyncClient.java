@@ -0,0 +1,189 @@
+package Client.Async;
+
+import Server.Interface.IResourceManager;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous client of the RMI middleware.
+ *
+ * An RMI call blocks its thread until the result comes back, so the calls are
+ * made from a pool of threads, one per request in flight: RMI then runs them
+ * concurrently over its own connections.
+ */
+public class RMIAsyncClient implements AsyncResourceManager {
+
+    public static final int defaultWindow = 64;
+
+    private static final String rmiPrefix = "group_31_";
+
+    private interface Call<T> {
+        T on(IResourceManager manager) throws RemoteException;
+    }
+
+    private final IResourceManager manager;
+    private final ExecutorService executor;
+
+    /**
+     * @param manager stub of the middleware
+     * @param window requests in flight at most, the later ones wait their turn
+     */
+    public RMIAsyncClient(IResourceManager manager, int window) {
+        this.manager = manager;
+        this.executor = Executors.newFixedThreadPool(window, runnable -> {
+            Thread thread = new Thread(runnable, "async-rmi");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Look the middleware up in the registry
+     * @param host of the registry
+     * @param port of the registry
+     * @param name of the middleware, without the group prefix
+     * @param window requests in flight at most
+     * @throws RemoteException
+     * @throws NotBoundException
+     */
+    public static RMIAsyncClient connect(String host, int port, String name, int window) throws RemoteException, NotBoundException {
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        return new RMIAsyncClient((IResourceManager) registry.lookup(rmiPrefix + name), window);
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.on(manager);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addFlight(int flightNum, int flightSeats, int flightPrice) {
+        return submit(m -> m.addFlight(flightNum, flightSeats, flightPrice));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addCars(String location, int numCars, int price) {
+        return submit(m -> m.addCars(location, numCars, price));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addRooms(String location, int numRooms, int price) {
+        return submit(m -> m.addRooms(location, numRooms, price));
+    }
+
+    @Override
+    public CompletableFuture<Integer> newCustomer() {
+        return submit(IResourceManager::newCustomer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> newCustomer(int customerID) {
+        return submit(m -> m.newCustomer(customerID));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteFlight(int flightNum) {
+        return submit(m -> m.deleteFlight(flightNum));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteCars(String location) {
+        return submit(m -> m.deleteCars(location));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteRooms(String location) {
+        return submit(m -> m.deleteRooms(location));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteCustomer(int customerID) {
+        return submit(m -> m.deleteCustomer(customerID));
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryFlight(int flightNum) {
+        return submit(m -> m.queryFlight(flightNum));
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryCars(String location) {
+        return submit(m -> m.queryCars(location));
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryRooms(String location) {
+        return submit(m -> m.queryRooms(location));
+    }
+
+    @Override
+    public CompletableFuture<String> queryCustomerInfo(int customerID) {
+        return submit(m -> m.queryCustomerInfo(customerID));
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryFlightPrice(int flightNum) {
+        return submit(m -> m.queryFlightPrice(flightNum));
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryCarsPrice(String location) {
+        return submit(m -> m.queryCarsPrice(location));
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryRoomsPrice(String location) {
+        return submit(m -> m.queryRoomsPrice(location));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveFlight(int customerID, int flightNum) {
+        return submit(m -> m.reserveFlight(customerID, flightNum));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveCar(int customerID, String location) {
+        return submit(m -> m.reserveCar(customerID, location));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveRoom(int customerID, String location) {
+        return submit(m -> m.reserveRoom(customerID, location));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveFlights(int customerID, List<String> flightNumbers) {
+        Vector<String> flights = new Vector<>(flightNumbers);
+        return submit(m -> m.reserveFlights(customerID, flights));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> cancelReserveFlights(int customerID, List<String> flightNumbers) {
+        Vector<String> flights = new Vector<>(flightNumbers);
+        return submit(m -> m.cancelReserveFlights(customerID, flights));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bundle(int customerID, List<String> flightNumbers, String location, boolean car, boolean room) {
+        Vector<String> flights = new Vector<>(flightNumbers);
+        return submit(m -> m.bundle(customerID, flights, location, car, room));
+    }
+
+    /**
+     * Stop the threads, the requests already running still complete
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,28 @@
+package Client.Async;
+
+/**
+ * The middleware could not process a request, e.g. because it was busy
+ * or a resource manager was unreachable.
+ */
+public class RequestFailedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean busy;
+
+    /**
+     * @param message the middleware's explanation
+     * @param busy true if the request was refused under overload and can be sent again
+     */
+    public RequestFailedException(String message, boolean busy) {
+        super(message);
+        this.busy = busy;
+    }
+
+    /**
+     * @return true if nothing was done and the request can be sent again later
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+}
@@ -0,0 +1,340 @@
+package Client.Async;
+
+import Client.Command;
+import Client.TCPClient.Request;
+import Server.Common.Bill;
+import Server.Common.MessageChannel;
+import Server.Common.ResponsePacket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous client of the TCP middleware, over a single connection.
+ *
+ * Requests are pipelined: they are sent without waiting for the previous
+ * responses, up to a window of requests in flight, and the middleware answers
+ * them in order. A writer thread sends whatever has been queued since its last
+ * write in one flush, so that requests issued together travel together; once
+ * the window is full, the next requests stay queued until responses come back,
+ * the callers do not wait. A reader thread completes the futures as the
+ * responses come back.
+ *
+ * Safe to use from any number of threads.
+ */
+public class TCPAsyncClient implements AsyncResourceManager {
+
+    public static final int defaultWindow = 64;
+
+    // turns a response into the typed result of an operation
+    private interface Result<T> {
+        T of(ResponsePacket response) throws RequestFailedException;
+    }
+
+    private static class Pending<T> {
+        final Request request;
+        final Result<T> result;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(Request request, Result<T> result) {
+            this.request = request;
+            this.result = result;
+        }
+
+        void complete(ResponsePacket response) {
+            try {
+                future.complete(result.of(response));
+            } catch (RequestFailedException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final MessageChannel channel;
+    private final Semaphore window;
+    // queued by the callers, not sent yet
+    private final BlockingQueue<Pending<?>> outgoing = new LinkedBlockingQueue<>();
+    // sent, in the order the responses will come back
+    private final Queue<Pending<?>> inFlight = new ConcurrentLinkedQueue<>();
+    private IOException failure;
+
+    /**
+     * @param host of the middleware
+     * @param port of the middleware
+     * @param window requests in flight at most, the later ones are queued
+     * @throws IOException
+     */
+    public TCPAsyncClient(String host, int port, int window) throws IOException {
+        this.channel = new MessageChannel(new Socket(host, port), "async->" + host + ":" + port);
+        this.window = new Semaphore(window);
+
+        Thread writer = new Thread(this::write, "async-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(this::read, "async-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public TCPAsyncClient(String host, int port) throws IOException {
+        this(host, port, defaultWindow);
+    }
+
+    private void write() {
+        List<Pending<?>> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(outgoing.take());
+                outgoing.drainTo(batch);
+                for (Iterator<Pending<?>> it = batch.iterator(); it.hasNext(); ) {
+                    Pending<?> pending = it.next();
+                    if (!window.tryAcquire()) {
+                        // the responses that free the window must not wait for the rest of the batch
+                        channel.flush();
+                        window.acquire();
+                    }
+                    // in the queue before it is sent, the response may come back right away
+                    inFlight.add(pending);
+                    it.remove();
+                    channel.write(pending.request);
+                }
+                channel.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new IOException("Writer interrupted"));
+        }
+        for (Pending<?> pending : batch) {
+            pending.future.completeExceptionally(failure);
+        }
+    }
+
+    private void read() {
+        try {
+            while (true) {
+                ResponsePacket response = (ResponsePacket) channel.receive();
+                Pending<?> pending = inFlight.poll();
+                window.release();
+                if (pending == null) {
+                    throw new IOException("Response without a request");
+                }
+                pending.complete(response);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (ClassNotFoundException e) {
+            fail(new IOException(e));
+        }
+    }
+
+    /**
+     * The connection is lost: fail every request not answered yet, and any later one
+     */
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // already broken
+        }
+        Pending<?> pending;
+        while ((pending = outgoing.poll()) != null || (pending = inFlight.poll()) != null) {
+            pending.future.completeExceptionally(failure);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Result<T> result, Command command, Object... parameters) {
+        Pending<T> pending = new Pending<>(newRequest(command, parameters), result);
+        synchronized (this) {
+            if (failure != null) {
+                pending.future.completeExceptionally(failure);
+            } else {
+                outgoing.add(pending);
+            }
+        }
+        return pending.future;
+    }
+
+    /**
+     * The request layout of the middleware: [command, param1, param2, ...],
+     * a list parameter is flattened
+     */
+    private static Request newRequest(Command command, Object... parameters) {
+        Vector<String> arguments = new Vector<>();
+        arguments.add(command.name());
+        for (Object parameter : parameters) {
+            if (parameter instanceof Collection) {
+                for (Object element : (Collection<?>) parameter) {
+                    arguments.add(String.valueOf(element));
+                }
+            } else {
+                arguments.add(String.valueOf(parameter));
+            }
+        }
+        // sent again with the same id, e.g. by the middleware after a timeout, it is applied once
+        return new Request(command, arguments).withNewId();
+    }
+
+    // false if the middleware refused the operation, an error if it could not process it
+    private static Boolean success(ResponsePacket response) throws RequestFailedException {
+        ResponsePacket.Error error = response.getError();
+        if (!response.getStatus() && error != null && error != ResponsePacket.Error.REFUSED) {
+            throw new RequestFailedException(response.getMessage(), response.isBusy());
+        }
+        return response.getStatus();
+    }
+
+    private static Integer number(ResponsePacket response) throws RequestFailedException {
+        if (!response.getStatus()) {
+            throw new RequestFailedException(response.getMessage(), response.isBusy());
+        }
+        return response.getValue();
+    }
+
+    private static String text(ResponsePacket response) throws RequestFailedException {
+        if (!response.getStatus()) {
+            throw new RequestFailedException(response.getMessage(), response.isBusy());
+        }
+        return response.getMessage();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addFlight(int flightNum, int flightSeats, int flightPrice) {
+        return submit(TCPAsyncClient::success, Command.AddFlight, flightNum, flightSeats, flightPrice);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addCars(String location, int numCars, int price) {
+        return submit(TCPAsyncClient::success, Command.AddCars, location, numCars, price);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addRooms(String location, int numRooms, int price) {
+        return submit(TCPAsyncClient::success, Command.AddRooms, location, numRooms, price);
+    }
+
+    @Override
+    public CompletableFuture<Integer> newCustomer() {
+        return submit(TCPAsyncClient::number, Command.AddCustomer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> newCustomer(int customerID) {
+        return submit(TCPAsyncClient::success, Command.AddCustomerID, customerID);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteFlight(int flightNum) {
+        return submit(TCPAsyncClient::success, Command.DeleteFlight, flightNum);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteCars(String location) {
+        return submit(TCPAsyncClient::success, Command.DeleteCars, location);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteRooms(String location) {
+        return submit(TCPAsyncClient::success, Command.DeleteRooms, location);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteCustomer(int customerID) {
+        return submit(TCPAsyncClient::success, Command.DeleteCustomer, customerID);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryFlight(int flightNum) {
+        return submit(TCPAsyncClient::number, Command.QueryFlight, flightNum);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryCars(String location) {
+        return submit(TCPAsyncClient::number, Command.QueryCars, location);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryRooms(String location) {
+        return submit(TCPAsyncClient::number, Command.QueryRooms, location);
+    }
+
+    @Override
+    public CompletableFuture<String> queryCustomerInfo(int customerID) {
+        return submit(TCPAsyncClient::text, Command.QueryCustomer, customerID);
+    }
+
+    /**
+     * @param customerID
+     * @return the bill of each resource type, as structures rather than text
+     */
+    public CompletableFuture<List<Bill>> queryCustomerBills(int customerID) {
+        return submit(response -> {
+            if (!response.getStatus()) {
+                throw new RequestFailedException(response.getMessage(), response.isBusy());
+            }
+            return response.getBills();
+        }, Command.QueryCustomer, customerID);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryFlightPrice(int flightNum) {
+        return submit(TCPAsyncClient::number, Command.QueryFlightPrice, flightNum);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryCarsPrice(String location) {
+        return submit(TCPAsyncClient::number, Command.QueryCarsPrice, location);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryRoomsPrice(String location) {
+        return submit(TCPAsyncClient::number, Command.QueryRoomsPrice, location);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveFlight(int customerID, int flightNum) {
+        return submit(TCPAsyncClient::success, Command.ReserveFlight, customerID, flightNum);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveCar(int customerID, String location) {
+        return submit(TCPAsyncClient::success, Command.ReserveCar, customerID, location);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveRoom(int customerID, String location) {
+        return submit(TCPAsyncClient::success, Command.ReserveRoom, customerID, location);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveFlights(int customerID, List<String> flightNumbers) {
+        return submit(TCPAsyncClient::success, Command.ReserveFlights, customerID, flightNumbers);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> cancelReserveFlights(int customerID, List<String> flightNumbers) {
+        return submit(TCPAsyncClient::success, Command.CancelReserveFlights, customerID, flightNumbers);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bundle(int customerID, List<String> flightNumbers, String location, boolean car, boolean room) {
+        return submit(TCPAsyncClient::success, Command.Bundle, customerID, flightNumbers, location, car, room);
+    }
+
+    /**
+     * Close the connection, the requests not answered yet fail
+     */
+    @Override
+    public void close() {
+        fail(new IOException("Client closed"));
+    }
+
+    public String toString() {
+        return channel + " inFlight=" + inFlight.size() + " queued=" + outgoing.size();
+    }
+}
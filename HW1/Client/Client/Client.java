@@ -1,5 +1,6 @@
 package Client;
 
+import Server.Common.Tracer;
 import Server.Interface.*;
 
 import java.util.*;
@@ -387,10 +388,13 @@ public abstract class Client
 				boolean car = toBoolean(arguments.elementAt(arguments.size()-2));
 				boolean room = toBoolean(arguments.elementAt(arguments.size()-1));
 
-				if (m_resourceManager.bundle(customerID, flightNumbers, location, car, room)) {
-					System.out.println("Bundle Reserved");
-				} else {
-					System.out.println("Bundle reservation failed.");
+				try (Tracer.Span span = Tracer.root("client", "Bundle"))
+				{
+					if (m_resourceManager.bundle(span.context(), customerID, flightNumbers, location, car, room)) {
+						System.out.println("Bundle Reserved");
+					} else {
+						System.out.println("Bundle reservation failed.");
+					}
 				}
 				break;
 			}
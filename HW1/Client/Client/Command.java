@@ -31,6 +31,31 @@ public enum Command {
 	CancelReserveCar("Cancel a car Reservation for a customer at a location", "<CustomerID>,<Location>"),
 	CancelReserveRoom("Cancel a room Reservation for a customer at a location", "<CustomerID>,<Location>"),
 
+	WaitFlight("Reserve a flight number for a customer, or wait for a seat if it is sold out", "<CustomerID>,<FlightNumber>"),
+	WaitCar("Reserve a car for a customer at a location, or wait for one if they are sold out", "<CustomerID>,<Location>"),
+	WaitRoom("Reserve a room for a customer at a location, or wait for one if they are sold out", "<CustomerID>,<Location>"),
+	Notify("Receive the waitlist notices of a customer on a new connection", "<CustomerID>"),
+
+	ReserveFlights("Reserve several flight numbers for a customer, all or none", "<CustomerID>,<FlightNumber1>...<FlightNumberN>"),
+	CancelReserveFlights("Cancel several flight Reservations for a customer", "<CustomerID>,<FlightNumber1>...<FlightNumberN>"),
+
+	QueryCarsDates("Query the number of cars available at a location on every day from a date to another, excluded (yyyy-mm-dd)", "<Location>,<From>,<To>"),
+	QueryRoomsDates("Query the number of rooms available at a location on every night from a date to another, excluded (yyyy-mm-dd)", "<Location>,<From>,<To>"),
+	ReserveCarDates("Reserve a car for a customer at a location from a date to another, excluded (yyyy-mm-dd)", "<CustomerID>,<Location>,<From>,<To>"),
+	ReserveRoomDates("Reserve a room for a customer at a location from a date to another, excluded (yyyy-mm-dd)", "<CustomerID>,<Location>,<From>,<To>"),
+	CancelReserveCarDates("Cancel a car Reservation for a customer at a location for dates", "<CustomerID>,<Location>,<From>,<To>"),
+	CancelReserveRoomDates("Cancel a room Reservation for a customer at a location for dates", "<CustomerID>,<Location>,<From>,<To>"),
+
+	Prepare("Two-phase commit: hold the items of a bundle branch", "<TransactionID>,<CustomerID>,<FlightNumber1>...<FlightNumberN>,<Location>,<Car-Y/N>,<Room-Y/N>"),
+	Commit("Two-phase commit: commit a prepared transaction", "<TransactionID>"),
+	Abort("Two-phase commit: abort a transaction", "<TransactionID>"),
+	InDoubt("Two-phase commit: list the prepared transactions waiting for a decision", ""),
+
+	Subscribe("Receive the keys of the items that change on this connection", ""),
+	Replicate("Receive the replication log of this resource manager on this connection", "<FromSequence>,<Epoch>"),
+	Promote("Turn a backup resource manager into the primary", "<Epoch>"),
+	Fence("Turn a primary resource manager replaced by a newer one into a read-only backup", "<Epoch>"),
+
 	Bundle("Book N flight numbers, and optionally a room and/or car at a location", "<CustomerID>,<FlightNumber1>...<FlightNumberN>,<Location>,<Car-Y/N>,<Room-Y/N>"),
 
 	Quit("Exit the client application", "");
@@ -0,0 +1,270 @@
+package Client.Load;
+
+import Client.Async.AsyncResourceManager;
+import Client.Async.RMIAsyncClient;
+import Client.Async.TCPAsyncClient;
+import Client.Command;
+import Server.Common.LatencyHistogram;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drive a workload against the TCP or the RMI middleware, and report the
+ * throughput and the latency percentiles of each command.
+ *
+ * Every simulated client has its own connection. In closed-loop mode, the
+ * default, a client sends a command, waits for its result and sends the next:
+ * the load adapts to the speed of the system, which gives its throughput.
+ * In open-loop mode the clients send commands at a fixed total rate whatever
+ * the response times, as independent users would. A latency then counts from
+ * the time the command was due, not the time it was sent, so that a stalled
+ * system is not hidden by the commands it kept from being sent.
+ *
+ * The results of the warm-up are not counted.
+ *
+ * Usage:
+ *   java Client.Load.LoadGenerator tcp <host> <port>
+ *   java Client.Load.LoadGenerator rmi <host> <server_rmiobject>
+ *
+ * Tuning (system properties):
+ *   load.clients      simulated clients (default 16)
+ *   load.rate         total commands per second, 0 for closed loop (default 0)
+ *   load.window       commands in flight per client in open loop (default 256)
+ *   load.durationSec  length of the measurement (default 30)
+ *   load.warmupSec    length of the warm-up before it (default 5)
+ *   load.mix          weight of each command (default
+ *                     QueryFlight=40,QueryCarsPrice=10,QueryRoomsPrice=10,QueryCustomer=5,ReserveFlight=20,Bundle=15)
+ *   load.flights      flights (default 100)
+ *   load.locations    car and room locations (default 20)
+ *   load.customers    customers (default 1000)
+ *   load.skew         Zipf exponent of the flight and location popularity (default 0.99)
+ *   load.setup        create the flights, locations and customers first (default true)
+ *   load.seats        seats, cars and rooms of each item created (default 1000000)
+ *   load.seed         seed of the random choices (default 42)
+ *   load.rmiPort      port of the RMI registry (default 3031)
+ */
+public class LoadGenerator {
+
+    private static final int clients = Integer.getInteger("load.clients", 16);
+    private static final double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+    private static final int window = Integer.getInteger("load.window", 256);
+    private static final long durationSec = Long.getLong("load.durationSec", 30);
+    private static final long warmupSec = Long.getLong("load.warmupSec", 5);
+    private static final String mix = System.getProperty("load.mix",
+            "QueryFlight=40,QueryCarsPrice=10,QueryRoomsPrice=10,QueryCustomer=5,ReserveFlight=20,Bundle=15");
+    private static final int flights = Integer.getInteger("load.flights", 100);
+    private static final int locations = Integer.getInteger("load.locations", 20);
+    private static final int customers = Integer.getInteger("load.customers", 1000);
+    private static final double skew = Double.parseDouble(System.getProperty("load.skew", "0.99"));
+    private static final boolean setup = Boolean.parseBoolean(System.getProperty("load.setup", "true"));
+    private static final int seats = Integer.getInteger("load.seats", 1000000);
+    private static final long seed = Long.getLong("load.seed", 42);
+    private static final int rmiPort = Integer.getInteger("load.rmiPort", 3031);
+
+    // how long the clients wait for their last commands after the measurement
+    private static final long drainMs = 10000;
+
+    private interface Connector {
+        AsyncResourceManager connect() throws Exception;
+    }
+
+    // outcome of the commands of one type
+    private static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong refused = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+    }
+
+    private final Workload workload;
+    private final Connector connector;
+    private final Map<Command, Stats> stats = new EnumMap<>(Command.class);
+    private long measureFrom;
+    private long measureUntil;
+
+    private LoadGenerator(Workload workload, Connector connector) {
+        this.workload = workload;
+        this.connector = connector;
+        // filled once, only read by the clients
+        for (Command command : workload.getCommands()) {
+            stats.put(command, new Stats());
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 3 || !(args[0].equals("tcp") || args[0].equals("rmi"))) {
+            System.err.println("Usage: java Client.Load.LoadGenerator {tcp <host> <port>|rmi <host> <server_rmiobject>}");
+            System.exit(1);
+        }
+
+        try {
+            Workload workload = new Workload(mix, flights, locations, customers, skew);
+            Connector connector = args[0].equals("tcp")
+                    ? () -> new TCPAsyncClient(args[1], Integer.parseInt(args[2]), window)
+                    : () -> RMIAsyncClient.connect(args[1], rmiPort, args[2], window);
+            LoadGenerator generator = new LoadGenerator(workload, connector);
+            if (setup) {
+                generator.setup();
+            }
+            generator.run();
+            System.out.println(generator.report());
+        } catch (Exception e) {
+            System.err.println("Load generator failed: " + e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Create the flights, the car and room locations and the customers of the workload
+     * @throws Exception
+     */
+    private void setup() throws Exception {
+        System.out.println("Creating " + workload.getFlights() + " flights, " + workload.getLocations()
+                + " locations and " + workload.getCustomers() + " customers");
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        try (AsyncResourceManager manager = connector.connect()) {
+            for (int flight = 1; flight <= workload.getFlights(); flight++) {
+                futures.add(manager.addFlight(flight, seats, 100 + flight));
+            }
+            for (int number = 1; number <= workload.getLocations(); number++) {
+                futures.add(manager.addCars(Workload.location(number), seats, 50));
+                futures.add(manager.addRooms(Workload.location(number), seats, 80));
+            }
+            for (int customer = 1; customer <= workload.getCustomers(); customer++) {
+                // false if the customer is left over from an earlier run
+                futures.add(manager.newCustomer(customer));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        }
+    }
+
+    /**
+     * Run the clients through the warm-up and the measurement
+     * @throws InterruptedException
+     */
+    private void run() throws InterruptedException {
+        System.out.println((rate > 0 ? "Open loop at " + rate + " commands/s" : "Closed loop") + ", " + clients
+                + " clients, " + warmupSec + "s warm-up, " + durationSec + "s measured, mix " + mix + ", skew " + skew);
+
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSec);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(durationSec);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            Thread thread = new Thread(() -> runClient(client, start), "load-client-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void runClient(int client, long start) {
+        Random random = new Random(seed + client);
+        try (AsyncResourceManager manager = connector.connect()) {
+            if (rate <= 0) {
+                runClosedLoop(manager, random);
+            } else {
+                runOpenLoop(manager, random, client, start);
+            }
+        } catch (Exception e) {
+            System.err.println("Client " + client + " failed: " + e);
+        }
+    }
+
+    private void runClosedLoop(AsyncResourceManager manager, Random random) throws InterruptedException {
+        while (System.nanoTime() < measureUntil) {
+            Command command = workload.nextCommand(random);
+            long sent = System.nanoTime();
+            Object result = null;
+            Throwable error = null;
+            try {
+                result = workload.issue(manager, command, random).get();
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            }
+            record(command, sent, result, error);
+        }
+    }
+
+    private void runOpenLoop(AsyncResourceManager manager, Random random, int client, long start) throws InterruptedException {
+        long interval = (long) (clients * 1e9 / rate);
+        // spread the clients over the first interval
+        long due = start + interval * client / clients;
+        AtomicInteger outstanding = new AtomicInteger();
+
+        while (due < measureUntil) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            Command command = workload.nextCommand(random);
+            final long scheduled = due;
+            outstanding.incrementAndGet();
+            // blocks while the window is full, which delays the next commands but not their due time
+            workload.issue(manager, command, random).whenComplete((result, error) -> {
+                record(command, scheduled, result, error);
+                outstanding.decrementAndGet();
+            });
+            due += interval;
+        }
+
+        long drainUntil = System.currentTimeMillis() + drainMs;
+        while (outstanding.get() > 0 && System.currentTimeMillis() < drainUntil) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void record(Command command, long sent, Object result, Throwable error) {
+        if (sent < measureFrom) {
+            return;
+        }
+        Stats stat = stats.get(command);
+        stat.latency.record(System.nanoTime() - sent);
+        if (error != null) {
+            stat.failed.incrementAndGet();
+        } else if (Boolean.FALSE.equals(result)) {
+            stat.refused.incrementAndGet();
+        } else {
+            stat.succeeded.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return a table with the throughput, the outcomes and the latency percentiles of each command
+     */
+    private String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-18s %9s %9s %9s %7s %7s %8s %8s %8s %8s %8s%n", "command", "count", "ops/s",
+                "ok", "false", "failed", "p50", "p90", "p99", "p99.9", "max(ms)"));
+
+        LatencyHistogram total = new LatencyHistogram();
+        long succeeded = 0, refused = 0, failed = 0;
+        for (Map.Entry<Command, Stats> entry : stats.entrySet()) {
+            Stats stat = entry.getValue();
+            row(report, entry.getKey().name(), stat.latency, stat.succeeded.get(), stat.refused.get(), stat.failed.get());
+            total.add(stat.latency);
+            succeeded += stat.succeeded.get();
+            refused += stat.refused.get();
+            failed += stat.failed.get();
+        }
+        row(report, "total", total, succeeded, refused, failed);
+        return report.toString();
+    }
+
+    private static void row(StringBuilder report, String name, LatencyHistogram latency, long succeeded, long refused, long failed) {
+        report.append(String.format("%-18s %9d %9.0f %9d %7d %7d %8.2f %8.2f %8.2f %8.2f %8.2f%n", name,
+                latency.getCount(), (double) latency.getCount() / durationSec, succeeded, refused, failed,
+                latency.percentile(0.5) / 1e6, latency.percentile(0.9) / 1e6, latency.percentile(0.99) / 1e6,
+                latency.percentile(0.999) / 1e6, latency.getMax() / 1e6));
+    }
+}
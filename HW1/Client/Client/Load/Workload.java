@@ -0,0 +1,180 @@
+package Client.Load;
+
+import Client.Async.AsyncResourceManager;
+import Client.Command;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * What the simulated clients ask for: a mix of commands, over flights and
+ * locations whose popularity follows a Zipf law.
+ *
+ * Flight 1 and location "loc1" are the most popular. With a skew s, the item
+ * of rank k is picked with a probability proportional to 1 / k^s: 0 is
+ * uniform, around 1 is the usual web-like skew. Customers are picked
+ * uniformly.
+ */
+public class Workload {
+
+    // the commands a workload can be made of
+    private static final EnumSet<Command> supported = EnumSet.of(
+            Command.QueryFlight, Command.QueryCars, Command.QueryRooms, Command.QueryCustomer,
+            Command.QueryFlightPrice, Command.QueryCarsPrice, Command.QueryRoomsPrice,
+            Command.ReserveFlight, Command.ReserveCar, Command.ReserveRoom,
+            Command.ReserveFlights, Command.Bundle);
+
+    private final Command[] commands;
+    // cumulative weights of the commands
+    private final double[] mixCdf;
+    private final double[] flightCdf;
+    private final double[] locationCdf;
+    private final int customers;
+
+    /**
+     * @param mix weight of each command, e.g. "QueryFlight=60,ReserveFlight=30,Bundle=10"
+     * @param flights number of flights, numbered from 1
+     * @param locations number of car and room locations, named loc1, loc2, ...
+     * @param customers number of customers, numbered from 1
+     * @param skew Zipf exponent of the flight and location popularity
+     * @throws IllegalArgumentException if the mix is malformed or has an unsupported command
+     */
+    public Workload(String mix, int flights, int locations, int customers, double skew) {
+        List<Command> commands = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Malformed mix entry " + part + ", expected <Command>=<weight>");
+            }
+            Command command = Command.fromString(pair[0].trim());
+            if (!supported.contains(command)) {
+                throw new IllegalArgumentException(command.name() + " is not supported in a workload");
+            }
+            commands.add(command);
+            weights.add(Double.parseDouble(pair[1].trim()));
+        }
+        this.commands = commands.toArray(new Command[0]);
+        this.mixCdf = cumulative(weights);
+        this.flightCdf = cumulative(zipf(flights, skew));
+        this.locationCdf = cumulative(zipf(locations, skew));
+        this.customers = customers;
+    }
+
+    private static List<Double> zipf(int n, double skew) {
+        List<Double> weights = new ArrayList<>(n);
+        for (int rank = 1; rank <= n; rank++) {
+            weights.add(1 / Math.pow(rank, skew));
+        }
+        return weights;
+    }
+
+    private static double[] cumulative(List<Double> weights) {
+        double[] cdf = new double[weights.size()];
+        double total = 0;
+        for (int i = 0; i < cdf.length; i++) {
+            total += weights.get(i);
+            cdf[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The weights must not all be 0");
+        }
+        for (int i = 0; i < cdf.length; i++) {
+            cdf[i] /= total;
+        }
+        return cdf;
+    }
+
+    // index of the first cumulative weight over a uniform draw
+    private static int pick(double[] cdf, Random random) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        index = index < 0 ? -index - 1 : index;
+        return Math.min(index, cdf.length - 1);
+    }
+
+    public Command nextCommand(Random random) {
+        return commands[pick(mixCdf, random)];
+    }
+
+    public int flight(Random random) {
+        return pick(flightCdf, random) + 1;
+    }
+
+    public String location(Random random) {
+        return location(pick(locationCdf, random) + 1);
+    }
+
+    public static String location(int number) {
+        return "loc" + number;
+    }
+
+    public int customer(Random random) {
+        return random.nextInt(customers) + 1;
+    }
+
+    /**
+     * @return the commands of the mix
+     */
+    public List<Command> getCommands() {
+        return Arrays.asList(commands);
+    }
+
+    public int getFlights() {
+        return flightCdf.length;
+    }
+
+    public int getLocations() {
+        return locationCdf.length;
+    }
+
+    public int getCustomers() {
+        return customers;
+    }
+
+    /**
+     * Send one command of the workload, with random arguments
+     * @param manager
+     * @param command one of the commands of the mix
+     * @param random
+     * @return its future
+     */
+    public CompletableFuture<?> issue(AsyncResourceManager manager, Command command, Random random) {
+        switch (command) {
+            case QueryFlight:
+                return manager.queryFlight(flight(random));
+            case QueryCars:
+                return manager.queryCars(location(random));
+            case QueryRooms:
+                return manager.queryRooms(location(random));
+            case QueryCustomer:
+                return manager.queryCustomerInfo(customer(random));
+            case QueryFlightPrice:
+                return manager.queryFlightPrice(flight(random));
+            case QueryCarsPrice:
+                return manager.queryCarsPrice(location(random));
+            case QueryRoomsPrice:
+                return manager.queryRoomsPrice(location(random));
+            case ReserveFlight:
+                return manager.reserveFlight(customer(random), flight(random));
+            case ReserveCar:
+                return manager.reserveCar(customer(random), location(random));
+            case ReserveRoom:
+                return manager.reserveRoom(customer(random), location(random));
+            case ReserveFlights:
+                return manager.reserveFlights(customer(random), flights(random));
+            case Bundle:
+                return manager.bundle(customer(random), flights(random), location(random), true, random.nextBoolean());
+            default:
+                throw new IllegalArgumentException(command.name() + " is not supported in a workload");
+        }
+    }
+
+    // an outbound and a return flight
+    private List<String> flights(Random random) {
+        int outbound = flight(random);
+        int back = flight(random);
+        return back == outbound
+                ? Collections.singletonList(String.valueOf(outbound))
+                : Arrays.asList(String.valueOf(outbound), String.valueOf(back));
+    }
+}
@@ -1,18 +1,62 @@
 package Client.TCPClient;
 
 import java.io.Serializable;
+import java.security.SecureRandom;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 import Client.Command;
 
 public class Request implements Serializable {
+
+    // the ids of this process count up from a random start,
+    // so that the ids of different clients do not meet
+    private static final AtomicLong nextId = new AtomicLong(new SecureRandom().nextLong());
+
     private Command command;
     private Vector<String> arguments;
 
+    // trace the request belongs to and span of the sender, 0 if it is not traced
+    private long traceId;
+    private long spanId;
+
+    // given by the client, the same for every retry of the request, 0 if it has none
+    private long requestId;
+
     public Request(Command command, Vector<String> arguments) {
         this.command = command;
         this.arguments = arguments;
     }
 
+    /**
+     * The same request, sent from a traced span.
+     * A copy, as the same request may be forwarded to several RMs at once.
+     * @param traceId
+     * @param spanId
+     * @return
+     */
+    public Request traced(long traceId, long spanId) {
+        Request request = new Request(command, arguments);
+        request.requestId = requestId;
+        request.traceId = traceId;
+        request.spanId = spanId;
+        return request;
+    }
+
+    /**
+     * The same request, with a new id: sent again with that id, e.g. after
+     * its response was lost, it is only applied once
+     * @return
+     */
+    public Request withNewId() {
+        Request request = traced(traceId, spanId);
+        long id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == 0);
+        request.requestId = id;
+        return request;
+    }
+
     public Command getCommand() {
         return command;
     }
@@ -20,4 +64,19 @@ public class Request implements Serializable {
     public Vector<String> getArguments() {
         return arguments;
     }
+
+    /**
+     * @return the id the client gave the request, 0 if it has none
+     */
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public long getSpanId() {
+        return spanId;
+    }
 }
@@ -6,15 +6,20 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import Client.Command;
+import Server.Common.MessageChannel;
 import Server.Common.ResponsePacket;
+import Server.Common.Tracer;
+import Server.Common.WaitlistNotice;
 
 public class TCPClient extends Client {
 
+    // a request refused as busy, or whose outcome is unknown, is sent again this many times, after a growing pause
+    private static final int retries = 3;
+    private static final long retryBackoffMs = 100;
+
     private String serverHost;
     private int serverPort;
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private MessageChannel channel;
 
     public TCPClient(String serverHost, int serverPort) {
         this.serverHost = serverHost;
@@ -47,9 +52,7 @@ public class TCPClient extends Client {
     public void connectServer() {
         try {
             System.out.println("Connecting to server at " + serverHost + ":" + serverPort);
-            socket = new Socket(serverHost, serverPort);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            channel = new MessageChannel(new Socket(serverHost, serverPort), "client->" + serverHost + ":" + serverPort);
             System.out.println("Connected to server.");
         } catch (IOException e) {
             System.err.println("Failed to connect to the server: " + e.getMessage());
@@ -296,6 +299,115 @@ public class TCPClient extends Client {
                     sendRequestToServer(cmd, arguments);
                     break;
                 }
+                case WaitFlight: {
+                    checkArgumentsCount(3, arguments.size());
+
+                    System.out.println("Reserving seat in a flight, or waiting for one");
+                    System.out.println("-Customer ID: " + arguments.elementAt(1));
+                    System.out.println("-Flight Number: " + arguments.elementAt(2));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
+                case WaitCar: {
+                    checkArgumentsCount(3, arguments.size());
+
+                    System.out.println("Reserving a car at a location, or waiting for one");
+                    System.out.println("-Customer ID: " + arguments.elementAt(1));
+                    System.out.println("-Car Location: " + arguments.elementAt(2));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
+                case WaitRoom: {
+                    checkArgumentsCount(3, arguments.size());
+
+                    System.out.println("Reserving a room at a location, or waiting for one");
+                    System.out.println("-Customer ID: " + arguments.elementAt(1));
+                    System.out.println("-Room Location: " + arguments.elementAt(2));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
+                case Notify: {
+                    checkArgumentsCount(2, arguments.size());
+
+                    System.out.println("Listening for the waitlist notices of a customer");
+                    System.out.println("-Customer ID: " + arguments.elementAt(1));
+
+                    listen(arguments);
+                    break;
+                }
+                case QueryCarsDates: {
+                    checkArgumentsCount(4, arguments.size());
+
+                    System.out.println("Querying cars location for dates");
+                    System.out.println("-Car Location: " + arguments.elementAt(1));
+                    System.out.println("-From: " + arguments.elementAt(2));
+                    System.out.println("-To: " + arguments.elementAt(3));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
+                case QueryRoomsDates: {
+                    checkArgumentsCount(4, arguments.size());
+
+                    System.out.println("Querying rooms location for dates");
+                    System.out.println("-Room Location: " + arguments.elementAt(1));
+                    System.out.println("-From: " + arguments.elementAt(2));
+                    System.out.println("-To: " + arguments.elementAt(3));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
+                case ReserveCarDates: {
+                    checkArgumentsCount(5, arguments.size());
+
+                    System.out.println("Reserving a car at a location for dates");
+                    System.out.println("-Customer ID: " + arguments.elementAt(1));
+                    System.out.println("-Car Location: " + arguments.elementAt(2));
+                    System.out.println("-From: " + arguments.elementAt(3));
+                    System.out.println("-To: " + arguments.elementAt(4));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
+                case ReserveRoomDates: {
+                    checkArgumentsCount(5, arguments.size());
+
+                    System.out.println("Reserving a room at a location for dates");
+                    System.out.println("-Customer ID: " + arguments.elementAt(1));
+                    System.out.println("-Room Location: " + arguments.elementAt(2));
+                    System.out.println("-From: " + arguments.elementAt(3));
+                    System.out.println("-To: " + arguments.elementAt(4));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
+                case CancelReserveCarDates: {
+                    checkArgumentsCount(5, arguments.size());
+
+                    System.out.println("Canceling a car reservation at a location for dates");
+                    System.out.println("-Customer ID: " + arguments.elementAt(1));
+                    System.out.println("-Car Location: " + arguments.elementAt(2));
+                    System.out.println("-From: " + arguments.elementAt(3));
+                    System.out.println("-To: " + arguments.elementAt(4));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
+                case CancelReserveRoomDates: {
+                    checkArgumentsCount(5, arguments.size());
+
+                    System.out.println("Canceling a room reservation at a location for dates");
+                    System.out.println("-Customer ID: " + arguments.elementAt(1));
+                    System.out.println("-Room Location: " + arguments.elementAt(2));
+                    System.out.println("-From: " + arguments.elementAt(3));
+                    System.out.println("-To: " + arguments.elementAt(4));
+
+                    sendRequestToServer(cmd, arguments);
+                    break;
+                }
                 case Bundle: {
                     if (arguments.size() < 6) {
                         System.err.println((char) 27 + "[31;1mCommand exception: " + (char) 27 + "[0mBundle command expects at least 6 arguments. Location \"help\" or \"help,<CommandName>\"");
@@ -327,18 +439,94 @@ public class TCPClient extends Client {
 
     private void sendRequestToServer(Command cmd, Vector<String> arguments) {
         // Create and send the Request object to the server
-        Request request = new Request(cmd, arguments);
-        sendObject(request);
+        try (Tracer.Span span = Tracer.root("client", cmd.name())) {
+            // every retry carries the same id, the request is applied once
+            Request request = new Request(cmd, arguments).withNewId();
+            if (span.isRecording()) {
+                request = request.traced(span.getTraceId(), span.getId());
+            }
+            sendObject(request);
+
+            // Receive the response from the server
+            ResponsePacket response = (ResponsePacket) receiveObject();
+
+            // refused under overload, nothing was done; or the connection was lost, or an RM
+            // did not answer in time, and it may have been done: try again a bit later
+            int attempt = 0;
+            for (; isRetriable(response) && attempt < retries; attempt++) {
+                long pause = retryBackoffMs << attempt;
+                System.out.println((response == null ? "Connection lost" : response.isBusy() ? "Server busy" : "Server timed out")
+                        + ", retrying in " + pause + "ms");
+                try {
+                    Thread.sleep(pause + (long) (Math.random() * pause));
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (response == null) {
+                    closeResources();
+                    connectServer();
+                }
+                sendObject(request);
+                response = (ResponsePacket) receiveObject();
+            }
+            span.tag("retries", attempt).tag("status", response != null && response.getStatus());
+            System.out.println("Server response: " + describe(cmd, response));
+        }
+    }
 
-        // Receive the response from the server
-        ResponsePacket response = (ResponsePacket) receiveObject();
-        System.out.println("Server response: " + response.getMessage());
+    private static boolean isRetriable(ResponsePacket response) {
+        return response == null || response.isBusy() || response.getError() == ResponsePacket.Error.TIMEOUT;
+    }
+
+    // the server answers with typed results, put into words here
+    private static String describe(Command cmd, ResponsePacket response) {
+        if (response == null) {
+            return "none";
+        }
+        if (!response.getStatus()) {
+            return cmd.name() + " failed: " + response.getMessage();
+        }
+        if (response.hasValue() && isWait(cmd)) {
+            return response.getValue() == 0 ? "Reserved." : "Sold out, waiting at position " + response.getValue() + ".";
+        }
+        if (response.hasValue()) {
+            return String.valueOf(response.getValue());
+        }
+        if (response.getBills() != null) {
+            return "\n" + response.getMessage();
+        }
+        return cmd.name() + " succeeded.";
+    }
+
+    private static boolean isWait(Command cmd) {
+        return cmd == Command.WaitFlight || cmd == Command.WaitCar || cmd == Command.WaitRoom;
+    }
+
+    // print the waitlist notices of a customer as they come, on a connection of their own
+    private void listen(Vector<String> arguments) {
+        Thread listener = new Thread(() -> {
+            try (MessageChannel notices = new MessageChannel(new Socket(serverHost, serverPort), "notices->" + serverHost + ":" + serverPort)) {
+                notices.send(new Request(Command.Notify, arguments));
+                while (true) {
+                    Object message = notices.receive();
+                    if (message instanceof WaitlistNotice) {
+                        System.out.println("Waitlist: " + message);
+                    } else if (message instanceof ResponsePacket && !((ResponsePacket) message).getStatus()) {
+                        System.err.println("Notify failed: " + ((ResponsePacket) message).getMessage());
+                        return;
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Stopped listening for the waitlist notices: " + e.getMessage());
+            }
+        }, "notices-" + arguments.elementAt(1));
+        listener.setDaemon(true);
+        listener.start();
     }
 
     public void sendObject(Object obj) {
         try {
-            out.writeObject(obj);
-            out.flush();
+            channel.send(obj);
         } catch (IOException e) {
             System.err.println("Error sending object: " + e.getMessage());
         }
@@ -346,7 +534,7 @@ public class TCPClient extends Client {
 
     public Object receiveObject() {
         try {
-            return in.readObject();
+            return channel.receive();
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error receiving object: " + e.getMessage());
         }
@@ -356,10 +544,8 @@ public class TCPClient extends Client {
     // Method to close all resources (socket, input/output streams)
     public void closeResources() {
         try {
-            if (in != null) in.close();
-            if (out != null) out.close();
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            if (channel != null && !channel.isClosed()) {
+                channel.close();
                 System.out.println("Socket and streams closed successfully.");
             }
         } catch (IOException e) {
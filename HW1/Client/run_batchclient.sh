@@ -0,0 +1,10 @@
+#!/bin/bash
+# Usage: ./run_batchclient.sh {tcp <host> <port>|rmi <host> <server_rmiobject>} [<file>]
+# The window is set with JAVA_OPTS="-Dbatch.window=<n>"
+
+if [ $# -lt 3 ]; then
+  echo "Usage: ./run_batchclient.sh {tcp <host> <port>|rmi <host> <server_rmiobject>} [<file>]"
+  exit 1
+fi
+
+java $JAVA_OPTS -cp .:request-classes.jar:../Server/response-classes.jar:../Server/RMIInterface.jar Client.Async.BatchClient "$@"
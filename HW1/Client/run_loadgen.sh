@@ -0,0 +1,10 @@
+#!/bin/bash
+# Usage: ./run_loadgen.sh {tcp <host> <port>|rmi <host> <server_rmiobject>}
+# The workload is set with JAVA_OPTS, e.g. JAVA_OPTS="-Dload.clients=32 -Dload.rate=5000"
+
+if [ $# -ne 3 ]; then
+  echo "Usage: ./run_loadgen.sh {tcp <host> <port>|rmi <host> <server_rmiobject>}"
+  exit 1
+fi
+
+java $JAVA_OPTS -cp .:request-classes.jar:../Server/response-classes.jar:../Server/RMIInterface.jar Client.Load.LoadGenerator "$@"
@@ -13,4 +13,4 @@ HOST=${1:-tr-open-08}
 PORT=${2:-4031}
 
 # Run the TCPClient
-java -cp .:request-classes.jar:../Server/response-classes.jar Client.TCPClient.TCPClient $HOST $PORT
\ No newline at end of file
+java $JAVA_OPTS -cp .:request-classes.jar:../Server/response-classes.jar Client.TCPClient.TCPClient $HOST $PORT
\ No newline at end of file
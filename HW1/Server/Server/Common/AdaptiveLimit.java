@@ -0,0 +1,138 @@
+package Server.Common;
+
+/**
+ * How many requests the middleware lets run on one resource manager at the
+ * same time, adapted to what the resource manager can take.
+ *
+ * The limit follows TCP Vegas: from the fastest recent round trip and the
+ * last one, it estimates how many requests are queued on the resource manager
+ * instead of being worked on, limit * (1 - minRtt / rtt). Below alpha the
+ * limit grows by one, above beta it shrinks by one. A refusal as busy or a
+ * timeout cuts it by a fraction (multiplicative decrease), at most once per
+ * round trip so that the requests already in flight do not bring it down to
+ * the minimum.
+ *
+ * A request over the limit waits a little for a slot before being refused.
+ *
+ * Tuning (system properties):
+ *   limit.initial         starting limit (default 20)
+ *   limit.max             highest limit (default 200)
+ *   limit.alpha           queued requests under which the limit grows (default 3)
+ *   limit.beta            queued requests over which the limit shrinks (default 6)
+ *   limit.backoff         factor applied on a refusal or a timeout (default 0.9)
+ *   limit.queueTimeoutMs  how long a request waits for a slot (default 50)
+ */
+public class AdaptiveLimit {
+
+    private static final int initialLimit = Integer.getInteger("limit.initial", 20);
+    private static final int maxLimit = Integer.getInteger("limit.max", 200);
+    private static final int minLimit = 1;
+    private static final int alpha = Integer.getInteger("limit.alpha", 3);
+    private static final int beta = Integer.getInteger("limit.beta", 6);
+    private static final double backoff = Double.parseDouble(System.getProperty("limit.backoff", "0.9"));
+    private static final long queueTimeoutMs = Long.getLong("limit.queueTimeoutMs", 50);
+    // the fastest round trip is forgotten after this many samples, the RM may have become slower
+    private static final int minRttWindow = 1000;
+
+    private final String name;
+    private double limit = initialLimit;
+    private int inFlight = 0;
+    private long minRtt = Long.MAX_VALUE;
+    private long windowMinRtt = Long.MAX_VALUE;
+    private int windowSamples = 0;
+    private long lastDecrease = 0;
+    private long rejected = 0;
+
+    /**
+     * @param name used in messages
+     */
+    public AdaptiveLimit(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Take a slot for a request, waiting at most limit.queueTimeoutMs for one.
+     * A request that gets one must report how it went.
+     * @return false if the limit stayed reached
+     */
+    public synchronized boolean acquire() {
+        long deadline = System.currentTimeMillis() + queueTimeoutMs;
+        while (inFlight >= (int) limit) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                rejected++;
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected++;
+                return false;
+            }
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * The request was answered
+     * @param rttNanos how long it took
+     */
+    public synchronized void onSuccess(long rttNanos) {
+        release();
+        windowMinRtt = Math.min(windowMinRtt, rttNanos);
+        if (++windowSamples >= minRttWindow) {
+            minRtt = windowMinRtt;
+            windowMinRtt = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+        minRtt = Math.min(minRtt, rttNanos);
+
+        double queued = limit * (1 - (double) minRtt / rttNanos);
+        if (queued > beta) {
+            limit = Math.max(minLimit, limit - 1);
+        } else if (queued < alpha && inFlight + 1 >= limit / 2) {
+            // only grow a limit that is actually used
+            limit = Math.min(maxLimit, limit + 1);
+        }
+    }
+
+    /**
+     * The request was refused as busy or timed out
+     */
+    public synchronized void onDropped() {
+        release();
+        long now = System.nanoTime();
+        if (minRtt != Long.MAX_VALUE && now - lastDecrease < minRtt) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * backoff);
+    }
+
+    /**
+     * The request failed for another reason, e.g. a broken connection
+     */
+    public synchronized void onIgnore() {
+        release();
+    }
+
+    private void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized String toString() {
+        return name + " limit=" + (int) limit + " inFlight=" + inFlight + " rejected=" + rejected
+                + " minRtt=" + (minRtt == Long.MAX_VALUE ? "-" : (minRtt / 1000) + "us");
+    }
+}
@@ -0,0 +1,84 @@
+package Server.Common;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the requests a server works on at the same time.
+ *
+ * Up to maxConcurrent requests run; the next maxQueued wait for a slot, each
+ * for at most queueTimeoutMs. Any other request is refused at once, so that
+ * under overload the server keeps finishing requests at full speed instead
+ * of slowing all of them down until every caller times out.
+ */
+public class AdmissionControl {
+
+    private final String name;
+    private final int maxQueued;
+    private final long queueTimeoutMs;
+    private final Semaphore slots;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param name used in messages
+     * @param maxConcurrent requests running at the same time
+     * @param maxQueued requests waiting for a slot
+     * @param queueTimeoutMs how long a request waits for a slot
+     */
+    public AdmissionControl(String name, int maxConcurrent, int maxQueued, long queueTimeoutMs) {
+        this.name = name;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.slots = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Take a slot, waiting for one if the queue has room.
+     * A request that gets a slot must release it.
+     * @return false if the request is refused
+     */
+    public boolean acquire() {
+        if (slots.tryAcquire()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            if (slots.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                admitted.incrementAndGet();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public String toString() {
+        return name + " admitted=" + getAdmitted() + " rejected=" + getRejected() + " queued=" + queued.get();
+    }
+}
@@ -0,0 +1,176 @@
+package Server.Common;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The reservations of a customer, as sent back by a query of the customer.
+ *
+ * A resource manager sends the bill of what it holds; the middleware merges
+ * the bills of the shards of a resource type, and sends one bill per type,
+ * titled with it, e.g. "Flights".
+ */
+public class Bill implements Serializable {
+
+    /**
+     * A reserved item, the number of times it was reserved and its latest price,
+     * the seats of a flight, and the dates of the reservations of a car or a room
+     * made for a range of dates
+     */
+    public static class Item implements Serializable {
+        private final int count;
+        private final String key;
+        private final int price;
+        private final List<Integer> seats;
+        private final List<DateRange> dates;
+
+        public Item(int count, String key, int price) {
+            this(count, key, price, Collections.emptyList(), Collections.emptyList());
+        }
+
+        /**
+         * @param count
+         * @param key
+         * @param price
+         * @param seats seat numbers, from 1; empty for a car or a room
+         * @param dates of the reservations made for a range of dates, empty for a flight
+         */
+        public Item(int count, String key, int price, List<Integer> seats, List<DateRange> dates) {
+            this.count = count;
+            this.key = key;
+            this.price = price;
+            this.seats = seats;
+            this.dates = dates;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the key of the reservable item, e.g. "flight-12"
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public int getPrice() {
+            return price;
+        }
+
+        /**
+         * @return the seat numbers of a flight, from 1, empty for a car or a room
+         */
+        public List<Integer> getSeats() {
+            return seats == null ? Collections.emptyList() : Collections.unmodifiableList(seats);
+        }
+
+        /**
+         * @return the dates of the reservations made for a range of dates, the others have none
+         */
+        public List<DateRange> getDates() {
+            return dates == null ? Collections.emptyList() : Collections.unmodifiableList(dates);
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(count).append(' ').append(key).append(" $").append(price);
+            if (!getSeats().isEmpty()) {
+                s.append(" seats");
+                for (int seat : seats) {
+                    s.append(' ').append(seat);
+                }
+            }
+            if (!getDates().isEmpty()) {
+                s.append(" dates");
+                for (DateRange range : dates) {
+                    s.append(' ').append(range);
+                }
+            }
+            return s.toString();
+        }
+    }
+
+    private final String title;
+    private final int customerID;
+    private final List<Item> items;
+
+    /**
+     * @param customerID
+     * @param items
+     */
+    public Bill(int customerID, List<Item> items) {
+        this(null, customerID, items);
+    }
+
+    private Bill(String title, int customerID, List<Item> items) {
+        this.title = title;
+        this.customerID = customerID;
+        this.items = items;
+    }
+
+    /**
+     * Merge the bills of one customer from the shards of a resource type
+     * @param title e.g. "Flights"
+     * @param bills null for a shard that does not know the customer
+     * @return the items of every bill; for no customer if none knows it
+     */
+    public static Bill merge(String title, List<Bill> bills) {
+        int customerID = 0;
+        List<Item> items = null;
+        for (Bill bill : bills) {
+            if (bill == null) {
+                continue;
+            }
+            if (items == null) {
+                customerID = bill.customerID;
+                items = new ArrayList<>(bill.items);
+            } else {
+                items.addAll(bill.items);
+            }
+        }
+        return new Bill(title, customerID, items);
+    }
+
+    /**
+     * @return e.g. "Flights" for a merged bill, null for the bill of a single RM
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    public int getCustomerID() {
+        return customerID;
+    }
+
+    /**
+     * @return false for a merged bill if no shard knows the customer
+     */
+    public boolean hasCustomer() {
+        return items != null;
+    }
+
+    /**
+     * @return the reserved items, empty if the customer has none
+     */
+    public List<Item> getItems() {
+        return items == null ? Collections.emptyList() : Collections.unmodifiableList(items);
+    }
+
+    /**
+     * The text of Customer.getBill(), after the title if any
+     */
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        if (title != null) {
+            s.append(title).append(' ');
+        }
+        if (items != null) {
+            s.append("Bill for customer ").append(customerID).append('\n');
+            for (Item item : items) {
+                s.append(item).append('\n');
+            }
+        }
+        return s.toString();
+    }
+}
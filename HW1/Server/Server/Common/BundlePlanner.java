@@ -0,0 +1,162 @@
+package Server.Common;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Plans a bundle from the availability counts the middleware has cached.
+ *
+ * A bundle with an item known to be sold out is doomed: it is refused right
+ * away, without preparing anything at any RM. Otherwise the branches are
+ * ordered by their scarcest item, the one most likely to vote no first.
+ * When that item is nearly sold out, the coordinator prepares its branch on
+ * its own, and the other branches only if it votes yes: a bundle that fails
+ * there costs one prepare and one abort instead of one per RM.
+ *
+ * The counts come from the query cache, which the RMs keep fresh with their
+ * invalidations; an item nobody queried lately is unknown. Optionally the
+ * planner probes the RMs for the counts of the unknown items first, one
+ * probe per RM, all at the same time.
+ *
+ * Tuning (system properties):
+ *   bundle.scarceCount  an item is scarce if the bundle leaves fewer of it (default 2)
+ *   bundle.probe        query the unknown counts before a bundle (default false)
+ */
+public class BundlePlanner {
+
+    private static final int scarceCount = Integer.getInteger("bundle.scarceCount", 2);
+    private static final boolean probe = Boolean.getBoolean("bundle.probe");
+
+    /**
+     * Queries the counts of the items of a branch, through the cache, so that
+     * the planner finds them there
+     */
+    public interface Probe {
+        void probe(TransactionCoordinator.Branch branch) throws Exception;
+    }
+
+    /**
+     * The branches of a bundle in the order to prepare them, or why it is refused
+     */
+    public static class Plan {
+        private final List<TransactionCoordinator.Branch> branches;
+        private final boolean scarceFirst;
+        private final String refusal;
+
+        private Plan(List<TransactionCoordinator.Branch> branches, boolean scarceFirst, String refusal) {
+            this.branches = branches;
+            this.scarceFirst = scarceFirst;
+            this.refusal = refusal;
+        }
+
+        /**
+         * @return the branches, the scarcest first
+         */
+        public List<TransactionCoordinator.Branch> getBranches() {
+            return branches;
+        }
+
+        /**
+         * @return whether the first branch is to be prepared before the others
+         */
+        public boolean isScarceFirst() {
+            return scarceFirst;
+        }
+
+        /**
+         * @return whether an item of the bundle is known to be sold out
+         */
+        public boolean isDoomed() {
+            return refusal != null;
+        }
+
+        /**
+         * @return e.g. "flight-12 sold out", null if the bundle is not doomed
+         */
+        public String getRefusal() {
+            return refusal;
+        }
+    }
+
+    private final QueryCache cache;
+    private final FanOut fanOut;
+
+    /**
+     * @param cache the availability counts of the middleware
+     * @param fanOut sends the probes
+     */
+    public BundlePlanner(QueryCache cache, FanOut fanOut) {
+        this.cache = cache;
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * @param branches at most one per participant
+     * @param probe queries the counts of a branch, used if bundle.probe is set
+     * @return the plan of the bundle
+     */
+    public Plan plan(List<TransactionCoordinator.Branch> branches, Probe probe) {
+        if (BundlePlanner.probe && probe != null) {
+            probeUnknown(branches, probe);
+        }
+
+        // items left beyond those the bundle needs, for the scarcest item of each branch
+        Map<TransactionCoordinator.Branch, Integer> slack = new HashMap<>();
+        for (TransactionCoordinator.Branch branch : branches) {
+            int least = Integer.MAX_VALUE;
+            for (Map.Entry<String, Integer> item : needed(branch).entrySet()) {
+                Integer count = cache.peek(QueryCache.countKey(item.getKey()));
+                if (count == null) {
+                    continue;
+                }
+                if (count < item.getValue()) {
+                    return new Plan(branches, false, item.getKey() + " sold out");
+                }
+                least = Math.min(least, count - item.getValue());
+            }
+            slack.put(branch, least);
+        }
+
+        List<TransactionCoordinator.Branch> ordered = new ArrayList<>(branches);
+        ordered.sort(Comparator.comparing(slack::get));
+        boolean scarceFirst = ordered.size() > 1 && slack.get(ordered.get(0)) < scarceCount;
+        return new Plan(ordered, scarceFirst, null);
+    }
+
+    // the number of each item a branch reserves, by item key
+    private static Map<String, Integer> needed(TransactionCoordinator.Branch branch) {
+        Map<String, Integer> needed = new HashMap<>();
+        for (String flightNumber : branch.getFlightNumbers()) {
+            try {
+                needed.merge(Flight.getKey(Integer.parseInt(flightNumber)), 1, Integer::sum);
+            } catch (NumberFormatException e) {
+                // malformed, the RM will refuse it
+            }
+        }
+        if (branch.isCar()) {
+            needed.merge(Car.getKey(branch.getLocation()), 1, Integer::sum);
+        }
+        if (branch.isRoom()) {
+            needed.merge(Room.getKey(branch.getLocation()), 1, Integer::sum);
+        }
+        return needed;
+    }
+
+    // probe the branches with an item missing from the cache, all at the same time
+    private void probeUnknown(List<TransactionCoordinator.Branch> branches, Probe probe) {
+        List<Callable<Void>> probes = new Vector<>();
+        for (TransactionCoordinator.Branch branch : branches) {
+            for (String key : needed(branch).keySet()) {
+                if (cache.peek(QueryCache.countKey(key)) == null) {
+                    probes.add(() -> {
+                        probe.probe(branch);
+                        return null;
+                    });
+                    break;
+                }
+            }
+        }
+        // a failed probe leaves its counts unknown, the prepare finds out
+        fanOut.invokeAll(probes);
+    }
+}
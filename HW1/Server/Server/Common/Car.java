@@ -5,7 +5,7 @@
 
 package Server.Common;
 
-public class Car extends ReservableItem
+public class Car extends DatedItem
 {
 	public Car(String location, int count, int price)
 	{
@@ -46,10 +46,17 @@ public class Customer extends RMItem
 		m_reservations.put(reservedItem.getKey(), reservedItem);
 	}
 
+	// Reserve an item for a range of dates
+	public void reserveDates(String key, String location, int price, DateRange range)
+	{
+		reserve(key, location, price);
+		getReservedItem(key).addDates(range);
+	}
+
 	public boolean cancelReserve(String key, String location, int price)
 	{
 		ReservedItem reservedItem = getReservedItem(key);
-		if (reservedItem == null)
+		if (reservedItem == null || reservedItem.getUndatedCount() <= 0)
 		{
 			// Customer doesn't already have a reservation for this resource
 			// so just return
@@ -67,6 +74,32 @@ public class Customer extends RMItem
 		return true;
 	}
 
+	// Cancel the reservation of an item for a range of dates
+	public boolean cancelReserveDates(String key, DateRange range)
+	{
+		ReservedItem reservedItem = getReservedItem(key);
+		if (reservedItem == null || !reservedItem.removeDates(range))
+		{
+			return false;
+		}
+		reservedItem.setCount(reservedItem.getCount() - 1);
+		if (reservedItem.getCount() <= 0)
+		{
+			m_reservations.remove(key);
+		}
+		return true;
+	}
+
+	// Record the seats assigned to the reservations of an item
+	public void addSeats(String key, Collection<Integer> seats)
+	{
+		ReservedItem reservedItem = getReservedItem(key);
+		if (reservedItem != null && seats != null)
+		{
+			reservedItem.addSeats(seats);
+		}
+	}
+
 	public ReservedItem getReservedItem(String key)
 	{
 		return (ReservedItem)m_reservations.get(key);
@@ -78,7 +111,42 @@ public class Customer extends RMItem
 		for (String key : m_reservations.keySet())
 		{
 			ReservedItem item = (ReservedItem) m_reservations.get(key);
-			s += + item.getCount() + " " + item.getReservableItemKey() + " $" + item.getPrice() + "\n";
+			s += new Bill.Item(item.getCount(), item.getReservableItemKey(), item.getPrice(), item.getSeats(), item.getDates()) + "\n";
+		}
+		return s;
+	}
+
+	public Bill toBill()
+	{
+		List<Bill.Item> items = new ArrayList<>(m_reservations.size());
+		for (String key : m_reservations.keySet())
+		{
+			ReservedItem item = (ReservedItem) m_reservations.get(key);
+			items.add(new Bill.Item(item.getCount(), item.getReservableItemKey(), item.getPrice(), new ArrayList<>(item.getSeats()), new ArrayList<>(item.getDates())));
+		}
+		return new Bill(m_ID, items);
+	}
+
+	// Merges the bills of one customer kept by several resource managers of the same type:
+	// the header line once, then the items of every bill; empty bills are skipped
+	public static String mergeBills(List<String> bills)
+	{
+		String s = "";
+		for (String bill : bills)
+		{
+			if (bill == null || bill.isEmpty())
+			{
+				continue;
+			}
+			if (s.isEmpty())
+			{
+				s = bill;
+			}
+			else
+			{
+				int header = bill.indexOf('\n');
+				s += (header < 0) ? "" : bill.substring(header + 1);
+			}
 		}
 		return s;
 	}
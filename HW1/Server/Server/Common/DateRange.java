@@ -0,0 +1,58 @@
+package Server.Common;
+
+import java.io.Serializable;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * The days of a reservation of a car or a room, from the first one to the
+ * last one excluded: the nights of a stay from its check-in to its check-out
+ * date, the days of a rental from its pick-up to its return date.
+ */
+public class DateRange implements Serializable {
+
+    private final LocalDate from;
+    private final LocalDate to;
+
+    /**
+     * @param from the first day
+     * @param to the day after the last one, after from
+     */
+    public DateRange(LocalDate from, LocalDate to) {
+        if (!from.isBefore(to)) {
+            throw new DateTimeException("Empty date range: " + from + " to " + to);
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param from e.g. "2026-11-01"
+     * @param to e.g. "2026-11-04", for 3 nights
+     * @return
+     * @throws DateTimeException if a date is malformed, or to is not after from
+     */
+    public static DateRange parse(String from, String to) {
+        return new DateRange(LocalDate.parse(from), LocalDate.parse(to));
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    public boolean equals(Object other) {
+        return other instanceof DateRange && from.equals(((DateRange) other).from) && to.equals(((DateRange) other).to);
+    }
+
+    public int hashCode() {
+        return from.hashCode() * 31 + to.hashCode();
+    }
+
+    public String toString() {
+        return from + ".." + to;
+    }
+}
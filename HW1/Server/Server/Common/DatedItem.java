@@ -0,0 +1,18 @@
+// -------------------------------
+// adapted from Kevin T. Manley
+// CSE 593
+// -------------------------------
+
+package Server.Common;
+
+// Superclass for the items that can be reserved for a range of dates: Car and Room
+// count is the number of items free for a reservation without dates, which holds an item on every day;
+// a reservation with dates holds an item on its days only, counted by the DayInventory the
+// resource manager keeps for the item, out of it so that reading or writing the item does not copy it
+public abstract class DatedItem extends ReservableItem
+{
+	public DatedItem(String location, int count, int price)
+	{
+		super(location, count, price);
+	}
+}
@@ -0,0 +1,193 @@
+package Server.Common;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+
+/**
+ * The number of items of a car or room location reserved on each day, over
+ * a horizon of days from a first one.
+ *
+ * A segment tree over the days: holding an item on a range of days, and
+ * finding the most reserved day of a range, cost O(log days) whatever the
+ * length of the range. A node keeps what was added to its whole range, and
+ * the maximum over its range, so nothing is pushed down to the children.
+ *
+ * Days outside the horizon count as never reserved; a range is clipped to it.
+ *
+ * Not thread-safe: the resource manager keeps the inventories next to its
+ * items, not in them, and reads and changes them with its data lock held.
+ *
+ * Tuning (system properties):
+ *   dates.horizonDays  days ahead that can be reserved (default 366)
+ */
+public class DayInventory implements Serializable {
+
+    public static final int horizonDays = Integer.getInteger("dates.horizonDays", 366);
+
+    private final long firstDay;
+    private final int days;
+    // added to every day under the node
+    private final int[] added;
+    // the most reserved day under the node, counting what was added to it
+    private final int[] max;
+
+    /**
+     * @param firstDay
+     * @param days
+     */
+    public DayInventory(LocalDate firstDay, int days) {
+        this.firstDay = firstDay.toEpochDay();
+        this.days = days;
+        this.added = new int[4 * days];
+        this.max = new int[4 * days];
+    }
+
+    public LocalDate getFirstDay() {
+        return LocalDate.ofEpochDay(firstDay);
+    }
+
+    /**
+     * @return the day after the last day of the horizon
+     */
+    public LocalDate getEndDay() {
+        return LocalDate.ofEpochDay(firstDay + days);
+    }
+
+    /**
+     * @param range
+     * @return whether every day of the range is in the horizon
+     */
+    public boolean covers(DateRange range) {
+        return range.getFrom().toEpochDay() >= firstDay && range.getTo().toEpochDay() <= firstDay + days;
+    }
+
+    /**
+     * @return the most items reserved on any day
+     */
+    public int maxReserved() {
+        return max[1];
+    }
+
+    /**
+     * @param day e.g. today, the days before it no longer count
+     * @return the most items reserved on the day or any later one
+     */
+    public int maxReservedFrom(LocalDate day) {
+        int from = Math.max(0, index(day));
+        if (from >= days) {
+            return 0;
+        }
+        return max(1, 0, days - 1, from, days - 1);
+    }
+
+    /**
+     * @param range
+     * @return the most items reserved on a day of the range
+     */
+    public int maxReserved(DateRange range) {
+        int from = Math.max(0, index(range.getFrom()));
+        int to = Math.min(days, index(range.getTo())) - 1;
+        if (from > to) {
+            return 0;
+        }
+        return max(1, 0, days - 1, from, to);
+    }
+
+    /**
+     * @param day
+     * @return the items reserved on the day
+     */
+    public int reserved(LocalDate day) {
+        int index = index(day);
+        return index < 0 || index >= days ? 0 : max(1, 0, days - 1, index, index);
+    }
+
+    /**
+     * Reserve items on every day of the range, or give them back
+     * @param range
+     * @param count negative to give them back
+     */
+    public void reserve(DateRange range, int count) {
+        int from = Math.max(0, index(range.getFrom()));
+        int to = Math.min(days, index(range.getTo())) - 1;
+        if (from <= to) {
+            add(1, 0, days - 1, from, to, count);
+        }
+    }
+
+    private int index(LocalDate day) {
+        return (int) Math.max(Math.min(day.toEpochDay() - firstDay, Integer.MAX_VALUE), Integer.MIN_VALUE);
+    }
+
+    private void add(int node, int low, int high, int from, int to, int count) {
+        if (from <= low && high <= to) {
+            added[node] += count;
+            max[node] += count;
+            return;
+        }
+        int middle = (low + high) >>> 1;
+        if (from <= middle) {
+            add(2 * node, low, middle, from, to, count);
+        }
+        if (to > middle) {
+            add(2 * node + 1, middle + 1, high, from, to, count);
+        }
+        max[node] = added[node] + Math.max(max[2 * node], max[2 * node + 1]);
+    }
+
+    private int max(int node, int low, int high, int from, int to) {
+        if (from <= low && high <= to) {
+            return max[node];
+        }
+        int middle = (low + high) >>> 1;
+        int most = Integer.MIN_VALUE;
+        if (from <= middle) {
+            most = max(2 * node, low, middle, from, to);
+        }
+        if (to > middle) {
+            most = Math.max(most, max(2 * node + 1, middle + 1, high, from, to));
+        }
+        return added[node] + most;
+    }
+
+    /**
+     * @param firstDay a later first day, e.g. today
+     * @return an inventory over the horizon from that day, with the reservations of the days both cover
+     */
+    public DayInventory from(LocalDate firstDay) {
+        DayInventory moved = new DayInventory(firstDay, days);
+        for (int i = 0; i < days; i++) {
+            LocalDate day = firstDay.plusDays(i);
+            int reserved = reserved(day);
+            if (reserved != 0) {
+                moved.add(1, 0, days - 1, i, i, reserved);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * @return the runs of days with the same number of items reserved, but none, in order
+     */
+    public LinkedHashMap<DateRange, Integer> runs() {
+        LinkedHashMap<DateRange, Integer> runs = new LinkedHashMap<>();
+        int start = 0;
+        int count = reserved(getFirstDay());
+        for (int i = 1; i <= days; i++) {
+            int next = i < days ? reserved(getFirstDay().plusDays(i)) : 0;
+            if (next != count || i == days) {
+                if (count != 0) {
+                    runs.put(new DateRange(getFirstDay().plusDays(start), getFirstDay().plusDays(i)), count);
+                }
+                start = i;
+                count = next;
+            }
+        }
+        return runs;
+    }
+
+    public String toString() {
+        return "DayInventory " + getFirstDay() + ".." + getEndDay() + " maxReserved=" + maxReserved();
+    }
+}
@@ -0,0 +1,177 @@
+package Server.Common;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues several calls concurrently and collects their results.
+ *
+ * Used by the middleware for operations that touch every resource manager,
+ * so that they cost the slowest of the round trips instead of their sum.
+ * Every call gets its own timeout; a call that does not answer in time is
+ * cancelled and reported as failed without holding back the others.
+ *
+ * It also hedges reads: the same read is sent to a second replica when the
+ * first one is slower than usual, and the first answer wins.
+ *
+ * The calls are part of the caller's trace, if it is traced.
+ */
+public class FanOut {
+
+    // shared by all the fan-outs of the process, threads die after being idle for a while
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fanout-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long timeoutMs;
+
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * @param timeoutMs how long to wait for each call, in milliseconds
+     */
+    public FanOut(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Outcome of a single call: either a value or the error that prevented it.
+     */
+    public static class Result<T> {
+        private final T value;
+        private final Exception error;
+
+        private Result(T value, Exception error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Run all calls concurrently and wait for them.
+     * @param calls
+     * @return one result per call, in the order of the calls
+     */
+    public <T> List<Result<T>> invokeAll(List<Callable<T>> calls) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> call : calls) {
+            futures.add(executor.submit(Tracer.wrap(call)));
+        }
+
+        // every call started at the same time, so they share the same deadline
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        List<Result<T>> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(await(future, deadline));
+        }
+        return results;
+    }
+
+    /**
+     * Run a call, and run the backup call as well if the first one has not
+     * answered after the hedge delay, or failed. The first successful answer
+     * is returned; the other call is left to finish on its own, so it must be
+     * safe to run twice.
+     * @param first
+     * @param backup null if there is nothing to hedge with
+     * @param hedgeAfterNanos how long to wait for the first call before sending the backup
+     * @return
+     * @throws Exception the error of the last call to fail, or a TimeoutException
+     */
+    public <T> T invokeHedged(Callable<T> first, Callable<T> backup, long hedgeAfterNanos) throws Exception {
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        List<Future<T>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long hedgeAt = start + hedgeAfterNanos;
+
+        Future<T> firstFuture = completion.submit(Tracer.wrap(first));
+        futures.add(firstFuture);
+        boolean hedged = backup == null;
+        Exception error = null;
+        try {
+            while (!futures.isEmpty()) {
+                long wait = (hedged ? deadline : Math.min(hedgeAt, deadline)) - System.nanoTime();
+                Future<T> done = completion.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (hedged || System.nanoTime() >= deadline) {
+                        throw new TimeoutException("no response after " + timeoutMs + "ms");
+                    }
+                    // slower than usual, ask the backup as well
+                    futures.add(completion.submit(Tracer.wrap(backup)));
+                    hedges.incrementAndGet();
+                    hedged = true;
+                    continue;
+                }
+                futures.remove(done);
+                try {
+                    T value = done.get();
+                    if (done != firstFuture) {
+                        hedgesWon.incrementAndGet();
+                    }
+                    return value;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    error = cause instanceof Exception ? (Exception) cause : e;
+                    if (!hedged) {
+                        // failed fast, no point waiting for the hedge delay
+                        futures.add(completion.submit(Tracer.wrap(backup)));
+                        hedges.incrementAndGet();
+                        hedged = true;
+                    }
+                }
+            }
+            throw error;
+        } finally {
+            // not interrupted: a call blocked on a socket would not notice anyway
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    public String toString() {
+        return "FanOut hedges=" + getHedges() + " won=" + getHedgesWon();
+    }
+
+    private <T> Result<T> await(Future<T> future, long deadline) {
+        try {
+            long remaining = deadline - System.nanoTime();
+            return new Result<>(future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS), null);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            return new Result<>(null, new TimeoutException("no response after " + timeoutMs + "ms"));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            return new Result<>(null, cause instanceof Exception ? (Exception) cause : e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return new Result<>(null, e);
+        }
+    }
+}
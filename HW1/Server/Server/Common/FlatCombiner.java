@@ -0,0 +1,176 @@
+package Server.Common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Flat combining of the operations on one contended item.
+ *
+ * Instead of taking the lock of the item in turn, the callers queue their
+ * operation. Whoever gets the lock becomes the combiner: it applies every
+ * operation queued so far in one pass, completes them, and their callers
+ * return without ever holding the lock.
+ *
+ * The lock is the one of the item, so that whoever takes it directly,
+ * e.g. a bundle, still excludes the combiner.
+ *
+ * The combiner counts the passes that had a single operation in a row:
+ * once they reach a given number, the item is no longer contended and
+ * isCold() tells its owner to go back to the direct path.
+ */
+public class FlatCombiner<T> {
+
+    /**
+     * Applies a batch of operations, and completes each of them
+     */
+    public interface Batch<T> {
+        void apply(List<Op<T>> ops);
+    }
+
+    /**
+     * A queued operation, and its outcome
+     */
+    public static class Op<T> {
+        private final T request;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Op(T request) {
+            this.request = request;
+        }
+
+        public T getRequest() {
+            return request;
+        }
+
+        public void complete(boolean succeeded) {
+            result.complete(succeeded);
+        }
+    }
+
+    // how long a caller waits for a combiner before trying to become one
+    private static final long pollNanos = TimeUnit.MICROSECONDS.toNanos(50);
+    // passes a combiner makes before it leaves the rest to the next one
+    private static final int maxPasses = 4;
+
+    private final ReentrantLock lock;
+    private final Batch<T> batch;
+    private final int coldPasses;
+    private final ConcurrentLinkedQueue<Op<T>> pending = new ConcurrentLinkedQueue<>();
+
+    // passes in a row with a single operation, guarded by lock
+    private int singlePasses = 0;
+    private volatile boolean cold = false;
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong combined = new AtomicLong();
+
+    /**
+     * @param lock the lock of the item
+     * @param batch
+     * @param coldPasses passes with a single operation in a row after which the item is cold
+     */
+    public FlatCombiner(ReentrantLock lock, Batch<T> batch, int coldPasses) {
+        this.lock = lock;
+        this.batch = batch;
+        this.coldPasses = coldPasses;
+    }
+
+    /**
+     * Apply an operation, in the batch of whoever combines
+     * @param request
+     * @return the outcome of the operation
+     */
+    public boolean submit(T request) {
+        Op<T> op = new Op<>(request);
+        pending.add(op);
+
+        while (!op.result.isDone()) {
+            if (lock.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    lock.unlock();
+                }
+                continue;
+            }
+            try {
+                op.result.get(pollNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // try to combine again, or see the failure below
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            return op.result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    // apply what is queued until nothing is, or for a few passes, the lock held
+    private void combine() {
+        List<Op<T>> ops = new ArrayList<>();
+        Op<T> op;
+        while ((op = pending.poll()) != null) {
+            ops.add(op);
+        }
+        for (int pass = 0; pass < maxPasses && !ops.isEmpty(); pass++) {
+            passes.incrementAndGet();
+            combined.addAndGet(ops.size());
+            singlePasses = ops.size() == 1 ? singlePasses + 1 : 0;
+            if (singlePasses >= coldPasses) {
+                cold = true;
+            }
+
+            try {
+                batch.apply(ops);
+            } catch (Throwable t) {
+                for (Op<T> failed : ops) {
+                    failed.result.completeExceptionally(t);
+                }
+                throw t;
+            }
+            // an operation the batch forgot to complete would wait forever
+            for (Op<T> applied : ops) {
+                if (!applied.result.isDone()) {
+                    applied.result.completeExceptionally(new IllegalStateException("operation not completed by its batch"));
+                }
+            }
+
+            ops.clear();
+            if (pass + 1 < maxPasses) {
+                while ((op = pending.poll()) != null) {
+                    ops.add(op);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the item has had a single operation per pass for a while
+     */
+    public boolean isCold() {
+        return cold;
+    }
+
+    public String toString() {
+        return "FlatCombiner passes=" + passes.get() + " combined=" + combined.get() + " pending=" + pending.size();
+    }
+}
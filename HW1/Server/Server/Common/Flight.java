@@ -7,9 +7,26 @@ package Server.Common;
 
 public class Flight extends ReservableItem
 {
+	// which seats are taken, as many as the free and reserved ones
+	// shared with the copies of the flight until one of them changes it, so that reading a flight does not copy it
+	private SeatMap m_seatMap;
+	private transient boolean m_seatMapShared;
+
 	public Flight(int flightNum, int flightSeats, int flightPrice)
 	{
 		super(Integer.valueOf(flightNum).toString(), flightSeats, flightPrice);
+		m_seatMap = new SeatMap(flightSeats);
+	}
+
+	// The seat map, to change it: copied first if it is shared with another copy of the flight
+	public SeatMap getSeatMapForUpdate()
+	{
+		if (m_seatMapShared)
+		{
+			m_seatMap = m_seatMap.copy();
+			m_seatMapShared = false;
+		}
+		return m_seatMap;
 	}
 
 	public String getKey()
@@ -22,5 +39,13 @@ public class Flight extends ReservableItem
 		String s = "flight-" + flightNum;
 		return s.toLowerCase();
 	}
+
+	public Object clone()
+	{
+		Flight obj = (Flight)super.clone();
+		obj.m_seatMapShared = true;
+		m_seatMapShared = true;
+		return obj;
+	}
 }
 
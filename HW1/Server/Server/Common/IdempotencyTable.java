@@ -0,0 +1,125 @@
+package Server.Common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The outcome of the recent requests, by the id their client gave them,
+ * so that a request is applied once however many times it is sent.
+ *
+ * A client that lost the response of a write, e.g. to a dropped connection
+ * or a timeout, sends it again with the same id. If it ran before, or is still
+ * running, the retry gets the first outcome instead of applying it a second
+ * time; the same goes for a duplicate sent by a hedging caller.
+ *
+ * Only definitive outcomes are kept: a success, or a refusal of the request.
+ * Anything that may not have been applied, e.g. a busy or timed out request,
+ * is forgotten, and the next retry runs again.
+ *
+ * The table holds at most idempotency.maxEntries ids, for at most
+ * idempotency.ttlMs each: a retry must come within that window.
+ *
+ * Tuning (system properties):
+ *   idempotency.maxEntries  ids remembered (default 100000)
+ *   idempotency.ttlMs       how long an id is remembered (default 120000)
+ */
+public class IdempotencyTable {
+
+    private static final int defaultMaxEntries = Integer.getInteger("idempotency.maxEntries", 100000);
+    private static final long defaultTtlMs = Long.getLong("idempotency.ttlMs", 120000);
+
+    private static class Entry {
+        final long created = System.nanoTime();
+        final CompletableFuture<ResponsePacket> response = new CompletableFuture<>();
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    // in the order the requests came in, the oldest first
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public IdempotencyTable() {
+        this(defaultMaxEntries, defaultTtlMs);
+    }
+
+    /**
+     * @param maxEntries
+     * @param ttlMs
+     */
+    public IdempotencyTable(int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    /**
+     * Run the request, unless it ran within the window
+     * @param requestId the client's id of the request, 0 if it has none: it then always runs
+     * @param request
+     * @return the response of the request, or of its first run; a duplicate waits for it if it is still running
+     */
+    public ResponsePacket execute(long requestId, Supplier<ResponsePacket> request) {
+        if (requestId == 0) {
+            return request.get();
+        }
+
+        Entry entry = new Entry();
+        Entry first;
+        synchronized (entries) {
+            expire(entry.created);
+            first = entries.putIfAbsent(requestId, entry);
+        }
+        if (first != null) {
+            duplicates.incrementAndGet();
+            return first.response.join();
+        }
+
+        executed.incrementAndGet();
+        ResponsePacket response = null;
+        try {
+            response = request.get();
+            return response;
+        } finally {
+            if (response == null || !isDefinitive(response)) {
+                synchronized (entries) {
+                    entries.remove(requestId, entry);
+                }
+            }
+            // duplicates that came in meanwhile get this outcome as well
+            entry.response.complete(response != null ? response
+                    : ResponsePacket.error(ResponsePacket.Error.INTERNAL, null));
+        }
+    }
+
+    // whether the request surely was, or surely was not, applied
+    private static boolean isDefinitive(ResponsePacket response) {
+        return response.getStatus()
+                || response.getError() == ResponsePacket.Error.REFUSED
+                || response.getError() == ResponsePacket.Error.INVALID;
+    }
+
+    // drop the ids past their time, and the oldest ones beyond the size of the table
+    private void expire(long now) {
+        Iterator<Map.Entry<Long, Entry>> oldest = entries.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Entry entry = oldest.next().getValue();
+            if (entries.size() < maxEntries && now - entry.created < ttlNanos) {
+                break;
+            }
+            oldest.remove();
+        }
+    }
+
+    public String toString() {
+        synchronized (entries) {
+            return "IdempotencyTable executed=" + executed.get() + " duplicates=" + duplicates.get() + " size=" + entries.size();
+        }
+    }
+}
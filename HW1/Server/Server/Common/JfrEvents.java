@@ -0,0 +1,180 @@
+package Server.Common;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events of the hot paths of the RMs and the middleware,
+ * for an always-on recording to open in JMC after an incident.
+ *
+ * Every event is timed, and only recorded if it took longer than its
+ * threshold, so that a recording of a busy server stays small and cheap.
+ * Outside of a recording an event is an object the JIT mostly removes.
+ * The thresholds below are the defaults; Server/hotpaths.jfc overrides them,
+ * e.g. to record every lock wait while reproducing a problem.
+ *
+ * To record continuously, keeping the last hours on disk:
+ *   JAVA_OPTS="-XX:StartFlightRecording=settings=default,settings=hotpaths.jfc,disk=true,maxage=6h,dumponexit=true,filename=rm.jfr"
+ * and to save the recording of a running server:
+ *   jcmd <pid> JFR.dump filename=incident.jfr
+ */
+public final class JfrEvents {
+
+    private JfrEvents() {
+    }
+
+    /**
+     * An attempt to reserve items for a customer: a single item, several
+     * flights at once, or the branch of a bundle held by a prepare
+     */
+    @Name("Server.Reservation")
+    @Label("Reservation")
+    @Category({"Server", "Resource Manager"})
+    @Description("Reservation attempt, including the lock waits")
+    @Threshold("5 ms")
+    @StackTrace(false)
+    public static class Reservation extends Event {
+        @Label("Resource Manager")
+        public String resourceManager;
+
+        @Label("Customer")
+        public int customerID;
+
+        @Label("Items")
+        public String keys;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+
+        // only turned into the keys if the event is recorded
+        private transient Object items;
+
+        /**
+         * Begin an attempt
+         * @param resourceManager
+         * @param customerID
+         * @param items the key or keys of the items
+         * @return
+         */
+        public static Reservation start(String resourceManager, int customerID, Object items) {
+            Reservation event = new Reservation();
+            event.begin();
+            event.resourceManager = resourceManager;
+            event.customerID = customerID;
+            event.items = items;
+            return event;
+        }
+
+        /**
+         * End the attempt
+         * @param succeeded
+         * @return succeeded
+         */
+        public boolean done(boolean succeeded) {
+            end();
+            if (shouldCommit()) {
+                keys = String.valueOf(items);
+                this.succeeded = succeeded;
+                commit();
+            }
+            return succeeded;
+        }
+    }
+
+    /**
+     * A wait for the lock of an item or customer held by another request
+     */
+    @Name("Server.LockWait")
+    @Label("Lock Wait")
+    @Category({"Server", "Resource Manager"})
+    @Description("Wait for a resource lock held by another request")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class LockWait extends Event {
+        @Label("Resource Manager")
+        public String resourceManager;
+
+        @Label("Key")
+        public String key;
+    }
+
+    /**
+     * A round trip of the middleware to an RM
+     */
+    @Name("Server.Forward")
+    @Label("Forward")
+    @Category({"Server", "Middleware"})
+    @Description("Request forwarded to a resource manager, until its response")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    public static class Forward extends Event {
+        @Label("Target")
+        public String target;
+
+        @Label("Command")
+        public String command;
+
+        @Label("Bytes Sent")
+        @DataAmount(DataAmount.BYTES)
+        public long bytesSent;
+
+        @Label("Succeeded")
+        @Description("False if the RM refused the request, was busy, did not answer or could not be reached")
+        public boolean succeeded;
+
+        private transient MessageChannel channel;
+        private transient long sentBefore;
+
+        /**
+         * Begin a round trip
+         * @param target address of the RM
+         * @param command
+         * @param channel the connection to the RM, to count the bytes sent
+         * @return
+         */
+        public static Forward start(String target, String command, MessageChannel channel) {
+            Forward event = new Forward();
+            event.begin();
+            event.target = target;
+            event.command = command;
+            if (event.isEnabled()) {
+                event.channel = channel;
+                event.sentBefore = channel.getBytesSent();
+            }
+            return event;
+        }
+
+        /**
+         * End the round trip, whether it succeeded or threw
+         */
+        public void done() {
+            end();
+            if (shouldCommit()) {
+                // no count if the recording started during the round trip
+                if (channel != null) {
+                    bytesSent = channel.getBytesSent() - sentBefore;
+                }
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The abort of a bundle, which releases the items every RM held
+     */
+    @Name("Server.BundleRollback")
+    @Label("Bundle Rollback")
+    @Category({"Server", "Middleware"})
+    @Description("Bundle aborted after a no vote or a failed prepare, until every RM released its items")
+    @Threshold("0 ms")
+    @StackTrace(false)
+    public static class BundleRollback extends Event {
+        @Label("Transaction")
+        public long xid;
+
+        @Label("Branches")
+        public int branches;
+
+        @Label("Reason")
+        public String reason;
+    }
+}
@@ -0,0 +1,119 @@
+package Server.Common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Every latency recorded since the start, in constant memory, for benchmark
+ * reports.
+ *
+ * The buckets are laid out like an HdrHistogram: each power of two is split
+ * into 64 equal buckets. A value is kept to within 1/64 (about 1.6%) of
+ * itself, from nanoseconds up to hours, in under 4000 counters. Recording
+ * only increments a counter, so many threads can share one histogram.
+ *
+ * Unlike LatencyTracker, which keeps a recent window to react to changes,
+ * nothing is ever dropped.
+ */
+public class LatencyHistogram {
+
+    // values below 2^precisionBits get a bucket each, above they share 2^precisionBits buckets per power of two
+    private static final int precisionBits = 6;
+    private static final int subBuckets = 1 << precisionBits;
+    private static final int bucketCount = (64 - precisionBits) * subBuckets;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos a latency, negative values count as 0
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Add the values of another histogram to this one
+     * @param other
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < bucketCount; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    private static int indexOf(long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - precisionBits;
+        // the top precisionBits + 1 bits, in [subBuckets, 2 * subBuckets)
+        long top = value >>> shift;
+        return shift * subBuckets + (int) top;
+    }
+
+    // highest value that falls in the bucket
+    private static long highestIn(int index) {
+        if (index < 2 * subBuckets) {
+            return index;
+        }
+        int shift = index / subBuckets - 1;
+        long top = index % subBuckets + subBuckets;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * @param p between 0 and 1, e.g. 0.99
+     * @return the value under which a fraction p of the values are, 0 if nothing was recorded
+     */
+    public long percentile(double p) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * @return the usual percentiles, in milliseconds
+     */
+    public String toString() {
+        return String.format("n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+                getCount(), getMean() / 1e6, percentile(0.5) / 1e6, percentile(0.9) / 1e6,
+                percentile(0.99) / 1e6, percentile(0.999) / 1e6, getMax() / 1e6);
+    }
+}
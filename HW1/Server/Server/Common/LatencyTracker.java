@@ -0,0 +1,100 @@
+package Server.Common;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent response times of each endpoint, e.g. each resource manager the middleware talks to.
+ *
+ * Every endpoint keeps its last few samples in a ring buffer. The percentiles are
+ * computed from a sorted copy of it, redone only every few samples, so that
+ * reading them on every request stays cheap.
+ *
+ * Tuning (system properties):
+ *   latency.window      samples kept per endpoint (default 256)
+ *   latency.minSamples  samples needed before percentiles are reported (default 20)
+ */
+public class LatencyTracker<K> {
+
+    private static final int windowSize = Integer.getInteger("latency.window", 256);
+    private static final int minSamples = Integer.getInteger("latency.minSamples", 20);
+    // samples between two sorts of a window
+    private static final int resortInterval = 16;
+
+    private final Map<K, Window> windows = new ConcurrentHashMap<>();
+
+    private static class Window {
+        final long[] samples = new long[windowSize];
+        int next = 0;
+        int count = 0;
+        int sinceSort = 0;
+        long[] sorted = new long[0];
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+            sinceSort++;
+        }
+
+        synchronized long percentile(double p) {
+            if (count < minSamples) {
+                return -1;
+            }
+            if (sinceSort >= resortInterval || sorted.length < minSamples) {
+                sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                sinceSort = 0;
+            }
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+
+    /**
+     * @param endpoint
+     * @param nanos how long a call to the endpoint took
+     */
+    public void record(K endpoint, long nanos) {
+        windows.computeIfAbsent(endpoint, e -> new Window()).add(nanos);
+    }
+
+    /**
+     * @param endpoint
+     * @param p e.g. 0.95
+     * @return the percentile in nanoseconds, -1 if the endpoint has too few samples
+     */
+    public long percentile(K endpoint, double p) {
+        Window window = windows.get(endpoint);
+        return window == null ? -1 : window.percentile(p);
+    }
+
+    /**
+     * Of two endpoints, the one answering faster lately.
+     * An endpoint with too few samples counts as fast, so that it gets some.
+     * @param a
+     * @param b
+     * @return
+     */
+    public K faster(K a, K b) {
+        return percentile(b, 0.5) < percentile(a, 0.5) ? b : a;
+    }
+
+    /**
+     * Drop the samples of an endpoint, e.g. removed from the shards
+     * @param endpoint
+     */
+    public void forget(K endpoint) {
+        windows.remove(endpoint);
+    }
+
+    public String toString() {
+        StringBuilder out = new StringBuilder("LatencyTracker");
+        for (K endpoint : windows.keySet()) {
+            out.append(" ").append(endpoint)
+               .append(" p50=").append(percentile(endpoint, 0.5) / 1000).append("us")
+               .append(" p95=").append(percentile(endpoint, 0.95) / 1000).append("us");
+        }
+        return out.toString();
+    }
+}
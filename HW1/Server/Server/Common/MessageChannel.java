@@ -0,0 +1,271 @@
+package Server.Common;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * A connection that exchanges serialized objects over a socket.
+ *
+ * An ObjectOutputStream remembers every object it has written so that it can send
+ * back-references, and the ObjectInputStream on the other end does the same.
+ * On a long-lived connection both handle tables keep growing.
+ * The channel resets its output stream every few messages, or as soon as the bytes
+ * written since the last reset go over a limit, which clears the tables on both ends.
+ *
+ * Tuning (system properties):
+ *   channel.resetInterval  messages between two resets (default 100)
+ *   channel.resetBytes     bytes written before a forced reset (default 1 MB)
+ *   channel.soakInterval   seconds between two soak reports, 0 disables them (default 0)
+ */
+public class MessageChannel implements Closeable {
+
+    private static final int resetInterval = Integer.getInteger("channel.resetInterval", 100);
+    private static final long resetBytes = Long.getLong("channel.resetBytes", 1024 * 1024);
+    private static final int soakInterval = Integer.getInteger("channel.soakInterval", 0);
+
+    // every open channel, used by the soak reporter
+    private static final Set<MessageChannel> openChannels =
+            Collections.synchronizedSet(new LinkedHashSet<>());
+    private static Thread soakReporter;
+
+    private final String name;
+    private final Socket socket;
+    private final CountingOutputStream counter;
+    private final ObjectOutputStream output;
+    private final ObjectInputStream input;
+
+    private final Object writeLock = new Object();
+    private final Object readLock = new Object();
+
+    private long messagesSent = 0;
+    private long messagesSinceReset = 0;
+    private long bytesAtLastReset = 0;
+    private long resetCount = 0;
+
+    /**
+     * Set up the streams of a connected socket.
+     * The output stream is created (and its header flushed) before the input stream,
+     * otherwise both ends would block waiting for each other's header.
+     * @param socket a connected socket
+     * @param name used in soak reports
+     * @throws IOException
+     */
+    public MessageChannel(Socket socket, String name) throws IOException {
+        this.name = name;
+        this.socket = socket;
+        // a message is written whole and flushed once: Nagle's algorithm would only hold it back
+        // until the other end acknowledges the previous one
+        this.socket.setTcpNoDelay(true);
+        this.counter = new CountingOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.output = new ObjectOutputStream(counter);
+        this.output.flush();
+        this.input = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        openChannels.add(this);
+        startSoakReporter();
+    }
+
+    /**
+     * Write one message and flush it.
+     * @param message
+     * @throws IOException
+     */
+    public void send(Object message) throws IOException {
+        synchronized (writeLock) {
+            write(message);
+            output.flush();
+        }
+    }
+
+    /**
+     * Write one message without flushing it, so that several messages
+     * can go out together on the next flush().
+     * Resets the stream when the reset interval or the byte limit is reached.
+     * @param message
+     * @throws IOException
+     */
+    public void write(Object message) throws IOException {
+        synchronized (writeLock) {
+            output.writeObject(message);
+            messagesSent++;
+            messagesSinceReset++;
+
+            if (messagesSinceReset >= resetInterval || counter.getCount() - bytesAtLastReset >= resetBytes) {
+                output.reset();
+                messagesSinceReset = 0;
+                bytesAtLastReset = counter.getCount();
+                resetCount++;
+            }
+        }
+    }
+
+    /**
+     * Send the messages written so far.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            output.flush();
+        }
+    }
+
+    /**
+     * Block until the next message arrives.
+     * @return the message
+     * @throws IOException EOFException when the other end closed the connection
+     * @throws ClassNotFoundException
+     */
+    public Object receive() throws IOException, ClassNotFoundException {
+        synchronized (readLock) {
+            return input.readObject();
+        }
+    }
+
+    /**
+     * Send a request and wait for its response.
+     * Calls are serialized so that concurrent callers never read each other's response.
+     * @param request
+     * @return the response
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public synchronized Object call(Object request) throws IOException, ClassNotFoundException {
+        send(request);
+        return receive();
+    }
+
+    /**
+     * Send a request and wait for its response, at most for the given time.
+     * After a timeout the response may still come and would be read as the
+     * response of the next call: the channel must be closed.
+     * @param request
+     * @param timeoutMs
+     * @return the response
+     * @throws java.net.SocketTimeoutException if the response did not come in time
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public synchronized Object call(Object request, long timeoutMs) throws IOException, ClassNotFoundException {
+        socket.setSoTimeout((int) Math.min(Math.max(timeoutMs, 1), Integer.MAX_VALUE));
+        try {
+            return call(request);
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(0);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    public long getMessagesSent() {
+        synchronized (writeLock) {
+            return messagesSent;
+        }
+    }
+
+    public long getBytesSent() {
+        synchronized (writeLock) {
+            return counter.getCount();
+        }
+    }
+
+    /**
+     * Upper bound of the bytes pinned by the handle tables:
+     * everything written since the last reset.
+     */
+    public long getRetainedBytes() {
+        synchronized (writeLock) {
+            return counter.getCount() - bytesAtLastReset;
+        }
+    }
+
+    public long getResetCount() {
+        synchronized (writeLock) {
+            return resetCount;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        openChannels.remove(this);
+        socket.close();
+    }
+
+    public String toString() {
+        return name + " msgs=" + getMessagesSent() + " sent=" + getBytesSent() + "B retained="
+                + getRetainedBytes() + "B resets=" + getResetCount();
+    }
+
+    /**
+     * Soak-test mode: periodically print the retained bytes of every open channel,
+     * together with the heap usage, so that a long run shows whether memory stays flat.
+     */
+    private static synchronized void startSoakReporter() {
+        if (soakInterval <= 0 || soakReporter != null) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        soakReporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(soakInterval * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                Runtime runtime = Runtime.getRuntime();
+                long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+                long uptime = (System.currentTimeMillis() - start) / 1000;
+
+                List<MessageChannel> channels;
+                synchronized (openChannels) {
+                    channels = new ArrayList<>(openChannels);
+                }
+                System.out.println("[soak t=" + uptime + "s] channels=" + channels.size() + " heapUsed=" + heapUsed + "B");
+                for (MessageChannel channel : channels) {
+                    System.out.println("[soak t=" + uptime + "s]   " + channel);
+                }
+            }
+        }, "channel-soak-reporter");
+        soakReporter.setDaemon(true);
+        soakReporter.start();
+    }
+
+    // counts the bytes that go through the output stream
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package Server.Common;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of a component, e.g. of an RM or of the
+ * middleware, exported over JMX and optionally printed at regular intervals.
+ *
+ * An operation, e.g. a command, counts its requests, the ones that failed
+ * and the ones refused as busy, and keeps a histogram of the time they
+ * waited to be admitted (queue time) and of the time they were worked on
+ * (service time). A timer keeps a single histogram, e.g. of the lock waits.
+ * Recording only updates a few atomic counters.
+ *
+ * Every operation and timer is an MXBean, named e.g.
+ *   Server:type=Operation,component="rm-Flights",name="ReserveFlight"
+ * which jconsole or any JMX client shows.
+ *
+ * Tuning (system properties):
+ *   metrics.dumpInterval  seconds between two text dumps to stdout, 0 disables them (default 0)
+ */
+public class Metrics {
+
+    private static final int dumpInterval = Integer.getInteger("metrics.dumpInterval", 0);
+
+    private static final Map<String, Metrics> components = new ConcurrentHashMap<>();
+    private static Thread dumper;
+
+    private final String component;
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private Metrics(String component) {
+        this.component = component;
+    }
+
+    /**
+     * @param component e.g. "rm-Flights" or "middleware"
+     * @return the metrics of the component, created on first use
+     */
+    public static Metrics of(String component) {
+        startDumper();
+        return components.computeIfAbsent(component, Metrics::new);
+    }
+
+    /**
+     * @param name e.g. the name of a command
+     * @return the operation, created and exported on first use
+     */
+    public Operation operation(String name) {
+        return operations.computeIfAbsent(name, n -> register("Operation", n, new Operation()));
+    }
+
+    /**
+     * @param name e.g. "lockWait"
+     * @return the timer, created and exported on first use
+     */
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> register("Timer", n, new Timer()));
+    }
+
+    private <T> T register(String type, String name, T bean) {
+        try {
+            ObjectName objectName = new ObjectName("Server:type=" + type + ",component=" + ObjectName.quote(component)
+                    + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, objectName);
+        } catch (JMException e) {
+            // still counted, only not visible over JMX
+            System.err.println("Could not export the metrics " + component + "/" + name + ": " + e.getMessage());
+        }
+        return bean;
+    }
+
+    public interface OperationMXBean {
+        long getCount();
+        long getFailed();
+        long getRejected();
+        double getErrorRate();
+        double getQueueP50Ms();
+        double getQueueP99Ms();
+        double getServiceMeanMs();
+        double getServiceP50Ms();
+        double getServiceP90Ms();
+        double getServiceP99Ms();
+        double getServiceMaxMs();
+    }
+
+    /**
+     * The requests of one kind. A request that failed includes one refused
+     * by the application (e.g. no seat left): the protocol does not tell them apart.
+     */
+    public static class Operation implements OperationMXBean {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final LatencyHistogram queue = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+
+        /**
+         * @param queueNanos time waited before being worked on
+         * @param serviceNanos time worked on
+         * @param succeeded
+         */
+        public void record(long queueNanos, long serviceNanos, boolean succeeded) {
+            count.incrementAndGet();
+            if (!succeeded) {
+                failed.incrementAndGet();
+            }
+            queue.record(queueNanos);
+            service.record(serviceNanos);
+        }
+
+        /**
+         * The request was refused as busy, without being worked on
+         * @param queueNanos time waited before being refused
+         */
+        public void rejected(long queueNanos) {
+            count.incrementAndGet();
+            rejected.incrementAndGet();
+            queue.record(queueNanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public double getErrorRate() {
+            long total = count.get();
+            return total == 0 ? 0 : (double) (failed.get() + rejected.get()) / total;
+        }
+
+        public double getQueueP50Ms() {
+            return queue.percentile(0.5) / 1e6;
+        }
+
+        public double getQueueP99Ms() {
+            return queue.percentile(0.99) / 1e6;
+        }
+
+        public double getServiceMeanMs() {
+            return service.getMean() / 1e6;
+        }
+
+        public double getServiceP50Ms() {
+            return service.percentile(0.5) / 1e6;
+        }
+
+        public double getServiceP90Ms() {
+            return service.percentile(0.9) / 1e6;
+        }
+
+        public double getServiceP99Ms() {
+            return service.percentile(0.99) / 1e6;
+        }
+
+        public double getServiceMaxMs() {
+            return service.getMax() / 1e6;
+        }
+
+        public String toString() {
+            return String.format("count=%d err=%.1f%% queue p50=%.2f p99=%.2f service p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                    getCount(), 100 * getErrorRate(), getQueueP50Ms(), getQueueP99Ms(), getServiceP50Ms(),
+                    getServiceP90Ms(), getServiceP99Ms(), getServiceMaxMs());
+        }
+    }
+
+    public interface TimerMXBean {
+        long getCount();
+        double getMeanMs();
+        double getP50Ms();
+        double getP99Ms();
+        double getMaxMs();
+    }
+
+    public static class Timer implements TimerMXBean {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        public double getMeanMs() {
+            return histogram.getMean() / 1e6;
+        }
+
+        public double getP50Ms() {
+            return histogram.percentile(0.5) / 1e6;
+        }
+
+        public double getP99Ms() {
+            return histogram.percentile(0.99) / 1e6;
+        }
+
+        public double getMaxMs() {
+            return histogram.getMax() / 1e6;
+        }
+
+        public String toString() {
+            return String.format("count=%d mean=%.3f p50=%.3f p99=%.3f max=%.3f",
+                    getCount(), getMeanMs(), getP50Ms(), getP99Ms(), getMaxMs());
+        }
+    }
+
+    /**
+     * @return every operation and timer of every component, one per line, times in ms
+     */
+    public static String dump() {
+        StringBuilder dump = new StringBuilder();
+        for (Metrics metrics : new TreeMap<>(components).values()) {
+            for (Map.Entry<String, Operation> operation : new TreeMap<>(metrics.operations).entrySet()) {
+                dump.append(metrics.component).append(' ').append(operation.getKey()).append(' ')
+                        .append(operation.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Timer> timer : new TreeMap<>(metrics.timers).entrySet()) {
+                dump.append(metrics.component).append(' ').append(timer.getKey()).append(' ')
+                        .append(timer.getValue()).append('\n');
+            }
+        }
+        return dump.toString();
+    }
+
+    private static synchronized void startDumper() {
+        if (dumpInterval <= 0 || dumper != null) {
+            return;
+        }
+
+        dumper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(dumpInterval * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.print("[metrics]\n" + dump());
+            }
+        }, "metrics-dumper");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+}
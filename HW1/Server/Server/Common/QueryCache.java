@@ -0,0 +1,137 @@
+package Server.Common;
+
+import java.util.*;
+
+/**
+ * Read-through cache of the price and availability queries, kept by the middleware.
+ *
+ * Entries are keyed on the item key (e.g. "flight-12") and the queried attribute,
+ * see countKey() and priceKey(). The cache holds at most a fixed number of entries,
+ * evicting the least recently used, and an entry expires after a time to live.
+ * The resource managers push an invalidation whenever an item changes;
+ * the time to live only bounds the staleness if such a message gets lost.
+ *
+ * Tuning (system properties):
+ *   cache.size   maximum number of entries (default 10000), 0 disables the cache
+ *   cache.ttlMs  time to live of an entry in milliseconds (default 5000)
+ */
+public class QueryCache {
+
+    private static class Entry {
+        final int value;
+        final long expiresAt;
+
+        Entry(int value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlMs;
+
+    // access-ordered, so that the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries;
+
+    // bumped by every invalidation, see epoch()
+    private long epoch = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public QueryCache() {
+        this(Integer.getInteger("cache.size", 10000), Long.getLong("cache.ttlMs", 5000));
+    }
+
+    public QueryCache(int capacity, long ttlMs) {
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > QueryCache.this.capacity;
+            }
+        };
+    }
+
+    public static String countKey(String itemKey) {
+        return itemKey + "#count";
+    }
+
+    public static String priceKey(String itemKey) {
+        return itemKey + "#price";
+    }
+
+    /**
+     * @param key
+     * @return the cached value, or null if it is missing or expired
+     */
+    public synchronized Integer get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            if (entry != null) {
+                entries.remove(key);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Like get(), without counting a hit or a miss: for a look at the cache
+     * that does not stand for a query, e.g. when planning a bundle.
+     * @param key
+     * @return the cached value, or null if it is missing or expired
+     */
+    public synchronized Integer peek(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Take this before querying the RM and hand it to put(), so that a value
+     * read before an invalidation is not cached after it.
+     */
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Cache a value read from an RM, unless an invalidation arrived while it was read.
+     * @param key
+     * @param value
+     * @param epoch the epoch() taken before the RM was queried
+     */
+    public synchronized void put(String key, int value, long epoch) {
+        if (capacity <= 0 || epoch != this.epoch) {
+            return;
+        }
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMs));
+    }
+
+    /**
+     * Drop everything cached about an item.
+     * @param itemKey e.g. "flight-12"
+     */
+    public synchronized void invalidate(String itemKey) {
+        entries.remove(countKey(itemKey));
+        entries.remove(priceKey(itemKey));
+        epoch++;
+    }
+
+    /**
+     * Drop every entry, when the invalidations of an RM can no longer be trusted.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        epoch++;
+    }
+
+    public synchronized String toString() {
+        return "QueryCache size=" + entries.size() + " hits=" + hits + " misses=" + misses;
+    }
+}
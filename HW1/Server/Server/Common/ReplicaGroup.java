@@ -0,0 +1,118 @@
+package Server.Common;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A primary resource manager and its backups, as seen by the middleware.
+ *
+ * Writes go to the primary. Reads that tolerate a little staleness go to
+ * the backups in turn, which then answer only if they are caught up.
+ * When the primary fails, the first backup takes its place.
+ *
+ * On the command line and in the shard file a group is written with its
+ * members joined by '+', primary first, e.g. "host1:5001+host2:5001".
+ */
+public class ReplicaGroup<T> {
+
+    private final String name;
+    // primary first, replaced as a whole on failover
+    private volatile List<T> members;
+    private final AtomicInteger nextRead = new AtomicInteger();
+
+    /**
+     * @param name
+     * @param members primary first
+     */
+    public ReplicaGroup(String name, List<T> members) {
+        this.name = name;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+    }
+
+    /**
+     * Build a group from its spec, e.g. "host1:5001+host2:5001"
+     * @param spec
+     * @param connect opens a member, returns null if it is unreachable
+     * @return null if no member is reachable
+     */
+    public static <T> ReplicaGroup<T> of(String spec, Function<String, T> connect) {
+        List<T> members = new Vector<>();
+        for (String address : parse(spec)) {
+            T member = connect.apply(address);
+            if (member != null) {
+                members.add(member);
+            } else {
+                System.err.println("Replica " + address + " of " + spec + " unreachable, left out");
+            }
+        }
+        return members.isEmpty() ? null : new ReplicaGroup<>(spec, members);
+    }
+
+    /**
+     * @param spec members joined by '+', primary first
+     * @return the addresses of the members
+     */
+    public static List<String> parse(String spec) {
+        List<String> addresses = new Vector<>();
+        for (String address : spec.split("\\+")) {
+            if (!address.trim().isEmpty()) {
+                addresses.add(address.trim());
+            }
+        }
+        return addresses;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return null if every member failed
+     */
+    public T primary() {
+        List<T> current = members;
+        return current.isEmpty() ? null : current.get(0);
+    }
+
+    /**
+     * Every member still in the group, primary first
+     */
+    public List<T> members() {
+        return members;
+    }
+
+    /**
+     * The member to send the next read to: the backups in turn, the primary if it has none.
+     * @return null if every member failed
+     */
+    public T readReplica() {
+        List<T> current = members;
+        if (current.size() <= 1) {
+            return current.isEmpty() ? null : current.get(0);
+        }
+        int backup = 1 + Math.floorMod(nextRead.getAndIncrement(), current.size() - 1);
+        return current.get(backup);
+    }
+
+    /**
+     * Drop a failed primary, its first backup becomes the primary.
+     * Several callers may see the same failure, only the first one drops it.
+     * @param failed the primary the caller found unreachable
+     * @return the primary now, null if no member is left
+     */
+    public synchronized T failover(T failed) {
+        List<T> current = members;
+        if (!current.isEmpty() && current.get(0).equals(failed)) {
+            current = Collections.unmodifiableList(new ArrayList<>(current.subList(1, current.size())));
+            members = current;
+            System.err.println("Primary of " + name + " failed"
+                    + (current.isEmpty() ? ", no backup left" : ", failing over to its backup, " + current.size() + " member(s) left"));
+        }
+        return current.isEmpty() ? null : current.get(0);
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,153 @@
+package Server.Common;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * One entry of the log a primary resource manager ships to its backups.
+ *
+ * Every change of the primary's data gets the next sequence number.
+ * A backup applies the records in order and so always holds the state
+ * of the primary at some sequence number. Heartbeats carry the primary's
+ * latest sequence number, which tells the backup whether it is caught up.
+ *
+ * Every record also carries the epoch of the primary that made it, raised at
+ * each promotion: a backup drops the records of a primary older than the
+ * latest one it heard of.
+ *
+ * The days reserved of the cars and rooms travel as changes to ranges of
+ * days, not as copies of their inventories.
+ */
+public class ReplicationRecord implements Serializable {
+
+    public enum Type {
+        // an item was written
+        PUT,
+        // several items were written at once, applied all together
+        PUT_ALL,
+        // an item was removed
+        REMOVE,
+        // drop every item, a snapshot of the primary follows
+        RESET,
+        // nothing changed, the primary is at this sequence number
+        HEARTBEAT
+    }
+
+    /**
+     * Items of a car or room location held on every day of a range, or given back
+     */
+    public static class DayChange implements Serializable {
+        private final String key;
+        private final DateRange range;
+        private final int count;
+
+        /**
+         * @param key
+         * @param range
+         * @param count negative to give them back
+         */
+        public DayChange(String key, DateRange range, int count) {
+            this.key = key;
+            this.range = range;
+            this.count = count;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public DateRange getRange() {
+            return range;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public String toString() {
+            return key + " " + range + (count < 0 ? " " : " +") + count;
+        }
+    }
+
+    private final Type type;
+    private final long epoch;
+    private final long sequence;
+    private final String key;
+    private final RMItem value;
+    private final LinkedHashMap<String, RMItem> values;
+    private final List<DayChange> days;
+
+    private ReplicationRecord(Type type, long epoch, long sequence, String key, RMItem value, LinkedHashMap<String, RMItem> values, List<DayChange> days) {
+        this.type = type;
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.key = key;
+        this.value = value;
+        this.values = values;
+        this.days = days;
+    }
+
+    public static ReplicationRecord put(long epoch, long sequence, String key, RMItem value) {
+        return new ReplicationRecord(Type.PUT, epoch, sequence, key, value, null, null);
+    }
+
+    /**
+     * @param values the items, by key
+     * @param days the changes to the days reserved of the items, applied along with them
+     */
+    public static ReplicationRecord putAll(long epoch, long sequence, LinkedHashMap<String, RMItem> values, List<DayChange> days) {
+        return new ReplicationRecord(Type.PUT_ALL, epoch, sequence, null, null, values, days);
+    }
+
+    public static ReplicationRecord remove(long epoch, long sequence, String key) {
+        return new ReplicationRecord(Type.REMOVE, epoch, sequence, key, null, null, null);
+    }
+
+    public static ReplicationRecord reset(long epoch, long sequence) {
+        return new ReplicationRecord(Type.RESET, epoch, sequence, null, null, null, null);
+    }
+
+    public static ReplicationRecord heartbeat(long epoch, long sequence) {
+        return new ReplicationRecord(Type.HEARTBEAT, epoch, sequence, null, null, null, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public RMItem getValue() {
+        return value;
+    }
+
+    /**
+     * @return the items of a PUT_ALL, by key
+     */
+    public LinkedHashMap<String, RMItem> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the changes to the days reserved of a PUT_ALL
+     */
+    public List<DayChange> getDays() {
+        return days;
+    }
+
+    public String toString() {
+        return type + " #" + sequence + "@" + epoch + (key != null ? " " + key : "")
+                + (values != null ? " " + values.keySet() : "") + (days != null && !days.isEmpty() ? " " + days : "");
+    }
+}
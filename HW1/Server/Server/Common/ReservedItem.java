@@ -5,6 +5,8 @@
 
 package Server.Common;
 
+import java.util.*;
+
 // Represents a customer's "reserved item" (e.g. Flight, Car, or Room)
 // NOTE: if a customer reserves more than one item of the same kind, this is stored as a single
 // instance of ReservedItem reflecting the *latest price*
@@ -14,6 +16,10 @@ public class ReservedItem extends RMItem
 	private int m_nPrice;
 	private String m_strReservableItemKey;
 	private String m_strLocation;
+	// seat numbers, from 1, for a flight; in the order they were assigned
+	private Vector<Integer> m_seats = new Vector<>();
+	// the dates of the reservations of a car or room made for a range of dates, part of the count
+	private Vector<DateRange> m_dates = new Vector<>();
 
 	ReservedItem(String key, String location, int count, int price)
 	{
@@ -54,10 +60,47 @@ public class ReservedItem extends RMItem
 		return m_nPrice;
 	}
 
+	public List<Integer> getSeats()
+	{
+		return Collections.unmodifiableList(m_seats);
+	}
+
+	public void addSeats(Collection<Integer> seats)
+	{
+		m_seats.addAll(seats);
+	}
+
+	public List<DateRange> getDates()
+	{
+		return Collections.unmodifiableList(m_dates);
+	}
+
+	public void addDates(DateRange range)
+	{
+		m_dates.add(range);
+	}
+
+	public boolean removeDates(DateRange range)
+	{
+		return m_dates.remove(range);
+	}
+
+	// the reservations made without dates
+	public int getUndatedCount()
+	{
+		return m_nCount - m_dates.size();
+	}
+
+	// the seat assigned last, null if there is none
+	public Integer removeLastSeat()
+	{
+		return m_seats.isEmpty() ? null : m_seats.remove(m_seats.size() - 1);
+	}
+
 	public String toString()
 	{
 		return "hashkey='" + getKey() + "', reservableItemKey='" + getReservableItemKey() +
-			"', count='" + getCount() + "', price='" + getPrice() + "'";
+			"', count='" + getCount() + "', price='" + getPrice() + "', seats='" + m_seats + "', dates='" + m_dates + "'";
 	}
 
 	// NOTE: hashKey is the same as the ReservableItem hashkey--this would have to change if we
@@ -67,5 +110,13 @@ public class ReservedItem extends RMItem
 		String s = getReservableItemKey();
 		return s.toLowerCase();
 	}
+
+	public Object clone()
+	{
+		ReservedItem obj = (ReservedItem)super.clone();
+		obj.m_seats = new Vector<>(m_seats);
+		obj.m_dates = new Vector<>(m_dates);
+		return obj;
+	}
 }
 
@@ -9,21 +9,148 @@ import Server.Interface.*;
 
 import java.util.*;
 import java.rmi.RemoteException;
+import java.time.LocalDate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class ResourceManager implements IResourceManager
 {
 	protected String m_name = "";
 	protected RMHashMap m_data = new RMHashMap();
+	// days reserved of each car and room location, by key, from its first reservation with dates;
+	// next to the items rather than in them so that readData does not copy them, guarded by m_data
+	private final HashMap<String, DayInventory> m_days = new HashMap<>();
 
 	// lock per resource
 	// for each resource, we compute a lock
 	private final HashMap<String, ReentrantLock> resourceLocks = new HashMap<>();
+	// counters and latencies of this RM, and the time spent waiting for the resource locks
+	private final Metrics m_metrics;
+	private final Metrics.Timer m_lockWait;
+
+	// two-phase commit: branches that voted yes, by transaction id
+	private final HashMap<Long, PreparedBranch> preparedTransactions = new HashMap<>();
+	// outcome of the recent transactions, true if committed, so that a commit sent twice is
+	// acknowledged and a prepare arriving after its abort votes no; guarded by preparedTransactions
+	private final LinkedHashMap<Long, Boolean> finishedTransactions = new LinkedHashMap<>();
+	private static final int finishedTransactionsSize = 10000;
+	// both are kept with the items as well, under transactionKey(), so that the backups have them
+	private static final String transactionPrefix = "transaction-";
+
+	// middlewares caching our items, told about every item that changes
+	private final List<IInvalidationListener> invalidationListeners = new Vector<>();
+	// pushes the invalidations off the request path, in the order of the changes
+	private ExecutorService invalidationDispatcher;
+
+	// primary-backup replication: a primary ships every change to its backups,
+	// a backup applies the log of its primary and only serves reads
+	private static final int replicationLogSize = Integer.getInteger("replication.logSize", 10000);
+	private static final long heartbeatInterval = Long.getLong("replication.heartbeatMs", 100);
+	private static final long maxStaleness = Long.getLong("replica.maxStalenessMs", 1000);
+
+	// flipped with m_data held, so that no write lands once a primary is fenced off
+	private volatile boolean backup = false;
+	// raised at every promotion, a backup drops the records of an older primary, guarded by m_data
+	private long epoch = 0;
+	// last change made (primary) or applied (backup), guarded by m_data
+	private long replicationSequence = 0;
+	// the latest changes, so that a backup that reconnects only gets what it missed
+	private final ArrayDeque<ReplicationRecord> replicationLog = new ArrayDeque<>();
+	private final List<IReplicationListener> replicas = new Vector<>();
+	// ships the log in order and sends the heartbeats, started with the first backup
+	private ScheduledExecutorService replicationDispatcher;
+	// backup: last time it had applied everything its primary had
+	private volatile long caughtUpAt = 0;
+	// backup: last time a record or heartbeat came from the primary
+	private volatile long lastReplicationAt = 0;
+
+	// flat combining: once an item lock is contended combine.hotThreshold times
+	// within combine.windowMs, the reservations and cancellations of the item
+	// are queued and applied in batches by whoever holds its lock, until
+	// combine.coldPasses batches in a row had a single one; 0 turns it off
+	private static final int combineHotThreshold = Integer.getInteger("combine.hotThreshold", 32);
+	private static final long combineWindowNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("combine.windowMs", 100));
+	private static final int combineColdPasses = Integer.getInteger("combine.coldPasses", 1000);
+
+	private final ConcurrentHashMap<String, FlatCombiner<ItemOperation>> hotItems = new ConcurrentHashMap<>();
+	// contended acquisitions of each item lock in the current window, guarded by itself
+	private final HashMap<String, Integer> itemContention = new HashMap<>();
+	private long contentionWindowStart = System.nanoTime();
+
+	// customers waiting for sold-out items, served whenever such an item is written
+	private final Waitlist waitlist = new Waitlist();
+	// middlewares told about the customers served, to push it to their clients
+	private final List<IWaitlistListener> waitlistListeners = new Vector<>();
+	// serves the waitlists off the request path, with no other lock held
+	private final ExecutorService waitlistDispatcher = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "waitlist-dispatcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// items with a serving pass queued, so that a burst of writes queues one
+	private final Set<String> waitlistPending = ConcurrentHashMap.newKeySet();
+
+	// a reservation or cancellation queued on a contended item
+	private static class ItemOperation
+	{
+		final boolean reserve;
+		final int customerID;
+		final String location;
+
+		ItemOperation(boolean reserve, int customerID, String location)
+		{
+			this.reserve = reserve;
+			this.customerID = customerID;
+			this.location = location;
+		}
+	}
+
+	// the items a prepared transaction holds for its customer
+	private static class PreparedBranch extends RMItem
+	{
+		final int customerID;
+		final Vector<String> keys;
+		final Vector<String> locations;
+		final Vector<Integer> prices;
+		// the seats held for the flights, by key
+		final HashMap<String, Vector<Integer>> seats;
+
+		PreparedBranch(int customerID, Vector<String> keys, Vector<String> locations, Vector<Integer> prices, HashMap<String, Vector<Integer>> seats)
+		{
+			this.customerID = customerID;
+			this.keys = keys;
+			this.locations = locations;
+			this.prices = prices;
+			this.seats = seats;
+		}
+	}
+
+	// what is left of a transaction once the coordinator decided
+	private static class TransactionOutcome extends RMItem
+	{
+		final boolean committed;
+
+		TransactionOutcome(boolean committed)
+		{
+			this.committed = committed;
+		}
+	}
 
 
 	public ResourceManager(String p_name)
 	{
 		m_name = p_name;
+		m_metrics = Metrics.of("rm-" + p_name);
+		m_lockWait = m_metrics.timer("lockWait");
+	}
+
+	public Metrics getMetrics()
+	{
+		return m_metrics;
 	}
 
 	// get the lock corresponding to a specific resource
@@ -34,6 +161,68 @@ public class ResourceManager implements IResourceManager
 	}
 
 
+	// Acquire the lock of a resource, recording how long it was waited for
+	// returns whether it had to wait
+	private boolean lock(ReentrantLock lock, String key)
+	{
+		try (Tracer.Span span = Tracer.start("lock"))
+		{
+			if (lock.tryLock()) {
+				m_lockWait.record(0);
+				return false;
+			}
+			span.tag("contended", true).tag("key", key);
+			JfrEvents.LockWait event = new JfrEvents.LockWait();
+			event.begin();
+			long start = System.nanoTime();
+			lock.lock();
+			m_lockWait.record(System.nanoTime() - start);
+			event.end();
+			if (event.shouldCommit()) {
+				event.resourceManager = m_name;
+				event.key = key;
+				event.commit();
+			}
+			return true;
+		}
+	}
+
+
+	// Lock a customer, then several items
+	// customer lock -> item locks, the items in key order so that
+	// two batches sharing some items can't deadlock
+	private Vector<ReentrantLock> lockAll(String customerKey, Collection<String> itemKeys)
+	{
+		Vector<ReentrantLock> locks = new Vector<>();
+		ReentrantLock customerLock = getResourceLock(customerKey);
+		lock(customerLock, customerKey);
+		locks.add(customerLock);
+		locks.addAll(lockItems(itemKeys));
+		return locks;
+	}
+
+	// Lock several items, in key order; the caller may hold a customer lock, no item lock
+	private Vector<ReentrantLock> lockItems(Collection<String> itemKeys)
+	{
+		Vector<ReentrantLock> locks = new Vector<>();
+		for (String key : new TreeSet<>(itemKeys))
+		{
+			ReentrantLock itemLock = getResourceLock(key);
+			lock(itemLock, key);
+			locks.add(itemLock);
+		}
+		return locks;
+	}
+
+	// release order: item locks -> customer lock
+	private void unlockAll(Vector<ReentrantLock> locks)
+	{
+		for (int i = locks.size() - 1; i >= 0; i--)
+		{
+			locks.get(i).unlock();
+		}
+	}
+
 	// Reads a data item
 	protected RMItem readData(String key)
 	{
@@ -50,17 +239,567 @@ public class ResourceManager implements IResourceManager
 	protected void writeData(String key, RMItem value)
 	{
 		synchronized (m_data){
+			checkWritable();
 			m_data.put(key, value);
+			publishReplication(key, value);
+		}
+		if (value instanceof ReservableItem)
+		{
+			publishInvalidation(key);
+			scheduleWaitlist(key);
+		}
+	}
+
+	// Writes several data items, which a backup applies all together
+	protected void writeData(LinkedHashMap<String, RMItem> values)
+	{
+		writeData(values, Collections.emptyList());
+	}
+
+	// Writes several data items and changes the days reserved of cars and rooms, the caller holds their locks
+	protected void writeData(LinkedHashMap<String, RMItem> values, List<ReplicationRecord.DayChange> days)
+	{
+		synchronized (m_data){
+			checkWritable();
+			LinkedHashMap<String, RMItem> copies = new LinkedHashMap<>();
+			for (Map.Entry<String, RMItem> value : values.entrySet())
+			{
+				m_data.put(value.getKey(), value.getValue());
+				copies.put(value.getKey(), (RMItem)value.getValue().clone());
+			}
+			for (ReplicationRecord.DayChange change : days)
+			{
+				reserveDays(change);
+			}
+			replicationSequence++;
+			if (replicationDispatcher != null)
+			{
+				logReplication(ReplicationRecord.putAll(epoch, replicationSequence, copies, new ArrayList<>(days)));
+			}
+		}
+		for (Map.Entry<String, RMItem> value : values.entrySet())
+		{
+			if (value.getValue() instanceof ReservableItem)
+			{
+				publishInvalidation(value.getKey());
+				scheduleWaitlist(value.getKey());
+			}
 		}
 	}
 
 	// Remove the item out of storage
 	protected void removeData(String key)
 	{
+		RMItem removed;
 		synchronized (m_data){
-			m_data.remove(key);
+			checkWritable();
+			removed = m_data.remove(key);
+			m_days.remove(key);
+			publishReplication(key, null);
+		}
+		if (removed instanceof ReservableItem)
+		{
+			publishInvalidation(key);
+			scheduleWaitlist(key);
+		}
+	}
+
+	// Hold or give back a car or room on the days of a range, called with m_data held
+	private void reserveDays(ReplicationRecord.DayChange change)
+	{
+		LocalDate today = LocalDate.now();
+		DayInventory days = m_days.get(change.getKey());
+		if (days == null)
+		{
+			days = new DayInventory(today, DayInventory.horizonDays);
+			m_days.put(change.getKey(), days);
+		}
+		else if (!days.covers(change.getRange()) && today.isAfter(days.getFirstDay()))
+		{
+			// the horizon moves on with the days
+			days = days.from(today);
+			m_days.put(change.getKey(), days);
+		}
+		days.reserve(change.getRange(), change.getCount());
+	}
+
+	// A backup only changes through its primary's log, called with m_data held
+	private void checkWritable()
+	{
+		if (backup)
+		{
+			throw new IllegalStateException("Resource manager " + m_name + " is a read-only backup");
+		}
+	}
+
+	// Number a change and ship it to the backups, called with m_data held
+	// so that the backups see the changes in the order they were made
+	private void publishReplication(String key, RMItem value)
+	{
+		replicationSequence++;
+		if (replicationDispatcher == null)
+		{
+			// no backup ever connected, one that does gets a snapshot
+			return;
+		}
+		ReplicationRecord record = (value == null)
+			? ReplicationRecord.remove(epoch, replicationSequence, key)
+			: ReplicationRecord.put(epoch, replicationSequence, key, (RMItem)value.clone());
+		logReplication(record);
+	}
+
+	// Keep a record in the log and send it to the current backups, called with m_data held
+	private void logReplication(ReplicationRecord record)
+	{
+		replicationLog.addLast(record);
+		if (replicationLog.size() > replicationLogSize)
+		{
+			replicationLog.removeFirst();
+		}
+		List<IReplicationListener> targets = new Vector<>(replicas);
+		replicationDispatcher.submit(() -> sendReplication(targets, Collections.singletonList(record)));
+	}
+
+	private void sendReplication(List<IReplicationListener> targets, List<ReplicationRecord> records)
+	{
+		for (IReplicationListener replica : targets)
+		{
+			try {
+				for (ReplicationRecord record : records)
+				{
+					replica.replicate(record);
+				}
+			} catch (RemoteException e) {
+				Trace.warn("RM::sendReplication() backup unreachable, dropped");
+				replicas.remove(replica);
+			}
 		}
+	}
 
+	public boolean replicateTo(IReplicationListener replica, long fromSequence, long replicaEpoch) throws RemoteException
+	{
+		Trace.info("RM::replicateTo(" + fromSequence + ", " + replicaEpoch + ") called");
+		if (fence(replicaEpoch))
+		{
+			throw new RemoteException("Resource manager " + m_name + " was replaced by a primary of epoch " + replicaEpoch);
+		}
+		synchronized (m_data)
+		{
+			if (replicationDispatcher == null)
+			{
+				replicationDispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "replication-dispatcher");
+					thread.setDaemon(true);
+					return thread;
+				});
+				replicationDispatcher.scheduleAtFixedRate(this::sendHeartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+			}
+
+			List<ReplicationRecord> missed = new Vector<>();
+			ReplicationRecord oldest = replicationLog.peekFirst();
+			if (fromSequence == replicationSequence)
+			{
+				// up to date
+			}
+			else if (fromSequence < replicationSequence && oldest != null && oldest.getSequence() <= fromSequence + 1)
+			{
+				for (ReplicationRecord record : replicationLog)
+				{
+					if (record.getSequence() > fromSequence)
+					{
+						missed.add(record);
+					}
+				}
+			}
+			else
+			{
+				// too far behind to catch up from the log
+				missed.add(ReplicationRecord.reset(epoch, replicationSequence));
+				for (String key : m_data.keySet())
+				{
+					missed.add(ReplicationRecord.put(epoch, replicationSequence, key, (RMItem)m_data.get(key).clone()));
+				}
+				// and the days reserved, as runs of days
+				List<ReplicationRecord.DayChange> days = new ArrayList<>();
+				for (Map.Entry<String, DayInventory> inventory : m_days.entrySet())
+				{
+					for (Map.Entry<DateRange, Integer> run : inventory.getValue().runs().entrySet())
+					{
+						days.add(new ReplicationRecord.DayChange(inventory.getKey(), run.getKey(), run.getValue()));
+					}
+				}
+				missed.add(ReplicationRecord.putAll(epoch, replicationSequence, new LinkedHashMap<>(), days));
+			}
+			replicationDispatcher.submit(() -> sendReplication(Collections.singletonList(replica), missed));
+			replicas.add(replica);
+			Trace.info("RM::replicateTo(" + fromSequence + ") sending " + missed.size() + " records to catch up");
+		}
+		return true;
+	}
+
+	// Stop shipping the log to a backup
+	public void stopReplicatingTo(IReplicationListener replica)
+	{
+		replicas.remove(replica);
+	}
+
+	private void sendHeartbeat()
+	{
+		ReplicationRecord heartbeat;
+		synchronized (m_data)
+		{
+			heartbeat = ReplicationRecord.heartbeat(epoch, replicationSequence);
+		}
+		sendReplication(new Vector<>(replicas), Collections.singletonList(heartbeat));
+	}
+
+	// Apply a record of the primary's log, in the order they were sent
+	public void applyReplication(ReplicationRecord record)
+	{
+		Vector<String> changed = new Vector<>();
+		synchronized (m_data)
+		{
+			if (!backup)
+			{
+				Trace.warn("RM::applyReplication(" + record + ") ignored--not a backup");
+				return;
+			}
+			if (record.getEpoch() < epoch)
+			{
+				Trace.warn("RM::applyReplication(" + record + ") ignored--from a primary older than epoch " + epoch);
+				return;
+			}
+			epoch = record.getEpoch();
+			lastReplicationAt = System.currentTimeMillis();
+			switch (record.getType())
+			{
+				case HEARTBEAT:
+					if (record.getSequence() == replicationSequence)
+					{
+						caughtUpAt = System.currentTimeMillis();
+					}
+					return;
+				case RESET:
+					for (String key : m_data.keySet())
+					{
+						if (m_data.get(key) instanceof ReservableItem)
+						{
+							changed.add(key);
+						}
+					}
+					m_data.clear();
+					m_days.clear();
+					break;
+				case PUT:
+					m_data.put(record.getKey(), record.getValue());
+					if (record.getValue() instanceof ReservableItem)
+					{
+						changed.add(record.getKey());
+					}
+					break;
+				case PUT_ALL:
+					for (Map.Entry<String, RMItem> value : record.getValues().entrySet())
+					{
+						m_data.put(value.getKey(), value.getValue());
+						if (value.getValue() instanceof ReservableItem)
+						{
+							changed.add(value.getKey());
+						}
+					}
+					for (ReplicationRecord.DayChange change : record.getDays())
+					{
+						reserveDays(change);
+					}
+					break;
+				case REMOVE:
+					m_days.remove(record.getKey());
+					if (m_data.remove(record.getKey()) instanceof ReservableItem)
+					{
+						changed.add(record.getKey());
+					}
+					break;
+			}
+			replicationSequence = record.getSequence();
+			if (replicationDispatcher != null)
+			{
+				// backups of this backup follow along
+				logReplication(record);
+			}
+		}
+		for (String key : changed)
+		{
+			publishInvalidation(key);
+		}
+	}
+
+	// Follow a primary: apply its log and only serve reads
+	public void becomeBackup()
+	{
+		Trace.info("RM::becomeBackup() called");
+		synchronized (m_data)
+		{
+			backup = true;
+			caughtUpAt = 0;
+		}
+	}
+
+	public boolean isBackup()
+	{
+		return backup;
+	}
+
+	// Last sequence number made or applied, where a reconnecting backup resumes
+	public long getReplicationSequence()
+	{
+		synchronized (m_data)
+		{
+			return replicationSequence;
+		}
+	}
+
+	public long getLastReplicationTime()
+	{
+		return lastReplicationAt;
+	}
+
+	// Epoch of the primary this manager is or follows
+	public long getEpoch()
+	{
+		synchronized (m_data)
+		{
+			return epoch;
+		}
+	}
+
+	public boolean promote(long newEpoch) throws RemoteException
+	{
+		Trace.info("RM::promote(" + newEpoch + ") called");
+		// the transactions are rebuilt from the replicated records before the first commit
+		synchronized (preparedTransactions)
+		{
+			synchronized (m_data)
+			{
+				if (!backup)
+				{
+					// promoted already
+					return true;
+				}
+				epoch = Math.max(newEpoch, epoch + 1);
+				backup = false;
+				loadTransactions();
+			}
+		}
+		Trace.info("RM::promote() primary of epoch " + getEpoch());
+		return true;
+	}
+
+	// Turn a primary that was replaced, i.e. older than the given epoch, into a read-only backup
+	public boolean fence(long newEpoch)
+	{
+		synchronized (m_data)
+		{
+			if (newEpoch <= epoch)
+			{
+				return false;
+			}
+			epoch = newEpoch;
+			if (!backup)
+			{
+				Trace.warn("RM::fence(" + newEpoch + ") replaced by a newer primary, now read-only");
+				backup = true;
+				caughtUpAt = 0;
+			}
+			return true;
+		}
+	}
+
+	// A backup only serves reads while it is close enough to its primary
+	protected void checkFreshness() throws RemoteException
+	{
+		long staleness = System.currentTimeMillis() - caughtUpAt;
+		if (backup && staleness > maxStaleness)
+		{
+			throw new RemoteException("Replica " + m_name + " is " + staleness + "ms behind its primary");
+		}
+	}
+
+	// Tell the subscribed middlewares that an item changed
+	private void publishInvalidation(String key)
+	{
+		if (invalidationListeners.isEmpty())
+		{
+			return;
+		}
+		invalidationDispatcher.submit(() -> {
+			for (IInvalidationListener listener : new Vector<>(invalidationListeners))
+			{
+				try {
+					listener.invalidate(key);
+				} catch (RemoteException e) {
+					Trace.warn("RM::publishInvalidation(" + key + ") listener unreachable, unsubscribed");
+					invalidationListeners.remove(listener);
+				}
+			}
+		});
+	}
+
+	public boolean subscribe(IInvalidationListener listener) throws RemoteException
+	{
+		Trace.info("RM::subscribe() called");
+		synchronized (invalidationListeners)
+		{
+			if (invalidationDispatcher == null)
+			{
+				invalidationDispatcher = Executors.newSingleThreadExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "invalidation-dispatcher");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			invalidationListeners.add(listener);
+		}
+		return true;
+	}
+
+	// Stop pushing invalidations to a listener
+	public void unsubscribe(IInvalidationListener listener)
+	{
+		invalidationListeners.remove(listener);
+	}
+
+	public boolean subscribeWaitlist(IWaitlistListener listener)
+	{
+		Trace.info("RM::subscribeWaitlist() called");
+		waitlistListeners.add(listener);
+		return true;
+	}
+
+	// Stop telling a listener about the customers served
+	public void unsubscribeWaitlist(IWaitlistListener listener)
+	{
+		waitlistListeners.remove(listener);
+	}
+
+	// Tell the subscribed middlewares that a customer left a waitlist
+	private void publishWaitlistNotice(WaitlistNotice notice)
+	{
+		for (IWaitlistListener listener : new Vector<>(waitlistListeners))
+		{
+			try {
+				listener.served(notice);
+			} catch (RemoteException e) {
+				Trace.warn("RM::publishWaitlistNotice(" + notice.getKey() + ") listener unreachable, unsubscribed");
+				waitlistListeners.remove(listener);
+			}
+		}
+	}
+
+	// Reserve an item, or add the customer to its waitlist if it is sold out
+	// returns 0 if reserved, the position on the waitlist, or -1 if neither
+	protected int reserveItemOrWait(int customerID, String key, String location)
+	{
+		Trace.info("RM::reserveItemOrWait(customer=" + customerID + ", " + key + ", " + location + ") called" );
+
+		// under the item lock, so that a serving pass sees the customer once it could serve them
+		Vector<ReentrantLock> locks = lockAll(Customer.getKey(customerID), Collections.singletonList(key));
+		try{
+			ReservableItem item = (ReservableItem)readData(key);
+			if (item == null || readData(Customer.getKey(customerID)) == null)
+			{
+				Trace.warn("RM::reserveItemOrWait(" + customerID + ", " + key + ", " + location + ") failed--customer or item doesn't exist");
+				return -1;
+			}
+			if (available(item) > 0 && !waitlist.isWaiting(key))
+			{
+				boolean reserved = reserve(customerID, item, key, location);
+				if (reserved)
+				{
+					writeData(item.getKey(), item);
+				}
+				return reserved ? 0 : -1;
+			}
+
+			int position = waitlist.add(key, customerID, location);
+			if (position < 0)
+			{
+				Trace.warn("RM::reserveItemOrWait(" + customerID + ", " + key + ", " + location + ") failed--waitlist full");
+			}
+			else
+			{
+				Trace.info("RM::reserveItemOrWait(" + customerID + ", " + key + ", " + location + ") waiting at position " + position);
+			}
+			return position;
+		}finally {
+			unlockAll(locks);
+		}
+	}
+
+	// Queue a pass over the waitlist of an item that was just written
+	private void scheduleWaitlist(String key)
+	{
+		if (!waitlist.isWaiting(key) || !waitlistPending.add(key))
+		{
+			return;
+		}
+		waitlistDispatcher.submit(() -> {
+			waitlistPending.remove(key);
+			try {
+				serveWaitlist(key);
+			} catch (RuntimeException e) {
+				Trace.error("RM::serveWaitlist(" + key + ") failed: " + e);
+			}
+		});
+	}
+
+	// Reserve the item for the customers waiting for it, in order, while there are some left
+	// the notices go out once the locks are released, so that a slow listener holds up no reservation
+	private void serveWaitlist(String key)
+	{
+		Waitlist.Entry entry;
+		while ((entry = waitlist.peek(key)) != null)
+		{
+			int customerID = entry.getCustomerID();
+			List<WaitlistNotice> notices = new ArrayList<>();
+			Vector<ReentrantLock> locks = lockAll(Customer.getKey(customerID), Collections.singletonList(key));
+			try{
+				ReservableItem item = (ReservableItem)readData(key);
+				if (item == null)
+				{
+					for (Waitlist.Entry dropped : waitlist.clear(key))
+					{
+						notices.add(new WaitlistNotice(dropped.getCustomerID(), key, false));
+					}
+					Trace.info("RM::serveWaitlist(" + key + ") item deleted, waitlist dropped");
+					return;
+				}
+				if (available(item) <= 0)
+				{
+					return;
+				}
+				if (!waitlist.poll(key, entry))
+				{
+					// left the waitlist meanwhile, e.g. deleted
+					continue;
+				}
+				if (reserve(customerID, item, key, entry.getLocation()))
+				{
+					writeData(item.getKey(), item);
+					Trace.info("RM::serveWaitlist(" + key + ") reserved for customer " + customerID);
+					notices.add(new WaitlistNotice(customerID, key, true));
+				}
+				else
+				{
+					Trace.warn("RM::serveWaitlist(" + key + ") could not reserve for customer " + customerID + ", dropped");
+					notices.add(new WaitlistNotice(customerID, key, "it could not be reserved for them"));
+				}
+			}finally {
+				unlockAll(locks);
+				for (WaitlistNotice notice : notices)
+				{
+					publishWaitlistNotice(notice);
+				}
+			}
+		}
 	}
 
 	// Deletes the encar item
@@ -69,7 +808,7 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::deleteItem(" + key + ") called");
 
 		ReentrantLock lock = getResourceLock(key);
-		lock.lock();
+		lock(lock, key);
 
 		try{
 			ReservableItem curObj = (ReservableItem)readData(key);
@@ -104,14 +843,14 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::queryNum(" + key + ") called");
 
 		ReentrantLock lock = getResourceLock(key);
-		lock.lock();
+		lock(lock, key);
 
 		try{
 			ReservableItem curObj = (ReservableItem)readData(key);
 			int value = 0;
 			if (curObj != null)
 			{
-				value = curObj.getCount();
+				value = available(curObj);
 			}
 			Trace.info("RM::queryNum(" + key + ") returns count=" + value);
 			return value;
@@ -126,7 +865,7 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::queryPrice(" + key + ") called");
 
 		ReentrantLock lock = getResourceLock(key);
-		lock.lock();
+		lock(lock, key);
 
 		try{
 
@@ -151,6 +890,7 @@ public class ResourceManager implements IResourceManager
 
 		Trace.info("RM::reserveItem(customer=" + customerID + ", " + key + ", " + location + ") called" );
 
+		JfrEvents.Reservation reservation = JfrEvents.Reservation.start(m_name, customerID, key);
 		// Acquire locks on both customer and item
 		// at the same time
 		// customer lock -> item lock
@@ -161,121 +901,467 @@ public class ResourceManager implements IResourceManager
 		boolean itemLocked = false;
 
 		try{
-			customerLock.lock();
+			lock(customerLock, Customer.getKey(customerID));
 			customerLocked = true;
 
-			itemLock.lock();
+			// a contended item: queue the reservation for whoever holds its lock
+			FlatCombiner<ItemOperation> combiner = hotItems.get(key);
+			if (combiner != null)
+			{
+				return reservation.done(combine(key, combiner, new ItemOperation(true, customerID, location)));
+			}
+
+			if (lock(itemLock, key)) {
+				itemContended(key, itemLock);
+			}
 			itemLocked = true;
 
-			Customer customer = (Customer)readData(Customer.getKey(customerID));
+			ReservableItem item = (ReservableItem)readData(key);
+			boolean reserved = reserveInTurn(customerID, item, key, location);
+			if (reserved)
+			{
+				writeData(item.getKey(), item);
+			}
+			return reservation.done(reserved);
+		} finally {
+			// release order:
+			// item lock -> customer lock
+			if (itemLocked) {
+				itemLock.unlock();
+			}
+			if (customerLocked) {
+				customerLock.unlock();
+			}
+		}
+	}
 
-			Thread.sleep(2000);
+	// Reserve an item unless customers wait for it: what is freed goes to them first, in order
+	private boolean reserveInTurn(int customerID, ReservableItem item, String key, String location)
+	{
+		if (waitlist.isWaiting(key))
+		{
+			Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--customers are waiting for it");
+			return false;
+		}
+		return reserve(customerID, item, key, location);
+	}
 
-			if (customer == null)
+	// Reserve an item read by the caller, under the customer and item locks
+	// writes the customer; the caller writes the item if it was reserved
+	private boolean reserve(int customerID, ReservableItem item, String key, String location)
+	{
+		Customer customer = (Customer)readData(Customer.getKey(customerID));
+
+		if (customer == null)
+		{
+			Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ")  failed--customer doesn't exist");
+			return false;
+		}
+
+		if (item == null)
+		{
+			Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--item doesn't exist");
+			return false;
+		}
+		else if (available(item) <= 0)
+		{
+			Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--No more items");
+			return false;
+		}
+		else
+		{
+			customer.reserve(key, location, item.getPrice());
+			customer.addSeats(key, assignSeats(item, 1));
+			writeData(customer.getKey(), customer);
+
+			// Decrease the number of available items in the storage
+			item.setCount(item.getCount() - 1);
+			item.setReserved(item.getReserved() + 1);
+
+			Trace.info("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") succeeded");
+			return true;
+		}
+	}
+
+	// helper methods to cancel a reservation of an item
+	protected boolean cancelReserveItem(int customerID, String key, String location)
+	{
+		Trace.info("RM::cancelReserveItem(customer=" + customerID + ", " + key + ", " + location + ") called" );
+
+		// Acquire locks on both customer and item
+		// at the same time
+		ReentrantLock customerLock = getResourceLock(Customer.getKey(customerID));
+		ReentrantLock itemLock = getResourceLock(key);
+
+		boolean customerLocked = false;
+		boolean itemLocked = false;
+
+		try{
+			lock(customerLock, Customer.getKey(customerID));
+			customerLocked = true;
+
+			FlatCombiner<ItemOperation> combiner = hotItems.get(key);
+			if (combiner != null)
 			{
-				Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ")  failed--customer doesn't exist");
-				return false;
+				return combine(key, combiner, new ItemOperation(false, customerID, location));
+			}
+
+			if (lock(itemLock, key)) {
+				itemContended(key, itemLock);
 			}
+			itemLocked = true;
 
 			ReservableItem item = (ReservableItem)readData(key);
-			if (item == null)
+			int count = item == null ? 0 : item.getCount();
+			boolean canceled = cancelReserve(customerID, item, key, location);
+
+			// write the item only when a reservation was actually canceled
+			if (item != null && item.getCount() != count)
 			{
-				Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--item doesn't exist");
-				return false;
+				writeData(item.getKey(), item);
+			}
+			return canceled;
+		}finally {
+			if (itemLocked) {
+				itemLock.unlock();
+			}
+			if (customerLocked) {
+				customerLock.unlock();
 			}
-			else if (item.getCount() == 0)
+		}
+
+	}
+
+	// Cancel a reservation of an item read by the caller, under the customer and item locks
+	// writes the customer; the caller writes the item if its count changed
+	private boolean cancelReserve(int customerID, ReservableItem item, String key, String location)
+	{
+		// atomically read a specific customer
+		Customer customer = (Customer)readData(Customer.getKey(customerID));
+		if (customer == null)
+		{
+			Trace.warn("RM::cancelReserveItem(" + customerID + ", " + key + ", " + location + ")  failed--customer doesn't exist");
+			return false;
+		}
+
+		if (item == null)
+		{
+			Trace.warn("RM::cancelReserveItem(" + customerID + ", " + key + ", " + location + ") failed--item doesn't exist initially");
+			return false;
+		}
+		else
+		{
+			// cancel the reservation, and free the seat assigned last
+			ReservedItem reserved = customer.getReservedItem(key);
+			Integer seat = reserved == null ? null : reserved.removeLastSeat();
+			boolean success = customer.cancelReserve(key, location, item.getPrice());
+			if (seat != null)
 			{
-				Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--No more items");
-				return false;
+				releaseSeats(item, Collections.singletonList(seat));
 			}
-			else
+
+			writeData(customer.getKey(), customer);
+
+			// increase the available item only when actually canceled a reservation
+			if(success){
+				// Increase the number of available items in the storage
+				item.setCount(item.getCount() + 1);
+				item.setReserved(item.getReserved() - 1);
+			}
+
+			Trace.info("RM::cancelReserveItem(" + customerID + ", " + key + ", " + location + ") succeeded");
+			return true;
+		}
+	}
+
+	// Queue a reservation or cancellation on a contended item, the customer lock held
+	// it is applied by whoever holds the item lock, maybe this thread
+	private boolean combine(String key, FlatCombiner<ItemOperation> combiner, ItemOperation operation)
+	{
+		boolean result = combiner.submit(operation);
+		if (combiner.isCold() && hotItems.remove(key, combiner))
+		{
+			Trace.info("RM::" + key + " no longer contended, " + combiner);
+		}
+		return result;
+	}
+
+	// Apply a batch of the operations queued on a contended item, the item lock held:
+	// one read and at most one write of the item for the whole batch
+	// every operation holds the lock of its customer, so the customers are all different
+	private void applyItemOperations(String key, List<FlatCombiner.Op<ItemOperation>> operations)
+	{
+		ReservableItem item = (ReservableItem)readData(key);
+		int count = item == null ? 0 : item.getCount();
+		boolean[] results = new boolean[operations.size()];
+
+		try
+		{
+			for (int i = 0; i < results.length; i++)
 			{
-				customer.reserve(key, location, item.getPrice());
-				writeData(customer.getKey(), customer);
+				ItemOperation operation = operations.get(i).getRequest();
+				results[i] = operation.reserve
+					? reserveInTurn(operation.customerID, item, key, operation.location)
+					: cancelReserve(operation.customerID, item, key, operation.location);
+			}
+		}
+		finally
+		{
+			if (item != null && item.getCount() != count)
+			{
+				writeData(item.getKey(), item);
+			}
+		}
+
+		// only once the item is written, like the direct path
+		for (int i = 0; i < results.length; i++)
+		{
+			operations.get(i).complete(results[i]);
+		}
+	}
 
-				// Decrease the number of available items in the storage
+	// Count a contended acquisition of an item lock; past the threshold in the
+	// current window, the reservations of the item are combined from then on
+	private void itemContended(String key, ReentrantLock itemLock)
+	{
+		if (combineHotThreshold <= 0)
+		{
+			return;
+		}
+		synchronized (itemContention)
+		{
+			long now = System.nanoTime();
+			if (now - contentionWindowStart > combineWindowNanos)
+			{
+				itemContention.clear();
+				contentionWindowStart = now;
+			}
+			if (itemContention.merge(key, 1, Integer::sum) < combineHotThreshold)
+			{
+				return;
+			}
+			itemContention.remove(key);
+		}
+		hotItems.computeIfAbsent(key, k -> {
+			Trace.info("RM::" + k + " contended, combining its reservations");
+			return new FlatCombiner<>(itemLock, operations -> applyItemOperations(k, operations), combineColdPasses);
+		});
+	}
+
+	// Reserve several items for a customer at once: all of them or none
+	// keys and locations are parallel, a key listed twice reserves two items
+	protected boolean reserveItems(int customerID, Vector<String> keys, Vector<String> locations)
+	{
+		Trace.info("RM::reserveItems(customer=" + customerID + ", " + keys + ") called" );
+
+		JfrEvents.Reservation reservation = JfrEvents.Reservation.start(m_name, customerID, keys);
+		TreeMap<String, Integer> needed = new TreeMap<>();
+		for (String key : keys)
+		{
+			needed.merge(key, 1, Integer::sum);
+		}
+
+		Vector<ReentrantLock> locks = lockAll(Customer.getKey(customerID), needed.keySet());
+		try{
+			Customer customer = (Customer)readData(Customer.getKey(customerID));
+			if (customer == null)
+			{
+				Trace.warn("RM::reserveItems(" + customerID + ", " + keys + ")  failed--customer doesn't exist");
+				return reservation.done(false);
+			}
+
+			// check every item before touching any of them
+			HashMap<String, ReservableItem> items = new HashMap<>();
+			for (String key : needed.keySet())
+			{
+				ReservableItem item = (ReservableItem)readData(key);
+				if (item == null)
+				{
+					Trace.warn("RM::reserveItems(" + customerID + ", " + key + ") failed--item doesn't exist");
+					return reservation.done(false);
+				}
+				else if (available(item) < needed.get(key))
+				{
+					Trace.warn("RM::reserveItems(" + customerID + ", " + key + ") failed--No more items");
+					return reservation.done(false);
+				}
+				else if (waitlist.isWaiting(key))
+				{
+					Trace.warn("RM::reserveItems(" + customerID + ", " + key + ") failed--customers are waiting for it");
+					return reservation.done(false);
+				}
+				items.put(key, item);
+			}
+
+			for (int i = 0; i < keys.size(); i++)
+			{
+				ReservableItem item = items.get(keys.get(i));
+				customer.reserve(keys.get(i), locations.get(i), item.getPrice());
 				item.setCount(item.getCount() - 1);
 				item.setReserved(item.getReserved() + 1);
+			}
+			// a flight listed several times gets seats side by side if it can
+			for (String key : needed.keySet())
+			{
+				customer.addSeats(key, assignSeats(items.get(key), needed.get(key)));
+			}
+			writeData(customer.getKey(), customer);
+			for (ReservableItem item : items.values())
+			{
 				writeData(item.getKey(), item);
+			}
 
-				Trace.info("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") succeeded");
-				return true;
+			Trace.info("RM::reserveItems(" + customerID + ", " + keys + ") succeeded");
+			return reservation.done(true);
+		}finally {
+			unlockAll(locks);
+		}
+	}
+
+	// Items free for a reservation without dates, which holds one on every day from today on
+	private int available(ReservableItem item)
+	{
+		synchronized (m_data){
+			DayInventory days = m_days.get(item.getKey());
+			return days == null ? item.getCount() : item.getCount() - days.maxReservedFrom(LocalDate.now());
+		}
+	}
+
+	// Items free on every day of a range
+	private int available(DatedItem item, DateRange range)
+	{
+		synchronized (m_data){
+			DayInventory days = m_days.get(item.getKey());
+			return days == null ? item.getCount() : item.getCount() - days.maxReserved(range);
+		}
+	}
+
+	// Whether a range can be reserved: from today, within the horizon of the inventories
+	private static boolean isBookable(DateRange range)
+	{
+		LocalDate today = LocalDate.now();
+		return !range.getFrom().isBefore(today) && !range.getTo().isAfter(today.plusDays(DayInventory.horizonDays));
+	}
+
+	// Reserve a car or a room for a range of dates
+	// the item is held on the days of the range only; its count, free on every day, does not change
+	protected boolean reserveItemDates(int customerID, String key, String location, DateRange range)
+	{
+		Trace.info("RM::reserveItemDates(customer=" + customerID + ", " + key + ", " + range + ") called" );
+
+		JfrEvents.Reservation reservation = JfrEvents.Reservation.start(m_name, customerID, key);
+		// customer lock -> item lock
+		Vector<ReentrantLock> locks = lockAll(Customer.getKey(customerID), Collections.singletonList(key));
+		try{
+			Customer customer = (Customer)readData(Customer.getKey(customerID));
+			if (customer == null)
+			{
+				Trace.warn("RM::reserveItemDates(" + customerID + ", " + key + ", " + range + ")  failed--customer doesn't exist");
+				return reservation.done(false);
+			}
+
+			DatedItem item = (DatedItem)readData(key);
+			if (item == null)
+			{
+				Trace.warn("RM::reserveItemDates(" + customerID + ", " + key + ", " + range + ") failed--item doesn't exist");
+				return reservation.done(false);
 			}
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		} finally {
-			// release order:
-			// item lock -> customer lock
-			if (itemLocked) {
-				itemLock.unlock();
+			else if (!isBookable(range))
+			{
+				Trace.warn("RM::reserveItemDates(" + customerID + ", " + key + ", " + range + ") failed--dates out of the horizon");
+				return reservation.done(false);
 			}
-			if (customerLocked) {
-				customerLock.unlock();
+			else if (available(item, range) <= 0)
+			{
+				Trace.warn("RM::reserveItemDates(" + customerID + ", " + key + ", " + range + ") failed--No more items");
+				return reservation.done(false);
+			}
+			else if (waitlist.isWaiting(key))
+			{
+				Trace.warn("RM::reserveItemDates(" + customerID + ", " + key + ", " + range + ") failed--customers are waiting for it");
+				return reservation.done(false);
 			}
+
+			customer.reserveDates(key, location, item.getPrice(), range);
+			item.setReserved(item.getReserved() + 1);
+			LinkedHashMap<String, RMItem> writes = new LinkedHashMap<>();
+			writes.put(customer.getKey(), customer);
+			writes.put(item.getKey(), item);
+			writeData(writes, Collections.singletonList(new ReplicationRecord.DayChange(key, range, 1)));
+
+			Trace.info("RM::reserveItemDates(" + customerID + ", " + key + ", " + range + ") succeeded");
+			return reservation.done(true);
+		}finally {
+			unlockAll(locks);
 		}
 	}
 
-	// helper methods to cancel a reservation of an item
-	protected boolean cancelReserveItem(int customerID, String key, String location)
+	// Cancel the reservation of a car or a room for a range of dates
+	protected boolean cancelReserveItemDates(int customerID, String key, DateRange range)
 	{
-		Trace.info("RM::cancelReserveItem(customer=" + customerID + ", " + key + ", " + location + ") called" );
-
-		// Acquire locks on both customer and item
-		// at the same time
-		ReentrantLock customerLock = getResourceLock(Customer.getKey(customerID));
-		ReentrantLock itemLock = getResourceLock(key);
-
-		boolean customerLocked = false;
-		boolean itemLocked = false;
+		Trace.info("RM::cancelReserveItemDates(customer=" + customerID + ", " + key + ", " + range + ") called" );
 
+		Vector<ReentrantLock> locks = lockAll(Customer.getKey(customerID), Collections.singletonList(key));
 		try{
-			customerLock.lock();
-			customerLocked = true;
-
-			itemLock.lock();
-			itemLocked = true;
-			// atomically read a specific customer
 			Customer customer = (Customer)readData(Customer.getKey(customerID));
-			if (customer == null)
+			DatedItem item = (DatedItem)readData(key);
+			if (customer == null || item == null)
 			{
-				Trace.warn("RM::cancelReserveItem(" + customerID + ", " + key + ", " + location + ")  failed--customer doesn't exist");
+				Trace.warn("RM::cancelReserveItemDates(" + customerID + ", " + key + ", " + range + ") failed--customer or item doesn't exist");
 				return false;
 			}
-
-			// Atomically check if the item is available
-			ReservableItem item = (ReservableItem)readData(key);
-			if (item == null)
+			if (!customer.cancelReserveDates(key, range))
 			{
-				Trace.warn("RM::cancelReserveItem(" + customerID + ", " + key + ", " + location + ") failed--item doesn't exist initially");
+				Trace.warn("RM::cancelReserveItemDates(" + customerID + ", " + key + ", " + range + ") failed--no such reservation");
 				return false;
 			}
-			else
-			{
-				// cancel the reservation
-				boolean success = customer.cancelReserve(key, location, item.getPrice());
+			item.setReserved(item.getReserved() - 1);
+			LinkedHashMap<String, RMItem> writes = new LinkedHashMap<>();
+			writes.put(customer.getKey(), customer);
+			writes.put(item.getKey(), item);
+			writeData(writes, releaseDates(item, Collections.singletonList(range)));
 
-				writeData(customer.getKey(), customer);
+			Trace.info("RM::cancelReserveItemDates(" + customerID + ", " + key + ", " + range + ") succeeded");
+			return true;
+		}finally {
+			unlockAll(locks);
+		}
+	}
 
-				// increase the available item only when actually canceled a reservation
-				if(success){
-					// Increase the number of available items in the storage
-					item.setCount(item.getCount() + 1);
-					item.setReserved(item.getReserved() - 1);
-					writeData(item.getKey(), item);
-				}
+	// Query the number of cars or rooms free on every day of a range
+	protected int queryNumDates(String key, DateRange range)
+	{
+		Trace.info("RM::queryNumDates(" + key + ", " + range + ") called");
 
-				Trace.info("RM::cancelReserveItem(" + customerID + ", " + key + ", " + location + ") succeeded");
-				return true;
+		ReentrantLock lock = getResourceLock(key);
+		lock(lock, key);
+
+		try{
+			DatedItem curObj = (DatedItem)readData(key);
+			int value = 0;
+			if (curObj != null)
+			{
+				value = Math.max(0, available(curObj, range));
 			}
+			Trace.info("RM::queryNumDates(" + key + ", " + range + ") returns count=" + value);
+			return value;
 		}finally {
-			if (itemLocked) {
-				itemLock.unlock();
-			}
-			if (customerLocked) {
-				customerLock.unlock();
-			}
+			lock.unlock();
 		}
+	}
 
+	// The changes giving back the days a car or a room was reserved for, none for a flight
+	private static List<ReplicationRecord.DayChange> releaseDates(ReservableItem item, Collection<DateRange> dates)
+	{
+		List<ReplicationRecord.DayChange> changes = new ArrayList<>();
+		if (item instanceof DatedItem)
+		{
+			for (DateRange range : dates)
+			{
+				changes.add(new ReplicationRecord.DayChange(item.getKey(), range, -1));
+			}
+		}
+		return changes;
 	}
 
 	// only available for middleware to use
@@ -283,6 +1369,16 @@ public class ResourceManager implements IResourceManager
 		return cancelReserveItem(customerID, Flight.getKey(flightNum), String.valueOf(flightNum));
 	}
 
+	public boolean cancelReserveFlights(int customerID, Vector<String> flightNumbers) throws RemoteException
+	{
+		boolean success = true;
+		for (String flightNum : flightNumbers)
+		{
+			success &= cancelReserveFlight(customerID, Integer.parseInt(flightNum));
+		}
+		return success;
+	}
+
 	public boolean cancelReserveCar(int customerID, String location){
 		return cancelReserveItem(customerID, Car.getKey(location), location);
 	}
@@ -299,7 +1395,7 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::addFlight(" + flightNum + ", " + flightSeats + ", $" + flightPrice + ") called");
 
 		ReentrantLock lock = getResourceLock(Flight.getKey(flightNum));
-		lock.lock();
+		lock(lock, Flight.getKey(flightNum));
 
 		try{
 
@@ -315,6 +1411,7 @@ public class ResourceManager implements IResourceManager
 			{
 				// Add seats to existing flight and update the price if greater than zero
 				curObj.setCount(curObj.getCount() + flightSeats);
+				curObj.getSeatMapForUpdate().grow(flightSeats);
 				if (flightPrice > 0)
 				{
 					curObj.setPrice(flightPrice);
@@ -335,7 +1432,7 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::addCars(" + location + ", " + count + ", $" + price + ") called");
 
 		ReentrantLock lock = getResourceLock(Car.getKey(location));
-		lock.lock();
+		lock(lock, Car.getKey(location));
 
 		try{
 			Car curObj = (Car)readData(Car.getKey(location));
@@ -370,7 +1467,7 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::addRooms(" + location + ", " + count + ", $" + price + ") called");
 
 		ReentrantLock lock = getResourceLock(Room.getKey(location));
-		lock.lock();
+		lock(lock, Room.getKey(location));
 
 		try{
 			Room curObj = (Room)readData(Room.getKey(location));
@@ -417,58 +1514,70 @@ public class ResourceManager implements IResourceManager
 	// Returns the number of empty seats in this flight
 	public int queryFlight(int flightNum) throws RemoteException
 	{
+		checkFreshness();
 		return queryNum(Flight.getKey(flightNum));
 	}
 
 	// Returns the number of cars available at a location
 	public int queryCars(String location) throws RemoteException
 	{
+		checkFreshness();
 		return queryNum(Car.getKey(location));
 	}
 
 	// Returns the amount of rooms available at a location
 	public int queryRooms(String location) throws RemoteException
 	{
+		checkFreshness();
 		return queryNum(Room.getKey(location));
 	}
 
 	// Returns price of a seat in this flight
 	public int queryFlightPrice(int flightNum) throws RemoteException
 	{
+		checkFreshness();
 		return queryPrice(Flight.getKey(flightNum));
 	}
 
 	// Returns price of cars at this location
 	public int queryCarsPrice(String location) throws RemoteException
 	{
+		checkFreshness();
 		return queryPrice(Car.getKey(location));
 	}
 
 	// Returns room price at this location
 	public int queryRoomsPrice(String location) throws RemoteException
 	{
+		checkFreshness();
 		return queryPrice(Room.getKey(location));
 	}
 
 	public String queryCustomerInfo(int customerID) throws RemoteException
 	{
-		Trace.info("RM::queryCustomerInfo(" + customerID + ") called");
+		Bill bill = queryCustomerBill(customerID);
+		// NOTE: don't change this--WC counts on this value indicating a customer does not exist...
+		return bill == null ? "" : bill.toString();
+	}
+
+	// The reservations of a customer, null if the customer doesn't exist
+	public Bill queryCustomerBill(int customerID)
+	{
+		Trace.info("RM::queryCustomerBill(" + customerID + ") called");
 
 		ReentrantLock lock = getResourceLock(Customer.getKey(customerID));
-		lock.lock();
+		lock(lock, Customer.getKey(customerID));
 		try{
 			Customer customer = (Customer)readData(Customer.getKey(customerID));
 			if (customer == null)
 			{
-				Trace.warn("RM::queryCustomerInfo(" + customerID + ") failed--customer doesn't exist");
-				// NOTE: don't change this--WC counts on this value indicating a customer does not exist...
-				return "";
+				Trace.warn("RM::queryCustomerBill(" + customerID + ") failed--customer doesn't exist");
+				return null;
 			}
 			else
 			{
-				Trace.info("RM::queryCustomerInfo(" + customerID + ")");
-				System.out.println(customer.getBill());
-				return customer.getBill();
+				Trace.info("RM::queryCustomerBill(" + customerID + ")");
+				return customer.toBill();
 			}
 		}finally {
 			lock.unlock();
@@ -483,7 +1592,7 @@ public class ResourceManager implements IResourceManager
 			String.valueOf(Math.round(Math.random() * 100 + 1)));
 
 		ReentrantLock lock = getResourceLock(Customer.getKey(cid));
-		lock.lock();
+		lock(lock, Customer.getKey(cid));
 
 		try{
 			Customer customer = new Customer(cid);
@@ -501,7 +1610,7 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::newCustomer(" + customerID + ") called");
 
 		ReentrantLock lock = getResourceLock(Customer.getKey(customerID));
-		lock.lock();
+		lock(lock, Customer.getKey(customerID));
 		try{
 			Customer customer = (Customer)readData(Customer.getKey(customerID));
 			if (customer == null)
@@ -526,7 +1635,8 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::deleteCustomer(" + customerID + ") called");
 
 		ReentrantLock lock = getResourceLock(Customer.getKey(customerID));
-		lock.lock();
+		lock(lock, Customer.getKey(customerID));
+		Vector<ReentrantLock> itemLocks = new Vector<>();
 
 		try{
 			Customer customer = (Customer)readData(Customer.getKey(customerID));
@@ -535,10 +1645,18 @@ public class ResourceManager implements IResourceManager
 				Trace.warn("RM::deleteCustomer(" + customerID + ") failed--customer doesn't exist");
 				return false;
 			}
+			else if (hasPreparedBranch(customerID))
+			{
+				// the branch must be able to commit once the coordinator decides so
+				Trace.warn("RM::deleteCustomer(" + customerID + ") failed--customer has a bundle in progress");
+				return false;
+			}
 			else
 			{
 				// Increase the reserved numbers of all reservable items which the customer reserved.
 				RMHashMap reservations = customer.getReservations();
+				// customer lock -> item locks, their counts, seats and days change as well
+				itemLocks = lockItems(reservations.keySet());
 				for (String reservedKey : reservations.keySet())
 				{
 					ReservedItem reserveditem = customer.getReservedItem(reservedKey);
@@ -546,16 +1664,21 @@ public class ResourceManager implements IResourceManager
 					ReservableItem item  = (ReservableItem)readData(reserveditem.getKey());
 					Trace.info("RM::deleteCustomer(" + customerID + ") has reserved " + reserveditem.getKey() + " which is reserved " +  item.getReserved() +  " times and is still available " + item.getCount() + " times");
 					item.setReserved(item.getReserved() - reserveditem.getCount());
-					item.setCount(item.getCount() + reserveditem.getCount());
-					writeData(item.getKey(), item);
+					item.setCount(item.getCount() + reserveditem.getUndatedCount());
+					releaseSeats(item, reserveditem.getSeats());
+					LinkedHashMap<String, RMItem> writes = new LinkedHashMap<>();
+					writes.put(item.getKey(), item);
+					writeData(writes, releaseDates(item, reserveditem.getDates()));
 				}
 
-				// Remove the customer from the storage
+				// Remove the customer from the storage, and from the waitlists
 				removeData(customer.getKey());
+				waitlist.remove(customerID);
 				Trace.info("RM::deleteCustomer(" + customerID + ") succeeded");
 				return true;
 			}
 		}finally {
+			unlockAll(itemLocks);
 			lock.unlock();
 		}
 
@@ -567,6 +1690,15 @@ public class ResourceManager implements IResourceManager
 		return reserveItem(customerID, Flight.getKey(flightNum), String.valueOf(flightNum));
 	}
 
+	// Adds several flight reservations to this customer, all or nothing
+	public boolean reserveFlights(int customerID, Vector<String> flightNumbers) throws RemoteException
+	{
+		Vector<String> keys = new Vector<>();
+		Vector<String> locations = new Vector<>();
+		branchItems(flightNumbers, null, false, false, keys, locations);
+		return reserveItems(customerID, keys, locations);
+	}
+
 	// Adds car reservation to this customer
 	public boolean reserveCar(int customerID, String location) throws RemoteException
 	{
@@ -579,6 +1711,436 @@ public class ResourceManager implements IResourceManager
 		return reserveItem(customerID, Room.getKey(location), location);
 	}
 
+	// Adds a flight reservation to this customer, or waits for a seat to free up
+	public int waitFlight(int customerID, int flightNum)
+	{
+		return reserveItemOrWait(customerID, Flight.getKey(flightNum), String.valueOf(flightNum));
+	}
+
+	public int waitCar(int customerID, String location)
+	{
+		return reserveItemOrWait(customerID, Car.getKey(location), location);
+	}
+
+	public int waitRoom(int customerID, String location)
+	{
+		return reserveItemOrWait(customerID, Room.getKey(location), location);
+	}
+
+	// Adds a car reservation for a range of dates to this customer
+	public boolean reserveCarDates(int customerID, String location, DateRange range)
+	{
+		return reserveItemDates(customerID, Car.getKey(location), location, range);
+	}
+
+	// Adds a room reservation for the nights of a range of dates to this customer
+	public boolean reserveRoomDates(int customerID, String location, DateRange range)
+	{
+		return reserveItemDates(customerID, Room.getKey(location), location, range);
+	}
+
+	public boolean cancelReserveCarDates(int customerID, String location, DateRange range)
+	{
+		return cancelReserveItemDates(customerID, Car.getKey(location), range);
+	}
+
+	public boolean cancelReserveRoomDates(int customerID, String location, DateRange range)
+	{
+		return cancelReserveItemDates(customerID, Room.getKey(location), range);
+	}
+
+	// Returns the number of cars available at a location on every day of a range
+	public int queryCarsDates(String location, DateRange range) throws RemoteException
+	{
+		checkFreshness();
+		return queryNumDates(Car.getKey(location), range);
+	}
+
+	// Returns the number of rooms available at a location on every night of a range
+	public int queryRoomsDates(String location, DateRange range) throws RemoteException
+	{
+		checkFreshness();
+		return queryNumDates(Room.getKey(location), range);
+	}
+
+	// Keys and locations of the items a transaction branch reserves
+	private static void branchItems(Vector<String> flightNumbers, String location, boolean car, boolean room,
+		Vector<String> keys, Vector<String> locations)
+	{
+		for (String flightNum : flightNumbers)
+		{
+			int flight = Integer.parseInt(flightNum);
+			keys.add(Flight.getKey(flight));
+			locations.add(String.valueOf(flight));
+		}
+		if (car)
+		{
+			keys.add(Car.getKey(location));
+			locations.add(location);
+		}
+		if (room)
+		{
+			keys.add(Room.getKey(location));
+			locations.add(location);
+		}
+	}
+
+	// Phase one: hold the items of the branch so that no one else can take them,
+	// the customer only sees the reservations once the transaction commits
+	public boolean prepare(long xid, int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room) throws RemoteException
+	{
+		Trace.info("RM::prepare(" + xid + ", customer=" + customerID + ", " + flightNumbers + ", " + location + ", " + car + ", " + room + ") called");
+
+		JfrEvents.Reservation reservation = JfrEvents.Reservation.start(m_name, customerID, flightNumbers);
+		Vector<String> keys = new Vector<>();
+		Vector<String> locations = new Vector<>();
+		branchItems(flightNumbers, location, car, room, keys, locations);
+
+		TreeMap<String, Integer> needed = new TreeMap<>();
+		for (String key : keys)
+		{
+			needed.merge(key, 1, Integer::sum);
+		}
+
+		Vector<ReentrantLock> locks = lockAll(Customer.getKey(customerID), needed.keySet());
+		try{
+			// a prepare sent twice waits for the first one on the customer lock
+			synchronized (preparedTransactions)
+			{
+				if (preparedTransactions.containsKey(xid))
+				{
+					return reservation.done(true);
+				}
+				Boolean committed = finishedTransactions.get(xid);
+				if (committed != null)
+				{
+					// the abort overtook the prepare, or the prepare was sent again after the commit
+					Trace.warn("RM::prepare(" + xid + ") transaction already " + (committed ? "committed" : "aborted"));
+					return reservation.done(committed);
+				}
+			}
+
+			if (readData(Customer.getKey(customerID)) == null)
+			{
+				Trace.warn("RM::prepare(" + xid + ") failed--customer doesn't exist");
+				return reservation.done(false);
+			}
+
+			HashMap<String, ReservableItem> items = new HashMap<>();
+			for (String key : needed.keySet())
+			{
+				ReservableItem item = (ReservableItem)readData(key);
+				if (item == null || available(item) < needed.get(key))
+				{
+					Trace.warn("RM::prepare(" + xid + ", " + key + ") failed--not enough items");
+					return reservation.done(false);
+				}
+				if (waitlist.isWaiting(key))
+				{
+					Trace.warn("RM::prepare(" + xid + ", " + key + ") failed--customers are waiting for it");
+					return reservation.done(false);
+				}
+				items.put(key, item);
+			}
+
+			Vector<Integer> prices = new Vector<>();
+			for (String key : keys)
+			{
+				prices.add(items.get(key).getPrice());
+			}
+			HashMap<String, Vector<Integer>> seats = new HashMap<>();
+			LinkedHashMap<String, RMItem> writes = new LinkedHashMap<>();
+			for (String key : needed.keySet())
+			{
+				ReservableItem item = items.get(key);
+				item.setCount(item.getCount() - needed.get(key));
+				item.setReserved(item.getReserved() + needed.get(key));
+				Vector<Integer> held = assignSeats(item, needed.get(key));
+				if (held != null)
+				{
+					seats.put(key, held);
+				}
+				writes.put(key, item);
+			}
+
+			// the held items and the branch are written together, so that a backup has both or neither;
+			// an abort that came in meanwhile found nothing to release: hold nothing
+			PreparedBranch branch = new PreparedBranch(customerID, keys, locations, prices, seats);
+			synchronized (preparedTransactions)
+			{
+				if (finishedTransactions.containsKey(xid))
+				{
+					Trace.warn("RM::prepare(" + xid + ") failed--transaction aborted meanwhile");
+					return reservation.done(false);
+				}
+				writes.put(transactionKey(xid), branch);
+				writeData(writes);
+				preparedTransactions.put(xid, branch);
+			}
+			Trace.info("RM::prepare(" + xid + ") voted yes");
+			return reservation.done(true);
+		}finally {
+			unlockAll(locks);
+		}
+	}
+
+	// Phase two, commit: hand the held items over to the customer
+	public boolean commit(long xid) throws RemoteException
+	{
+		Trace.info("RM::commit(" + xid + ") called");
+
+		PreparedBranch branch;
+		synchronized (preparedTransactions)
+		{
+			branch = preparedTransactions.get(xid);
+			if (branch == null)
+			{
+				// a commit sent twice is acknowledged, one never prepared here is not
+				Boolean committed = finishedTransactions.get(xid);
+				if (committed == null)
+				{
+					Trace.warn("RM::commit(" + xid + ") failed--unknown transaction");
+				}
+				return Boolean.TRUE.equals(committed);
+			}
+		}
+
+		// the branch stays prepared until the locks are held, so that its customer can't be deleted
+		Vector<ReentrantLock> locks = lockAll(Customer.getKey(branch.customerID), branch.keys);
+		try{
+			synchronized (preparedTransactions)
+			{
+				if (preparedTransactions.get(xid) != branch)
+				{
+					// committed by a commit sent twice
+					return Boolean.TRUE.equals(finishedTransactions.get(xid));
+				}
+			}
+			// deleteCustomer refuses while the customer has a prepared branch
+			Customer customer = (Customer)readData(Customer.getKey(branch.customerID));
+
+			for (int i = 0; i < branch.keys.size(); i++)
+			{
+				customer.reserve(branch.keys.get(i), branch.locations.get(i), branch.prices.get(i));
+			}
+			for (Map.Entry<String, Vector<Integer>> held : branch.seats.entrySet())
+			{
+				customer.addSeats(held.getKey(), held.getValue());
+			}
+			// the bill and the outcome are written together, so that a backup has both or neither
+			LinkedHashMap<String, RMItem> writes = new LinkedHashMap<>();
+			writes.put(customer.getKey(), customer);
+			synchronized (preparedTransactions)
+			{
+				finishTransaction(xid, true, writes);
+			}
+			Trace.info("RM::commit(" + xid + ") succeeded");
+			return true;
+		}finally {
+			unlockAll(locks);
+		}
+	}
+
+	// Phase two, abort: give the held items back
+	// an abort for an unknown transaction is remembered so that a late prepare votes no
+	public boolean abort(long xid) throws RemoteException
+	{
+		Trace.info("RM::abort(" + xid + ") called");
+
+		PreparedBranch branch;
+		synchronized (preparedTransactions)
+		{
+			branch = preparedTransactions.get(xid);
+			if (branch == null)
+			{
+				// a prepare still running sees it before it holds its items
+				if (!finishedTransactions.containsKey(xid))
+				{
+					finishTransaction(xid, false, new LinkedHashMap<>());
+				}
+				return true;
+			}
+		}
+
+		Vector<ReentrantLock> locks = lockAll(Customer.getKey(branch.customerID), branch.keys);
+		try{
+			synchronized (preparedTransactions)
+			{
+				if (preparedTransactions.get(xid) != branch)
+				{
+					// released by an abort sent twice
+					return true;
+				}
+				// the released items and the outcome are written together
+				finishTransaction(xid, false, releaseItems(branch));
+			}
+			return true;
+		}finally {
+			unlockAll(locks);
+		}
+	}
+
+	// Transactions that voted yes and are waiting for the coordinator's decision
+	public Vector<Long> inDoubtTransactions() throws RemoteException
+	{
+		synchronized (preparedTransactions)
+		{
+			return new Vector<>(preparedTransactions.keySet());
+		}
+	}
+
+	// Whether a transaction holds items for the customer, waiting for the coordinator's decision
+	private boolean hasPreparedBranch(int customerID)
+	{
+		synchronized (preparedTransactions)
+		{
+			for (PreparedBranch branch : preparedTransactions.values())
+			{
+				if (branch.customerID == customerID)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	// Record the outcome of a transaction along with its last writes, called with preparedTransactions held
+	private void finishTransaction(long xid, boolean committed, LinkedHashMap<String, RMItem> writes)
+	{
+		writes.put(transactionKey(xid), new TransactionOutcome(committed));
+		writeData(writes);
+		preparedTransactions.remove(xid);
+		finishedTransactions.put(xid, committed);
+
+		// only the recent outcomes are kept
+		Iterator<Long> eldest = finishedTransactions.keySet().iterator();
+		while (finishedTransactions.size() > finishedTransactionsSize)
+		{
+			long old = eldest.next();
+			eldest.remove();
+			removeData(transactionKey(old));
+		}
+	}
+
+	// Rebuild the transactions from the records replicated with the items, when a backup is promoted;
+	// called with preparedTransactions and m_data held
+	private void loadTransactions()
+	{
+		TreeMap<Long, RMItem> records = new TreeMap<>();
+		for (String key : m_data.keySet())
+		{
+			if (key.startsWith(transactionPrefix))
+			{
+				records.put(Long.parseLong(key.substring(transactionPrefix.length())), m_data.get(key));
+			}
+		}
+		preparedTransactions.clear();
+		finishedTransactions.clear();
+		for (Map.Entry<Long, RMItem> record : records.entrySet())
+		{
+			if (record.getValue() instanceof PreparedBranch)
+			{
+				preparedTransactions.put(record.getKey(), (PreparedBranch)record.getValue());
+			}
+			else
+			{
+				finishedTransactions.put(record.getKey(), ((TransactionOutcome)record.getValue()).committed);
+			}
+		}
+		Trace.info("RM::loadTransactions() " + preparedTransactions.size() + " prepared, " + finishedTransactions.size() + " finished");
+	}
+
+	private static String transactionKey(long xid)
+	{
+		return transactionPrefix + xid;
+	}
+
+	// Undo the hold of prepare, the caller owns the item locks
+	// returns the released items, to be written
+	private LinkedHashMap<String, RMItem> releaseItems(PreparedBranch branch)
+	{
+		TreeMap<String, Integer> held = new TreeMap<>();
+		for (String key : branch.keys)
+		{
+			held.merge(key, 1, Integer::sum);
+		}
+		LinkedHashMap<String, RMItem> released = new LinkedHashMap<>();
+		for (String key : held.keySet())
+		{
+			ReservableItem item = (ReservableItem)readData(key);
+			if (item != null)
+			{
+				item.setCount(item.getCount() + held.get(key));
+				item.setReserved(item.getReserved() - held.get(key));
+				releaseSeats(item, branch.seats.get(key));
+				released.put(key, item);
+			}
+		}
+		return released;
+	}
+
+	// Assign seats to count reservations of an item, side by side if there is room,
+	// else the first free ones; the caller owns the item lock and takes them off its count
+	// returns the seat numbers, from 1, or null for a car or a room
+	private Vector<Integer> assignSeats(ReservableItem item, int count)
+	{
+		if (!(item instanceof Flight))
+		{
+			return null;
+		}
+		SeatMap seatMap = ((Flight)item).getSeatMapForUpdate();
+		Vector<Integer> seats = new Vector<>(count);
+		int first = seatMap.assignBlock(count);
+		if (first >= 0)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				seats.add(first + i + 1);
+			}
+			return seats;
+		}
+		for (int i = 0; i < count; i++)
+		{
+			int seat = seatMap.assign();
+			if (seat < 0)
+			{
+				break;
+			}
+			seats.add(seat + 1);
+		}
+		return seats;
+	}
+
+	// Free the seats of a flight, numbered from 1; nothing for a car or a room
+	private void releaseSeats(ReservableItem item, Collection<Integer> seats)
+	{
+		if (!(item instanceof Flight) || seats == null)
+		{
+			return;
+		}
+		SeatMap seatMap = ((Flight)item).getSeatMapForUpdate();
+		for (int seat : seats)
+		{
+			seatMap.release(seat - 1);
+		}
+	}
+
+	// Phase one, as part of the trace of the bundle
+	@SuppressWarnings("try")
+	public boolean prepare(TraceContext trace, long xid, int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room) throws RemoteException
+	{
+		try (Tracer.Span span = Tracer.join("rm-" + m_name, "Prepare", trace))
+		{
+			return prepare(xid, customerID, flightNumbers, location, car, room);
+		}
+	}
+
+	public boolean bundle(TraceContext trace, int customerId, Vector<String> flightNumbers, String location, boolean car, boolean room) throws RemoteException
+	{
+		return bundle(customerId, flightNumbers, location, car, room);
+	}
+
 	// Reserve bundle 
 	public boolean bundle(int customerId, Vector<String> flightNumbers, String location, boolean car, boolean room) throws RemoteException
 	{
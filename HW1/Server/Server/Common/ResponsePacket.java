@@ -1,31 +1,213 @@
 package Server.Common;
 
 import java.io.Serializable;
+import java.util.*;
 
+/**
+ * The response to a TCP request: whether it succeeded, and its typed result,
+ * a number for a query or a new customer, bills for a query of a customer,
+ * or the transactions an RM holds in doubt.
+ * A failed request says why with an error code.
+ *
+ * Nothing is formatted on the way: the text of a response is only made by
+ * getMessage(), for whoever shows it to a person. A message given to error()
+ * adds details for that person, e.g. which RM did not answer.
+ */
 public class ResponsePacket implements Serializable {
-    private Boolean status;
-    private String message;
 
-    public ResponsePacket(Boolean status, String message) {
+    /**
+     * Why a request failed
+     */
+    public enum Error {
+        // the RM said no, e.g. no seat left or no such customer
+        REFUSED("Refused."),
+        // overloaded, nothing was done: send the request again later
+        BUSY("Busy, retry later."),
+        // no RM to send the request to, or it could not be reached
+        UNAVAILABLE("Unavailable."),
+        // the RM did not answer in time; a write may or may not have been applied
+        TIMEOUT("Timed out."),
+        // an RM failed over before the write reached it: send it again
+        RETRY("Failed over, retry the request."),
+        // malformed arguments or unknown command
+        INVALID("Invalid request."),
+        INTERNAL("Error processing request.");
+
+        private final String description;
+
+        Error(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    // the responses without a result are all alike
+    private static final ResponsePacket succeeded = new ResponsePacket(true, null);
+    private static final ResponsePacket refused = new ResponsePacket(false, Error.REFUSED);
+
+    private final boolean status;
+    private final Error error;
+    private final String message;
+    private boolean hasValue;
+    private int value;
+    private List<Bill> bills;
+    private List<Long> transactions;
+
+    private ResponsePacket(boolean status, Error error) {
+        this(status, error, null);
+    }
+
+    private ResponsePacket(boolean status, Error error, String message) {
         this.status = status;
+        this.error = error;
         this.message = message;
     }
 
-    public ResponsePacket(){}
+    /**
+     * @return a success without a result
+     */
+    public static ResponsePacket ok() {
+        return succeeded;
+    }
+
+    /**
+     * @param succeeded
+     * @return a success, or a refusal
+     */
+    public static ResponsePacket of(boolean succeeded) {
+        return succeeded ? ResponsePacket.succeeded : refused;
+    }
+
+    /**
+     * @param value e.g. a number of seats, a price or a customer id
+     * @return a success with a number
+     */
+    public static ResponsePacket of(int value) {
+        ResponsePacket response = new ResponsePacket(true, null);
+        response.hasValue = true;
+        response.value = value;
+        return response;
+    }
+
+    /**
+     * @param bill null if the customer does not exist here
+     * @return a success with the bill of a customer
+     */
+    public static ResponsePacket of(Bill bill) {
+        return of(bill == null ? Collections.<Bill>emptyList() : Collections.singletonList(bill));
+    }
+
+    /**
+     * @param bills e.g. one per resource type
+     * @return a success with the bills of a customer
+     */
+    public static ResponsePacket of(List<Bill> bills) {
+        ResponsePacket response = new ResponsePacket(true, null);
+        response.bills = bills;
+        return response;
+    }
+
+    /**
+     * @param xids
+     * @return a success with transaction ids, e.g. those an RM holds in doubt
+     */
+    public static ResponsePacket ofTransactions(List<Long> xids) {
+        ResponsePacket response = new ResponsePacket(true, null);
+        response.transactions = xids;
+        return response;
+    }
+
+    /**
+     * @param error
+     * @param message details for a person, e.g. the RM that failed
+     * @return a failure
+     */
+    public static ResponsePacket error(Error error, String message) {
+        return new ResponsePacket(false, error, message);
+    }
+
+    /**
+     * A refusal under overload: the request was not processed and can be sent again later
+     * @param message
+     * @return
+     */
+    public static ResponsePacket busy(String message) {
+        return error(Error.BUSY, message);
+    }
+
+    public boolean isBusy() {
+        return error == Error.BUSY;
+    }
 
     public Boolean getStatus() {
         return status;
     }
 
-    public void setStatus(Boolean status) {
-        this.status = status;
+    /**
+     * @return why the request failed, null if it succeeded
+     */
+    public Error getError() {
+        return error;
     }
 
-    public String getMessage() {
-        return message;
+    /**
+     * @return whether the response holds a number
+     */
+    public boolean hasValue() {
+        return hasValue;
     }
-    public void setMessage(String message) {
-        this.message = message;
+
+    /**
+     * @return the number of a query, or of a new customer
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @return the bills of a query of a customer, null for any other response
+     */
+    public List<Bill> getBills() {
+        return bills;
+    }
+
+    /**
+     * @return the transaction ids of an InDoubt query, null for any other response
+     */
+    public List<Long> getTransactions() {
+        return transactions;
     }
 
+    /**
+     * @return the response put in words
+     */
+    public String getMessage() {
+        if (message != null) {
+            return message;
+        }
+        if (error != null) {
+            return error.getDescription();
+        }
+        if (hasValue) {
+            return String.valueOf(value);
+        }
+        if (bills != null) {
+            StringBuilder s = new StringBuilder();
+            for (Bill bill : bills) {
+                s.append(bill);
+            }
+            return s.toString();
+        }
+        if (transactions != null) {
+            return transactions.toString();
+        }
+        return "Succeeded.";
+    }
+
+    public String toString() {
+        return getMessage();
+    }
 }
@@ -5,7 +5,7 @@
 
 package Server.Common;
 
-public class Room extends ReservableItem
+public class Room extends DatedItem
 {
 	public Room(String location, int count, int price)
 	{
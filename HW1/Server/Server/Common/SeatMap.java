@@ -0,0 +1,197 @@
+package Server.Common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The seats of a flight, one bit each, set when the seat is taken.
+ *
+ * Seats are numbered from 0. The bits past the last seat of the last word are
+ * kept set, so that a scan never has to check for the end of the flight.
+ *
+ * Finding a seat looks at 64 seats at a time with a bit scan, so assigning
+ * one seat costs about seats / 64 steps, a block of seats side by side for
+ * a group about seats / 64 * log(group), and neither allocates anything.
+ *
+ * Not thread-safe: a seat map belongs to its flight, and is changed under
+ * the lock of the flight.
+ */
+public class SeatMap implements Serializable {
+
+    private long[] taken;
+    private int seats;
+    private int free;
+
+    /**
+     * @param seats all free
+     */
+    public SeatMap(int seats) {
+        this.taken = new long[words(seats)];
+        this.seats = seats;
+        this.free = seats;
+        markPadding();
+    }
+
+    private SeatMap(SeatMap other) {
+        this.taken = other.taken.clone();
+        this.seats = other.seats;
+        this.free = other.free;
+    }
+
+    private static int words(int seats) {
+        return (seats + 63) >>> 6;
+    }
+
+    // the bits past the last seat count as taken
+    private void markPadding() {
+        if ((seats & 63) != 0) {
+            taken[taken.length - 1] |= -1L << (seats & 63);
+        }
+    }
+
+    public int getSeats() {
+        return seats;
+    }
+
+    public int getFree() {
+        return free;
+    }
+
+    public boolean isTaken(int seat) {
+        return (taken[seat >>> 6] & (1L << seat)) != 0;
+    }
+
+    /**
+     * Take the first free seat
+     * @return the seat, -1 if the flight is full
+     */
+    public int assign() {
+        for (int i = 0; i < taken.length; i++) {
+            long available = ~taken[i];
+            if (available != 0) {
+                int seat = (i << 6) + Long.numberOfTrailingZeros(available);
+                taken[i] |= Long.lowestOneBit(available);
+                free--;
+                return seat;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Take the first block of count free seats side by side
+     * @param count
+     * @return the first seat of the block, -1 if there is no such block
+     */
+    public int assignBlock(int count) {
+        if (count == 1) {
+            return assign();
+        }
+        if (count <= 0 || count > free) {
+            return -1;
+        }
+
+        // the free seats at the top of the words scanned so far
+        int runStart = 0;
+        int runLength = 0;
+        for (int i = 0; i < taken.length; i++) {
+            long available = ~taken[i];
+            if (available == 0) {
+                runLength = 0;
+                continue;
+            }
+
+            // the run carried over from the previous words goes on with the bottom of this one
+            if (runLength > 0) {
+                int bottom = Long.numberOfTrailingZeros(~available);
+                if (runLength + bottom >= count) {
+                    take(runStart, count);
+                    return runStart;
+                }
+                if (bottom == 64) {
+                    runLength += 64;
+                    continue;
+                }
+            }
+
+            // a block within the word: bit j stays set if seats j to j + count - 1 are free
+            if (count <= 64) {
+                long starts = available;
+                int covered = 1;
+                while (covered < count && starts != 0) {
+                    int shift = Math.min(covered, count - covered);
+                    starts &= starts >>> shift;
+                    covered += shift;
+                }
+                if (starts != 0) {
+                    int first = (i << 6) + Long.numberOfTrailingZeros(starts);
+                    take(first, count);
+                    return first;
+                }
+            }
+
+            runLength = Long.numberOfLeadingZeros(~available);
+            runStart = (i << 6) + 64 - runLength;
+        }
+        return -1;
+    }
+
+    // mark count seats from first as taken, a word at a time
+    private void take(int first, int count) {
+        int end = first + count;
+        while (first < end) {
+            int word = first >>> 6;
+            int bits = Math.min(64 - (first & 63), end - first);
+            long mask = (bits == 64 ? -1L : (1L << bits) - 1) << first;
+            taken[word] |= mask;
+            first += bits;
+        }
+        free -= count;
+    }
+
+    /**
+     * Free a seat
+     * @param seat
+     * @return false if it was not taken, or is not a seat of the flight
+     */
+    public boolean release(int seat) {
+        if (seat < 0 || seat >= seats || !isTaken(seat)) {
+            return false;
+        }
+        taken[seat >>> 6] &= ~(1L << seat);
+        free++;
+        return true;
+    }
+
+    /**
+     * Add free seats after the last one
+     * @param count
+     */
+    public void grow(int count) {
+        if (count <= 0) {
+            return;
+        }
+        int total = seats + count;
+        if (words(total) > taken.length) {
+            taken = Arrays.copyOf(taken, words(total));
+        }
+        // the old padding becomes seats
+        if ((seats & 63) != 0) {
+            taken[seats >>> 6] &= ~(-1L << (seats & 63));
+        }
+        seats = total;
+        free += count;
+        markPadding();
+    }
+
+    /**
+     * @return a copy, for a copy of its flight about to change it
+     */
+    public SeatMap copy() {
+        return new SeatMap(this);
+    }
+
+    public String toString() {
+        return "SeatMap seats=" + seats + " free=" + free;
+    }
+}
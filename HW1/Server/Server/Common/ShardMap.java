@@ -0,0 +1,286 @@
+package Server.Common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Assigns the items of one resource type to the resource managers that hold them.
+ *
+ * The shards are placed on a consistent-hash ring, each of them at several points
+ * (virtual nodes) so that the items spread evenly. An item belongs to the first
+ * shard found clockwise from the hash of its key, so adding or removing a shard
+ * only moves the items of the ring segments next to it.
+ *
+ * The map can change while requests are being routed: every change builds a new
+ * ring and routing reads whichever ring is current, without locking.
+ *
+ * Items are never moved between shards, so once a map has shards update() keeps
+ * their number: a new name takes over the ring points of a dropped shard, the
+ * first new one those of the first dropped one and so on, e.g. to add a backup
+ * to a shard, and its items with them.
+ *
+ * Tuning (system properties):
+ *   shards.virtualNodes  points of each shard on the ring (default 64)
+ */
+public class ShardMap<T> {
+
+    private static final int virtualNodes = Integer.getInteger("shards.virtualNodes", 64);
+
+    // immutable, replaced as a whole on every change
+    private static class Ring<T> {
+        final TreeMap<Long, String> points = new TreeMap<>();
+        final LinkedHashMap<String, T> shards = new LinkedHashMap<>();
+        // name each shard was first placed on the ring under, by current name
+        final Map<String, String> anchors = new HashMap<>();
+    }
+
+    private final String type;
+    private volatile Ring<T> ring = new Ring<>();
+
+    /**
+     * @param type resource type of the shards, used in messages
+     */
+    public ShardMap(String type) {
+        this.type = type;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Add a shard, or replace the one with the same name.
+     * @param name stable name of the shard, e.g. its address
+     * @param shard
+     */
+    public synchronized void put(String name, T shard) {
+        LinkedHashMap<String, T> shards = new LinkedHashMap<>(ring.shards);
+        Map<String, String> anchors = new HashMap<>(ring.anchors);
+        shards.put(name, shard);
+        anchors.putIfAbsent(name, name);
+        ring = build(shards, anchors);
+    }
+
+    /**
+     * @param name
+     * @return the removed shard, null if there was none
+     */
+    public synchronized T remove(String name) {
+        LinkedHashMap<String, T> shards = new LinkedHashMap<>(ring.shards);
+        Map<String, String> anchors = new HashMap<>(ring.anchors);
+        T removed = shards.remove(name);
+        anchors.remove(name);
+        ring = build(shards, anchors);
+        return removed;
+    }
+
+    /**
+     * Make the shards the given ones: keep those already present,
+     * connect to the new ones and drop the others.
+     * Once the map has shards, a change of their number, or a new shard that is
+     * unreachable, is refused as a whole: the items would have to move.
+     * @param names a new name replaces a dropped shard, in the order they are listed
+     * @param connect opens a new shard, returns null if it is unreachable
+     * @return the dropped shards
+     */
+    public synchronized List<T> update(Collection<String> names, Function<String, T> connect) {
+        List<String> current = new Vector<>(ring.shards.keySet());
+        List<String> wanted = new Vector<>(new LinkedHashSet<>(names));
+        boolean running = !current.isEmpty();
+        if (running && wanted.size() != current.size()) {
+            System.err.println("Shards " + type + " not changed: going from " + current.size() + " to " + wanted.size()
+                    + " shards would move items, restart the cluster to reshard");
+            return new Vector<>();
+        }
+
+        // ring points of the shards about to be dropped, for the new ones
+        Deque<String> freed = new ArrayDeque<>();
+        for (String name : current) {
+            if (!wanted.contains(name)) {
+                freed.add(ring.anchors.get(name));
+            }
+        }
+
+        LinkedHashMap<String, T> shards = new LinkedHashMap<>();
+        Map<String, String> anchors = new HashMap<>();
+        for (String name : wanted) {
+            T shard = ring.shards.get(name);
+            if (shard == null) {
+                shard = connect.apply(name);
+                if (shard == null) {
+                    System.err.println("Shard " + type + "/" + name + " unreachable, not added");
+                    if (running) {
+                        System.err.println("Shards " + type + " not changed");
+                        return new Vector<>();
+                    }
+                    continue;
+                }
+                System.out.println("Shard " + type + "/" + name + " added");
+            }
+            shards.put(name, shard);
+            anchors.put(name, ring.shards.containsKey(name) ? ring.anchors.get(name)
+                    : running ? freed.poll() : name);
+        }
+
+        List<T> dropped = new Vector<>();
+        for (Map.Entry<String, T> entry : ring.shards.entrySet()) {
+            if (!shards.containsKey(entry.getKey())) {
+                System.out.println("Shard " + type + "/" + entry.getKey() + " removed");
+                dropped.add(entry.getValue());
+            }
+        }
+        ring = build(shards, anchors);
+        return dropped;
+    }
+
+    /**
+     * Name of the shard that holds an item.
+     * @param key item key, e.g. "flight-12"
+     * @return null if there is no shard
+     */
+    public String nameOf(String key) {
+        return nameOf(ring, key);
+    }
+
+    private static String nameOf(Ring<?> current, String key) {
+        if (current.points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = current.points.ceilingEntry(hash(key));
+        if (point == null) {
+            // past the last point, wrap around
+            point = current.points.firstEntry();
+        }
+        return point.getValue();
+    }
+
+    /**
+     * The shard that holds an item.
+     * @param key item key, e.g. "flight-12"
+     * @return null if there is no shard
+     */
+    public T get(String key) {
+        Ring<T> current = ring;
+        String name = nameOf(current, key);
+        return name == null ? null : current.shards.get(name);
+    }
+
+    /**
+     * Every shard by name, in the order they were added.
+     */
+    public Map<String, T> all() {
+        return Collections.unmodifiableMap(ring.shards);
+    }
+
+    public boolean isEmpty() {
+        return ring.shards.isEmpty();
+    }
+
+    public String toString() {
+        return type + " shards " + ring.shards.keySet();
+    }
+
+    private static <T> Ring<T> build(LinkedHashMap<String, T> shards, Map<String, String> anchors) {
+        Ring<T> ring = new Ring<>();
+        ring.shards.putAll(shards);
+        ring.anchors.putAll(anchors);
+        for (String name : shards.keySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.points.put(hash(anchors.get(name) + "#" + i), name);
+            }
+        }
+        return ring;
+    }
+
+    // 64-bit FNV-1a, with a final mix so that similar keys land far apart
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Parse a list of shards given on the command line, e.g. "host1,host2:5001".
+     * @param spec comma-separated shard names
+     */
+    public static List<String> parseList(String spec) {
+        List<String> names = new Vector<>();
+        for (String name : spec.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Read a shard file: one "<type> <name>" line per shard, e.g. "flights host1:5001",
+     * blank lines and lines starting with # are ignored.
+     * @param file
+     * @return the shard names by lower-case type
+     * @throws IOException
+     */
+    public static Map<String, List<String>> readFile(File file) throws IOException {
+        Map<String, List<String>> shards = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    System.err.println("Skipping malformed shard line: " + line);
+                    continue;
+                }
+                shards.computeIfAbsent(fields[0].toLowerCase(), type -> new Vector<>()).add(fields[1]);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Poll a shard file and hand its content over every time it changes.
+     * @param path
+     * @param intervalMs
+     * @param onChange receives the content of the file, see readFile()
+     */
+    public static void watch(String path, long intervalMs, Consumer<Map<String, List<String>>> onChange) {
+        File file = new File(path);
+        Thread watcher = new Thread(() -> {
+            long lastModified = file.lastModified();
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long modified = file.lastModified();
+                if (modified == lastModified) {
+                    continue;
+                }
+                lastModified = modified;
+                try {
+                    System.out.println("Reloading the shards from " + path);
+                    onChange.accept(readFile(file));
+                } catch (IOException e) {
+                    System.err.println("Failed to read the shards from " + path + ": " + e.getMessage());
+                }
+            }
+        }, "shard-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+}
@@ -0,0 +1,78 @@
+package Server.Common;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical concurrent calls.
+ *
+ * The first caller for a key runs the call; whoever asks for the same key while
+ * it is still running waits for that call and gets the same result (or exception)
+ * instead of issuing its own. Once the call returns the key is forgotten, so
+ * nothing is cached: a later caller always runs a fresh call.
+ *
+ * Used by the middleware so that a burst of identical queries costs a single
+ * round trip to the resource manager.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * A call that may throw a checked exception, e.g. a RemoteException.
+     */
+    public interface Call<V, E extends Exception> {
+        V call() throws E;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Run the call, or wait for the identical one already running.
+     * @param key identifies identical calls
+     * @param call
+     * @return the result of the call
+     * @throws E the exception thrown by the call
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Exception> V execute(K key, Call<V, E> call) throws E {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+
+        if (running != null) {
+            shared.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                // the call only throws E or unchecked exceptions
+                throw (E) cause;
+            }
+        }
+
+        calls.incrementAndGet();
+        try {
+            V value = call.call();
+            future.complete(value);
+            return value;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    public String toString() {
+        return "SingleFlight calls=" + calls.get() + " shared=" + shared.get() + " inFlight=" + inFlight.size();
+    }
+}
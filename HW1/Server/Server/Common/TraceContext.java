@@ -0,0 +1,36 @@
+package Server.Common;
+
+import java.io.Serializable;
+
+/**
+ * The span a remote call is made from, passed along with the call so that
+ * the spans of the callee join the caller's trace.
+ *
+ * Only sampled traces are passed on: a call without a context, or with a
+ * null one, is not traced unless the callee samples it itself.
+ */
+public class TraceContext implements Serializable {
+
+    private final long traceId;
+    private final long spanId;
+
+    public TraceContext(long traceId, long spanId) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return the span of the caller, parent of the callee's spans
+     */
+    public long getSpanId() {
+        return spanId;
+    }
+
+    public String toString() {
+        return Long.toHexString(traceId) + "/" + Long.toHexString(spanId);
+    }
+}
@@ -0,0 +1,319 @@
+package Server.Common;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spans of the requests followed from the client through the middleware
+ * to the resource managers, written to a local trace file.
+ *
+ * Whoever starts a request, e.g. the client, decides whether it is traced,
+ * for a trace.sampleRate fraction of the requests. The middleware samples
+ * the requests of clients that do not trace. A traced request carries
+ * its trace id and the id of the calling span to the next process
+ * (in the TCP Request, or as a TraceContext parameter over RMI), whose spans
+ * then join the same trace. Requests that are not traced cost a thread-local
+ * lookup per span.
+ *
+ * Each process writes its own file, one span per line in the Zipkin v2 JSON
+ * format. To look at a trace, merge the files of every process into one array
+ * and post it to a Zipkin server, e.g.
+ *   jq -s . client.trace mw.trace rm-*.trace | curl -H 'Content-Type: application/json' -d @- localhost:9411/api/v2/spans
+ *
+ * A request entering a component, e.g. the middleware or an RM, is a span of
+ * that component; the spans started while working on it belong to it as well.
+ * A span is opened with try-with-resources on the thread doing the work, and
+ * is the parent of the spans opened on that thread until it is closed:
+ *   try (Tracer.Span span = Tracer.start("forwardToFlight")) { ... }
+ * Work handed to another thread takes the span along with wrap().
+ *
+ * Tuning (system properties):
+ *   trace.file        file the spans are appended to, unset disables tracing (default unset)
+ *   trace.sampleRate  fraction of the requests started here that are traced (default 0.01)
+ */
+public class Tracer {
+
+    private static final String file = System.getProperty("trace.file");
+    private static final double sampleRate = Double.parseDouble(System.getProperty("trace.sampleRate", "0.01"));
+
+    private static final ThreadLocal<Span> current = new ThreadLocal<>();
+    private static final Writer writer = open();
+
+    // epoch time of System.nanoTime() == 0, in microseconds
+    private static final long epochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+            - TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+
+    /**
+     * Start a request here, traced if it is sampled
+     * @param component e.g. "client"
+     * @param name
+     * @return the span, now current on this thread; one that records nothing if not sampled
+     */
+    public static Span root(String component, String name) {
+        if (writer == null || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return Span.NONE;
+        }
+        return new Span(component, newId(), 0, name).activate();
+    }
+
+    /**
+     * Continue the trace of a request received from another component
+     * @param component e.g. "rm-Flights"
+     * @param name
+     * @param traceId 0 if the caller did not trace the request
+     * @param parentId the caller's span
+     * @return the span, now current on this thread; one that records nothing if the request is not traced
+     */
+    public static Span join(String component, String name, long traceId, long parentId) {
+        if (writer == null || traceId == 0) {
+            return Span.NONE;
+        }
+        return new Span(component, traceId, parentId, name).activate();
+    }
+
+    /**
+     * @param component
+     * @param name
+     * @param caller null if the caller did not trace the request
+     * @return the span, now current on this thread
+     */
+    public static Span join(String component, String name, TraceContext caller) {
+        return caller == null ? Span.NONE : join(component, name, caller.getTraceId(), caller.getSpanId());
+    }
+
+    /**
+     * Continue the trace of a request received from another component,
+     * or sample it here if the caller did not trace it, e.g. for requests of clients that can't
+     * @param component e.g. "middleware"
+     * @param name
+     * @param traceId
+     * @param parentId
+     * @return the span, now current on this thread
+     */
+    public static Span joinOrRoot(String component, String name, long traceId, long parentId) {
+        return traceId == 0 ? root(component, name) : join(component, name, traceId, parentId);
+    }
+
+    /**
+     * @param component
+     * @param name
+     * @param caller null if the caller did not trace the request, it is then sampled here
+     * @return the span, now current on this thread
+     */
+    public static Span joinOrRoot(String component, String name, TraceContext caller) {
+        return caller == null ? root(component, name) : join(component, name, caller);
+    }
+
+    /**
+     * Start a child of the current span of this thread
+     * @param name
+     * @return the span, now current on this thread; one that records nothing if the request is not traced
+     */
+    public static Span start(String name) {
+        Span parent = current.get();
+        if (parent == null) {
+            return Span.NONE;
+        }
+        return new Span(parent.component, parent.traceId, parent.id, name).activate();
+    }
+
+    /**
+     * @return the span current on this thread, one that records nothing if there is none
+     */
+    public static Span current() {
+        Span span = current.get();
+        return span == null ? Span.NONE : span;
+    }
+
+    /**
+     * Make the current span of this thread current on the thread running the call as well
+     * @param call
+     * @return
+     */
+    public static <T> Callable<T> wrap(Callable<T> call) {
+        Span span = current.get();
+        if (span == null) {
+            return call;
+        }
+        return () -> {
+            Span previous = current.get();
+            current.set(span);
+            try {
+                return call.call();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    public static class Span implements AutoCloseable {
+
+        // what requests that are not traced get
+        static final Span NONE = new Span(null, 0, 0, null);
+
+        private final String component;
+        private final long traceId;
+        private final long id;
+        private final long parentId;
+        private final String name;
+        private final long start = System.nanoTime();
+        private Map<String, String> tags;
+        private Span previous;
+
+        private Span(String component, long traceId, long parentId, String name) {
+            this.component = component;
+            this.traceId = traceId;
+            this.id = traceId == 0 ? 0 : newId();
+            this.parentId = parentId;
+            this.name = name;
+        }
+
+        private Span activate() {
+            previous = current.get();
+            current.set(this);
+            return this;
+        }
+
+        public boolean isRecording() {
+            return this != NONE;
+        }
+
+        public long getTraceId() {
+            return traceId;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return what to pass to a remote call made from this span, null if it is not traced
+         */
+        public TraceContext context() {
+            return this == NONE ? null : new TraceContext(traceId, id);
+        }
+
+        /**
+         * @param key
+         * @param value
+         * @return this span
+         */
+        public Span tag(String key, Object value) {
+            if (this != NONE) {
+                if (tags == null) {
+                    tags = new LinkedHashMap<>();
+                }
+                tags.put(key, String.valueOf(value));
+            }
+            return this;
+        }
+
+        /**
+         * End the span and make its parent current again
+         */
+        @Override
+        public void close() {
+            if (this == NONE) {
+                return;
+            }
+            long end = System.nanoTime();
+            current.set(previous);
+            write(toJson(end));
+        }
+
+        private String toJson(long end) {
+            StringBuilder json = new StringBuilder(256);
+            json.append("{\"traceId\":\"").append(hex(traceId)).append("\",\"id\":\"").append(hex(id)).append('"');
+            if (parentId != 0) {
+                json.append(",\"parentId\":\"").append(hex(parentId)).append('"');
+            }
+            json.append(",\"name\":").append(quote(name))
+                    .append(",\"timestamp\":").append(epochMicros + TimeUnit.NANOSECONDS.toMicros(start))
+                    .append(",\"duration\":").append(Math.max(1, TimeUnit.NANOSECONDS.toMicros(end - start)))
+                    .append(",\"localEndpoint\":{\"serviceName\":").append(quote(component)).append('}');
+            if (tags != null) {
+                json.append(",\"tags\":{");
+                String separator = "";
+                for (Map.Entry<String, String> tag : tags.entrySet()) {
+                    json.append(separator).append(quote(tag.getKey())).append(':').append(quote(tag.getValue()));
+                    separator = ",";
+                }
+                json.append('}');
+            }
+            return json.append('}').toString();
+        }
+    }
+
+    private static long newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    private static String hex(long id) {
+        return String.format("%016x", id);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static Writer open() {
+        if (file == null) {
+            return null;
+        }
+        try {
+            Writer writer = new BufferedWriter(new FileWriter(file, true));
+            // written in the background, a span must not wait for the disk
+            Thread flusher = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    flush();
+                }
+            }, "trace-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Tracer::flush, "trace-flush"));
+            return writer;
+        } catch (IOException e) {
+            System.err.println("Could not open the trace file " + file + ", tracing disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static synchronized void write(String span) {
+        try {
+            writer.write(span);
+            writer.write('\n');
+        } catch (IOException e) {
+            System.err.println("Could not write to the trace file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static synchronized void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Could not write to the trace file " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package Server.Common;
+
+import Server.Interface.IResourceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-phase commit coordinator for bundles, one per middleware.
+ *
+ * Every resource manager taking part in a bundle gets a single prepare with all
+ * of its items; the prepares are sent concurrently, or the one most likely to vote
+ * no first, see BundlePlanner. If every participant votes yes,
+ * the commit decision is forced to the log and the participants are told to commit.
+ * Otherwise the participants are told to abort in the background, without logging
+ * (presumed abort) and without making the client wait for it.
+ *
+ * A commit or an abort that does not reach every participant, e.g. one is down,
+ * is sent again in the background until it does, and only then is the commit
+ * record ended.
+ *
+ * After a crash, recover() asks the participants for their in-doubt transactions
+ * and commits those with a commit record, aborts all the others. A participant
+ * unreachable at that time is asked again in the background.
+ *
+ * Every transaction id carries the id of its coordinator in its high bits, so
+ * that the middlewares never hand out the same one, and recover() only
+ * resolves the transactions of its own coordinator.
+ *
+ * Tuning (system properties):
+ *   coordinator.id       id of this coordinator, below 4096, unique among the middlewares
+ *                        (default: a hash of the host name and of the log path)
+ *   coordinator.retryMs  delay between two attempts to finish the transactions (default 1000)
+ */
+public class TransactionCoordinator {
+
+    /**
+     * A resource manager, as seen by the coordinator.
+     */
+    public interface Participant {
+        /**
+         * Stable name of the resource manager, written in the log.
+         */
+        String getName();
+
+        boolean prepare(long xid, Branch branch) throws Exception;
+
+        boolean commit(long xid) throws Exception;
+
+        boolean abort(long xid) throws Exception;
+
+        Collection<Long> inDoubtTransactions() throws Exception;
+    }
+
+    /**
+     * The part of a bundle handled by one participant.
+     */
+    public static class Branch {
+        private final Participant participant;
+        private final int customerID;
+        private final Vector<String> flightNumbers;
+        private final String location;
+        private final boolean car;
+        private final boolean room;
+
+        public Branch(Participant participant, int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room) {
+            this.participant = participant;
+            this.customerID = customerID;
+            this.flightNumbers = flightNumbers;
+            this.location = location;
+            this.car = car;
+            this.room = room;
+        }
+
+        public Participant getParticipant() {
+            return participant;
+        }
+
+        public int getCustomerID() {
+            return customerID;
+        }
+
+        public Vector<String> getFlightNumbers() {
+            return flightNumbers;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public boolean isCar() {
+            return car;
+        }
+
+        public boolean isRoom() {
+            return room;
+        }
+    }
+
+    /**
+     * The participants of a transaction still to be told its outcome.
+     */
+    private static class Outcome {
+        private final boolean commit;
+        private final List<Branch> branches;
+
+        private Outcome(boolean commit, List<Branch> branches) {
+            this.commit = commit;
+            this.branches = branches;
+        }
+    }
+
+    // transaction ids: coordinator id, then milliseconds since clockEpoch, then a sequence number
+    private static final int idBits = 12;
+    private static final int sequenceBits = 10;
+    private static final long clockEpoch = 1577836800000L;
+    private static final long retryMs = Long.getLong("coordinator.retryMs", 1000);
+
+    private final int id;
+    private final TransactionLog log;
+    private final FanOut fanOut;
+
+    // unique across restarts as long as the clock moves forward, and
+    // fewer than 2^sequenceBits transactions start per millisecond on average
+    private final AtomicLong nextXid;
+    // the transactions of this run come after it, recovery leaves them alone
+    private final long firstXid;
+
+    // transactions decided but not acknowledged by every participant, by id
+    private final Map<Long, Outcome> unfinished = new ConcurrentHashMap<>();
+    // recovery: participants that could not be asked yet, and the commits of the previous
+    // run, ended once all of them were; both guarded by this
+    private final List<Participant> unrecovered = new Vector<>();
+    private final Set<Long> recovering = new HashSet<>();
+
+    // sends the aborts, off the client's path, and the outcomes not acknowledged yet
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "coordinator-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param logPath file of the commit log
+     * @param timeoutMs how long to wait for each participant's vote
+     * @throws IOException if the log can't be opened
+     */
+    public TransactionCoordinator(String logPath, long timeoutMs) throws IOException {
+        this(logPath, timeoutMs, Integer.getInteger("coordinator.id", defaultId(logPath)));
+    }
+
+    /**
+     * @param logPath file of the commit log
+     * @param timeoutMs how long to wait for each participant's vote
+     * @param id of this coordinator, the same across its restarts and different from the other ones
+     * @throws IOException if the log can't be opened
+     */
+    public TransactionCoordinator(String logPath, long timeoutMs, int id) throws IOException {
+        if (id < 0 || id >= 1 << idBits) {
+            throw new IllegalArgumentException("Coordinator id out of range: " + id);
+        }
+        this.id = id;
+        this.log = new TransactionLog(logPath);
+        this.fanOut = new FanOut(timeoutMs);
+        this.firstXid = ((long) id << (63 - idBits)) | ((System.currentTimeMillis() - clockEpoch) << sequenceBits);
+        this.nextXid = new AtomicLong(firstXid);
+        background.scheduleWithFixedDelay(this::retry, retryMs, retryMs, TimeUnit.MILLISECONDS);
+    }
+
+    // stable as long as the middleware runs on the same host with the same log
+    private static int defaultId(String logPath) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "";
+        }
+        return Math.floorMod((host + ":" + new File(logPath).getAbsolutePath()).hashCode(), 1 << idBits);
+    }
+
+    /**
+     * @param xid
+     * @return the id of the coordinator that started the transaction
+     */
+    public static int coordinatorOf(long xid) {
+        return (int) (xid >>> (63 - idBits));
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Run a bundle as a transaction across its branches.
+     * @param branches at most one per participant
+     * @return true if the transaction committed
+     */
+    public boolean execute(List<Branch> branches) {
+        return execute(branches, false);
+    }
+
+    /**
+     * Run a bundle as a transaction across its branches.
+     * @param branches at most one per participant
+     * @param firstAlone prepare the first branch, e.g. the one most likely to
+     *                   vote no, before the others; they are only prepared if it votes yes
+     * @return true if the transaction committed
+     */
+    public boolean execute(List<Branch> branches, boolean firstAlone) {
+        if (branches.isEmpty()) {
+            return true;
+        }
+        long xid = nextXid.incrementAndGet();
+
+        // phase one: one prepare per participant, all at the same time
+        List<Callable<Boolean>> prepares = new Vector<>();
+        for (Branch branch : branches) {
+            prepares.add(() -> branch.participant.prepare(xid, branch));
+        }
+        List<FanOut.Result<Boolean>> votes;
+        // the branches that were asked to prepare, and are to be aborted if it fails
+        List<Branch> prepared = branches;
+        if (firstAlone && branches.size() > 1) {
+            votes = new Vector<>(fanOut.invokeAll(prepares.subList(0, 1)));
+            FanOut.Result<Boolean> first = votes.get(0);
+            if (first.isSuccess() && first.getValue()) {
+                votes.addAll(fanOut.invokeAll(prepares.subList(1, prepares.size())));
+            } else {
+                prepared = branches.subList(0, 1);
+            }
+        } else {
+            votes = fanOut.invokeAll(prepares);
+        }
+
+        boolean commit = true;
+        List<String> reasons = new Vector<>();
+        for (int i = 0; i < prepared.size(); i++) {
+            FanOut.Result<Boolean> vote = votes.get(i);
+            String name = prepared.get(i).participant.getName();
+            if (!vote.isSuccess()) {
+                System.err.println("Transaction " + xid + ": no vote from " + name + ": " + vote.getError().getMessage());
+                reasons.add("no vote from " + name);
+                commit = false;
+            } else if (!vote.getValue()) {
+                System.out.println("Transaction " + xid + ": " + name + " voted no");
+                reasons.add(name + " voted no");
+                commit = false;
+            }
+        }
+
+        if (!commit) {
+            // presumed abort: nothing to log, and the client doesn't wait for the participants
+            String reason = String.join(", ", reasons);
+            List<Branch> aborted = prepared;
+            background.submit(() -> abort(xid, aborted, reason));
+            return false;
+        }
+
+        List<String> names = new Vector<>();
+        for (Branch branch : branches) {
+            names.add(branch.participant.getName());
+        }
+        try {
+            log.commit(xid, names);
+        } catch (IOException e) {
+            // the decision is not durable, so it is still an abort
+            System.err.println("Transaction " + xid + ": failed to log the commit: " + e.getMessage());
+            background.submit(() -> abort(xid, branches, "commit not logged"));
+            return false;
+        }
+
+        // phase two: the transaction is committed from now on
+        List<Callable<Boolean>> commits = new Vector<>();
+        for (Branch branch : branches) {
+            commits.add(() -> branch.participant.commit(xid));
+        }
+        List<Branch> left = unacknowledged(branches, fanOut.invokeAll(commits), true);
+        if (left.isEmpty()) {
+            log.end(xid);
+        } else {
+            // the commit record stays in the log until the retries get through
+            System.err.println("Transaction " + xid + ": " + left.size() + " participant(s) did not acknowledge the commit, retrying");
+            unfinished.put(xid, new Outcome(true, left));
+        }
+        System.out.println("Transaction " + xid + " committed");
+        return true;
+    }
+
+    private void abort(long xid, List<Branch> branches, String reason) {
+        JfrEvents.BundleRollback event = new JfrEvents.BundleRollback();
+        event.begin();
+        List<Callable<Boolean>> aborts = new Vector<>();
+        for (Branch branch : branches) {
+            aborts.add(() -> branch.participant.abort(xid));
+        }
+        List<FanOut.Result<Boolean>> results = fanOut.invokeAll(aborts);
+        for (FanOut.Result<Boolean> result : results) {
+            if (!result.isSuccess()) {
+                System.err.println("Transaction " + xid + ": abort not delivered, retrying: " + result.getError().getMessage());
+            }
+        }
+        List<Branch> left = unacknowledged(branches, results, false);
+        if (!left.isEmpty()) {
+            unfinished.put(xid, new Outcome(false, left));
+        }
+        System.out.println("Transaction " + xid + " aborted");
+        event.end();
+        if (event.shouldCommit()) {
+            event.xid = xid;
+            event.branches = branches.size();
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param branches
+     * @param results of the commits or aborts sent to the branches, in the same order
+     * @param commit a participant answering false to a commit did not commit,
+     *               e.g. a backup promoted without the branch
+     * @return the branches whose participant did not acknowledge
+     */
+    private static List<Branch> unacknowledged(List<Branch> branches, List<FanOut.Result<Boolean>> results, boolean commit) {
+        List<Branch> left = new Vector<>();
+        for (int i = 0; i < branches.size(); i++) {
+            FanOut.Result<Boolean> result = results.get(i);
+            if (!result.isSuccess() || (commit && !result.getValue())) {
+                left.add(branches.get(i));
+            }
+        }
+        return left;
+    }
+
+    // Send the outcomes again to the participants that did not acknowledge them,
+    // and ask the participants unreachable at recovery again
+    private synchronized void retry() {
+        try {
+            for (Map.Entry<Long, Outcome> entry : unfinished.entrySet()) {
+                long xid = entry.getKey();
+                Outcome outcome = entry.getValue();
+                List<Callable<Boolean>> calls = new Vector<>();
+                for (Branch branch : outcome.branches) {
+                    calls.add(() -> outcome.commit ? branch.participant.commit(xid) : branch.participant.abort(xid));
+                }
+                List<Branch> left = unacknowledged(outcome.branches, fanOut.invokeAll(calls), outcome.commit);
+                if (!left.isEmpty()) {
+                    unfinished.put(xid, new Outcome(outcome.commit, left));
+                    continue;
+                }
+                unfinished.remove(xid);
+                if (outcome.commit) {
+                    log.end(xid);
+                }
+                System.out.println("Transaction " + xid + ": every participant acknowledged the " + (outcome.commit ? "commit" : "abort"));
+            }
+            if (!unrecovered.isEmpty()) {
+                recoverParticipants();
+            }
+        } catch (RuntimeException e) {
+            // keep the task scheduled
+            System.err.println("Coordinator: retry failed: " + e);
+        }
+    }
+
+    /**
+     * Resolve the transactions this coordinator left in doubt in a previous run:
+     * commit the ones with a commit record, abort the others. The participants
+     * that can't be reached now are asked again in the background.
+     * @param participants every resource manager
+     */
+    public synchronized void recover(Collection<Participant> participants) {
+        recovering.addAll(log.unfinishedCommits());
+        unrecovered.addAll(participants);
+        recoverParticipants();
+        try {
+            log.compact();
+        } catch (IOException e) {
+            System.err.println("Recovery: failed to compact the log: " + e.getMessage());
+        }
+    }
+
+    // called with this held
+    private void recoverParticipants() {
+        unrecovered.removeIf(this::recover);
+        if (!unrecovered.isEmpty() || recovering.isEmpty()) {
+            return;
+        }
+        // every participant answered, none of them has anything of the previous run in doubt
+        for (long xid : recovering) {
+            log.end(xid);
+        }
+        recovering.clear();
+        try {
+            log.compact();
+        } catch (IOException e) {
+            System.err.println("Recovery: failed to compact the log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param participant
+     * @return whether all of its in-doubt transactions of this coordinator were resolved
+     */
+    private boolean recover(Participant participant) {
+        boolean complete = true;
+        try {
+            for (long xid : participant.inDoubtTransactions()) {
+                if (coordinatorOf(xid) != id || xid > firstXid) {
+                    // another middleware's, it resolves it; or one of this run, still going on
+                    continue;
+                }
+                if (log.isCommitted(xid)) {
+                    System.out.println("Recovery: committing transaction " + xid + " at " + participant.getName());
+                    if (!participant.commit(xid)) {
+                        System.err.println("Recovery: " + participant.getName() + " did not commit transaction " + xid);
+                        complete = false;
+                    }
+                } else {
+                    System.out.println("Recovery: aborting transaction " + xid + " at " + participant.getName());
+                    participant.abort(xid);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Recovery: " + participant.getName() + " unreachable, retrying: " + e.getMessage());
+            return false;
+        }
+        return complete;
+    }
+
+    /**
+     * Adapts a resource manager reached through its IResourceManager interface.
+     */
+    public static Participant participant(String name, IResourceManager manager) {
+        return new Participant() {
+            public String getName() {
+                return name;
+            }
+
+            public boolean prepare(long xid, Branch branch) throws Exception {
+                try (Tracer.Span span = Tracer.start("Prepare " + name)) {
+                    return manager.prepare(span.context(), xid, branch.getCustomerID(), branch.getFlightNumbers(), branch.getLocation(), branch.isCar(), branch.isRoom());
+                }
+            }
+
+            public boolean commit(long xid) throws Exception {
+                return manager.commit(xid);
+            }
+
+            public boolean abort(long xid) throws Exception {
+                return manager.abort(xid);
+            }
+
+            public Collection<Long> inDoubtTransactions() throws Exception {
+                return manager.inDoubtTransactions();
+            }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package Server.Common;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Write-ahead log of the transaction coordinator, presumed-abort flavour.
+ *
+ * Only commit decisions are written, and forced to disk, before any participant
+ * is told to commit. Once every participant acknowledged, an end record is
+ * appended (not forced). Aborts are never logged: a transaction with no commit
+ * record is aborted.
+ *
+ * Record format, one per line:
+ *   COMMIT <xid> <participant>,<participant>,...
+ *   END <xid>
+ */
+class TransactionLog {
+
+    private final File file;
+    private FileOutputStream output;
+    private PrintWriter writer;
+
+    // commit records without an end record, by transaction id
+    private final Map<Long, String> unfinished = new LinkedHashMap<>();
+
+    /**
+     * Open the log, reading the records left by a previous run.
+     * @param path
+     * @throws IOException
+     */
+    TransactionLog(String path) throws IOException {
+        this.file = new File(path);
+
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split(" ");
+                    try {
+                        if (fields[0].equals("COMMIT") && fields.length >= 2) {
+                            unfinished.put(Long.parseLong(fields[1]), fields.length > 2 ? fields[2] : "");
+                        } else if (fields[0].equals("END") && fields.length >= 2) {
+                            unfinished.remove(Long.parseLong(fields[1]));
+                        }
+                    } catch (NumberFormatException e) {
+                        // a record torn by a crash, its commit was never sent
+                        System.err.println("Skipping corrupted log record: " + line);
+                    }
+                }
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Force a commit decision to disk.
+     * @param xid
+     * @param participants names of the participants
+     * @throws IOException
+     */
+    synchronized void commit(long xid, Collection<String> participants) throws IOException {
+        writer.println("COMMIT " + xid + " " + String.join(",", participants));
+        writer.flush();
+        output.getFD().sync();
+        unfinished.put(xid, String.join(",", participants));
+    }
+
+    /**
+     * Record that every participant committed.
+     * @param xid
+     */
+    synchronized void end(long xid) {
+        writer.println("END " + xid);
+        writer.flush();
+        unfinished.remove(xid);
+    }
+
+    /**
+     * @param xid
+     * @return true if the transaction has a commit record
+     */
+    synchronized boolean isCommitted(long xid) {
+        return unfinished.containsKey(xid);
+    }
+
+    /**
+     * Commit decisions that were not acknowledged by every participant yet.
+     */
+    synchronized Set<Long> unfinishedCommits() {
+        return new LinkedHashSet<>(unfinished.keySet());
+    }
+
+    /**
+     * Rewrite the log with the unfinished commits only.
+     * @throws IOException
+     */
+    synchronized void compact() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream tempOutput = new FileOutputStream(temp);
+             PrintWriter tempWriter = new PrintWriter(new OutputStreamWriter(tempOutput))) {
+            for (Map.Entry<Long, String> entry : unfinished.entrySet()) {
+                tempWriter.println("COMMIT " + entry.getKey() + " " + entry.getValue());
+            }
+            tempWriter.flush();
+            tempOutput.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+
+        output = new FileOutputStream(file, true);
+        writer = new PrintWriter(new OutputStreamWriter(output));
+    }
+}
@@ -0,0 +1,137 @@
+package Server.Common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The customers waiting for a sold-out item, first come first served, by item key.
+ *
+ * A customer waits at most once per item. The waitlists are kept in memory
+ * only: they are neither replicated nor written to disk.
+ *
+ * Tuning (system properties):
+ *   waitlist.maxLength  customers waiting for one item at most (default 1000)
+ */
+public class Waitlist {
+
+    private static final int maxLength = Integer.getInteger("waitlist.maxLength", 1000);
+
+    /**
+     * A waiting customer, and the location to reserve the item at
+     */
+    public static class Entry {
+        private final int customerID;
+        private final String location;
+
+        private Entry(int customerID, String location) {
+            this.customerID = customerID;
+            this.location = location;
+        }
+
+        public int getCustomerID() {
+            return customerID;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+    }
+
+    // only the items someone waits for
+    private final Map<String, ArrayDeque<Entry>> queues = new HashMap<>();
+
+    /**
+     * Add a customer at the end of the waitlist of an item
+     * @param key
+     * @param customerID
+     * @param location
+     * @return the position of the customer, from 1; their current one if they already wait; -1 if the waitlist is full
+     */
+    public synchronized int add(String key, int customerID, String location) {
+        ArrayDeque<Entry> queue = queues.computeIfAbsent(key, k -> new ArrayDeque<>());
+        int position = 1;
+        for (Entry entry : queue) {
+            if (entry.customerID == customerID) {
+                return position;
+            }
+            position++;
+        }
+        if (queue.size() >= maxLength) {
+            return -1;
+        }
+        queue.add(new Entry(customerID, location));
+        return position;
+    }
+
+    /**
+     * @param key
+     * @return the customer waiting the longest for the item, null if nobody does
+     */
+    public synchronized Entry peek(String key) {
+        ArrayDeque<Entry> queue = queues.get(key);
+        return queue == null ? null : queue.peek();
+    }
+
+    /**
+     * Take the first customer off the waitlist, if they still are the first
+     * @param key
+     * @param entry as returned by peek
+     * @return false if they no longer are
+     */
+    public synchronized boolean poll(String key, Entry entry) {
+        ArrayDeque<Entry> queue = queues.get(key);
+        if (queue == null || queue.peek() != entry) {
+            return false;
+        }
+        queue.poll();
+        if (queue.isEmpty()) {
+            queues.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * Drop the waitlist of an item, e.g. deleted
+     * @param key
+     * @return the customers who waited for it, in order
+     */
+    public synchronized List<Entry> clear(String key) {
+        ArrayDeque<Entry> queue = queues.remove(key);
+        return queue == null ? new ArrayList<>() : new ArrayList<>(queue);
+    }
+
+    /**
+     * Take a customer off every waitlist, e.g. deleted
+     * @param customerID
+     */
+    public synchronized void remove(int customerID) {
+        Iterator<ArrayDeque<Entry>> it = queues.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<Entry> queue = it.next();
+            queue.removeIf(entry -> entry.customerID == customerID);
+            if (queue.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @return whether somebody waits for the item
+     */
+    public synchronized boolean isWaiting(String key) {
+        return queues.containsKey(key);
+    }
+
+    public synchronized String toString() {
+        int waiting = 0;
+        for (ArrayDeque<Entry> queue : queues.values()) {
+            waiting += queue.size();
+        }
+        return "Waitlist items=" + queues.size() + " waiting=" + waiting;
+    }
+}
@@ -0,0 +1,68 @@
+package Server.Common;
+
+import java.io.Serializable;
+
+/**
+ * Pushed to a customer's clients when the customer leaves the waitlist of an
+ * item: either it was reserved for them, or they were dropped, e.g. the item
+ * was deleted.
+ */
+public class WaitlistNotice implements Serializable {
+
+    private final int customerID;
+    private final String key;
+    private final boolean reserved;
+    // why they were dropped, null if reserved
+    private final String reason;
+
+    /**
+     * @param customerID
+     * @param key key of the item, e.g. "flight-12"
+     * @param reserved false if the item was deleted before it could be reserved
+     */
+    public WaitlistNotice(int customerID, String key, boolean reserved) {
+        this(customerID, key, reserved, reserved ? null : "the item was deleted");
+    }
+
+    /**
+     * A customer dropped from the waitlist without the item
+     * @param customerID
+     * @param key key of the item, e.g. "flight-12"
+     * @param reason e.g. "the item was deleted"
+     */
+    public WaitlistNotice(int customerID, String key, String reason) {
+        this(customerID, key, false, reason);
+    }
+
+    private WaitlistNotice(int customerID, String key, boolean reserved, String reason) {
+        this.customerID = customerID;
+        this.key = key;
+        this.reserved = reserved;
+        this.reason = reason;
+    }
+
+    public int getCustomerID() {
+        return customerID;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return why the customer was dropped, null if the item was reserved for them
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public String toString() {
+        return reserved
+                ? "Customer " + customerID + " got " + key + " from the waitlist"
+                : "Customer " + customerID + " left the waitlist of " + key + ", " + reason;
+    }
+}
@@ -0,0 +1,19 @@
+package Server.Interface;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Receives the keys of the items a resource manager changed,
+ * so that a middleware can drop what it cached about them.
+ */
+public interface IInvalidationListener extends Remote
+{
+    /**
+     * Called after an item was added, deleted, reserved or released.
+     *
+     * @param key key of the item, e.g. "flight-12"
+     */
+    public void invalidate(String key)
+        throws RemoteException;
+}
@@ -0,0 +1,20 @@
+package Server.Interface;
+
+import Server.Common.ReplicationRecord;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * A backup resource manager, receiving the log of its primary.
+ */
+public interface IReplicationListener extends Remote
+{
+    /**
+     * Called with every change of the primary, in order, and with periodic heartbeats.
+     *
+     * @param record the change to apply
+     */
+    public void replicate(ReplicationRecord record)
+        throws RemoteException;
+}
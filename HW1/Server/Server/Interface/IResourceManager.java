@@ -3,6 +3,7 @@ package Server.Interface;
 import Server.Common.Car;
 import Server.Common.Flight;
 import Server.Common.Room;
+import Server.Common.TraceContext;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
@@ -227,6 +228,122 @@ public interface IResourceManager extends Remote
     public boolean cancelReserveRoom(int customerID, String location)
     throws RemoteException;
 
+    /**
+     * Reserve seats on several flights for a customer in one call.
+     * Either every flight is reserved, or none of them.
+     * A flight number listed twice reserves two seats.
+     * @param customerID
+     * @param flightNumbers
+     * @return Success
+     * @throws RemoteException
+     */
+    public boolean reserveFlights(int customerID, Vector<String> flightNumbers)
+    throws RemoteException;
+
+    /**
+     * Cancel the reservations of several flights in one call.
+     * @param customerID
+     * @param flightNumbers
+     * @return
+     * @throws RemoteException
+     */
+    public boolean cancelReserveFlights(int customerID, Vector<String> flightNumbers)
+    throws RemoteException;
+
+    /**
+     * Two-phase commit, phase one.
+     * Hold the flights, car and room of one branch of a bundle for a customer
+     * until the coordinator decides. Held items can't be reserved by anyone else,
+     * the customer's bill only shows them after the commit.
+     * The middleware sends each RM a single prepare with all of its items.
+     * @param xid transaction id chosen by the coordinator
+     * @return Vote: true if the items are held
+     * @throws RemoteException
+     */
+    public boolean prepare(long xid, int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room)
+    throws RemoteException;
+
+    /**
+     * Two-phase commit, phase one, as part of the trace of the bundle.
+     * @param trace the caller's span, null if the bundle is not traced
+     * @return Vote: true if the items are held
+     * @throws RemoteException
+     */
+    public boolean prepare(TraceContext trace, long xid, int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room)
+    throws RemoteException;
+
+    /**
+     * Two-phase commit, phase two: make the held items the customer's reservations.
+     * Committing twice has no effect.
+     * @param xid
+     * @return Success
+     * @throws RemoteException
+     */
+    public boolean commit(long xid)
+    throws RemoteException;
+
+    /**
+     * Two-phase commit, phase two: release the held items.
+     * Aborting an unknown transaction is allowed and makes its prepare vote no.
+     * @param xid
+     * @return Success
+     * @throws RemoteException
+     */
+    public boolean abort(long xid)
+    throws RemoteException;
+
+    /**
+     * Transactions that voted yes and still wait for a decision,
+     * used by the coordinator when it recovers.
+     * @return transaction ids
+     * @throws RemoteException
+     */
+    public Vector<Long> inDoubtTransactions()
+    throws RemoteException;
+
+    /**
+     * Push the key of every item that changes from now on to the listener.
+     * A listener that can't be reached is dropped.
+     *
+     * @return Success
+     */
+    public boolean subscribe(IInvalidationListener listener)
+    throws RemoteException;
+
+    /**
+     * Ship every change to a backup, starting after the given sequence number:
+     * the changes it missed if they are still in the log, a snapshot otherwise.
+     * A backup that can't be reached is dropped.
+     *
+     * A primary asked by a backup of a newer epoch was replaced: it is fenced
+     * off and refuses.
+     *
+     * @param fromSequence last sequence number the backup applied, 0 if none
+     * @param epoch epoch of the primary the backup last followed, 0 if none
+     * @return Success
+     */
+    public boolean replicateTo(IReplicationListener backup, long fromSequence, long epoch)
+    throws RemoteException;
+
+    /**
+     * Turn a backup into a primary: stop following the old primary and take writes.
+     * The new primary's epoch is above both the given one and the old primary's.
+     *
+     * @param epoch fencing token of the promotion
+     * @return Success
+     */
+    public boolean promote(long epoch)
+    throws RemoteException;
+
+    /**
+     * Tell a primary it was replaced by a backup promoted to the given epoch:
+     * it becomes a read-only backup. Ignored if the epoch is not newer.
+     *
+     * @return whether the epoch was newer
+     */
+    public boolean fence(long epoch)
+    throws RemoteException;
+
     /**
      * Reserve a bundle for the trip.
      *
@@ -235,6 +352,15 @@ public interface IResourceManager extends Remote
     public boolean bundle(int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room)
 	throws RemoteException; 
 
+    /**
+     * Reserve a bundle for the trip, as part of the caller's trace.
+     *
+     * @param trace the caller's span, null if the caller does not trace the bundle
+     * @return Success
+     */
+    public boolean bundle(TraceContext trace, int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room)
+	throws RemoteException; 
+
     /**
      * Convenience for probing the resource manager.
      *
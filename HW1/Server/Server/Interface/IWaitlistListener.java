@@ -0,0 +1,21 @@
+package Server.Interface;
+
+import Server.Common.WaitlistNotice;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Receives the customers a resource manager took off a waitlist,
+ * so that a middleware can tell their clients.
+ */
+public interface IWaitlistListener extends Remote
+{
+    /**
+     * Called after the item was reserved for a waiting customer, or deleted.
+     *
+     * @param notice
+     */
+    public void served(WaitlistNotice notice)
+        throws RemoteException;
+}
@@ -1,14 +1,21 @@
 package Server.RMI;
 
 import Server.Common.*;
+import Server.Interface.IInvalidationListener;
 import Server.Interface.IResourceManager;
 
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Vector;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 public class Middleware extends ResourceManager {
 
@@ -16,50 +23,389 @@ public class Middleware extends ResourceManager {
     //TODO: ADD YOUR GROUP NUMBER TO COMPLETE
     private static String s_rmiPrefix = "group_31_";
     private static int port = 3031;
+    // how long a customer operation or a read waits for each manager, in milliseconds
+    private static long rmTimeout = Long.getLong("middleware.rmTimeout", 5000);
+    // how long a read waits for a replica before asking another one, until the replica's p95 is known
+    private static long hedgeDelayMs = Long.getLong("middleware.hedgeDelayMs", 20);
+    // commit log of the two-phase commit coordinator
+    private static String coordinatorLog = System.getProperty("coordinator.log", "coordinator.log");
 
-    // managers
-    private final IResourceManager flightManager;
-    private final IResourceManager carManager;
-    private final IResourceManager roomManager;
+    // file listing the managers of each resource type, reloaded when it changes
+    private static String shardsFile = System.getProperty("shards.file");
+    private static long shardsReloadMs = Long.getLong("shards.reloadMs", 2000);
 
+    // managers of each resource type, a primary and its backups per shard
+    private final ShardMap<ReplicaGroup<IResourceManager>> flightShards;
+    private final ShardMap<ReplicaGroup<IResourceManager>> carShards;
+    private final ShardMap<ReplicaGroup<IResourceManager>> roomShards;
 
-    public Middleware(String p_name, IResourceManager flightManager, IResourceManager carManager, IResourceManager roomManager) {
+    // issues the customer operations to all the managers concurrently, and the hedged reads
+    private final FanOut fanOut = new FanOut(rmTimeout);
+
+    // recent response times of every manager
+    private final LatencyTracker<IResourceManager> latencies = new LatencyTracker<>();
+
+    // runs the bundles as two-phase commit transactions
+    private final TransactionCoordinator coordinator;
+
+    // price and availability cache, kept fresh by the managers' invalidations
+    private final QueryCache cache = new QueryCache();
+    private final IInvalidationListener invalidationListener = new CacheInvalidator(cache);
+
+    // orders the branches of a bundle from the cached availability counts
+    private final BundlePlanner planner = new BundlePlanner(cache, fanOut);
+    private IInvalidationListener invalidationStub;
+
+    // queries being forwarded to the managers right now
+    private final SingleFlight<String, Integer> inFlightQueries = new SingleFlight<>();
+
+    public Middleware(String p_name, ShardMap<ReplicaGroup<IResourceManager>> flightShards, ShardMap<ReplicaGroup<IResourceManager>> carShards,
+                      ShardMap<ReplicaGroup<IResourceManager>> roomShards, TransactionCoordinator coordinator) {
         super(p_name);
-        this.flightManager = flightManager;
-        this.carManager = carManager;
-        this.roomManager = roomManager;
+        this.flightShards = flightShards;
+        this.carShards = carShards;
+        this.roomShards = roomShards;
+
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Resolve the bundles a previous run of the middleware left in doubt.
+     */
+    public void recover() {
+        List<TransactionCoordinator.Participant> participants = new Vector<>();
+        for (ShardMap<ReplicaGroup<IResourceManager>> shards : Arrays.asList(flightShards, carShards, roomShards)) {
+            for (String name : shards.all().keySet()) {
+                participants.add(participant(shards, name));
+            }
+        }
+        coordinator.recover(participants);
+    }
+
+    /**
+     * Ask the managers to push the keys of the items that change,
+     * so that the cache never serves a value older than its time to live.
+     * The backups relay the changes of their primary, and keep doing so once promoted.
+     * @throws RemoteException
+     */
+    public synchronized void subscribeToManagers() throws RemoteException {
+        if (invalidationStub == null) {
+            invalidationStub = (IInvalidationListener) UnicastRemoteObject.exportObject(invalidationListener, 0);
+        }
+        for (ReplicaGroup<IResourceManager> group : allShards()) {
+            for (IResourceManager manager : group.members()) {
+                manager.subscribe(invalidationStub);
+            }
+        }
+    }
+
+    /**
+     * Apply the content of the shard file, the resource types it does not list keep their managers.
+     * Items are not moved: a type keeps its number of shards, a new manager only replaces a dropped one.
+     */
+    public synchronized void reloadShards(Map<String, List<String>> shards) {
+        List<IResourceManager> added = new Vector<>();
+        List<IResourceManager> removed = new Vector<>();
+        updateShards(flightShards, shards.get("flights"), "Flights", added, removed);
+        updateShards(carShards, shards.get("cars"), "Cars", added, removed);
+        updateShards(roomShards, shards.get("rooms"), "Rooms", added, removed);
+
+        for (IResourceManager manager : removed) {
+            latencies.forget(manager);
+        }
+
+        for (IResourceManager manager : added) {
+            try {
+                if (invalidationStub != null) {
+                    manager.subscribe(invalidationStub);
+                }
+            } catch (RemoteException e) {
+                System.err.println("Failed to subscribe to a new manager: " + e.getMessage());
+            }
+        }
+        System.out.println(flightShards + ", " + carShards + ", " + roomShards);
+    }
+
+    private static void updateShards(ShardMap<ReplicaGroup<IResourceManager>> shards, List<String> specs, String name,
+                                     List<IResourceManager> added, List<IResourceManager> removed) {
+        if (specs == null) {
+            return;
+        }
+        Set<String> before = new HashSet<>(shards.all().keySet());
+        List<ReplicaGroup<IResourceManager>> dropped = shards.update(specs, spec -> ReplicaGroup.of(spec, address -> {
+            try {
+                return lookupResourceManager(address, name);
+            } catch (NotBoundException | RemoteException e) {
+                return null;
+            }
+        }));
+        // a refused update adds nothing
+        for (Map.Entry<String, ReplicaGroup<IResourceManager>> shard : shards.all().entrySet()) {
+            if (!before.contains(shard.getKey())) {
+                added.addAll(shard.getValue().members());
+            }
+        }
+        for (ReplicaGroup<IResourceManager> group : dropped) {
+            removed.addAll(group.members());
+        }
+    }
+
+    // the primary of a shard, as a participant of a bundle
+    private static TransactionCoordinator.Participant participant(ShardMap<ReplicaGroup<IResourceManager>> shards, String name) {
+        return TransactionCoordinator.participant(name + "/" + shards.getType(), shards.all().get(name).primary());
+    }
+
+    private static ReplicaGroup<IResourceManager> shard(ShardMap<ReplicaGroup<IResourceManager>> shards, String key) throws RemoteException {
+        return shardNamed(shards, shardName(shards, key));
+    }
+
+    private static String shardName(ShardMap<ReplicaGroup<IResourceManager>> shards, String key) throws RemoteException {
+        String name = shards.nameOf(key);
+        if (name == null) {
+            throw new RemoteException("No " + shards.getType() + " manager available");
+        }
+        return name;
+    }
+
+    private static ReplicaGroup<IResourceManager> shardNamed(ShardMap<ReplicaGroup<IResourceManager>> shards, String name) throws RemoteException {
+        ReplicaGroup<IResourceManager> group = name == null ? null : shards.all().get(name);
+        if (group == null) {
+            throw new RemoteException("No " + shards.getType() + " manager available");
+        }
+        return group;
+    }
+
+    private static String firstShard(ShardMap<ReplicaGroup<IResourceManager>> shards) {
+        Iterator<String> names = shards.all().keySet().iterator();
+        return names.hasNext() ? names.next() : null;
+    }
+
+    // the shard holding a flight, car or room
+    private ReplicaGroup<IResourceManager> flightShard(int flightNum) throws RemoteException {
+        return shard(flightShards, Flight.getKey(flightNum));
+    }
+
+    private ReplicaGroup<IResourceManager> carShard(String location) throws RemoteException {
+        return shard(carShards, Car.getKey(location));
+    }
+
+    private ReplicaGroup<IResourceManager> roomShard(String location) throws RemoteException {
+        return shard(roomShards, Room.getKey(location));
+    }
+
+    /**
+     * Every shard: the flight shards, then the car shards, then the room shards
+     */
+    private List<ReplicaGroup<IResourceManager>> allShards() {
+        List<ReplicaGroup<IResourceManager>> groups = new Vector<>(flightShards.all().values());
+        groups.addAll(carShards.all().values());
+        groups.addAll(roomShards.all().values());
+        return groups;
+    }
+
+    // a call to one manager
+    private interface ManagerCall<T> {
+        T call(IResourceManager manager) throws RemoteException;
+    }
+
+    /**
+     * Call the primary of a shard.
+     * If the primary is gone, its backup is promoted and the call is made again
+     * when that is safe: always for a read, for a write only if it never reached
+     * the primary. Otherwise the write may have been applied, the caller gets the error.
+     * @param group
+     * @param read true if the call does not change any data
+     * @param call
+     * @return
+     * @throws RemoteException
+     */
+    private <T> T onPrimary(ReplicaGroup<IResourceManager> group, boolean read, ManagerCall<T> call) throws RemoteException {
+        IResourceManager primary = group.primary();
+        if (primary == null) {
+            throw new RemoteException("No manager left in " + group);
+        }
+        try {
+            return timed(primary, call);
+        } catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+            // not delivered
+            return call.call(failover(group, primary, e));
+        } catch (UnmarshalException e) {
+            // delivered, the answer was lost
+            IResourceManager promoted = failover(group, primary, e);
+            if (!read) {
+                throw new RemoteException("Manager of " + group + " failed over, the outcome is unknown", e);
+            }
+            return call.call(promoted);
+        }
+    }
+
+    /**
+     * Promote the backups of a failed primary until one accepts
+     * @return the new primary
+     * @throws RemoteException if no backup is left
+     */
+    private static IResourceManager failover(ReplicaGroup<IResourceManager> group, IResourceManager failed, RemoteException cause) throws RemoteException {
+        IResourceManager primary = group.failover(failed);
+        // the fencing token: above the epoch of any earlier failover
+        long epoch = System.currentTimeMillis();
+        while (primary != null) {
+            try {
+                // idempotent, another request may have promoted it already
+                primary.promote(epoch);
+                return primary;
+            } catch (RemoteException e) {
+                primary = group.failover(primary);
+            }
+        }
+        throw new RemoteException("No manager left in " + group, cause);
+    }
+
+    // a call timed for the latency tracker
+    private <T> T timed(IResourceManager manager, ManagerCall<T> call) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            return call.call(manager);
+        } finally {
+            latencies.record(manager, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Send a read to a backup of the shard, or to the primary if the
+     * backup can't answer, e.g. because it is behind by more than replica.maxStalenessMs.
+     * Of the next two replicas, the one answering faster lately gets the read;
+     * if it is slower than its p95, the other one gets it as well.
+     */
+    private <T> T onReplica(ReplicaGroup<IResourceManager> group, ManagerCall<T> call) throws RemoteException {
+        IResourceManager primary = group.primary();
+        IResourceManager replica = group.readReplica();
+        if (replica == null || replica.equals(primary)) {
+            return onPrimary(group, true, call);
+        }
+        IResourceManager other = group.readReplica();
+        if (other.equals(replica)) {
+            other = primary;
+        } else if (latencies.faster(replica, other).equals(other)) {
+            IResourceManager faster = other;
+            other = replica;
+            replica = faster;
+        }
+        final IResourceManager first = replica;
+        final IResourceManager hedge = other;
+
+        long p95 = latencies.percentile(first, 0.95);
+        long hedgeDelay = p95 >= 0 ? p95 : TimeUnit.MILLISECONDS.toNanos(hedgeDelayMs);
+        try {
+            return fanOut.invokeHedged(() -> timed(first, call), hedge == null ? null : () -> timed(hedge, call), hedgeDelay);
+        } catch (Exception e) {
+            // behind, down or too slow: the primary answers
+            return onPrimary(group, true, call);
+        }
+    }
+
+    /**
+     * Group flight numbers by the manager holding them
+     * @return the flight numbers by shard name
+     */
+    private Map<String, Vector<String>> flightsByShard(List<String> flightNumbers) throws RemoteException {
+        Map<String, Vector<String>> byShard = new LinkedHashMap<>();
+        for (String flightNumber : flightNumbers) {
+            String name;
+            try {
+                name = flightShards.nameOf(Flight.getKey(Integer.parseInt(flightNumber)));
+            } catch (NumberFormatException e) {
+                // malformed, any manager rejects it
+                name = firstShard(flightShards);
+            }
+            if (name == null) {
+                throw new RemoteException("No flights manager available");
+            }
+            byShard.computeIfAbsent(name, n -> new Vector<>()).add(flightNumber);
+        }
+        return byShard;
+    }
+
+    // receives the invalidations of the managers
+    private static class CacheInvalidator implements IInvalidationListener {
+        private final QueryCache cache;
+
+        CacheInvalidator(QueryCache cache) {
+            this.cache = cache;
+        }
+
+        public void invalidate(String key) {
+            cache.invalidate(key);
+        }
+    }
+
+    // a query forwarded to a manager on a cache miss
+    private interface RemoteQuery {
+        int query() throws RemoteException;
+    }
+
+    private int cachedQuery(String key, RemoteQuery query) throws RemoteException {
+        Integer cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long epoch = cache.epoch();
+        // identical queries running at the same time share one call to the manager,
+        // unless an invalidation came in between
+        int value = inFlightQueries.execute(epoch + ":" + key, query::query);
+        cache.put(key, value, epoch);
+        return value;
     }
 
     public static void main(String args[]) {
 
         if (args.length < 3) {
-            System.err.println ("<usage> java Server.RMI.Middleware <flightHost> <carHost> <roomHost>");
+            System.err.println ("<usage> java Server.RMI.Middleware <flightHosts> <carHosts> <roomHosts>");
+            System.err.println ("  each a comma-separated list of host[:port], one per shard,");
+            System.err.println ("  a shard with backups is primary+backup+..., e.g. host1:3031+host2:3031");
             System.exit(1);
         }
 
-        // host name + complete name(prefix + server name) of flight manager
-        String flightHost = args[0];
+        // host names + complete name(prefix + server name) of the flight managers
+        List<String> flightHosts = ShardMap.parseList(args[0]);
         String flightName = "Flights";
 
-        // host name + complete name(prefix + server name) of car manager
-        String carHost = args[1];
+        // host names + complete name(prefix + server name) of the car managers
+        List<String> carHosts = ShardMap.parseList(args[1]);
         String carName = "Cars";
 
-        // host name + complete name(prefix + server name) of room manager
-        String roomHost = args[2];
+        // host names + complete name(prefix + server name) of the room managers
+        List<String> roomHosts = ShardMap.parseList(args[2]);
         String roomName = "Rooms";
 
         // Create the RMI server entry
         try {
 
-            // IMPORTANT: assume each manager runs on a different host with the same port number.
-            IResourceManager flightManager = connectToResourceManager(flightHost, flightName);
-            IResourceManager carManager = connectToResourceManager(carHost, carName);
-            IResourceManager roomManager = connectToResourceManager(roomHost, roomName);
+            // a manager given without a port uses the default registry port,
+            // the backups of a shard are bound under the same name as their primary
+            ShardMap<ReplicaGroup<IResourceManager>> flightShards = new ShardMap<>("flights");
+            for (String spec : flightHosts) {
+                flightShards.put(spec, ReplicaGroup.of(spec, address -> connectToResourceManager(address, flightName)));
+            }
+            ShardMap<ReplicaGroup<IResourceManager>> carShards = new ShardMap<>("cars");
+            for (String spec : carHosts) {
+                carShards.put(spec, ReplicaGroup.of(spec, address -> connectToResourceManager(address, carName)));
+            }
+            ShardMap<ReplicaGroup<IResourceManager>> roomShards = new ShardMap<>("rooms");
+            for (String spec : roomHosts) {
+                roomShards.put(spec, ReplicaGroup.of(spec, address -> connectToResourceManager(address, roomName)));
+            }
+
+            // the commit log survives restarts of the middleware
+            TransactionCoordinator coordinator = new TransactionCoordinator(coordinatorLog, rmTimeout);
 
             // Create a middleware
-            // using customized server name and the received 3 resource managers
-            Middleware middleware = new Middleware(s_serverName, flightManager, carManager, roomManager);
+            // using customized server name and the received resource managers
+            Middleware middleware = new Middleware(s_serverName, flightShards, carShards, roomShards, coordinator);
+            middleware.recover();
+            middleware.subscribeToManagers();
+            if (shardsFile != null) {
+                ShardMap.watch(shardsFile, shardsReloadMs, middleware::reloadShards);
+            }
 
             // Dynamically export the object, generate the stub (client proxy)
             IResourceManager middlewareStub = (IResourceManager) UnicastRemoteObject.exportObject(middleware, 0);
@@ -102,21 +448,20 @@ public class Middleware extends ResourceManager {
 
     }
 
-    private static IResourceManager connectToResourceManager(String host, String name) {
+    private static IResourceManager connectToResourceManager(String address, String name) {
         try {
             boolean first = true;
             while (true) {
                 try {
 
-                    Registry registry = LocateRegistry.getRegistry(host, port);
-                    IResourceManager manager = (IResourceManager) registry.lookup(s_rmiPrefix + name);
+                    IResourceManager manager = lookupResourceManager(address, name);
 
-                    System.out.println("Connected to '" + name + "' server [" + host + ":" + port + "/" + s_rmiPrefix + name + "]");
+                    System.out.println("Connected to '" + name + "' server [" + address + "/" + s_rmiPrefix + name + "]");
                     return manager;
                 }
                 catch (NotBoundException | RemoteException e) {
                     if (first) {
-                        System.out.println("Waiting for '" + name + "' server [" + host + ":" + port + "/" + s_rmiPrefix + name + "]");
+                        System.out.println("Waiting for '" + name + "' server [" + address + "/" + s_rmiPrefix + name + "]");
                         first = false;
                     }
                 }
@@ -131,132 +476,223 @@ public class Middleware extends ResourceManager {
         return null;
     }
 
+    /**
+     * @param address host[:port] of the manager's registry
+     * @param name server name of the manager
+     */
+    private static IResourceManager lookupResourceManager(String address, String name) throws NotBoundException, RemoteException {
+        String host = address;
+        int registryPort = port;
+        int colon = address.lastIndexOf(':');
+        if (colon >= 0) {
+            host = address.substring(0, colon);
+            try {
+                registryPort = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new RemoteException("Invalid manager address: " + address);
+            }
+        }
+        Registry registry = LocateRegistry.getRegistry(host, registryPort);
+        return (IResourceManager) registry.lookup(s_rmiPrefix + name);
+    }
+
+    /**
+     * Reserve the bundle as a two-phase commit transaction:
+     * each manager gets one prepare with all of its items, the bundle is atomic.
+     */
     @Override
     public boolean bundle(int customerID, Vector<String> flightNumbers, String location, boolean reserveCar, boolean reserveRoom) throws RemoteException {
+        return bundle(null, customerID, flightNumbers, location, reserveCar, reserveRoom);
+    }
+
+    /**
+     * The bundle, as part of the client's trace;
+     * sampled here if the client does not trace it
+     */
+    @Override
+    public boolean bundle(TraceContext trace, int customerID, Vector<String> flightNumbers, String location, boolean reserveCar, boolean reserveRoom) throws RemoteException {
+        try (Tracer.Span span = Tracer.joinOrRoot("middleware", "Bundle", trace)) {
+            boolean reserved = reserveBundle(customerID, flightNumbers, location, reserveCar, reserveRoom);
+            span.tag("status", reserved);
+            return reserved;
+        }
+    }
+
+    private boolean reserveBundle(int customerID, Vector<String> flightNumbers, String location, boolean reserveCar, boolean reserveRoom) throws RemoteException {
 
         System.out.println("Starting bundle reservation for customer: " + customerID);
         System.out.println("Location: " + location + ", Reserve Car: " + reserveCar + ", Reserve Room: " + reserveRoom);
 
-        Vector<Integer> reservedFlights = new Vector<>();
-        // Try to reserve flights
-        for (String flightNumStr : flightNumbers) {
-            int flightNum = Integer.parseInt(flightNumStr);
-            boolean flightReserved = flightManager.reserveFlight(customerID, flightNum);
-
-            if (flightReserved) {
-                System.out.println("Flight " + flightNum + " reserved for customer " + customerID);
-                reservedFlights.add(flightNum);
-            } else {
-                System.out.println("Failed to reserve flight " + flightNum + " for customer " + customerID);
-                System.out.println("Rollback:");
-                if(!reservedFlights.isEmpty()){
-                    for(int reservedFlightNum : reservedFlights){
-                        boolean flightCanceled = flightManager.cancelReserveFlight(customerID, reservedFlightNum);
-                        System.out.println("Flight reservation canceled for number " + flightNum);
-                    }
-                }
-                System.out.println("Rollback completes for customer:" + customerID );
-                return false;
-            }
+        // one branch per manager, the flights may be spread over several of them
+        List<TransactionCoordinator.Branch> branches = new Vector<>();
+        for (Map.Entry<String, Vector<String>> shard : flightsByShard(flightNumbers).entrySet()) {
+            branches.add(new TransactionCoordinator.Branch(participant(flightShards, shard.getKey()), customerID, shard.getValue(), location, false, false));
         }
-
-        // reserve a car if the customer wants
         if (reserveCar) {
-            boolean carReserved = carManager.reserveCar(customerID, location);
-            if (carReserved) {
-                System.out.println("Car reserved at " + location + " for customer " + customerID);
-            } else {
-                System.out.println("Failed to reserve car at " + location + " for customer " + customerID);
-                System.out.println("Rollback:");
-                if(!reservedFlights.isEmpty()){
-                    for(int flightNum : reservedFlights){
-                        boolean flightCanceled = flightManager.cancelReserveFlight(customerID, flightNum);
-                        System.out.println("Flight reservation canceled for number " + flightNum);
-                    }
-                }
-                System.out.println("Rollback completes for customer:" + customerID );
+            branches.add(new TransactionCoordinator.Branch(participant(carShards, shardName(carShards, Car.getKey(location))), customerID, new Vector<>(), location, true, false));
+        }
+        if (reserveRoom) {
+            branches.add(new TransactionCoordinator.Branch(participant(roomShards, shardName(roomShards, Room.getKey(location))), customerID, new Vector<>(), location, false, true));
+        }
 
-                return false;
+        return execute(branches);
+    }
+
+    /**
+     * Run a bundle as planned from the cached availability counts:
+     * refused without calling a manager if an item is known to be sold out
+     */
+    private boolean execute(List<TransactionCoordinator.Branch> branches) {
+        BundlePlanner.Plan plan = planner.plan(branches, this::probeCounts);
+        if (plan.isDoomed()) {
+            System.out.println("Bundle refused, " + plan.getRefusal());
+            return false;
+        }
+        boolean committed = coordinator.execute(plan.getBranches(), plan.isScarceFirst());
+        // the managers push invalidations as well, but a client must see its own change right away
+        for (TransactionCoordinator.Branch branch : branches) {
+            invalidateFlights(branch.getFlightNumbers());
+            if (branch.isCar()) {
+                cache.invalidate(Car.getKey(branch.getLocation()));
+            }
+            if (branch.isRoom()) {
+                cache.invalidate(Room.getKey(branch.getLocation()));
             }
         }
+        return committed;
+    }
 
-        // reserve a room if the customer wants
-        if (reserveRoom) {
-            boolean roomReserved = roomManager.reserveRoom(customerID, location);
-            if (roomReserved) {
-                System.out.println("Room reserved at " + location + " for customer " + customerID);
-            } else {
-                System.out.println("Failed to reserve room at " + location + " for customer " + customerID);
-                System.out.println("Rollback:");
-                // rollback previous registered flights
-                if(!reservedFlights.isEmpty()){
-                    for(int flightNum : reservedFlights){
-                        boolean flightCanceled = flightManager.cancelReserveFlight(customerID, flightNum);
-                        System.out.println("Flight reservation canceled for number " + flightNum);
-                    }
-                }
-                // if also reserving a car, rollback previous registered car
-                if(reserveCar){
-                    boolean carCanceled = carManager.cancelReserveCar(customerID, location);
-                    System.out.println("Car reservation canceled at location " + location);
-                }
-                System.out.println("Rollback completes for customer:" + customerID );
-
-                return false;
+    // drop the cached counts and prices of several flights
+    private void invalidateFlights(List<String> flightNumbers) {
+        for (String flightNumber : flightNumbers) {
+            try {
+                cache.invalidate(Flight.getKey(Integer.parseInt(flightNumber)));
+            } catch (NumberFormatException e) {
+                // malformed, nothing cached for it
             }
         }
+    }
 
+    // query the counts of the items of a bundle branch, into the cache
+    private void probeCounts(TransactionCoordinator.Branch branch) throws RemoteException {
+        for (String flightNumber : branch.getFlightNumbers()) {
+            queryFlight(Integer.parseInt(flightNumber));
+        }
+        if (branch.isCar()) {
+            queryCars(branch.getLocation());
+        }
+        if (branch.isRoom()) {
+            queryRooms(branch.getLocation());
+        }
+    }
 
-        return true;
+    /**
+     * Run the same operation on every manager concurrently,
+     * a customer exists on every shard of every resource type.
+     * @param operation used in error messages
+     * @return the results of the flight, car and room managers, in this order
+     * @throws RemoteException if one of the managers failed or did not answer in time
+     */
+    private <T> List<T> onAllManagers(String operation, boolean read, ManagerCall<T> call) throws RemoteException {
+        return onManagers(allShards(), operation, read, call);
+    }
+
+    /**
+     * Run the same operation on the given managers concurrently
+     * @param managers
+     * @param operation used in error messages
+     * @return the results, in the order of the managers
+     * @throws RemoteException if one of the managers failed or did not answer in time
+     */
+    private <T> List<T> onManagers(List<ReplicaGroup<IResourceManager>> managers, String operation, boolean read, ManagerCall<T> call) throws RemoteException {
+        List<Callable<T>> calls = new Vector<>();
+        for (ReplicaGroup<IResourceManager> group : managers) {
+            calls.add(() -> onPrimary(group, read, call));
+        }
+        List<FanOut.Result<T>> results = fanOut.invokeAll(calls);
+
+        Vector<T> values = new Vector<>();
+        for (int i = 0; i < results.size(); i++) {
+            FanOut.Result<T> result = results.get(i);
+            if (!result.isSuccess()) {
+                throw new RemoteException(operation + " failed in manager " + i + " of " + managers.size(), result.getError());
+            }
+            values.add(result.getValue());
+        }
+        return values;
     }
 
     @Override
     public boolean deleteCustomer(int customerID) throws RemoteException {
         // Delete customer from all managers
+        List<Boolean> deleted = onAllManagers("deleteCustomer", false, manager -> manager.deleteCustomer(customerID));
 
-        boolean flightDeleted, carDeleted, roomDeleted;
-
-        flightDeleted = flightManager.deleteCustomer(customerID);
-        carDeleted = carManager.deleteCustomer(customerID);
-        roomDeleted = roomManager.deleteCustomer(customerID);
-
-        return flightDeleted && carDeleted && roomDeleted;
+        return !deleted.contains(false);
     }
 
     @Override
     public int newCustomer() throws RemoteException{
-        int customerID = -1;
-
-        customerID = flightManager.newCustomer();
+        List<ReplicaGroup<IResourceManager>> managers = allShards();
+        if (managers.isEmpty()) {
+            throw new RemoteException("No manager available");
+        }
 
-        boolean carCreated = false;
-        boolean roomCreated = false;
+        // the first manager generates the id, the others reuse it
+        final int id = onPrimary(managers.get(0), false, manager -> manager.newCustomer());
+        List<ReplicaGroup<IResourceManager>> others = managers.subList(1, managers.size());
 
-        try{
-            carCreated = carManager.newCustomer(customerID);
-            roomCreated = roomManager.newCustomer(customerID);
-        }catch (RemoteException  e){
-            System.err.println("Error creating customer in one of the ResourceManagers: " + e.getMessage());
-            return -1;
+        List<Callable<Boolean>> creations = new Vector<>();
+        for (ReplicaGroup<IResourceManager> group : others) {
+            creations.add(() -> onPrimary(group, false, manager -> manager.newCustomer(id)));
+        }
+        List<FanOut.Result<Boolean>> results = fanOut.invokeAll(creations);
+
+        // a manager that failed or timed out counts as not created
+        boolean[] created = new boolean[managers.size()];
+        created[0] = true;
+        boolean allCreated = true;
+        for (int i = 0; i < results.size(); i++) {
+            FanOut.Result<Boolean> result = results.get(i);
+            if (!result.isSuccess()) {
+                System.err.println("Error creating customer in one of the ResourceManagers: " + result.getError().getMessage());
+            }
+            created[i + 1] = result.isSuccess() && result.getValue();
+            allCreated &= created[i + 1];
         }
 
-        if(!carCreated || !roomCreated){
-            rollbackAddingCustomer(customerID);
+        if(!allCreated){
+            rollbackAddingCustomer(id, managers, created);
             System.err.println("Failed to create customer in all ResourceManagers.");
             return -1;
         }
 
-        return customerID;
+        return id;
     }
 
     @Override
     public boolean newCustomer(int customerID) throws RemoteException{
-        boolean flightCreated = flightManager.newCustomer(customerID);
-        boolean carCreated = carManager.newCustomer(customerID);;
-        boolean roomCreated = roomManager.newCustomer(customerID);
+        List<ReplicaGroup<IResourceManager>> managers = allShards();
+        List<Callable<Boolean>> creations = new Vector<>();
+        for (ReplicaGroup<IResourceManager> group : managers) {
+            creations.add(() -> onPrimary(group, false, manager -> manager.newCustomer(customerID)));
+        }
+        List<FanOut.Result<Boolean>> results = fanOut.invokeAll(creations);
+
+        // a manager that failed or timed out counts as not created
+        boolean[] created = new boolean[results.size()];
+        boolean allCreated = true;
+        for (int i = 0; i < results.size(); i++) {
+            FanOut.Result<Boolean> result = results.get(i);
+            if (!result.isSuccess()) {
+                System.err.println("Error creating customer in one of the ResourceManagers: " + result.getError().getMessage());
+            }
+            created[i] = result.isSuccess() && result.getValue();
+            allCreated &= created[i];
+        }
 
-        if (!flightCreated || !carCreated || !roomCreated) {
-            rollbackAddingCustomer(customerID);
+        if (!allCreated) {
+            // only undo the creations made by this call, the customer may have existed before
+            rollbackAddingCustomer(customerID, managers, created);
             System.err.println("Failed to create customer across all ResourceManagers.");
             return false;
         }
@@ -265,37 +701,47 @@ public class Middleware extends ResourceManager {
     }
 
     // helper method only
-    private void rollbackAddingCustomer(int customerId) {
-
-        // Rollback customer creation in all managers
-        try {
-            flightManager.deleteCustomer(customerId);
-        } catch (RemoteException e) {
-            System.err.println("Failed to rollback customer creation in flightManager: " + e.getMessage());
-        }
-
-        try {
-            carManager.deleteCustomer(customerId);
-        } catch (RemoteException e) {
-            System.err.println("Failed to rollback customer creation in carManager: " + e.getMessage());
+    // deletes the customer from the managers where it was just created
+    private void rollbackAddingCustomer(int customerId, List<ReplicaGroup<IResourceManager>> managers, boolean[] created) {
+
+        // Rollback customer creation in all those managers at the same time
+        List<Callable<Boolean>> rollbacks = new Vector<>();
+        List<Integer> rolledBack = new Vector<>();
+        for (int i = 0; i < managers.size(); i++) {
+            if (created[i]) {
+                ReplicaGroup<IResourceManager> group = managers.get(i);
+                rollbacks.add(() -> onPrimary(group, false, manager -> manager.deleteCustomer(customerId)));
+                rolledBack.add(i);
+            }
         }
 
-        try {
-            roomManager.deleteCustomer(customerId);
-        } catch (RemoteException e) {
-            System.err.println("Failed to rollback customer creation in roomManager: " + e.getMessage());
+        List<FanOut.Result<Boolean>> results = fanOut.invokeAll(rollbacks);
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.get(i).isSuccess()) {
+                System.err.println("Failed to rollback customer creation in manager " + rolledBack.get(i) + ": " + results.get(i).getError().getMessage());
+            }
         }
     }
 
     @Override
     public String queryCustomerInfo(int customerID) throws RemoteException{
 
-        String flightInfo, carInfo, roomInfo;
+        // not coalesced like the item queries: no cache epoch moves with the customer's own reservations
 
-        flightInfo = "Flights " + flightManager.queryCustomerInfo(customerID);
-        carInfo = "Cars " + carManager.queryCustomerInfo(customerID);
-        roomInfo = "Rooms " + roomManager.queryCustomerInfo(customerID);
+        // one view of the shards, so that the bills are split the way they were asked for
+        List<ReplicaGroup<IResourceManager>> flightManagers = new Vector<>(flightShards.all().values());
+        List<ReplicaGroup<IResourceManager>> carManagers = new Vector<>(carShards.all().values());
+        List<ReplicaGroup<IResourceManager>> managers = new Vector<>(flightManagers);
+        managers.addAll(carManagers);
+        managers.addAll(roomShards.all().values());
+        int flights = flightManagers.size();
+        int cars = carManagers.size();
+        List<String> info = onManagers(managers, "queryCustomerInfo", true, manager -> manager.queryCustomerInfo(customerID));
 
+        // the bills of the shards of a resource type are merged
+        String flightInfo = "Flights " + Customer.mergeBills(info.subList(0, flights));
+        String carInfo = "Cars " + Customer.mergeBills(info.subList(flights, flights + cars));
+        String roomInfo = "Rooms " + Customer.mergeBills(info.subList(flights + cars, info.size()));
 
         return flightInfo + carInfo + roomInfo;
     }
@@ -304,61 +750,112 @@ public class Middleware extends ResourceManager {
     @Override
     public boolean addFlight(int flightNum, int flightSeats, int flightPrice) throws RemoteException {
 
-        return flightManager.addFlight(flightNum, flightSeats, flightPrice);
+        boolean result = onPrimary(flightShard(flightNum), false, manager -> manager.addFlight(flightNum, flightSeats, flightPrice));
+        cache.invalidate(Flight.getKey(flightNum));
+        return result;
 
     }
 
     @Override
     public boolean addCars(String location, int count, int price) throws RemoteException{
 
-        return carManager.addCars(location, count, price);
+        boolean result = onPrimary(carShard(location), false, manager -> manager.addCars(location, count, price));
+        cache.invalidate(Car.getKey(location));
+        return result;
 
     }
 
     @Override
     public boolean addRooms(String location, int count, int price) throws RemoteException{
 
-        return roomManager.addRooms(location, count, price);
+        boolean result = onPrimary(roomShard(location), false, manager -> manager.addRooms(location, count, price));
+        cache.invalidate(Room.getKey(location));
+        return result;
 
     }
 
     @Override
     public boolean deleteFlight(int flightNum) throws RemoteException {
 
-        return flightManager.deleteFlight(flightNum);
+        boolean result = onPrimary(flightShard(flightNum), false, manager -> manager.deleteFlight(flightNum));
+        cache.invalidate(Flight.getKey(flightNum));
+        return result;
 
     }
     @Override
     public boolean deleteCars(String location) throws RemoteException {
 
-        return carManager.deleteCars(location);
+        boolean result = onPrimary(carShard(location), false, manager -> manager.deleteCars(location));
+        cache.invalidate(Car.getKey(location));
+        return result;
 
     }
     @Override
     public boolean deleteRooms(String location) throws RemoteException{
 
-        return roomManager.deleteRooms(location);
+        boolean result = onPrimary(roomShard(location), false, manager -> manager.deleteRooms(location));
+        cache.invalidate(Room.getKey(location));
+        return result;
 
     }
 
     @Override
     public boolean reserveRoom(int customerID, String location) throws RemoteException{
 
-        return roomManager.reserveRoom(customerID, location);
+        boolean result = onPrimary(roomShard(location), false, manager -> manager.reserveRoom(customerID, location));
+        cache.invalidate(Room.getKey(location));
+        return result;
 
     }
 
     @Override
     public boolean reserveFlight(int customerID, int flightNum) throws RemoteException{
 
-        return flightManager.reserveFlight(customerID, flightNum);
+        boolean result = onPrimary(flightShard(flightNum), false, manager -> manager.reserveFlight(customerID, flightNum));
+        cache.invalidate(Flight.getKey(flightNum));
+        return result;
 
     }
 
     @Override
     public boolean reserveCar(int customerID, String location) throws RemoteException{
 
-        return carManager.reserveCar(customerID, location);
+        boolean result = onPrimary(carShard(location), false, manager -> manager.reserveCar(customerID, location));
+        cache.invalidate(Car.getKey(location));
+        return result;
+
+    }
+
+    @Override
+    public boolean reserveFlights(int customerID, Vector<String> flightNumbers) throws RemoteException{
+
+        Map<String, Vector<String>> byShard = flightsByShard(flightNumbers);
+        if (byShard.size() <= 1) {
+            String name = byShard.isEmpty() ? firstShard(flightShards) : byShard.keySet().iterator().next();
+            boolean result = onPrimary(shardNamed(flightShards, name), false, manager -> manager.reserveFlights(customerID, flightNumbers));
+            invalidateFlights(flightNumbers);
+            return result;
+        }
+
+        // flights spread over several managers are reserved as one transaction
+        List<TransactionCoordinator.Branch> branches = new Vector<>();
+        for (Map.Entry<String, Vector<String>> shard : byShard.entrySet()) {
+            branches.add(new TransactionCoordinator.Branch(participant(flightShards, shard.getKey()), customerID, shard.getValue(), "", false, false));
+        }
+        return execute(branches);
+
+    }
+
+    @Override
+    public boolean cancelReserveFlights(int customerID, Vector<String> flightNumbers) throws RemoteException{
+
+        // cancellations are independent of each other, cancel what can be
+        boolean cancelled = true;
+        for (Map.Entry<String, Vector<String>> shard : flightsByShard(flightNumbers).entrySet()) {
+            cancelled &= onPrimary(shardNamed(flightShards, shard.getKey()), false, manager -> manager.cancelReserveFlights(customerID, shard.getValue()));
+        }
+        invalidateFlights(flightNumbers);
+        return cancelled;
 
     }
 
@@ -366,7 +863,7 @@ public class Middleware extends ResourceManager {
     public int queryFlightPrice(int flightNum) throws RemoteException
     {
 
-        return flightManager.queryFlightPrice(flightNum);
+        return cachedQuery(QueryCache.priceKey(Flight.getKey(flightNum)), () -> onReplica(flightShard(flightNum), manager -> manager.queryFlightPrice(flightNum)));
 
     }
 
@@ -374,7 +871,7 @@ public class Middleware extends ResourceManager {
     public int queryCarsPrice(String location) throws RemoteException
     {
 
-        return carManager.queryCarsPrice(location);
+        return cachedQuery(QueryCache.priceKey(Car.getKey(location)), () -> onReplica(carShard(location), manager -> manager.queryCarsPrice(location)));
 
     }
 
@@ -382,7 +879,7 @@ public class Middleware extends ResourceManager {
     public int queryRoomsPrice(String location) throws RemoteException
     {
 
-        return roomManager.queryRoomsPrice(location);
+        return cachedQuery(QueryCache.priceKey(Room.getKey(location)), () -> onReplica(roomShard(location), manager -> manager.queryRoomsPrice(location)));
 
     }
 
@@ -390,7 +887,7 @@ public class Middleware extends ResourceManager {
     public int queryFlight(int flightNum) throws RemoteException
     {
 
-        return flightManager.queryFlight(flightNum);
+        return cachedQuery(QueryCache.countKey(Flight.getKey(flightNum)), () -> onReplica(flightShard(flightNum), manager -> manager.queryFlight(flightNum)));
 
     }
 
@@ -398,7 +895,7 @@ public class Middleware extends ResourceManager {
     public int queryCars(String location) throws RemoteException
     {
 
-        return carManager.queryCars(location);
+        return cachedQuery(QueryCache.countKey(Car.getKey(location)), () -> onReplica(carShard(location), manager -> manager.queryCars(location)));
 
     }
 
@@ -406,7 +903,7 @@ public class Middleware extends ResourceManager {
     public int queryRooms(String location) throws RemoteException
     {
 
-        return roomManager.queryRooms(location);
+        return cachedQuery(QueryCache.countKey(Room.getKey(location)), () -> onReplica(roomShard(location), manager -> manager.queryRooms(location)));
 
     }
 
@@ -0,0 +1,129 @@
+package Server.RMI;
+
+import Server.Common.ReplicationRecord;
+import Server.Common.ResourceManager;
+import Server.Interface.IReplicationListener;
+import Server.Interface.IResourceManager;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * Keeps a backup manager in sync with its primary:
+ * registers a listener for the primary's replication log and applies it.
+ * When the heartbeats stop, the listener is replaced and the backup resumes
+ * after the last record applied, until it is promoted. The old primary is then
+ * fenced off, if it can be reached, so that it stops taking writes.
+ */
+class RMIReplicationFollower extends Thread {
+
+    private static final long checkInterval = 500;
+    // no heartbeat for this long and the primary is considered lost
+    private static final long silenceLimit = Long.getLong("replication.silenceMs", 2000);
+
+    private final String primaryHost;
+    private final int primaryPort;
+    private final String primaryName;
+    private final ResourceManager resourceManager;
+
+    /**
+     * @param primary host[:port] of the primary's registry
+     * @param primaryName registry name of the primary
+     * @param defaultPort registry port if primary has none
+     * @param resourceManager the backup
+     */
+    RMIReplicationFollower(String primary, String primaryName, int defaultPort, ResourceManager resourceManager) {
+        super("replication<-" + primary);
+        int colon = primary.lastIndexOf(':');
+        this.primaryHost = colon < 0 ? primary : primary.substring(0, colon);
+        this.primaryPort = colon < 0 ? defaultPort : Integer.parseInt(primary.substring(colon + 1));
+        this.primaryName = primaryName;
+        this.resourceManager = resourceManager;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        IReplicationListener listener = null;
+        long lastRecord = 0;
+
+        while (resourceManager.isBackup()) {
+            if (listener == null || System.currentTimeMillis() - lastRecord > silenceLimit) {
+                if (listener != null) {
+                    // the primary gets NoSuchObjectException and drops the old listener
+                    unexport(listener);
+                    listener = null;
+                    System.err.println("Lost the primary " + primaryHost + ":" + primaryPort);
+                }
+                try {
+                    listener = follow();
+                    lastRecord = System.currentTimeMillis();
+                } catch (Exception e) {
+                    // not reachable yet, try again
+                }
+            }
+
+            try {
+                Thread.sleep(checkInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long lastHeard = resourceManager.getLastReplicationTime();
+            if (lastHeard > lastRecord) {
+                lastRecord = lastHeard;
+            }
+        }
+        if (listener != null) {
+            unexport(listener);
+        }
+        System.out.println("Promoted, no longer following " + primaryHost + ":" + primaryPort);
+        fence();
+    }
+
+    /**
+     * Tell the old primary that it was replaced, in case it is only cut off from the middleware
+     */
+    private void fence() {
+        try {
+            Registry registry = LocateRegistry.getRegistry(primaryHost, primaryPort);
+            IResourceManager primary = (IResourceManager) registry.lookup(primaryName);
+            primary.fence(resourceManager.getEpoch());
+            System.out.println("Fenced off the old primary " + primaryHost + ":" + primaryPort);
+        } catch (Exception e) {
+            // unreachable from here, it stays writable until it is fenced off or stopped
+            System.err.println("Could not fence off the old primary " + primaryHost + ":" + primaryPort + ": " + e.getMessage());
+        }
+    }
+
+    private IReplicationListener follow() throws Exception {
+        Registry registry = LocateRegistry.getRegistry(primaryHost, primaryPort);
+        IResourceManager primary = (IResourceManager) registry.lookup(primaryName);
+
+        IReplicationListener listener = new IReplicationListener() {
+            public void replicate(ReplicationRecord record) {
+                resourceManager.applyReplication(record);
+            }
+        };
+        IReplicationListener stub = (IReplicationListener) UnicastRemoteObject.exportObject(listener, 0);
+        long fromSequence = resourceManager.getReplicationSequence();
+        try {
+            primary.replicateTo(stub, fromSequence, resourceManager.getEpoch());
+        } catch (RemoteException e) {
+            unexport(listener);
+            throw e;
+        }
+        System.out.println("Following the primary " + primaryHost + ":" + primaryPort + " from #" + fromSequence);
+        return listener;
+    }
+
+    private static void unexport(IReplicationListener listener) {
+        try {
+            UnicastRemoteObject.unexportObject(listener, true);
+        } catch (NoSuchObjectException e) {
+            // already gone
+        }
+    }
+}
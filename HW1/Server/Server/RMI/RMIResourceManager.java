@@ -18,6 +18,9 @@ public class RMIResourceManager extends ResourceManager
 	private static String s_serverName = "Server";
 	//TODO: ADD YOUR GROUP NUMBER TO COMPLETE
 	private static String s_rmiPrefix = "group_31_";
+	// registry port of a manager given without one
+	private static final int s_defaultPort = 3031;
+	private static int s_port = s_defaultPort;
 
 	public static void main(String args[])
 	{
@@ -25,21 +28,34 @@ public class RMIResourceManager extends ResourceManager
 		{
 			s_serverName = args[0];
 		}
+		// several shards of a resource type can share a host, each with its own registry,
+		// a backup is given the host[:port] of its primary
+		if (args.length > 1)
+		{
+			s_port = Integer.parseInt(args[1]);
+		}
 			
 		// Create the RMI server entry
 		try {
 			// Create a new Server object
 			RMIResourceManager server = new RMIResourceManager(s_serverName);
 
+			// a backup follows the log of its primary, bound under the same name
+			if (args.length > 2)
+			{
+				server.becomeBackup();
+				new RMIReplicationFollower(args[2], s_rmiPrefix + s_serverName, s_defaultPort, server).start();
+			}
+
 			// Dynamically generate the stub (client proxy)
 			IResourceManager resourceManager = (IResourceManager)UnicastRemoteObject.exportObject(server, 0);
 
 			// Bind the remote object's stub in the registry
 			Registry l_registry;
 			try {
-				l_registry = LocateRegistry.createRegistry(3031);
+				l_registry = LocateRegistry.createRegistry(s_port);
 			} catch (RemoteException e) {
-				l_registry = LocateRegistry.getRegistry(3031);
+				l_registry = LocateRegistry.getRegistry(s_port);
 			}
 			final Registry registry = l_registry;
 			registry.rebind(s_rmiPrefix + s_serverName, resourceManager);
@@ -0,0 +1,100 @@
+package Server.TCP;
+
+import Client.Command;
+import Server.Common.MessageChannel;
+import Server.Common.QueryCache;
+import Server.Common.WaitlistNotice;
+
+import java.io.IOException;
+
+/**
+ * Keeps the middleware's query cache fresh:
+ * subscribes to the invalidations of one RM over a dedicated connection
+ * and drops the cached entries of every item the RM reports as changed.
+ * The waitlist notices of the RM come on the same connection, and are passed
+ * on to the clients listening for them.
+ * When the connection breaks, the whole cache is cleared and the subscriber reconnects.
+ */
+class InvalidationSubscriber extends Thread {
+
+    private static final long reconnectDelay = 1000;
+
+    private final String address;
+    private final QueryCache cache;
+
+    // set once the RM is no longer used
+    private volatile boolean closed = false;
+    private volatile MessageChannel channel;
+
+    /**
+     * @param address host[:port] of the RM
+     * @param cache
+     */
+    InvalidationSubscriber(String address, QueryCache cache) {
+        super("invalidations<-" + address);
+        this.address = address;
+        this.cache = cache;
+        setDaemon(true);
+    }
+
+    /**
+     * Stop following the RM, e.g. when it was removed from the shards.
+     */
+    void close() {
+        closed = true;
+        interrupt();
+        MessageChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // already broken
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            boolean subscribed = false;
+            try (MessageChannel channel = new MessageChannel(TCPMiddleware.connect(address), getName())) {
+                this.channel = channel;
+                if (closed) {
+                    return;
+                }
+                channel.send(MiddlewareTaskHandler.newRequest(Command.Subscribe));
+                subscribed = true;
+                System.out.println("Subscribed to the invalidations of " + address);
+
+                // the keys of the changed items and the waitlist notices, the acknowledgement
+                // of the subscription may come after the first of them
+                while (true) {
+                    Object message = channel.receive();
+                    if (message instanceof String) {
+                        cache.invalidate((String) message);
+                    } else if (message instanceof WaitlistNotice) {
+                        MiddlewareTaskHandler.waitlistNotices.publish((WaitlistNotice) message);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                if (closed) {
+                    return;
+                }
+                if (subscribed) {
+                    System.err.println("Lost the invalidations of " + address + ", clearing the cache: " + e.getMessage());
+                }
+            }
+
+            // some invalidations may have been missed,
+            // not while the RM stays down, e.g. a failed primary
+            if (subscribed) {
+                cache.clear();
+            }
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package Server.TCP;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * A TCP middleware and its resource managers, all in this JVM on ephemeral
+ * loopback ports, for benchmarks and integration tests:
+ *
+ *   try (LocalCluster cluster = LocalCluster.start(2, 1)) {
+ *       Socket socket = new Socket(cluster.getHost(), cluster.getMiddlewarePort());
+ *       ...
+ *   }
+ *
+ * Each resource type gets its shards, e.g. the RMs "Flights1" and "Flights2",
+ * and each shard its backups, e.g. "Flights1-backup1". The servers listen as
+ * soon as start() returns. The middleware's commit log is a temporary file.
+ *
+ * The servers share what is static in this JVM, e.g. the metrics of an RM
+ * name and the middleware's admission control, with any other cluster
+ * started in it.
+ */
+public class LocalCluster implements Closeable {
+
+    private static final InetAddress loopback = InetAddress.getLoopbackAddress();
+
+    private final TCPMiddleware middleware = new TCPMiddleware();
+    private final Map<String, TCPResourceManager> resourceManagers = new LinkedHashMap<>();
+    private final Map<String, String> addresses = new LinkedHashMap<>();
+    // closed here as well, a server may not have reached serve() yet when it is stopped
+    private final Map<String, ServerSocket> serverSockets = new LinkedHashMap<>();
+    private final Path coordinatorLog;
+    private int middlewarePort;
+
+    private LocalCluster() throws IOException {
+        coordinatorLog = Files.createTempFile("coordinator", ".log");
+    }
+
+    /**
+     * @param shards number of shards of each resource type
+     * @param backups number of backups of each shard
+     * @return the running cluster
+     * @throws IOException if a server could not be started
+     */
+    public static LocalCluster start(int shards, int backups) throws IOException {
+        return start(shards, shards, shards, backups);
+    }
+
+    /**
+     * @param flightShards
+     * @param carShards
+     * @param roomShards
+     * @param backups number of backups of each shard
+     * @return the running cluster
+     * @throws IOException if a server could not be started
+     */
+    public static LocalCluster start(int flightShards, int carShards, int roomShards, int backups) throws IOException {
+        LocalCluster cluster = new LocalCluster();
+        try {
+            List<String> flightHosts = cluster.startShards("Flights", flightShards, backups);
+            List<String> carHosts = cluster.startShards("Cars", carShards, backups);
+            List<String> roomHosts = cluster.startShards("Rooms", roomShards, backups);
+            cluster.startMiddleware(flightHosts, carHosts, roomHosts);
+        } catch (IOException e) {
+            cluster.close();
+            throw e;
+        }
+        return cluster;
+    }
+
+    /**
+     * Start the RMs of a resource type
+     * @return the shard specs for the middleware, e.g. "127.0.0.1:41000+127.0.0.1:41001"
+     */
+    private List<String> startShards(String type, int shards, int backups) throws IOException {
+        List<String> specs = new Vector<>();
+        for (int shard = 1; shard <= shards; shard++) {
+            String primary = startResourceManager(type + shard, null);
+            StringBuilder spec = new StringBuilder(primary);
+            for (int backup = 1; backup <= backups; backup++) {
+                spec.append('+').append(startResourceManager(type + shard + "-backup" + backup, primary));
+            }
+            specs.add(spec.toString());
+        }
+        return specs;
+    }
+
+    /**
+     * @param name
+     * @param primary address of the primary to follow, null for a primary
+     * @return the address of the RM
+     */
+    private String startResourceManager(String name, String primary) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, loopback);
+        String address = loopback.getHostAddress() + ":" + serverSocket.getLocalPort();
+
+        TCPResourceManager resourceManager = new TCPResourceManager(name);
+        if (primary != null) {
+            resourceManager.follow(primary);
+        }
+        resourceManagers.put(name, resourceManager);
+        addresses.put(name, address);
+        serverSockets.put(name, serverSocket);
+        run("cluster-" + name, serverSocket, () -> resourceManager.serve(serverSocket));
+        return address;
+    }
+
+    private void startMiddleware(List<String> flightHosts, List<String> carHosts, List<String> roomHosts) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, loopback);
+        middlewarePort = serverSocket.getLocalPort();
+        serverSockets.put("middleware", serverSocket);
+        // clients that connect before the middleware reached the RMs wait in the backlog
+        run("cluster-middleware", serverSocket, () -> middleware.serve(serverSocket, flightHosts, carHosts, roomHosts, coordinatorLog.toString()));
+    }
+
+    private interface Server {
+        void serve() throws IOException;
+    }
+
+    private static void run(String name, ServerSocket serverSocket, Server server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                // expected once stopped
+                if (!serverSocket.isClosed()) {
+                    System.err.println(name + " failed: " + e.getMessage());
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getHost() {
+        return loopback.getHostAddress();
+    }
+
+    public int getMiddlewarePort() {
+        return middlewarePort;
+    }
+
+    public TCPMiddleware getMiddleware() {
+        return middleware;
+    }
+
+    /**
+     * @return every RM by name, the primaries of a type first, each followed by its backups
+     */
+    public Map<String, TCPResourceManager> getResourceManagers() {
+        return Collections.unmodifiableMap(resourceManagers);
+    }
+
+    /**
+     * @param name e.g. "Flights1"
+     * @return the RM, null if there is none of that name
+     */
+    public TCPResourceManager getResourceManager(String name) {
+        return resourceManagers.get(name);
+    }
+
+    /**
+     * @param name e.g. "Flights1"
+     * @return host:port of the RM, null if there is none of that name
+     */
+    public String getAddress(String name) {
+        return addresses.get(name);
+    }
+
+    /**
+     * Stop an RM as if it crashed, e.g. a primary to test its failover
+     * @param name
+     */
+    public void stop(String name) {
+        TCPResourceManager resourceManager = resourceManagers.get(name);
+        if (resourceManager != null) {
+            close(serverSockets.get(name));
+            resourceManager.stop();
+        }
+    }
+
+    /**
+     * Stop the middleware and every RM
+     */
+    @Override
+    public void close() {
+        for (ServerSocket serverSocket : serverSockets.values()) {
+            close(serverSocket);
+        }
+        middleware.stop();
+        for (TCPResourceManager resourceManager : resourceManagers.values()) {
+            resourceManager.stop();
+        }
+        try {
+            Files.deleteIfExists(coordinatorLog);
+        } catch (IOException e) {
+            // left in the temporary directory
+        }
+    }
+
+    private static void close(ServerSocket serverSocket) {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // closed already
+        }
+    }
+
+    /**
+     * Run a cluster until killed, e.g. for the load generator
+     * @param args [shards] [backups]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int shards = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int backups = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+
+        LocalCluster cluster = start(shards, backups);
+        Runtime.getRuntime().addShutdownHook(new Thread(cluster::close));
+        for (Map.Entry<String, String> address : cluster.addresses.entrySet()) {
+            System.out.println(address.getKey() + " at " + address.getValue());
+        }
+        System.out.println("Local cluster ready, middleware at " + cluster.getHost() + ":" + cluster.getMiddlewarePort());
+        Thread.currentThread().join();
+    }
+}
@@ -2,59 +2,111 @@ package Server.TCP;
 
 import Client.Command;
 import Client.TCPClient.Request;
+import Server.Common.AdaptiveLimit;
+import Server.Common.AdmissionControl;
+import Server.Common.Bill;
+import Server.Common.BundlePlanner;
+import Server.Common.Car;
+import Server.Common.FanOut;
+import Server.Common.IdempotencyTable;
+import Server.Common.JfrEvents;
+import Server.Common.Flight;
+import Server.Common.LatencyTracker;
+import Server.Common.MessageChannel;
+import Server.Common.Metrics;
+import Server.Common.QueryCache;
+import Server.Common.ReplicaGroup;
 import Server.Common.ResponsePacket;
+import Server.Common.Room;
+import Server.Common.ShardMap;
+import Server.Common.SingleFlight;
+import Server.Common.Tracer;
+import Server.Common.TransactionCoordinator;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 class MiddlewareTaskHandler extends Thread{
 
     // maintains the socket of the client connected to the middleware
     private Socket clientSocket;
-    private Socket flightSocket;
-    private Socket carSocket;
-    private Socket roomSocket;
 
-    private ObjectOutputStream flightOutputStream;
-    private ObjectInputStream flightInputStream;
+    // the RMs of each resource type, a primary and its backups per shard,
+    // shared by all the handlers and changed at runtime
+    private final ShardMap<ReplicaGroup<String>> flightShards;
+    private final ShardMap<ReplicaGroup<String>> carShards;
+    private final ShardMap<ReplicaGroup<String>> roomShards;
 
-    private ObjectInputStream carInputStream;
-    private ObjectOutputStream carOutputStream;
+    // connections to the resource managers, by address, opened on first use
+    private final Map<String, MessageChannel> channels = new HashMap<>();
 
-    private ObjectInputStream roomInputStream;
-    private ObjectOutputStream roomOutputStream;
+    // issues the requests that go to several RMs concurrently, and the hedged reads
+    private static final FanOut fanOut = new FanOut(TCPMiddleware.rmTimeout);
+
+    // recent response times of every RM, shared by all the handlers
+    static final LatencyTracker<String> latencies = new LatencyTracker<>();
+
+    // client requests processed at the same time, the others wait or are refused
+    private static final AdmissionControl admission = new AdmissionControl("middleware",
+            Integer.getInteger("middleware.maxConcurrent", 256), Integer.getInteger("middleware.maxQueued", 1024),
+            Long.getLong("middleware.queueTimeoutMs", 100));
+
+    // requests sent to each RM at the same time, adapted to its response times
+    private static final Map<String, AdaptiveLimit> limits = new ConcurrentHashMap<>();
+
+    // counters and latencies of the client requests; those of the calls to each RM are under "middleware->" + its address
+    private static final Metrics metrics = Metrics.of("middleware");
+
+    // runs the bundles as two-phase commit transactions, shared by all the handlers
+    private final TransactionCoordinator coordinator;
+
+    // price and availability cache, shared by all the handlers
+    private final QueryCache cache;
+
+    // orders the branches of a bundle from the cached availability counts
+    private final BundlePlanner planner;
+
+    // queries being forwarded right now, shared by all the handlers
+    private static final SingleFlight<String, ResponsePacket> inFlightReads = new SingleFlight<>();
+
+    // the clients listening for the waitlist notices of their customer, shared by all the handlers
+    static final WaitlistNotifier waitlistNotices = new WaitlistNotifier();
+    // set when the client listens for waitlist notices on this connection
+    private MessageChannel noticeChannel;
+
+    // outcome of the recent requests the middleware spreads over several RMs itself,
+    // to apply one sent again only once; the RMs remember those forwarded as they are
+    private final IdempotencyTable completed;
 
     /**
      *
      * @param clientSocket
-     * @param flightHost
-     * @param carHost
-     * @param roomHost
-     * @param rmPort
+     * @param flightShards addresses of the flight RMs and their backups
+     * @param carShards addresses of the car RMs and their backups
+     * @param roomShards addresses of the room RMs and their backups
+     * @param coordinator
+     * @param cache
+     * @param completed
      */
-    public MiddlewareTaskHandler(Socket clientSocket, String flightHost, String carHost, String roomHost, int rmPort){
+    public MiddlewareTaskHandler(Socket clientSocket, ShardMap<ReplicaGroup<String>> flightShards, ShardMap<ReplicaGroup<String>> carShards,
+                                 ShardMap<ReplicaGroup<String>> roomShards, TransactionCoordinator coordinator, QueryCache cache,
+                                 IdempotencyTable completed){
 
         this.clientSocket = clientSocket;
-
-        // to be safer, we initialize output streams before input streams.
-        try{
-
-            this.flightSocket = new Socket(flightHost, rmPort);
-            this.flightOutputStream = new ObjectOutputStream(flightSocket.getOutputStream());
-            this.flightInputStream = new ObjectInputStream(flightSocket.getInputStream());
-
-            this.carSocket = new Socket(carHost, rmPort);
-            this.carOutputStream = new ObjectOutputStream(carSocket.getOutputStream());
-            this.carInputStream = new ObjectInputStream(carSocket.getInputStream());
-
-            this.roomSocket = new Socket(roomHost, rmPort);
-            this.roomOutputStream = new ObjectOutputStream(roomSocket.getOutputStream());
-            this.roomInputStream = new ObjectInputStream(roomSocket.getInputStream());
-        }catch(IOException e){
-            System.out.println("Error on initializing middleware task handler");
-            e.printStackTrace();
-        }
+        this.flightShards = flightShards;
+        this.carShards = carShards;
+        this.roomShards = roomShards;
+        this.coordinator = coordinator;
+        this.cache = cache;
+        this.planner = new BundlePlanner(cache, fanOut);
+        this.completed = completed;
     }
 
     /**
@@ -67,30 +119,51 @@ class MiddlewareTaskHandler extends Thread{
         System.out.println("Handling a new client request...");
 
         try(
-                ObjectOutputStream clientOut = new ObjectOutputStream(clientSocket.getOutputStream());
-                ObjectInputStream clientIn = new ObjectInputStream(clientSocket.getInputStream());
+                MessageChannel clientChannel = new MessageChannel(clientSocket, "middleware<-" + clientSocket.getRemoteSocketAddress());
         ){
 
             // from the socket, get the input and output streams
             while(true){
                 try {
                     // Read the request from the client
-                    Request request = (Request) clientIn.readObject();
+                    Request request = (Request) clientChannel.receive();
                     System.out.println("Received request: " + request.getCommand());
 
-                    // Handle the request
-                    ResponsePacket response = handleRequest(request);
+                    // Handle the request, unless the middleware is overloaded
+                    Metrics.Operation operation = metrics.operation(request.getCommand().name());
+                    long received = System.nanoTime();
+                    ResponsePacket response;
+                    try (Tracer.Span span = Tracer.joinOrRoot("middleware", request.getCommand().name(), request.getTraceId(), request.getSpanId())) {
+                        if (request.getCommand() == Command.Notify) {
+                            response = listen(clientChannel, request.getArguments());
+                        } else if (admission.acquire()) {
+                            long admitted = System.nanoTime();
+                            span.tag("queueMicros", (admitted - received) / 1000);
+                            try {
+                                response = handleRequest(request);
+                            } finally {
+                                admission.release();
+                            }
+                            operation.record(admitted - received, System.nanoTime() - admitted, response.getStatus());
+                        } else {
+                            response = ResponsePacket.busy("Middleware busy, retry later.");
+                            operation.rejected(System.nanoTime() - received);
+                        }
+                        span.tag("status", response.getStatus());
+                    }
 
                     // Send the response back to the client
-                    clientOut.writeObject(response);
-                    clientOut.flush();
+                    clientChannel.send(response);
 
                 } catch (EOFException eof) {
                     System.out.println("Client has closed the connection.");
                     break;
                 } catch (ClassNotFoundException | IOException e) {
-                    System.err.println("Error processing request: " + e.getMessage());
-                    e.printStackTrace();
+                    // unless the middleware was stopped, which closed the socket
+                    if (!clientSocket.isClosed()) {
+                        System.err.println("Error processing request: " + e.getMessage());
+                        e.printStackTrace();
+                    }
                     break;
                 }
             }
@@ -102,15 +175,40 @@ class MiddlewareTaskHandler extends Thread{
         }
     }
 
+    /**
+     * Turn the connection of the client into a push channel of the waitlist
+     * notices of a customer
+     * @param clientChannel
+     * @param arguments [Notify, customerID]
+     * @return the acknowledgement, which may come after the first notices
+     */
+    private ResponsePacket listen(MessageChannel clientChannel, Vector<String> arguments) {
+        int customerID;
+        try {
+            customerID = Integer.parseInt(arguments.get(1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return ResponsePacket.error(ResponsePacket.Error.INVALID, "Invalid arguments: " + arguments);
+        }
+        noticeChannel = clientChannel;
+        waitlistNotices.subscribe(customerID, clientChannel);
+        return ResponsePacket.ok();
+    }
+
     /**
      * close the client socket upon disconnection
      */
     private void cleanupClient() {
+        if (noticeChannel != null) {
+            waitlistNotices.unsubscribe(noticeChannel);
+        }
         try {
            clientSocket.close();
-           flightSocket.close();
-           carSocket.close();
-           roomSocket.close();
+           synchronized (this) {
+               for (MessageChannel channel : channels.values()) {
+                   channel.close();
+               }
+               channels.clear();
+           }
            System.out.println("Client connection closed and resources cleaned up.");
         } catch (IOException e) {
             System.err.println("Failed to close client and resource manager socket(s).");
@@ -118,42 +216,409 @@ class MiddlewareTaskHandler extends Thread{
         }
     }
 
-    private ResponsePacket forwardToFlight(Request request) {
+    /**
+     * Connection of this handler to an RM, opened on first use.
+     * The channels initialize output streams before input streams.
+     * @param address host[:port] of the RM
+     * @return
+     * @throws IOException
+     */
+    private synchronized MessageChannel channel(String address) throws IOException {
+        MessageChannel channel = channels.get(address);
+        if (channel == null || channel.isClosed()) {
+            channel = new MessageChannel(TCPMiddleware.connect(address), "middleware->" + address);
+            channels.put(address, channel);
+        }
+        return channel;
+    }
+
+    private ResponsePacket forwardTo(String address, Request request) {
+        MessageChannel channel = null;
         try {
 
-            flightOutputStream.writeObject(request);
-            flightOutputStream.flush();
-            return (ResponsePacket) flightInputStream.readObject();
+            channel = channel(address);
+            return call(address, channel, request);
 
+        } catch (SocketTimeoutException e) {
+            dropChannel(address, channel);
+            return ResponsePacket.error(ResponsePacket.Error.TIMEOUT, "RM " + address + " did not answer within " + TCPMiddleware.rmTimeout + "ms.");
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
-            return new ResponsePacket(false, "Error forwarding request to Flight RM.");
+            // the connection is unusable, reconnect on the next request
+            dropChannel(address, channel);
+            return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "Error forwarding request to RM " + address + ".");
         }
     }
 
-    private ResponsePacket forwardToCar(Request request) {
+    /**
+     * One round trip, bounded by the request deadline and timed for the latency tracker.
+     * Not sent if the RM keeps having as many requests as its limit allows.
+     * The channel must be dropped if it fails.
+     */
+    private static ResponsePacket call(String address, MessageChannel channel, Request request) throws IOException, ClassNotFoundException {
+        Metrics.Operation operation = Metrics.of("middleware->" + address).operation(request.getCommand().name());
+        long queued = System.nanoTime();
+        AdaptiveLimit limit = limits.computeIfAbsent(address, AdaptiveLimit::new);
+        if (!limit.acquire()) {
+            operation.rejected(System.nanoTime() - queued);
+            return ResponsePacket.busy("RM " + address + " busy, retry later.");
+        }
+
+        long start = System.nanoTime();
+        JfrEvents.Forward event = JfrEvents.Forward.start(address, request.getCommand().name(), channel);
+        try (Tracer.Span span = Tracer.start("call " + address)) {
+            if (span.isRecording()) {
+                request = request.traced(span.getTraceId(), span.getId());
+            }
+            ResponsePacket response = (ResponsePacket) channel.call(request, TCPMiddleware.rmTimeout);
+            span.tag("status", response.getStatus()).tag("busy", response.isBusy());
+            event.succeeded = response.getStatus() && !response.isBusy();
+            long rtt = System.nanoTime() - start;
+            latencies.record(address, rtt);
+            if (response.isBusy()) {
+                limit.onDropped();
+                operation.rejected(start - queued + rtt);
+            } else {
+                limit.onSuccess(rtt);
+                operation.record(start - queued, rtt, response.getStatus());
+            }
+            return response;
+        } catch (SocketTimeoutException e) {
+            long elapsed = System.nanoTime() - start;
+            latencies.record(address, elapsed);
+            limit.onDropped();
+            operation.record(start - queued, elapsed, false);
+            throw e;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            limit.onIgnore();
+            operation.record(start - queued, System.nanoTime() - start, false);
+            throw e;
+        } finally {
+            event.done();
+        }
+    }
+
+    /**
+     * Forward the request to the primary of a shard.
+     * If the primary is unreachable, its backup is promoted; a read is then
+     * sent again to the new primary, but a write is not, as it may have been
+     * applied before the failure: the client is told to retry instead.
+     * A write the client gave an id is sent again after a timeout, as the
+     * primary applies it only once.
+     * @param group
+     * @param request
+     * @return
+     */
+    private ResponsePacket forwardToPrimary(ReplicaGroup<String> group, Request request) {
+        String primary = group.primary();
+        if (primary == null) {
+            return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "No RM left in " + group + ".");
+        }
+        MessageChannel channel = null;
+        for (int attempt = 0; ; attempt++) {
+            try {
+
+                channel = channel(primary);
+                return call(primary, channel, request);
+
+            } catch (SocketTimeoutException e) {
+                // slow, not gone: failing over would leave two primaries
+                dropChannel(primary, channel);
+                if (request.getRequestId() != 0 && attempt < TCPMiddleware.writeRetries) {
+                    continue;
+                }
+                return ResponsePacket.error(ResponsePacket.Error.TIMEOUT, "RM " + primary + " did not answer within " + TCPMiddleware.rmTimeout + "ms"
+                        + (isReplicaRead(request.getCommand()) ? "." : ", the outcome is unknown."));
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("RM " + primary + " unreachable: " + e.getMessage());
+                dropChannel(primary, channel);
+                break;
+            }
+        }
+
+        String promoted = failover(group, primary);
+        if (promoted == null) {
+            return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "Error forwarding request to RM " + primary + ", no backup left.");
+        }
+        if (isReplicaRead(request.getCommand()) || request.getCommand() == Command.QueryCustomer) {
+            return forwardTo(promoted, request);
+        }
+        return ResponsePacket.error(ResponsePacket.Error.RETRY, "RM " + primary + " failed over to " + promoted + ", retry the request.");
+    }
+
+    /**
+     * Promote the backups of a failed primary until one accepts
+     * @param group
+     * @param failed
+     * @return the new primary, null if there is none
+     */
+    private String failover(ReplicaGroup<String> group, String failed) {
+        try (Tracer.Span span = Tracer.start("failover " + failed)) {
+            String primary = group.failover(failed);
+            // the fencing token: above the epoch of any earlier failover
+            long epoch = System.currentTimeMillis();
+            while (primary != null) {
+                // idempotent, another handler may have promoted it already
+                ResponsePacket promoted = forwardTo(primary, newRequest(Command.Promote, epoch));
+                if (promoted.getStatus()) {
+                    span.tag("promoted", primary);
+                    return primary;
+                }
+                primary = group.failover(primary);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Send a read to a backup of the shard, or to the primary if the
+     * backup can't answer, e.g. because it is behind.
+     * Of the next two replicas, the one answering faster lately gets the read;
+     * if it is slower than its p95, the other one gets it as well.
+     * @param group
+     * @param request
+     * @return
+     */
+    private ResponsePacket readFromReplica(ReplicaGroup<String> group, Request request) {
+        String primary = group.primary();
+        String replica = group.readReplica();
+        if (replica == null || replica.equals(primary)) {
+            return forwardToPrimary(group, request);
+        }
+        String other = group.readReplica();
+        if (other.equals(replica)) {
+            other = primary;
+        } else if (latencies.faster(replica, other).equals(other)) {
+            String faster = other;
+            other = replica;
+            replica = faster;
+        }
+        final String first = replica;
+        final String hedge = other;
+
+        HedgedRead read = new HedgedRead(request);
         try {
+            return fanOut.invokeHedged(() -> read.from(first), hedge == null ? null : () -> read.from(hedge), hedgeDelay(first));
+        } catch (Exception e) {
+            // behind, down or too slow: the primary answers
+            return forwardToPrimary(group, request);
+        } finally {
+            read.finish();
+        }
+    }
+
+    /**
+     * How long to wait for a replica before hedging: its p95,
+     * middleware.hedgeDelayMs until it has enough samples
+     */
+    private static long hedgeDelay(String address) {
+        long p95 = latencies.percentile(address, 0.95);
+        return p95 >= 0 ? p95 : TimeUnit.MILLISECONDS.toNanos(TCPMiddleware.hedgeDelayMs);
+    }
 
-            carOutputStream.writeObject(request);
-            carOutputStream.flush();
-            return (ResponsePacket) carInputStream.readObject();
+    /**
+     * The calls of one hedged read. The call that loses may still be waiting
+     * for its RM when the read is over; its channel is dropped, otherwise the
+     * next request to that RM would wait behind it.
+     */
+    private class HedgedRead {
+        private final Request request;
+        private final Map<String, MessageChannel> running = new HashMap<>();
+        private boolean finished = false;
 
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-            return new ResponsePacket(false, "Error forwarding request to Flight RM.");
+        HedgedRead(Request request) {
+            this.request = request;
+        }
+
+        ResponsePacket from(String address) throws Exception {
+            MessageChannel channel = channel(address);
+            synchronized (this) {
+                if (finished) {
+                    throw new CancellationException("answered by the other replica");
+                }
+                running.put(address, channel);
+            }
+
+            ResponsePacket response;
+            try {
+                response = call(address, channel, request);
+            } catch (IOException e) {
+                dropChannel(address, channel);
+                throw e;
+            } finally {
+                synchronized (this) {
+                    running.remove(address);
+                }
+            }
+            if (!response.getStatus()) {
+                throw new IOException("RM " + address + ": " + response.getMessage());
+            }
+            return response;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            for (Map.Entry<String, MessageChannel> call : running.entrySet()) {
+                dropChannel(call.getKey(), call.getValue());
+            }
+            running.clear();
+        }
+    }
+
+    /**
+     * Queries that a backup may answer: stale by at most replica.maxStalenessMs,
+     * which the query cache tolerates anyway
+     * @param command
+     * @return
+     */
+    private static boolean isReplicaRead(Command command) {
+        switch (command) {
+            case QueryFlight:
+            case QueryCars:
+            case QueryRooms:
+            case QueryFlightPrice:
+            case QueryCarsPrice:
+            case QueryRoomsPrice:
+            case QueryCarsDates:
+            case QueryRoomsDates:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes the middleware spreads over several RMs itself, rather than
+     * forwarding them as they are to the RM that applies them
+     * @param command
+     * @return
+     */
+    private static boolean isCoordinated(Command command) {
+        switch (command) {
+            case AddCustomer:
+            case AddCustomerID:
+            case DeleteCustomer:
+            case ReserveFlights:
+            case CancelReserveFlights:
+            case Bundle:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Close a channel that failed, the next request to the RM reconnects
+     * @param address
+     * @param channel null if it could not be opened
+     */
+    private synchronized void dropChannel(String address, MessageChannel channel) {
+        channels.remove(address, channel);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already broken
+            }
         }
     }
 
+    /**
+     * Forward the request to the shard holding an item
+     * @param shards
+     * @param itemKey null if the request is malformed, any shard then rejects it
+     * @param request
+     * @return
+     */
+    private ResponsePacket forward(ShardMap<ReplicaGroup<String>> shards, String itemKey, Request request) {
+        ReplicaGroup<String> group = itemKey != null ? shards.get(itemKey) : firstShard(shards);
+        if (group == null) {
+            return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "No " + shards.getType() + " RM available.");
+        }
+        if (isReplicaRead(request.getCommand())) {
+            return readFromReplica(group, request);
+        }
+        return forwardToPrimary(group, request);
+    }
+
+    private ResponsePacket forwardToFlight(Request request) {
+        return forward(flightShards, itemKey(request.getCommand(), request.getArguments()), request);
+    }
+
+    private ResponsePacket forwardToCar(Request request) {
+        return forward(carShards, itemKey(request.getCommand(), request.getArguments()), request);
+    }
+
     private ResponsePacket forwardToRoom(Request request) {
+        return forward(roomShards, itemKey(request.getCommand(), request.getArguments()), request);
+    }
+
+    private static ReplicaGroup<String> firstShard(ShardMap<ReplicaGroup<String>> shards) {
+        Iterator<ReplicaGroup<String>> groups = shards.all().values().iterator();
+        return groups.hasNext() ? groups.next() : null;
+    }
+
+    /**
+     * Send the same request to the primaries of several shards concurrently
+     * @param groups
+     * @param request
+     * @return one response per shard, in the same order
+     */
+    private List<ResponsePacket> scatter(List<ReplicaGroup<String>> groups, Request request) {
+        List<Callable<ResponsePacket>> calls = new Vector<>();
+        for (ReplicaGroup<String> group : groups) {
+            calls.add(() -> forwardToPrimary(group, request));
+        }
+
+        List<FanOut.Result<ResponsePacket>> results = fanOut.invokeAll(calls);
+        List<ResponsePacket> responses = new Vector<>();
+        for (int i = 0; i < results.size(); i++) {
+            FanOut.Result<ResponsePacket> result = results.get(i);
+            responses.add(result.isSuccess() ? result.getValue()
+                    : ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "No response from RM " + groups.get(i).primary() + "."));
+        }
+        return responses;
+    }
+
+    /**
+     * Every RM: the flight shards, then the car shards, then the room shards
+     */
+    private List<ReplicaGroup<String>> allShards() {
+        List<ReplicaGroup<String>> groups = new Vector<>(flightShards.all().values());
+        groups.addAll(carShards.all().values());
+        groups.addAll(roomShards.all().values());
+        return groups;
+    }
+
+    /**
+     * The flight shard holding a flight
+     * @param flightNumber
+     * @return null if there is no flight RM
+     */
+    private ReplicaGroup<String> flightShardOf(String flightNumber) {
         try {
-            roomOutputStream.writeObject(request);
-            roomOutputStream.flush();
-            return (ResponsePacket) roomInputStream.readObject();
+            return flightShards.get(Flight.getKey(Integer.parseInt(flightNumber)));
+        } catch (NumberFormatException e) {
+            // malformed, any shard rejects it
+            return firstShard(flightShards);
+        }
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-            return new ResponsePacket(false, "Error forwarding request to Flight RM.");
+    /**
+     * Group flight numbers by the shard holding them
+     * @param flightNumbers
+     * @return null if there is no flight RM
+     */
+    private Map<ReplicaGroup<String>, Vector<String>> flightsByShard(List<String> flightNumbers) {
+        Map<ReplicaGroup<String>, Vector<String>> byShard = new LinkedHashMap<>();
+        for (String flightNumber : flightNumbers) {
+            ReplicaGroup<String> group = flightShardOf(flightNumber);
+            if (group == null) {
+                return null;
+            }
+            byShard.computeIfAbsent(group, g -> new Vector<>()).add(flightNumber);
         }
+        return byShard;
     }
 
     /**
@@ -162,6 +627,12 @@ class MiddlewareTaskHandler extends Thread{
      * @return
      */
     private ResponsePacket handleRequest(Request request) {
+        try (Tracer.Span span = Tracer.start("handleRequest")) {
+            return handleRequest(request, span);
+        }
+    }
+
+    private ResponsePacket handleRequest(Request request, Tracer.Span span) {
 
 
         Command command = request.getCommand();
@@ -172,53 +643,243 @@ class MiddlewareTaskHandler extends Thread{
 
         ResponsePacket result;
 
-        // Given the resource type
-        // forward the request to an RM
-        switch (command) {
+        // price and availability queries are answered from the cache when possible
+        String cacheKey = queryCacheKey(command, arguments);
+        if (cacheKey != null) {
+            Integer cached = cache.get(cacheKey);
+            if (cached != null) {
+                span.tag("cache", "hit");
+                return ResponsePacket.of(cached);
+            }
+        }
+        long cacheEpoch = cache.epoch();
+
+        // identical queries running at the same time share one round trip to the RM,
+        // unless an invalidation came in between; not QueryCustomer, whose bill changes
+        // with the customer's own reservations, which move no cache epoch
+        if (cacheKey != null) {
+            String readKey = cacheEpoch + ":" + command + "," + String.join(",", arguments.subList(1, arguments.size()));
+            result = inFlightReads.execute(readKey, () -> route(request));
+        } else if (isCoordinated(command)) {
+            result = completed.execute(request.getRequestId(), () -> route(request));
+        } else {
+            result = route(request);
+        }
+
+        if (cacheKey != null && result.getStatus()) {
+            cache.put(cacheKey, result.getValue(), cacheEpoch);
+        }
+
+        // the RM pushes an invalidation as well, but a client must see its own change right away
+        if (!isReplicaRead(command)) {
+            for (String changedKey : itemKeys(command, arguments)) {
+                cache.invalidate(changedKey);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Given the resource type, forward the request to an RM
+     * @param request
+     * @return
+     */
+    private ResponsePacket route(Request request) {
+        switch (request.getCommand()) {
+            case ReserveFlights:
+            case CancelReserveFlights:
+                return traced("forwardFlights", request, this::forwardFlights);
+
             case AddFlight:
             case ReserveFlight:
+            case WaitFlight:
             case DeleteFlight:
             case QueryFlight:
             case QueryFlightPrice:
-                result = forwardToFlight(request);
-                break;
+                return traced("forwardToFlight", request, this::forwardToFlight);
 
             case AddCars:
             case DeleteCars:
             case QueryCars:
             case QueryCarsPrice:
             case ReserveCar:
-                result = forwardToCar(request);
-                break;
+            case WaitCar:
+            case QueryCarsDates:
+            case ReserveCarDates:
+            case CancelReserveCarDates:
+                return traced("forwardToCar", request, this::forwardToCar);
 
             case AddRooms:
             case DeleteRooms:
             case QueryRooms:
             case QueryRoomsPrice:
             case ReserveRoom:
-                result = forwardToRoom(request);
-                break;
+            case WaitRoom:
+            case QueryRoomsDates:
+            case ReserveRoomDates:
+            case CancelReserveRoomDates:
+                return traced("forwardToRoom", request, this::forwardToRoom);
 
             case AddCustomer:
             case AddCustomerID:
             case DeleteCustomer:
             case QueryCustomer:
-                result = forwardCustomer(request);
-                break;
+                return traced("forwardCustomer", request, this::forwardCustomer);
 
             case Bundle:
-                result = forwardBundle(request);
-                break;
+                return traced("forwardBundle", request, this::forwardBundle);
 
             default:
-                result = new ResponsePacket(false,"Unknown command.");
+                return ResponsePacket.error(ResponsePacket.Error.INVALID, "Unknown command.");
+        }
+    }
+
+    /**
+     * Forward the request as a span of its trace
+     * @param name of the span
+     * @param request
+     * @param forwarder
+     * @return
+     */
+    private static ResponsePacket traced(String name, Request request, Function<Request, ResponsePacket> forwarder) {
+        try (Tracer.Span span = Tracer.start(name)) {
+            ResponsePacket response = forwarder.apply(request);
+            span.tag("status", response.getStatus());
+            return response;
+        }
+    }
+
+    /**
+     * Key of the item a command is about, e.g. "flight-12" for QueryFlight,12
+     * @param command
+     * @param arguments
+     * @return null if the command is not about a single item
+     */
+    private static String itemKey(Command command, Vector<String> arguments) {
+        try {
+            switch (command) {
+                case AddFlight:
+                case DeleteFlight:
+                case QueryFlight:
+                case QueryFlightPrice:
+                    return Flight.getKey(Integer.parseInt(arguments.get(1)));
+                case ReserveFlight:
+                case CancelReserveFlight:
+                case WaitFlight:
+                    return Flight.getKey(Integer.parseInt(arguments.get(2)));
+
+                case AddCars:
+                case DeleteCars:
+                case QueryCars:
+                case QueryCarsPrice:
+                case QueryCarsDates:
+                    return Car.getKey(arguments.get(1));
+                case ReserveCar:
+                case CancelReserveCar:
+                case WaitCar:
+                case ReserveCarDates:
+                case CancelReserveCarDates:
+                    return Car.getKey(arguments.get(2));
+
+                case AddRooms:
+                case DeleteRooms:
+                case QueryRooms:
+                case QueryRoomsPrice:
+                case QueryRoomsDates:
+                    return Room.getKey(arguments.get(1));
+                case ReserveRoom:
+                case CancelReserveRoom:
+                case WaitRoom:
+                case ReserveRoomDates:
+                case CancelReserveRoomDates:
+                    return Room.getKey(arguments.get(2));
+
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // malformed, the RM will reject it
+            return null;
+        }
+    }
+
+    /**
+     * Keys of the items a command is about, several for ReserveFlights or a Bundle
+     * @param command
+     * @param arguments
+     * @return empty if the command is about no item
+     */
+    private static List<String> itemKeys(Command command, Vector<String> arguments) {
+        List<String> keys = new Vector<>();
+        try {
+            switch (command) {
+                case ReserveFlights:
+                case CancelReserveFlights:
+                    // [command, customerID, flight, flight, ...]
+                    for (String flightNumber : arguments.subList(2, arguments.size())) {
+                        keys.add(Flight.getKey(Integer.parseInt(flightNumber)));
+                    }
+                    return keys;
+
+                case Bundle: {
+                    // [command, customerID, flight, ..., location, car, room]
+                    int last = arguments.size() - 3;
+                    for (String flightNumber : arguments.subList(2, last)) {
+                        keys.add(Flight.getKey(Integer.parseInt(flightNumber)));
+                    }
+                    String location = arguments.get(last);
+                    if (Boolean.parseBoolean(arguments.get(last + 1))) {
+                        keys.add(Car.getKey(location));
+                    }
+                    if (Boolean.parseBoolean(arguments.get(last + 2))) {
+                        keys.add(Room.getKey(location));
+                    }
+                    return keys;
+                }
+
+                default:
+                    String key = itemKey(command, arguments);
+                    if (key != null) {
+                        keys.add(key);
+                    }
+                    return keys;
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // malformed, the RM will reject it, invalidate what could be read
+            return keys;
+        }
+    }
+
+    /**
+     * Cache key of a price or availability query
+     * @param command
+     * @param arguments
+     * @return null if the command can't be answered from the cache
+     */
+    private static String queryCacheKey(Command command, Vector<String> arguments) {
+        String itemKey = itemKey(command, arguments);
+        if (itemKey == null) {
+            return null;
+        }
+        switch (command) {
+            case QueryFlight:
+            case QueryCars:
+            case QueryRooms:
+                return QueryCache.countKey(itemKey);
+            case QueryFlightPrice:
+            case QueryCarsPrice:
+            case QueryRoomsPrice:
+                return QueryCache.priceKey(itemKey);
+            default:
+                return null;
         }
-        return result;
     }
 
     /**
      * Handle the bundle request
      * All-or-Nothing method.
+     * The bundle is a two-phase commit transaction: every RM involved gets a
+     * single prepare with all of its items, then all of them commit or abort.
      * Response contains true if all flight/room/car are reserved.
      * Response contains false if it failed to reserve any of them.
      * @param request
@@ -244,213 +905,319 @@ class MiddlewareTaskHandler extends Thread{
         boolean reserveCar = Boolean.parseBoolean(arguments.elementAt(i++));
         boolean reserveRoom = Boolean.parseBoolean(arguments.elementAt(i));
 
-        Vector<String> reservedFlights = new Vector<>();
-        // reserve flights
-        for (String flightNum : flightNumbers) {
-            Vector<String> arg = new Vector<>();
-
-            arg.add(Command.ReserveFlight.name());
-            arg.add(String.valueOf(customerID));
-            arg.add(String.valueOf(flightNum));
-
-            ResponsePacket flightResponse = forwardToFlight(new Request(Command.ReserveFlight, arg));
-
-            // rollback
-            // for each reserved flight, make request to cancel the reservation.
-            if (!flightResponse.getStatus()) {
-
-                System.out.println("Failed to reserve flight " + flightNum + " for customer " + customerID);
-                System.out.println("Rollback:");
-                if(!reservedFlights.isEmpty()){
-
-                    for(String reservedFlight : reservedFlights){
-                        Vector<String> reservedFlightsArgs = new Vector<>();
-
-                        reservedFlightsArgs.add(Command.CancelReserveFlight.name());
-                        reservedFlightsArgs.add(String.valueOf(customerID));
-                        reservedFlightsArgs.add(reservedFlight);
-
-                         ResponsePacket rollback = forwardToFlight(new Request(Command.CancelReserveFlight, reservedFlightsArgs ));
-
-                        System.out.println("Flight reservation canceled for flight number " + reservedFlight);
-                    }
-
-                    System.out.println("Rollback completes for customer:" + customerID );
+        // one branch, i.e. one batched prepare, per RM
+        List<TransactionCoordinator.Branch> branches = new Vector<>();
+        try {
+            Map<ReplicaGroup<String>, Vector<String>> flightsByShard = flightsByShard(flightNumbers);
+            if (flightsByShard == null) {
+                return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "No flights RM available.");
+            }
+            for (Map.Entry<ReplicaGroup<String>, Vector<String>> shard : flightsByShard.entrySet()) {
+                branches.add(new TransactionCoordinator.Branch(participant(shard.getKey()), customerID, shard.getValue(), location, false, false));
+            }
+            if (reserveCar) {
+                ReplicaGroup<String> group = carShards.get(Car.getKey(location));
+                if (group == null) {
+                    return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "No cars RM available.");
                 }
-
-                return new ResponsePacket(false, "bundle operation failed.");
+                branches.add(new TransactionCoordinator.Branch(participant(group), customerID, new Vector<>(), location, true, false));
             }
-
-            reservedFlights.add(flightNum);
+            if (reserveRoom) {
+                ReplicaGroup<String> group = roomShards.get(Room.getKey(location));
+                if (group == null) {
+                    return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "No rooms RM available.");
+                }
+                branches.add(new TransactionCoordinator.Branch(participant(group), customerID, new Vector<>(), location, false, true));
+            }
+        } catch (IOException e) {
+            System.err.println("Bundle failed, RM unreachable: " + e.getMessage());
+            return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "Bundle failed, RM unreachable.");
         }
-        // reserve a car
-        if (reserveCar) {
-            Vector<String> arg = new Vector<>();
-            arg.add(Command.ReserveCar.name());
-            arg.add(String.valueOf(customerID));
-            arg.add(String.valueOf(location));
-            ResponsePacket carResponse = forwardToCar(new Request(Command.ReserveCar, arg));
-
-            if (!carResponse.getStatus()) {
 
-                System.out.println("Failed to reserve car at " + location + " for customer " + customerID);
-                System.out.println("Rollback:");
-                if(!reservedFlights.isEmpty()){
-
-                    for(String reservedFlight : reservedFlights){
-                        Vector<String> reservedFlightsArgs = new Vector<>();
+        return execute(branches);
+    }
 
-                        reservedFlightsArgs.add(Command.CancelReserveFlight.name());
-                        reservedFlightsArgs.add(String.valueOf(customerID));
-                        reservedFlightsArgs.add(reservedFlight);
+    /**
+     * Run a bundle as planned from the cached availability counts:
+     * refused without a round trip if an item is known to be sold out
+     * @param branches
+     * @return
+     */
+    private ResponsePacket execute(List<TransactionCoordinator.Branch> branches) {
+        BundlePlanner.Plan plan = planner.plan(branches, this::probeCounts);
+        if (plan.isDoomed()) {
+            System.out.println("Bundle refused, " + plan.getRefusal());
+            return ResponsePacket.error(ResponsePacket.Error.REFUSED, "Refused, " + plan.getRefusal() + ".");
+        }
+        return ResponsePacket.of(coordinator.execute(plan.getBranches(), plan.isScarceFirst()));
+    }
 
-                        ResponsePacket rollback = forwardToFlight(new Request(Command.CancelReserveFlight, reservedFlightsArgs ));
+    /**
+     * Query the counts of the items of a bundle branch that are not cached, into the cache
+     * @param branch
+     */
+    private void probeCounts(TransactionCoordinator.Branch branch) {
+        List<Request> queries = new Vector<>();
+        for (String flightNumber : branch.getFlightNumbers()) {
+            queries.add(new Request(Command.QueryFlight, new Vector<>(Arrays.asList("QueryFlight", flightNumber))));
+        }
+        if (branch.isCar()) {
+            queries.add(new Request(Command.QueryCars, new Vector<>(Arrays.asList("QueryCars", branch.getLocation()))));
+        }
+        if (branch.isRoom()) {
+            queries.add(new Request(Command.QueryRooms, new Vector<>(Arrays.asList("QueryRooms", branch.getLocation()))));
+        }
 
-                        System.out.println("Flight reservation canceled for flight number " + reservedFlight);
-                    }
-                    System.out.println("Rollback completes for customer:" + customerID );
-                }
-                return new ResponsePacket(false, "bundle operation failed.");
+        for (Request query : queries) {
+            String cacheKey = queryCacheKey(query.getCommand(), query.getArguments());
+            if (cacheKey == null || cache.peek(cacheKey) != null) {
+                continue;
+            }
+            long cacheEpoch = cache.epoch();
+            ResponsePacket result = route(query);
+            if (result.getStatus()) {
+                cache.put(cacheKey, result.getValue(), cacheEpoch);
             }
         }
+    }
 
-        // Reserve a room
-        if (reserveRoom) {
-            Vector<String> arg = new Vector<>();
-            arg.add(Command.ReserveRoom.name());
-            arg.add(String.valueOf(customerID));
-            arg.add(String.valueOf(location));
-            ResponsePacket roomResponse = forwardToRoom(new Request(Command.ReserveRoom, arg));
-
-            if (!roomResponse.getStatus()) {
-                System.out.println("Failed to reserve room at " + location + " for customer " + customerID);
-                System.out.println("Rollback:");
-                if(!reservedFlights.isEmpty()){
-
-                    for(String reservedFlight : reservedFlights){
-                        Vector<String> reservedFlightsArgs = new Vector<>();
-
-                        reservedFlightsArgs.add(Command.CancelReserveFlight.name());
-                        reservedFlightsArgs.add(String.valueOf(customerID));
-                        reservedFlightsArgs.add(reservedFlight);
+    /**
+     * The primary of a shard as a participant of a bundle,
+     * failing over first if it is unreachable
+     * @param group
+     * @return
+     * @throws IOException if no RM of the shard is reachable
+     */
+    private RMParticipant participant(ReplicaGroup<String> group) throws IOException {
+        String primary = group.primary();
+        if (primary == null) {
+            throw new IOException("No RM left in " + group);
+        }
+        try {
+            return new RMParticipant(primary, channel(primary));
+        } catch (IOException e) {
+            primary = failover(group, primary);
+            if (primary == null) {
+                throw e;
+            }
+            return new RMParticipant(primary, channel(primary));
+        }
+    }
 
-                        ResponsePacket rollback = forwardToFlight(new Request(Command.CancelReserveFlight, reservedFlightsArgs ));
+    /**
+     * Reserve or cancel several flights: [command, customerID, flight, flight, ...]
+     * Flights held by a single RM go in a single request; a reservation
+     * spanning several RMs runs as a two-phase commit transaction.
+     * @param request
+     * @return
+     */
+    private ResponsePacket forwardFlights(Request request) {
+        Vector<String> arguments = request.getArguments();
+        if (arguments.size() < 2) {
+            return forward(flightShards, null, request);
+        }
+        Map<ReplicaGroup<String>, Vector<String>> byShard = flightsByShard(arguments.subList(2, arguments.size()));
+        if (byShard == null) {
+            return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "No flights RM available.");
+        }
+        if (byShard.size() <= 1) {
+            ReplicaGroup<String> group = byShard.isEmpty() ? firstShard(flightShards) : byShard.keySet().iterator().next();
+            return forwardToPrimary(group, request);
+        }
 
-                        System.out.println("Flight reservation canceled for flight number " + reservedFlight);
-                    }
-                }
+        int customerID;
+        try {
+            customerID = Integer.parseInt(arguments.get(1));
+        } catch (NumberFormatException e) {
+            return ResponsePacket.error(ResponsePacket.Error.INVALID, "Invalid customer id: " + arguments.get(1));
+        }
 
-                if(reserveCar){
-                    Vector<String> carArg = new Vector<>();
-                    carArg.add(Command.CancelReserveCar.name());
-                    carArg.add(String.valueOf(customerID));
-                    carArg.add(String.valueOf(location));
-                    ResponsePacket carResponse = forwardToCar(new Request(Command.CancelReserveCar, carArg));
-                    System.out.println("Car reservation canceled at location  " + location);
-                    return new ResponsePacket(false, "bundle operation failed.");
+        if (request.getCommand() == Command.ReserveFlights) {
+            List<TransactionCoordinator.Branch> branches = new Vector<>();
+            try {
+                for (Map.Entry<ReplicaGroup<String>, Vector<String>> shard : byShard.entrySet()) {
+                    branches.add(new TransactionCoordinator.Branch(participant(shard.getKey()), customerID, shard.getValue(), "", false, false));
                 }
+            } catch (IOException e) {
+                return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "Flights could not be reserved, RM unreachable.");
+            }
+            return execute(branches);
+        }
 
-                System.out.println("Rollback completes for customer:" + customerID );
-                return new ResponsePacket(false, "bundle operation failed.");
+        // cancellations are independent of each other, cancel what can be
+        List<Callable<ResponsePacket>> cancels = new Vector<>();
+        for (Map.Entry<ReplicaGroup<String>, Vector<String>> shard : byShard.entrySet()) {
+            Request cancel = newRequest(request.getCommand(), customerID, shard.getValue());
+            cancels.add(() -> forwardToPrimary(shard.getKey(), cancel));
+        }
+        for (FanOut.Result<ResponsePacket> result : fanOut.invokeAll(cancels)) {
+            if (!result.isSuccess() || !result.getValue().getStatus()) {
+                return result.isSuccess() ? result.getValue() : ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "Flights could not all be cancelled.");
             }
         }
+        return ResponsePacket.ok();
+    }
 
-        return new ResponsePacket(true, "bundle operation succeeded.");
+    /**
+     * Build a request with the argument layout the RMs expect:
+     * [command, param1, param2, ...], a collection parameter is flattened.
+     * @param command
+     * @param parameters
+     * @return
+     */
+    static Request newRequest(Command command, Object... parameters) {
+        Vector<String> arguments = new Vector<>();
+        arguments.add(command.name());
+        for (Object parameter : parameters) {
+            if (parameter instanceof Collection) {
+                for (Object element : (Collection<?>) parameter) {
+                    arguments.add(String.valueOf(element));
+                }
+            } else {
+                arguments.add(String.valueOf(parameter));
+            }
+        }
+        return new Request(command, arguments);
     }
 
     /**
-     * Handle customer request (needing multiple managers)
+     * Handle customer request (needing every manager):
+     * a customer exists on every shard of every resource type
      * @param request
      * @return
      */
     private ResponsePacket forwardCustomer(Request request) {
 
-        ResponsePacket result1;
-        ResponsePacket result2;
-        ResponsePacket result3;
+        List<ReplicaGroup<String>> addresses = allShards();
+        if (addresses.isEmpty()) {
+            return ResponsePacket.error(ResponsePacket.Error.UNAVAILABLE, "No RM available.");
+        }
 
         switch (request.getCommand()){
             // add a new customer in 1 resource manager, use the returned id for other resource managers
             // rollback: if one of them fails, delete the new customer in previous resource managers
-            case AddCustomer:
-                result1 = forwardToFlight(request);
-                String customerID = result1.getMessage();
-                System.out.println("returned customer id:" + customerID);
-
-                Vector<String> customerTemp = new Vector<>();
-                customerTemp.add(Command.AddCustomerID.name());
-                customerTemp.add(customerID);
-
-                System.out.println("result for adding new customer to flight manager:" + result1.getStatus());
-
-                if(!result1.getStatus()){
-                    return result1;
+            case AddCustomer: {
+                ReplicaGroup<String> first = addresses.get(0);
+                ResponsePacket result = forwardToPrimary(first, request);
+                System.out.println("result for adding new customer to " + first + ":" + result.getStatus());
+                if (!result.getStatus()) {
+                    return result;
                 }
 
-                result2 = forwardToCar(new Request(Command.AddCustomerID, customerTemp));
-                System.out.println("result for adding new customer to cars manager:" + result2.getStatus());
-
-                if(!result2.getStatus()){
-                    customerTemp.set(0, Command.DeleteCustomer.name());
-                    forwardToFlight(new Request(Command.DeleteCustomer, customerTemp));
-                    return result2;
-                }
+                String customerID = String.valueOf(result.getValue());
+                System.out.println("returned customer id:" + customerID);
 
-                result3 = forwardToRoom(new Request(Command.AddCustomerID, customerTemp));
-                if(!result3.getStatus()){
-                    customerTemp.set(0, Command.DeleteCustomer.name());
-                    forwardToFlight(new Request(Command.DeleteCustomer, customerTemp));
-                    forwardToRoom(new Request(Command.DeleteCustomer, customerTemp));
-                    return result3;
-                }
-                System.out.println("result for adding new customer to rooms manager:" + result3.getStatus());
-                break;
+                List<ReplicaGroup<String>> others = addresses.subList(1, addresses.size());
+                List<ResponsePacket> results = scatter(others, newRequest(Command.AddCustomerID, customerID));
+                return rollbackIfFailed(customerID, addresses, prepend(result, results), result);
+            }
 
-            case AddCustomerID:
-                result1 = forwardToFlight(request);
-                if(!result1.getStatus()){
-                    return result1;
+            case AddCustomerID: {
+                List<ResponsePacket> results = scatter(addresses, request);
+                return rollbackIfFailed(request.getArguments().get(1), addresses, results, results.get(0));
+            }
+            // success when: delete customer successfully
+            // fail when: customer does not exist
+            case DeleteCustomer: {
+                List<ResponsePacket> results = scatter(addresses, request);
+                for (ResponsePacket result : results) {
+                    if (!result.getStatus()) {
+                        return result;
+                    }
                 }
-                result2 = forwardToCar(request);
-                if(!result2.getStatus()){
-                    forwardToFlight(new Request(Command.DeleteCustomer, request.getArguments()));
-                    return result2;
+                return results.get(0);
+            }
+            // the bills of the shards of a resource type are merged,
+            // a bill missing a shard is not returned
+            case QueryCustomer: {
+                // one view of the shards, so that the bills are split the way they were asked for
+                List<ReplicaGroup<String>> flightGroups = new Vector<>(flightShards.all().values());
+                List<ReplicaGroup<String>> carGroups = new Vector<>(carShards.all().values());
+                List<ReplicaGroup<String>> groups = new Vector<>(flightGroups);
+                groups.addAll(carGroups);
+                groups.addAll(roomShards.all().values());
+                List<ResponsePacket> results = scatter(groups, request);
+                for (ResponsePacket result : results) {
+                    if (!result.getStatus()) {
+                        return result;
+                    }
                 }
+                int flights = flightGroups.size();
+                int cars = carGroups.size();
+                int rooms = groups.size() - flights - cars;
+
+                return ResponsePacket.of(Arrays.asList(
+                        mergeBills("Flights", results.subList(0, flights)),
+                        mergeBills("Cars", results.subList(flights, flights + cars)),
+                        mergeBills("Rooms", results.subList(flights + cars, flights + cars + rooms))));
+            }
+            default:
+                return ResponsePacket.error(ResponsePacket.Error.INVALID, "Unknown command.");
+        }
+    }
 
-                result3 = forwardToRoom(request);
-                if(!result3.getStatus()){
-                    forwardToFlight(new Request(Command.DeleteCustomer, request.getArguments()));
-                    forwardToCar(new Request(Command.DeleteCustomer, request.getArguments()));
-                    return result3;
-                }
-                break;
-            // success when: delete customer successfully
-            // fail when: customer does not exist
-            case DeleteCustomer:
-                result1 = forwardToFlight(request);
+    /**
+     * If the customer could not be added everywhere,
+     * delete it from the RMs where this request added it.
+     * Once rolled back, the outcome is a refusal, which the middleware remembers
+     * under the client's id: a retry must not get the RMs' cached success for
+     * a customer deleted since.
+     * @param results of the RMs, in the order of the addresses
+     * @param succeeded the response if every RM added the customer
+     * @return succeeded, or why the customer was not added
+     */
+    private ResponsePacket rollbackIfFailed(String customerID, List<ReplicaGroup<String>> addresses, List<ResponsePacket> results,
+                                            ResponsePacket succeeded) {
+        ResponsePacket failed = null;
+        List<ReplicaGroup<String>> added = new Vector<>();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).getStatus()) {
+                added.add(addresses.get(i));
+            } else if (failed == null) {
+                failed = results.get(i);
+            }
+        }
+        if (failed == null) {
+            return succeeded;
+        }
+        if (rollbackAddingCustomer(customerID, added) && failed.getError() != ResponsePacket.Error.REFUSED) {
+            return ResponsePacket.error(ResponsePacket.Error.REFUSED, "Customer " + customerID
+                    + " not added, rolled back after: " + failed.getMessage());
+        }
+        return failed;
+    }
 
-                result2 = forwardToCar(request);
+    /**
+     * @return whether the customer was deleted from every RM
+     */
+    private boolean rollbackAddingCustomer(String customerID, List<ReplicaGroup<String>> addresses) {
+        List<ResponsePacket> results = scatter(addresses, newRequest(Command.DeleteCustomer, customerID));
+        boolean rolledBack = true;
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.get(i).getStatus()) {
+                System.err.println("Failed to rollback customer creation in " + addresses.get(i));
+                rolledBack = false;
+            }
+        }
+        return rolledBack;
+    }
 
-                result3 = forwardToRoom(request);
+    private static List<ResponsePacket> prepend(ResponsePacket first, List<ResponsePacket> others) {
+        List<ResponsePacket> all = new Vector<>();
+        all.add(first);
+        all.addAll(others);
+        return all;
+    }
 
-                break;
-            // when one of them fails, return a response indicating failure
-            // if all of them succeed, return a response containing the aggregation
-            case QueryCustomer:
-                result1 = forwardToFlight(request);
-                result2 = forwardToCar(request);
-                result3 = forwardToRoom(request);
-
-                String msg =
-                        "\nFlights " + result1.getMessage() +
-                        "Cars " + result2.getMessage() +
-                        "Rooms " + result3.getMessage();
-                return new ResponsePacket(true, msg);
-            default:
-                return new ResponsePacket(false, "Unknown command.");
+    /**
+     * Merge the bills of one customer from the shards of a resource type
+     */
+    private static Bill mergeBills(String title, List<ResponsePacket> results) {
+        List<Bill> bills = new Vector<>();
+        for (ResponsePacket result : results) {
+            bills.addAll(result.getBills());
         }
-        return result1;
+        return Bill.merge(title, bills);
     }
 
-
 }
@@ -0,0 +1,147 @@
+package Server.TCP;
+
+import Client.Command;
+import Client.TCPClient.Request;
+import Server.Common.JfrEvents;
+import Server.Common.MessageChannel;
+import Server.Common.ResponsePacket;
+import Server.Common.Tracer;
+import Server.Common.TransactionCoordinator;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+
+/**
+ * A TCP resource manager taking part in a two-phase commit,
+ * reached through the middleware's connection to it.
+ *
+ * The aborts, and the commits the coordinator sends again, are sent in the
+ * background, when the client may be gone and the connections of its handler
+ * closed: they go over a connection of their own to each RM, shared by all
+ * the handlers.
+ *
+ * Every call waits at most middleware.rmTimeout for the RM, so that a stuck RM
+ * can't hold up the coordinator; the connection is then closed, and the next
+ * call reconnects.
+ */
+class RMParticipant implements TransactionCoordinator.Participant {
+
+    // connections used in the background, by address
+    private static final Map<String, MessageChannel> sharedChannels = new HashMap<>();
+
+    private final String name;
+    // null to only use the shared connection
+    private final MessageChannel channel;
+
+    RMParticipant(String name, MessageChannel channel) {
+        this.name = name;
+        this.channel = channel;
+    }
+
+    /**
+     * A participant reached over the shared connection only, e.g. at recovery
+     * @param name address of the RM
+     */
+    RMParticipant(String name) {
+        this(name, null);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean prepare(long xid, TransactionCoordinator.Branch branch) throws IOException {
+        Request request = MiddlewareTaskHandler.newRequest(Command.Prepare, xid, branch.getCustomerID(),
+                branch.getFlightNumbers(), branch.getLocation(), branch.isCar(), branch.isRoom());
+        return send(request).getStatus();
+    }
+
+    @Override
+    public boolean commit(long xid) throws IOException {
+        return sendOrShare(MiddlewareTaskHandler.newRequest(Command.Commit, xid)).getStatus();
+    }
+
+    @Override
+    public boolean abort(long xid) throws IOException {
+        return share(MiddlewareTaskHandler.newRequest(Command.Abort, xid)).getStatus();
+    }
+
+    /**
+     * @param reconnect replace the current connection
+     * @return the shared connection to this RM
+     * @throws IOException
+     */
+    private MessageChannel sharedChannel(boolean reconnect) throws IOException {
+        synchronized (sharedChannels) {
+            MessageChannel sharedChannel = sharedChannels.get(name);
+            if (sharedChannel != null && (reconnect || sharedChannel.isClosed())) {
+                sharedChannel.close();
+                sharedChannel = null;
+            }
+            if (sharedChannel == null) {
+                sharedChannel = new MessageChannel(TCPMiddleware.connect(name), "coordinator->" + name);
+                sharedChannels.put(name, sharedChannel);
+            }
+            return sharedChannel;
+        }
+    }
+
+    // over the shared connection
+    private ResponsePacket share(Request request) throws IOException {
+        try {
+            return send(sharedChannel(false), request);
+        } catch (IOException e) {
+            // e.g. the RM restarted since the last call, try once on a new connection
+            return send(sharedChannel(true), request);
+        }
+    }
+
+    // over the handler's connection, or the shared one once it broke, e.g. the client left;
+    // only for the calls an RM answers the same when they come twice
+    private ResponsePacket sendOrShare(Request request) throws IOException {
+        if (channel != null) {
+            try {
+                return send(channel, request);
+            } catch (IOException e) {
+                // sent again below
+            }
+        }
+        return share(request);
+    }
+
+    @Override
+    public Collection<Long> inDoubtTransactions() throws IOException {
+        ResponsePacket response = sendOrShare(MiddlewareTaskHandler.newRequest(Command.InDoubt));
+        if (!response.getStatus()) {
+            throw new IOException("InDoubt failed on " + name + ": " + response.getMessage());
+        }
+        return response.getTransactions();
+    }
+
+    private ResponsePacket send(Request request) throws IOException {
+        return send(channel, request);
+    }
+
+    private ResponsePacket send(MessageChannel channel, Request request) throws IOException {
+        JfrEvents.Forward event = JfrEvents.Forward.start(name, request.getCommand().name(), channel);
+        try (Tracer.Span span = Tracer.start(request.getCommand().name() + " " + name)) {
+            if (span.isRecording()) {
+                request = request.traced(span.getTraceId(), span.getId());
+            }
+            ResponsePacket response = (ResponsePacket) channel.call(request, TCPMiddleware.rmTimeout);
+            event.succeeded = response.getStatus();
+            return response;
+        } catch (SocketTimeoutException e) {
+            // the late response would be read as the next one's
+            channel.close();
+            throw e;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            event.done();
+        }
+    }
+}
@@ -2,23 +2,49 @@ package Server.TCP;
 
 import Client.Command;
 import Client.TCPClient.Request;
+import Server.Common.AdmissionControl;
+import Server.Common.Bill;
+import Server.Common.DateRange;
+import Server.Common.IdempotencyTable;
+import Server.Common.MessageChannel;
+import Server.Common.Metrics;
 import Server.Common.ResourceManager;
 import Server.Common.ResponsePacket;
+import Server.Common.Tracer;
+import Server.Interface.IInvalidationListener;
+import Server.Interface.IReplicationListener;
+import Server.Interface.IWaitlistListener;
 
 import java.io.*;
 import java.net.Socket;
+import java.rmi.RemoteException;
+import java.time.DateTimeException;
 import java.util.Vector;
 
 class RMTaskHandler extends Thread {
 
+    // requests processed at the same time over all the connections, the others wait or are refused
+    private static final AdmissionControl admission = new AdmissionControl("rm",
+            Integer.getInteger("rm.maxConcurrent", 64), Integer.getInteger("rm.maxQueued", 256),
+            Long.getLong("rm.queueTimeoutMs", 100));
+
     // maintains the socket of the middleware, after connecting with a middleware
     private final Socket middlewareSocket;
     // maintains the reference to the corresponding resource manager
     private final ResourceManager resourceManager;
-
-    public RMTaskHandler(Socket clientSocket, ResourceManager resourceManager){
+    // outcome of the recent writes of the RM, to apply a write sent again only once
+    private final IdempotencyTable completed;
+    // set when the middleware subscribed to the invalidations on this connection
+    private IInvalidationListener invalidationListener;
+    // and to the customers served from the waitlists
+    private IWaitlistListener waitlistListener;
+    // set when a backup follows the replication log on this connection
+    private IReplicationListener replicationListener;
+
+    public RMTaskHandler(Socket clientSocket, ResourceManager resourceManager, IdempotencyTable completed){
         this.middlewareSocket = clientSocket;
         this.resourceManager = resourceManager;
+        this.completed = completed;
     }
 
     /**
@@ -32,30 +58,60 @@ class RMTaskHandler extends Thread {
         System.out.println("Started handling a new connection from Middleware...");
 
         try (
-                ObjectOutputStream output = new ObjectOutputStream(middlewareSocket.getOutputStream());
-                ObjectInputStream input = new ObjectInputStream(middlewareSocket.getInputStream());
+                MessageChannel channel = new MessageChannel(middlewareSocket, "rm<-" + middlewareSocket.getRemoteSocketAddress());
         ) {
+            // the traced requests are spans of this RM
+            String component = "rm-" + resourceManager.getName();
+
             // Keep handling request
             // until the middleware closes the connection
             while (!middlewareSocket.isClosed()) {
 
                 try {
-                    Request request = (Request) input.readObject();
+                    Request request = (Request) channel.receive();
                     Vector<String> arguments = request.getArguments();
                     Command command = request.getCommand();
 
                     System.out.println("Received command: " + command + " with arguments: " + arguments);
-                    ResponsePacket response = processCommand(command, arguments);
-
-                    output.writeObject(response);
-                    output.flush();
+                    long received = System.nanoTime();
+                    long admitted = received;
+                    ResponsePacket response;
+                    try (Tracer.Span span = Tracer.join(component, command.name(), request.getTraceId(), request.getSpanId())) {
+                        if (command == Command.Subscribe) {
+                            response = subscribe(channel);
+                        } else if (command == Command.Replicate) {
+                            response = replicate(channel, Long.parseLong(arguments.get(1)), Long.parseLong(arguments.get(2)));
+                        } else if (resourceManager.isBackup() && !isRead(command)) {
+                            // a backup only changes through its primary's log
+                            response = ResponsePacket.error(ResponsePacket.Error.RETRY, "Read-only backup, send writes to the primary.");
+                        } else if (isExempt(command)) {
+                            response = processCommand(command, arguments);
+                        } else if (admission.acquire()) {
+                            admitted = System.nanoTime();
+                            try {
+                                response = isRead(command) ? processCommand(command, arguments)
+                                        : completed.execute(request.getRequestId(), () -> processCommand(command, arguments));
+                            } finally {
+                                admission.release();
+                            }
+                        } else {
+                            response = ResponsePacket.busy("Resource manager busy, retry later.");
+                        }
+                        span.tag("queueMicros", (admitted - received) / 1000).tag("status", response.getStatus());
+                    }
+                    record(command, received, admitted, response);
+
+                    channel.send(response);
 
                 } catch (EOFException eof) {
                     System.out.println("Middleware has closed the connection.");
                     break;
                 } catch (ClassNotFoundException | IOException e) {
-                    System.err.println("Error processing request: " + e.getMessage());
-                    e.printStackTrace();
+                    // unless the RM was stopped, which closed the socket
+                    if (!middlewareSocket.isClosed()) {
+                        System.err.println("Error processing request: " + e.getMessage());
+                        e.printStackTrace();
+                    }
                     break;
                 }
             }
@@ -63,6 +119,15 @@ class RMTaskHandler extends Thread {
             System.err.println("Error setting up RMTaskHandler: " + e.getMessage());
             e.printStackTrace();
         } finally {
+            if (invalidationListener != null) {
+                resourceManager.unsubscribe(invalidationListener);
+            }
+            if (waitlistListener != null) {
+                resourceManager.unsubscribeWaitlist(waitlistListener);
+            }
+            if (replicationListener != null) {
+                resourceManager.stopReplicatingTo(replicationListener);
+            }
             try {
                 middlewareSocket.close();
                 System.out.println("Middleware socket closed for the Resource Manager.");
@@ -73,6 +138,125 @@ class RMTaskHandler extends Thread {
         }
     }
 
+    /**
+     * Count the request in the metrics of the RM
+     * @param command
+     * @param received when the request was read
+     * @param admitted when it got past the admission control
+     * @param response
+     */
+    private void record(Command command, long received, long admitted, ResponsePacket response) {
+        if (command == Command.Subscribe || command == Command.Replicate) {
+            // not requests but long-lived push channels
+            return;
+        }
+        Metrics.Operation operation = resourceManager.getMetrics().operation(command.name());
+        long now = System.nanoTime();
+        if (response.isBusy()) {
+            operation.rejected(now - received);
+        } else {
+            operation.record(admitted - received, now - admitted, response.getStatus());
+        }
+    }
+
+    /**
+     * Turn this connection into a push channel of invalidations:
+     * from now on, the key of every item that changes is sent to the middleware,
+     * and so is the notice of every customer taken off a waitlist.
+     * @param channel
+     * @return the acknowledgement of the subscription
+     */
+    private ResponsePacket subscribe(MessageChannel channel) throws RemoteException {
+        invalidationListener = key -> {
+            try {
+                channel.send(key);
+            } catch (IOException e) {
+                throw new RemoteException("Middleware unreachable", e);
+            }
+        };
+        waitlistListener = notice -> {
+            try {
+                channel.send(notice);
+            } catch (IOException e) {
+                throw new RemoteException("Middleware unreachable", e);
+            }
+        };
+        resourceManager.subscribe(invalidationListener);
+        resourceManager.subscribeWaitlist(waitlistListener);
+        return ResponsePacket.ok();
+    }
+
+    /**
+     * Turn this connection into a push channel of the replication log:
+     * the changes after the given sequence number, then every new change.
+     * @param channel
+     * @param fromSequence last sequence number the backup applied
+     * @param epoch epoch of the primary the backup last followed
+     * @return the acknowledgement, which may come after the first records
+     */
+    private ResponsePacket replicate(MessageChannel channel, long fromSequence, long epoch) throws RemoteException {
+        replicationListener = record -> {
+            try {
+                channel.send(record);
+            } catch (IOException e) {
+                throw new RemoteException("Backup unreachable", e);
+            }
+        };
+        resourceManager.replicateTo(replicationListener, fromSequence, epoch);
+        return ResponsePacket.ok();
+    }
+
+    /**
+     * @param command
+     * @return true if the command does not change any data
+     */
+    private static boolean isRead(Command command) {
+        switch (command) {
+            case Help:
+            case QueryFlight:
+            case QueryCars:
+            case QueryRooms:
+            case QueryCustomer:
+            case QueryFlightPrice:
+            case QueryCarsPrice:
+            case QueryRoomsPrice:
+            case QueryCarsDates:
+            case QueryRoomsDates:
+            case InDoubt:
+            case Promote:
+            case Fence:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param command
+     * @return true if the command is never refused under overload:
+     * the outcome of a bundle must reach the RM, and failing over must work
+     */
+    private static boolean isExempt(Command command) {
+        switch (command) {
+            case Commit:
+            case Abort:
+            case InDoubt:
+            case Promote:
+            case Fence:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param position 0 if reserved right away, the position on the waitlist, -1 if neither
+     * @return the position, or a refusal
+     */
+    private static ResponsePacket waitlisted(int position) {
+        return position < 0 ? ResponsePacket.of(false) : ResponsePacket.of(position);
+    }
+
     /**
      * Process the command and return the response.
      * argument format: [command, param1, param2, ...]
@@ -80,8 +264,9 @@ class RMTaskHandler extends Thread {
      * @param arguments
      * @return
      */
+    @SuppressWarnings("try")
     private ResponsePacket processCommand(Command command, Vector<String> arguments) {
-        try {
+        try (Tracer.Span span = Tracer.start("processCommand")) {
             switch (command) {
                 case Help:
 
@@ -91,34 +276,99 @@ class RMTaskHandler extends Thread {
                             Integer.parseInt(arguments.get(2)),
                             Integer.parseInt(arguments.get(3))
                     );
-                    return new ResponsePacket(flightAdded, flightAdded ? "Flight added successfully." : "Failed to add flight.");
+                    return ResponsePacket.of(flightAdded);
 
                 case ReserveFlight:
                     boolean flightReserved = resourceManager.reserveFlight(
                             Integer.parseInt(arguments.get(1)),
                             Integer.parseInt(arguments.get(2))
                     );
-                    return new ResponsePacket(flightReserved, flightReserved ? "Flight reserved successfully." : "Failed to reserve flight.");
+                    return ResponsePacket.of(flightReserved);
 
                 case CancelReserveFlight:
                     boolean flightCanceled = resourceManager.cancelReserveFlight(
                             Integer.parseInt(arguments.get(1)),
                             Integer.parseInt(arguments.get(2))
                     );
-                    return new ResponsePacket(flightCanceled, flightCanceled ? "Flight canceled successfully." : "Failed to cancel flight.");
+                    return ResponsePacket.of(flightCanceled);
+
+
+                case WaitFlight:
+                    return waitlisted(resourceManager.waitFlight(
+                            Integer.parseInt(arguments.get(1)),
+                            Integer.parseInt(arguments.get(2))
+                    ));
+
+                case WaitCar:
+                    return waitlisted(resourceManager.waitCar(
+                            Integer.parseInt(arguments.get(1)),
+                            arguments.get(2)
+                    ));
+
+                case WaitRoom:
+                    return waitlisted(resourceManager.waitRoom(
+                            Integer.parseInt(arguments.get(1)),
+                            arguments.get(2)
+                    ));
+
+                case ReserveFlights:
+                    boolean flightsReserved = resourceManager.reserveFlights(
+                            Integer.parseInt(arguments.get(1)),
+                            new Vector<>(arguments.subList(2, arguments.size()))
+                    );
+                    return ResponsePacket.of(flightsReserved);
+
+                case CancelReserveFlights:
+                    boolean flightsCanceled = resourceManager.cancelReserveFlights(
+                            Integer.parseInt(arguments.get(1)),
+                            new Vector<>(arguments.subList(2, arguments.size()))
+                    );
+                    return ResponsePacket.of(flightsCanceled);
+
+                case Prepare: {
+                    // [Prepare, xid, customerID, flight1, ..., flightN, location, car, room]
+                    int n = arguments.size();
+                    boolean prepared = resourceManager.prepare(
+                            Long.parseLong(arguments.get(1)),
+                            Integer.parseInt(arguments.get(2)),
+                            new Vector<>(arguments.subList(3, n - 3)),
+                            arguments.get(n - 3),
+                            Boolean.parseBoolean(arguments.get(n - 2)),
+                            Boolean.parseBoolean(arguments.get(n - 1))
+                    );
+                    return ResponsePacket.of(prepared);
+                }
 
+                case Commit:
+                    boolean committed = resourceManager.commit(Long.parseLong(arguments.get(1)));
+                    return ResponsePacket.of(committed);
+
+                case Abort:
+                    boolean aborted = resourceManager.abort(Long.parseLong(arguments.get(1)));
+                    return ResponsePacket.of(aborted);
+
+                case Promote:
+                    boolean promoted = resourceManager.promote(Long.parseLong(arguments.get(1)));
+                    return ResponsePacket.of(promoted);
+
+                case Fence:
+                    boolean fenced = resourceManager.fence(Long.parseLong(arguments.get(1)));
+                    return ResponsePacket.of(fenced);
+
+                case InDoubt:
+                    return ResponsePacket.ofTransactions(resourceManager.inDoubtTransactions());
 
                 case DeleteFlight:
                     boolean flightDeleted = resourceManager.deleteFlight(Integer.parseInt(arguments.get(1)));
-                    return new ResponsePacket(flightDeleted, flightDeleted ? "Flight deleted successfully." : "Failed to delete flight.");
+                    return ResponsePacket.of(flightDeleted);
 
                 case QueryFlight:
                     int seats = resourceManager.queryFlight(Integer.parseInt(arguments.get(1)));
-                    return new ResponsePacket(true, String.valueOf(seats));
+                    return ResponsePacket.of(seats);
 
                 case QueryFlightPrice:
                     int price = resourceManager.queryFlightPrice(Integer.parseInt(arguments.get(1)));
-                    return new ResponsePacket(true, String.valueOf(price));
+                    return ResponsePacket.of(price);
 
                 case AddCars:
                     boolean carsAdded = resourceManager.addCars(
@@ -126,34 +376,57 @@ class RMTaskHandler extends Thread {
                             Integer.parseInt(arguments.get(2)),
                             Integer.parseInt(arguments.get(3))
                     );
-                    return new ResponsePacket(carsAdded, carsAdded ? "Cars added successfully." : "Failed to add cars.");
+                    return ResponsePacket.of(carsAdded);
 
                 case ReserveCar:
                     boolean carReserved = resourceManager.reserveCar(
                             Integer.parseInt(arguments.get(1)),
                             arguments.get(2)
                     );
-                    return new ResponsePacket(carReserved, carReserved ? "Car reserved successfully." : "Failed to reserve car.");
+                    return ResponsePacket.of(carReserved);
 
                 case CancelReserveCar:
                     boolean carCanceled = resourceManager.cancelReserveCar(
                             Integer.parseInt(arguments.get(1)),
                             arguments.get(2)
                     );
-                    return new ResponsePacket(carCanceled, carCanceled ? "Car canceled successfully." : "Failed to cancel car.");
+                    return ResponsePacket.of(carCanceled);
 
 
                 case DeleteCars:
                     boolean carsDeleted = resourceManager.deleteCars(arguments.get(1));
-                    return new ResponsePacket(carsDeleted, carsDeleted ? "Cars deleted successfully." : "Failed to delete cars.");
+                    return ResponsePacket.of(carsDeleted);
 
                 case QueryCars:
                     int availableCars = resourceManager.queryCars(arguments.get(1));
-                    return new ResponsePacket(true, String.valueOf(availableCars));
+                    return ResponsePacket.of(availableCars);
 
                 case QueryCarsPrice:
                     int carPrice = resourceManager.queryCarsPrice(arguments.get(1));
-                    return new ResponsePacket(true,  String.valueOf(carPrice));
+                    return ResponsePacket.of(carPrice);
+
+                case ReserveCarDates:
+                    boolean carDatesReserved = resourceManager.reserveCarDates(
+                            Integer.parseInt(arguments.get(1)),
+                            arguments.get(2),
+                            DateRange.parse(arguments.get(3), arguments.get(4))
+                    );
+                    return ResponsePacket.of(carDatesReserved);
+
+                case CancelReserveCarDates:
+                    boolean carDatesCanceled = resourceManager.cancelReserveCarDates(
+                            Integer.parseInt(arguments.get(1)),
+                            arguments.get(2),
+                            DateRange.parse(arguments.get(3), arguments.get(4))
+                    );
+                    return ResponsePacket.of(carDatesCanceled);
+
+                case QueryCarsDates:
+                    int datedCars = resourceManager.queryCarsDates(
+                            arguments.get(1),
+                            DateRange.parse(arguments.get(2), arguments.get(3))
+                    );
+                    return ResponsePacket.of(datedCars);
 
                 case AddRooms:
                     boolean roomsAdded = resourceManager.addRooms(
@@ -161,56 +434,81 @@ class RMTaskHandler extends Thread {
                             Integer.parseInt(arguments.get(2)),
                             Integer.parseInt(arguments.get(3))
                     );
-                    return new ResponsePacket(roomsAdded, roomsAdded ? "Rooms added successfully." : "Failed to add rooms.");
+                    return ResponsePacket.of(roomsAdded);
 
                 case ReserveRoom:
                     boolean roomReserved = resourceManager.reserveRoom(
                             Integer.parseInt(arguments.get(1)),
                             arguments.get(2)
                     );
-                    return new ResponsePacket(roomReserved, roomReserved ? "Room reserved successfully." : "Failed to reserve room.");
+                    return ResponsePacket.of(roomReserved);
 
                 case CancelReserveRoom:
                     boolean roomCanceled = resourceManager.cancelReserveRoom(
                             Integer.parseInt(arguments.get(1)),
                             arguments.get(2)
                     );
-                    return new ResponsePacket(roomCanceled, roomCanceled ? "Room cancelled successfully." : "Failed to cancel room.");
+                    return ResponsePacket.of(roomCanceled);
 
 
                 case DeleteRooms:
                     boolean roomsDeleted = resourceManager.deleteRooms(arguments.get(1));
-                    return new ResponsePacket(roomsDeleted, roomsDeleted ? "Rooms deleted successfully." : "Failed to delete rooms.");
+                    return ResponsePacket.of(roomsDeleted);
 
                 case QueryRooms:
                     int availableRooms = resourceManager.queryRooms(arguments.get(1));
-                    return new ResponsePacket(true, String.valueOf(availableRooms));
+                    return ResponsePacket.of(availableRooms);
 
                 case QueryRoomsPrice:
                     int roomPrice = resourceManager.queryRoomsPrice(arguments.get(1));
-                    return new ResponsePacket(true, String.valueOf(roomPrice));
+                    return ResponsePacket.of(roomPrice);
+
+                case ReserveRoomDates:
+                    boolean roomDatesReserved = resourceManager.reserveRoomDates(
+                            Integer.parseInt(arguments.get(1)),
+                            arguments.get(2),
+                            DateRange.parse(arguments.get(3), arguments.get(4))
+                    );
+                    return ResponsePacket.of(roomDatesReserved);
+
+                case CancelReserveRoomDates:
+                    boolean roomDatesCanceled = resourceManager.cancelReserveRoomDates(
+                            Integer.parseInt(arguments.get(1)),
+                            arguments.get(2),
+                            DateRange.parse(arguments.get(3), arguments.get(4))
+                    );
+                    return ResponsePacket.of(roomDatesCanceled);
+
+                case QueryRoomsDates:
+                    int datedRooms = resourceManager.queryRoomsDates(
+                            arguments.get(1),
+                            DateRange.parse(arguments.get(2), arguments.get(3))
+                    );
+                    return ResponsePacket.of(datedRooms);
 
                 case AddCustomer:
                     int customerID = resourceManager.newCustomer();
-                    return new ResponsePacket(true, String.valueOf(customerID));
+                    return ResponsePacket.of(customerID);
 
                 case AddCustomerID:
                     boolean customerAdded = resourceManager.newCustomer(Integer.parseInt(arguments.get(1)));
-                    return new ResponsePacket(customerAdded, customerAdded ? "Customer added successfully." : "Failed to add customer.");
+                    return ResponsePacket.of(customerAdded);
 
                 case DeleteCustomer:
                     boolean customerDeleted = resourceManager.deleteCustomer(Integer.parseInt(arguments.get(1)));
-                    return new ResponsePacket(customerDeleted, customerDeleted ? "Customer deleted successfully." : "Failed to delete customer.");
+                    return ResponsePacket.of(customerDeleted);
 
                 case QueryCustomer:
-                    String bill = resourceManager.queryCustomerInfo(Integer.parseInt(arguments.get(1)));
-                    return new ResponsePacket(true, bill);
+                    Bill bill = resourceManager.queryCustomerBill(Integer.parseInt(arguments.get(1)));
+                    return ResponsePacket.of(bill);
                 default:
-                    return new ResponsePacket(false, "Unknown command.");
+                    return ResponsePacket.error(ResponsePacket.Error.INVALID, "Unknown command.");
             }
+        } catch (NumberFormatException | DateTimeException | IndexOutOfBoundsException e) {
+            return ResponsePacket.error(ResponsePacket.Error.INVALID, "Invalid arguments: " + arguments);
         } catch (Exception e) {
             e.printStackTrace();
-            return new ResponsePacket(false, "Error processing request.");
+            return ResponsePacket.error(ResponsePacket.Error.INTERNAL, null);
         }
     }
 
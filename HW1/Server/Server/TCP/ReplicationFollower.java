@@ -0,0 +1,107 @@
+package Server.TCP;
+
+import Client.Command;
+import Server.Common.MessageChannel;
+import Server.Common.ReplicationRecord;
+import Server.Common.ResourceManager;
+
+import java.io.IOException;
+
+/**
+ * Keeps a backup RM in sync with its primary:
+ * follows the primary's replication log over a dedicated connection and applies it.
+ * When the connection breaks, it reconnects and resumes after the last record applied,
+ * until the backup is promoted. The old primary is then fenced off, if it can be reached,
+ * so that it stops taking writes.
+ */
+class ReplicationFollower extends Thread {
+
+    private static final long reconnectDelay = 500;
+    // how long the old primary gets to acknowledge that it is fenced off
+    private static final long fenceTimeout = 1000;
+
+    private final String primary;
+    private final ResourceManager resourceManager;
+
+    // set when the backup stops
+    private volatile boolean closed = false;
+    private volatile MessageChannel channel;
+
+    /**
+     * @param primary host[:port] of the primary RM
+     * @param resourceManager the backup
+     */
+    ReplicationFollower(String primary, ResourceManager resourceManager) {
+        super("replication<-" + primary);
+        this.primary = primary;
+        this.resourceManager = resourceManager;
+        setDaemon(true);
+    }
+
+    /**
+     * Stop following the primary, e.g. when the backup stops
+     */
+    void close() {
+        closed = true;
+        interrupt();
+        MessageChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // already broken
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (resourceManager.isBackup() && !closed) {
+            try (MessageChannel channel = new MessageChannel(TCPMiddleware.connect(primary), getName())) {
+                this.channel = channel;
+                if (closed) {
+                    return;
+                }
+                long fromSequence = resourceManager.getReplicationSequence();
+                channel.send(MiddlewareTaskHandler.newRequest(Command.Replicate, fromSequence, resourceManager.getEpoch()));
+                System.out.println("Following the primary " + primary + " from #" + fromSequence);
+
+                // the records, the acknowledgement may come after the first of them
+                while (resourceManager.isBackup()) {
+                    Object message = channel.receive();
+                    if (message instanceof ReplicationRecord) {
+                        resourceManager.applyReplication((ReplicationRecord) message);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                if (closed) {
+                    return;
+                }
+                System.err.println("Lost the primary " + primary + ": " + e.getMessage());
+            }
+
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        if (!closed) {
+            System.out.println("Promoted, no longer following " + primary);
+            fence();
+        }
+    }
+
+    /**
+     * Tell the old primary that it was replaced, in case it is only cut off from the middleware
+     */
+    private void fence() {
+        try (MessageChannel channel = new MessageChannel(TCPMiddleware.connect(primary), "fence->" + primary)) {
+            channel.call(MiddlewareTaskHandler.newRequest(Command.Fence, resourceManager.getEpoch()), fenceTimeout);
+            System.out.println("Fenced off the old primary " + primary);
+        } catch (IOException | ClassNotFoundException e) {
+            // unreachable from here, it stays writable until it is fenced off or stopped
+            System.err.println("Could not fence off the old primary " + primary + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,8 +1,18 @@
 package Server.TCP;
 
+import Server.Common.IdempotencyTable;
+import Server.Common.MessageChannel;
+import Server.Common.QueryCache;
+import Server.Common.ReplicaGroup;
+import Server.Common.ShardMap;
+import Server.Common.TransactionCoordinator;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Middleware does not need to extend ResourceManager anymore in TCP version.
@@ -11,7 +21,36 @@ import java.net.Socket;
 public class TCPMiddleware{
 
     private static final int port = 4031;
+    // port of an RM given without one
     private static final int rmPort = 4031;
+    // how long a request, or a bundle's vote, waits for an RM, in milliseconds
+    static final long rmTimeout = Long.getLong("middleware.rmTimeout", 5000);
+    // how many times a write with a client id is sent again after a timeout, the RM applies it once
+    static final int writeRetries = Integer.getInteger("middleware.writeRetries", 1);
+    // how long a read waits for a replica before asking another one, until the replica's p95 is known
+    static final long hedgeDelayMs = Long.getLong("middleware.hedgeDelayMs", 20);
+    // commit log of the two-phase commit coordinator
+    private static final String coordinatorLog = System.getProperty("coordinator.log", "coordinator.log");
+    // file listing the RMs of each resource type, reloaded when it changes
+    private static final String shardsFile = System.getProperty("shards.file");
+    private static final long shardsReloadMs = Long.getLong("shards.reloadMs", 2000);
+
+    // the RMs of each resource type, a primary and its backups per shard
+    private final ShardMap<ReplicaGroup<String>> flightShards = new ShardMap<>("flights");
+    private final ShardMap<ReplicaGroup<String>> carShards = new ShardMap<>("cars");
+    private final ShardMap<ReplicaGroup<String>> roomShards = new ShardMap<>("rooms");
+
+    // price and availability cache, shared by all the clients
+    // and kept fresh by the RMs' invalidations
+    private final QueryCache cache = new QueryCache();
+    // outcome of the recent requests the middleware applies itself, by the id the clients gave them
+    private final IdempotencyTable completed = new IdempotencyTable();
+    private final Map<String, InvalidationSubscriber> subscribers = new HashMap<>();
+
+    private volatile ServerSocket serverSocket;
+    // connections of the clients, closed when the middleware stops
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private boolean stopped = false;
 
     public TCPMiddleware() {}
 
@@ -23,19 +62,39 @@ public class TCPMiddleware{
     public static void main(String[] args) throws IOException {
 
         if(args.length < 3){
-            System.err.println("Usage: java TCPMiddleware <flightHost> <carHost> <roomHost>");
+            System.err.println("Usage: java TCPMiddleware <flightHosts> <carHosts> <roomHosts>");
+            System.err.println("  each a comma-separated list of host[:port], one per shard,");
+            System.err.println("  a shard with backups is primary+backup+..., e.g. host1:4031+host2:4031");
             System.exit(1);
         }
 
         // Set up host and port maps
-        String FLIGHTSHOST = args[0];
-        String CARSHOST = args[1];
-        String ROOMSHOST = args[2];
+        List<String> FLIGHTSHOSTS = ShardMap.parseList(args[0]);
+        List<String> CARSHOSTS = ShardMap.parseList(args[1]);
+        List<String> ROOMSHOSTS = ShardMap.parseList(args[2]);
 
         TCPMiddleware middleware = new TCPMiddleware();
 
         // start
-        middleware.start(FLIGHTSHOST, CARSHOST, ROOMSHOST);
+        middleware.start(FLIGHTSHOSTS, CARSHOSTS, ROOMSHOSTS);
+    }
+
+    /**
+     * Open a connection to an RM
+     * @param address host[:port]
+     * @return
+     * @throws IOException
+     */
+    static Socket connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new Socket(address, rmPort);
+        }
+        try {
+            return new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid RM address: " + address);
+        }
     }
 
     /**
@@ -43,25 +102,142 @@ public class TCPMiddleware{
      * waits and accepts a connection from the client
      * start a handler(i.e. a thread) to handle the connection with the client.
      */
-    public void start(String flightHost, String carHost, String roomHost ){
+    public void start(List<String> flightHosts, List<String> carHosts, List<String> roomHosts){
         try(ServerSocket serverSocket = new ServerSocket(port)){
-            System.out.println("Middleware listening on port:" + port);
-
-            // accept client connection
-            while(true){
-                // listens and waits for a connection
-                // created and returned socket is used for communicating with the client
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("A new client is connected...");
-
-                // Create a new MiddlewareTaskHandler to handle the client
-                // and to communicate with RMs
-                new MiddlewareTaskHandler(clientSocket, flightHost, carHost, roomHost, rmPort).start();
-            }
-
+            serve(serverSocket, flightHosts, carHosts, roomHosts, coordinatorLog);
         }catch(IOException e){
             System.err.println("Error starting the middleware.");
             e.printStackTrace();
         }
     }
+
+    /**
+     * Connect to the RMs, then accept clients until the socket is closed
+     * @param serverSocket bound to the port of the middleware
+     * @param flightHosts
+     * @param carHosts
+     * @param roomHosts
+     * @param logPath commit log of the bundles
+     * @throws IOException once the socket is closed, or if the log can't be opened
+     */
+    public void serve(ServerSocket serverSocket, List<String> flightHosts, List<String> carHosts, List<String> roomHosts,
+                      String logPath) throws IOException {
+        this.serverSocket = serverSocket;
+        updateShards(flightShards, flightHosts);
+        updateShards(carShards, carHosts);
+        updateShards(roomShards, roomHosts);
+        if (shardsFile != null) {
+            ShardMap.watch(shardsFile, shardsReloadMs, this::reloadShards);
+        }
+
+        TransactionCoordinator coordinator = new TransactionCoordinator(logPath, rmTimeout);
+        recover(coordinator);
+
+        System.out.println("Middleware listening on port:" + serverSocket.getLocalPort());
+
+        // accept client connection
+        while(true){
+            // listens and waits for a connection
+            // created and returned socket is used for communicating with the client
+            Socket clientSocket = serverSocket.accept();
+            System.out.println("A new client is connected...");
+            connections.removeIf(Socket::isClosed);
+            connections.add(clientSocket);
+
+            // Create a new MiddlewareTaskHandler to handle the client
+            // and to communicate with RMs
+            new MiddlewareTaskHandler(clientSocket, flightShards, carShards, roomShards, coordinator, cache, completed).start();
+        }
+    }
+
+    /**
+     * Stop as if the process died: no more clients, the connected ones are
+     * disconnected, and the RMs' invalidations are no longer followed
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (serverSocket != null) {
+            close(serverSocket);
+        }
+        for (Socket connection : connections) {
+            close(connection);
+        }
+        connections.clear();
+        for (InvalidationSubscriber subscriber : subscribers.values()) {
+            subscriber.close();
+        }
+        subscribers.clear();
+    }
+
+    private static void close(Closeable socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closed already
+        }
+    }
+
+    /**
+     * Apply the content of the shard file, the resource types it does not list keep their RMs.
+     * Items are not moved: a type keeps its number of shards, a new RM only replaces a dropped one.
+     */
+    private void reloadShards(Map<String, List<String>> shards) {
+        for (ShardMap<ReplicaGroup<String>> map : Arrays.asList(flightShards, carShards, roomShards)) {
+            List<String> addresses = shards.get(map.getType());
+            if (addresses != null) {
+                updateShards(map, addresses);
+            }
+        }
+        System.out.println(flightShards + ", " + carShards + ", " + roomShards);
+    }
+
+    /**
+     * Set the RMs of a resource type, subscribing to the invalidations of the new ones.
+     * The backups are subscribed to as well, they relay the changes of their primary
+     * and keep doing so once promoted.
+     */
+    private synchronized void updateShards(ShardMap<ReplicaGroup<String>> shards, List<String> specs) {
+        if (stopped) {
+            return;
+        }
+        List<ReplicaGroup<String>> dropped = shards.update(specs, spec -> ReplicaGroup.of(spec, address -> address));
+        for (ReplicaGroup<String> group : dropped) {
+            for (String address : ReplicaGroup.parse(group.getName())) {
+                MiddlewareTaskHandler.latencies.forget(address);
+                InvalidationSubscriber subscriber = subscribers.remove(address);
+                if (subscriber != null) {
+                    subscriber.close();
+                }
+            }
+        }
+        for (String spec : shards.all().keySet()) {
+            for (String address : ReplicaGroup.parse(spec)) {
+                if (!subscribers.containsKey(address)) {
+                    InvalidationSubscriber subscriber = new InvalidationSubscriber(address, cache);
+                    subscribers.put(address, subscriber);
+                    subscriber.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolve the bundles a previous run of the middleware left in doubt, over
+     * the connections the coordinator shares; the RMs unreachable now are asked
+     * again in the background.
+     */
+    private void recover(TransactionCoordinator coordinator) {
+        Set<String> addresses = new LinkedHashSet<>();
+        for (ShardMap<ReplicaGroup<String>> map : Arrays.asList(flightShards, carShards, roomShards)) {
+            for (ReplicaGroup<String> group : map.all().values()) {
+                addresses.add(group.primary());
+            }
+        }
+
+        List<TransactionCoordinator.Participant> participants = new Vector<>();
+        for (String address : addresses) {
+            participants.add(new RMParticipant(address));
+        }
+        coordinator.recover(participants);
+    }
 }
@@ -1,16 +1,27 @@
 package Server.TCP;
 
+import Server.Common.IdempotencyTable;
 import Server.Common.ResourceManager;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TCPResourceManager extends ResourceManager {
 
-    private static final int port = 4031;
+    private static int port = 4031;
     private static String s_serverName = "Server";
 
+    private volatile ServerSocket serverSocket;
+    // connections of the middleware, closed when the RM stops
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private ReplicationFollower follower;
+    // outcome of the recent writes, by the id the clients gave them
+    private final IdempotencyTable completed = new IdempotencyTable();
+
     public TCPResourceManager(String p_name) {
         super(p_name);
     }
@@ -20,30 +31,85 @@ public class TCPResourceManager extends ResourceManager {
         if (args.length > 0) {
             s_serverName = args[0];
         }
+        // several shards of a resource type can share a host on different ports
+        if (args.length > 1) {
+            port = Integer.parseInt(args[1]);
+        }
 
         TCPResourceManager resourceManager = new TCPResourceManager(s_serverName);
 
+        // a backup follows the log of its primary
+        if (args.length > 2) {
+            resourceManager.follow(args[2]);
+        }
+
         resourceManager.start();
     }
 
+    /**
+     * Become a backup of the primary and follow its log, until promoted
+     * @param primary host[:port] of the primary RM
+     */
+    public void follow(String primary) {
+        becomeBackup();
+        follower = new ReplicationFollower(primary, this);
+        follower.start();
+    }
+
     /**
      * Start the server.
      */
     public void start(){
         try(ServerSocket serverSocket = new ServerSocket(port)){
+            serve(serverSocket);
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+
+    }
 
-            System.out.println("ResourceManager \'" + s_serverName +"\' listening on port:" + port);
+    /**
+     * Accept the connections of the middleware until the socket is closed
+     * @param serverSocket bound to the port of this RM
+     * @throws IOException once the socket is closed
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+        this.serverSocket = serverSocket;
+        System.out.println("ResourceManager \'" + m_name +"\' listening on port:" + serverSocket.getLocalPort());
 
-            // for every connection established,
-            // create a new thread to take care of the connection
-            while(true){
-                Socket middlewareSocket = serverSocket.accept();
+        // for every connection established,
+        // create a new thread to take care of the connection
+        while(true){
+            Socket middlewareSocket = serverSocket.accept();
+            connections.removeIf(Socket::isClosed);
+            connections.add(middlewareSocket);
 
-                new RMTaskHandler(middlewareSocket, this).start();
-            }
-        }catch (IOException e){
-            e.printStackTrace();
+            new RMTaskHandler(middlewareSocket, this, completed).start();
         }
+    }
 
+    /**
+     * Stop as if the process died: no more connections, the open ones are closed
+     * and a backup stops following its primary
+     */
+    public void stop() {
+        if (serverSocket != null) {
+            close(serverSocket);
+        }
+        for (Socket connection : connections) {
+            close(connection);
+        }
+        connections.clear();
+        if (follower != null) {
+            follower.close();
+        }
+    }
+
+    private static void close(Closeable socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closed already
+        }
     }
 }
@@ -0,0 +1,121 @@
+package Server.TCP;
+
+import Server.Common.MessageChannel;
+import Server.Common.WaitlistNotice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pushes the waitlist notices the RMs send to the middleware on to the
+ * clients of the customer, over the connections on which they asked for them.
+ * A client that is not connected when its customer is served misses the
+ * notice, the reservation is in the customer's bill.
+ *
+ * publish() only queues the notices: each listening connection has a queue
+ * of its own and a thread sending it, so that a slow client never holds up
+ * the invalidations of an RM, nor the other clients. A client whose queue
+ * is full is too far behind and is dropped: its connection is closed.
+ *
+ * Tuning (system properties):
+ *   notify.queueSize  notices waiting to be sent to one client at most (default 1000)
+ */
+class WaitlistNotifier {
+
+    private static final int queueSize = Integer.getInteger("notify.queueSize", 1000);
+
+    /**
+     * A listening connection, and the notices waiting to be sent on it
+     */
+    private class Subscriber extends Thread {
+        private final MessageChannel channel;
+        private final BlockingQueue<WaitlistNotice> queue = new ArrayBlockingQueue<>(queueSize);
+
+        Subscriber(MessageChannel channel) {
+            super("notices->" + channel.getName());
+            this.channel = channel;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    WaitlistNotice notice = queue.take();
+                    channel.send(notice);
+                }
+            } catch (InterruptedException e) {
+                // unsubscribed
+            } catch (IOException e) {
+                System.err.println("Client " + channel.getName() + " unreachable, unsubscribed: " + e.getMessage());
+                unsubscribe(channel);
+            }
+        }
+    }
+
+    // connections of the clients listening, by customer
+    private final Map<Integer, List<Subscriber>> channels = new HashMap<>();
+    // the same, by connection
+    private final Map<MessageChannel, Subscriber> subscribers = new HashMap<>();
+
+    /**
+     * @param customerID
+     * @param channel connection of a client, only used for the notices from now on
+     */
+    synchronized void subscribe(int customerID, MessageChannel channel) {
+        Subscriber subscriber = subscribers.get(channel);
+        if (subscriber == null) {
+            subscriber = new Subscriber(channel);
+            subscribers.put(channel, subscriber);
+            subscriber.start();
+        }
+        List<Subscriber> listening = channels.computeIfAbsent(customerID, id -> new ArrayList<>());
+        if (!listening.contains(subscriber)) {
+            listening.add(subscriber);
+        }
+    }
+
+    /**
+     * @param channel closed, or no longer listening
+     */
+    synchronized void unsubscribe(MessageChannel channel) {
+        Subscriber subscriber = subscribers.remove(channel);
+        if (subscriber == null) {
+            return;
+        }
+        channels.values().removeIf(list -> list.remove(subscriber) && list.isEmpty());
+        subscriber.interrupt();
+    }
+
+    /**
+     * Queue a notice for the clients of its customer, without waiting for them
+     * @param notice
+     */
+    void publish(WaitlistNotice notice) {
+        List<Subscriber> targets;
+        synchronized (this) {
+            List<Subscriber> listening = channels.get(notice.getCustomerID());
+            if (listening == null) {
+                return;
+            }
+            targets = new ArrayList<>(listening);
+        }
+        for (Subscriber subscriber : targets) {
+            if (!subscriber.queue.offer(notice)) {
+                System.err.println("Client " + subscriber.channel.getName() + " of customer " + notice.getCustomerID()
+                        + " too far behind on its notices, dropped");
+                unsubscribe(subscriber.channel);
+                try {
+                    subscriber.channel.close();
+                } catch (IOException e) {
+                    // already broken
+                }
+            }
+        }
+    }
+}
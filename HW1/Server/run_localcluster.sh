@@ -0,0 +1,5 @@
+#!/bin/bash
+# Usage: ./run_localcluster.sh [<shards>] [<backups>]
+
+# Run the TCP middleware and its resource managers in one JVM, on ephemeral loopback ports
+java $JAVA_OPTS -cp .:../Client/request-classes.jar:response-classes.jar:RMIInterface.jar Server.TCP.LocalCluster $1 $2
@@ -1,4 +1,4 @@
-#Usage: ./run_server.sh [<server_name>]
+#Usage: ./run_server.sh [<server_name>] [<registry_port>] [<primary host[:port]>]
 
 ./run_rmi.sh > /dev/null 2>&1
-java -Djava.rmi.server.codebase=file:$(pwd)/ Server.RMI.RMIResourceManager $1 
+java -Djava.rmi.server.codebase=file:$(pwd)/ Server.RMI.RMIResourceManager $1 $2 $3
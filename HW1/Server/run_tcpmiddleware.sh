@@ -1,10 +1,10 @@
 #!/bin/bash
-# Usage: ./run_tcpmiddleware.sh <FlightHost> <CarHost> <RoomHost>
+# Usage: ./run_tcpmiddleware.sh <FlightHosts> <CarHosts> <RoomHosts>
 
 if [ $# -lt 3 ]; then
-    echo "Usage: ./run_tcpmiddleware.sh <FlightHost> <CarHost> <RoomHost>"
+    echo "Usage: ./run_tcpmiddleware.sh <FlightHosts> <CarHosts> <RoomHosts>"
     exit 1
 fi
 
 # Run the middleware with all necessary JAR dependencies
-java -cp .:../Client/request-classes.jar:response-classes.jar:RMIInterface.jar Server.TCP.TCPMiddleware $1 $2 $3
\ No newline at end of file
+java $JAVA_OPTS -cp .:../Client/request-classes.jar:response-classes.jar:RMIInterface.jar Server.TCP.TCPMiddleware $1 $2 $3
\ No newline at end of file
@@ -1,10 +1,10 @@
 #!/bin/bash
-# Usage: ./run_tcpserver.sh [<server_name>]
+# Usage: ./run_tcpserver.sh [<server_name>] [<port>] [<primary host[:port]>]
 
 if [ $# -lt 1 ]; then
-  echo "Usage: ./run_tcpserver.sh {Flights|Cars|Rooms}"
+  echo "Usage: ./run_tcpserver.sh {Flights|Cars|Rooms} [<port>] [<primary host[:port]>]"
   exit 1
 fi
 
 # Run the TCP ResourceManager with the necessary JAR files
-java -cp .:../Client/request-classes.jar:response-classes.jar:RMIInterface.jar Server.TCP.TCPResourceManager $1
+java $JAVA_OPTS -cp .:../Client/request-classes.jar:response-classes.jar:RMIInterface.jar Server.TCP.TCPResourceManager $1 $2 $3